@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   Measures the memory and threads needed per 1000 connected accounts.
+
+   <p> Connects <i>count</i> accounts (prefix0@domain, prefix1@domain,
+   ...) that all have the same password, waits until they are all
+   bound, and reports the growth in live threads and in heap used
+   (after a GC) compared to before connecting.
+
+   <p> Two modes are compared:
+   <ul>
+    <li> <code>eventloop</code>: {@link XmppEventLoop} sessions. </li>
+    <li> <code>threads</code>: one {@link XmppConnection} and
+         {@link XmppSenderReceiver} per account, each receive loop on
+         its own thread. Add <code>-Djabber.threads=virtual</code>
+         (Java 21+) to run them on virtual threads. </li>
+   </ul>
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar ConnectionFootprintBenchmark \
+                server port domain prefix password count [eventloop|threads] [loop_threads]
+ */
+public class ConnectionFootprintBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        if ( args.length < 6 ) {
+            System.err.println( "Usage: java ConnectionFootprintBenchmark " +
+                                "server port domain prefix password count [eventloop|threads] [loop_threads]" );
+            return;
+        }
+        String server = args[0];
+        int port = Integer.parseInt( args[1] );
+        String domain = args[2];
+        String prefix = args[3];
+        String password = args[4];
+        int count = Integer.parseInt( args[5] );
+        boolean useThreads = ( args.length > 6 ) && args[6].equals( "threads" );
+        int numThreads = ( args.length > 7 ) ? Integer.parseInt( args[7] )
+                                             : Runtime.getRuntime().availableProcessors();
+
+        long heapBefore = usedHeapAfterGc();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long start = System.nanoTime();
+
+        AtomicInteger ready = new AtomicInteger();
+        XmppEventLoop eventLoop = null;
+        if ( useThreads ) {
+            connectWithThreads( server , port , domain , prefix , password , count , ready );
+        }
+        else {
+            eventLoop = connectWithEventLoop( server , port , domain , prefix , password , count ,
+                                              numThreads , ready );
+        }
+
+        // Wait for all accounts to be bound (or give up after a while)
+        long deadline = System.currentTimeMillis() + 120000;
+        while ( ready.get() < count && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 100 );
+        }
+        long elapsedMillis = ( System.nanoTime() - start ) / 1000000L;
+        int connected = ready.get();
+
+        long heapAfter = usedHeapAfterGc();
+        // Virtual threads don't show up here, only their carrier threads
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        double perThousand = 1000.0 / Math.max( 1 , connected );
+        String mode = useThreads ? ( JabberThreads.isVirtual() ? "virtual threads" : "platform threads" )
+                                 : numThreads + " event loop threads";
+        System.out.println( "Connected " + connected + " of " + count + " accounts in " +
+                            elapsedMillis + " ms using " + mode );
+        System.out.println( String.format( "Per 1k accounts: %.1f MB heap, %.1f threads" ,
+                                           ( heapAfter - heapBefore ) * perThousand / ( 1024 * 1024 ) ,
+                                           ( threadsAfter - threadsBefore ) * perThousand ) );
+
+        if ( eventLoop != null ) {
+            eventLoop.close();
+        }
+        System.exit( 0 );
+    }
+
+    /** Connects the accounts over an event loop. */
+    private static XmppEventLoop connectWithEventLoop( String server , int port , String domain ,
+                                                       String prefix , String password , int count ,
+                                                       int numThreads , final AtomicInteger ready )
+        throws IOException {
+
+        XmppEventLoop eventLoop = new XmppEventLoop( numThreads );
+        eventLoop.start();
+
+        XmppNioSession.Listener listener = new XmppNioSession.Listener() {
+            public void connected( XmppNioSession session ) {
+                session.send( "<presence/>" );
+                ready.incrementAndGet();
+            }
+            public void stanzaReceived( XmppNioSession session , XmlElement stanza ) {
+                // Ignore
+            }
+            public void disconnected( XmppNioSession session , IOException cause ) {
+                System.err.println( session.getJabberID().getJabberID() + ": " + cause );
+            }
+        };
+
+        for ( int i = 0 ; i < count ; ++i ) {
+            JabberID jid = new JabberID( prefix + i + "@" + domain , password , server , port );
+            eventLoop.connect( jid , listener );
+        }
+        return eventLoop;
+    }
+
+    /** Connects the accounts with a blocking connection and receive thread each. */
+    private static void connectWithThreads( String server , int port , String domain ,
+                                            String prefix , String password , int count ,
+                                            final AtomicInteger ready ) {
+
+        for ( int i = 0 ; i < count ; ++i ) {
+            final JabberID jid = new JabberID( prefix + i + "@" + domain , password , server , port );
+
+            // Connect on the receive thread, then run its receive loop
+            JabberThreads.newThread( new Runnable() {
+                public void run() {
+                    try {
+                        XmppConnection connection = new XmppConnection( jid );
+                        connection.connect();
+                        XmppSenderReceiver senderReceiver = new XmppSenderReceiver( connection );
+                        senderReceiver.sendPresence();
+                        ready.incrementAndGet();
+                        senderReceiver.run();
+                    }
+                    catch ( IOException e ) {
+                        System.err.println( jid.getJabberID() + ": " + e );
+                    }
+                }
+            } , "Account-" + i ).start();
+        }
+    }
+
+    /** Gets the heap in use after (asking for) a full GC. */
+    static long usedHeapAfterGc()
+        throws InterruptedException {
+
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0 ; i < 3 ; ++i ) {
+            System.gc();
+            Thread.sleep( 100 );
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Stress test of the {@link ConversationLog} with concurrent producers.
+
+   <p> <i>producers</i> threads each add <i>lines</i> numbered lines
+   (as fast as they can, or at <i>rate</i> lines per second each) to a
+   log with a small budget, so most lines are spilled to disk, while a saver thread keeps taking the lines out the
+   way JabberMain does when a chat ends (getLines(), then
+   removeFirst()). At the end the log is closed and the rest read back.
+
+   <p> It checks that every line was either saved or counted as
+   dropped, once, and in each producer's order, and reports the adds
+   per second, the time to add a line (sampled), the lines spilled and
+   dropped, and the most lines seen in memory. Exits with status 1 if
+   the check fails. Flat out, lines are dropped once the producers
+   outrun the disk (or take the CPUs from the spill thread).
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar ConversationLogStress \
+                [producers] [lines] [capacity] [max_chars] [rate]
+ */
+public class ConversationLogStress {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        final int producers = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 4;
+        final int linesPerProducer = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 500000;
+        int capacity = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 1024;
+        long maxChars = ( args.length > 3 ) ? Long.parseLong( args[3] ) : 64 * 1024;
+        final int rate = ( args.length > 4 ) ? Integer.parseInt( args[4] ) : 0;
+        File spillFile = File.createTempFile( "conversation" , ".spill" );
+        spillFile.delete();
+        spillFile.deleteOnExit();
+
+        final ConversationLog log = new ConversationLog( spillFile , capacity , maxChars );
+        final Histogram addTime = new Histogram( "add (ns)" );
+        final long[] nextExpected = new long[ producers ];
+        final AtomicLong maxInMemory = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( producers );
+
+        Thread[] threads = new Thread[ producers ];
+        for ( int p = 0 ; p < producers ; ++p ) {
+            final String prefix = "p" + p + " says: line ";
+            threads[p] = new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch ( InterruptedException e ) {
+                        return;
+                    }
+                    long begin = System.nanoTime();
+                    for ( int i = 0 ; i < linesPerProducer ; ++i ) {
+                        if ( rate > 0 && i % 100 == 0 ) {
+                            pace( begin , i , rate );
+                        }
+                        String line = prefix + i;
+                        if ( ( i & 15 ) == 0 ) {
+                            long t = System.nanoTime();
+                            log.add( line );
+                            addTime.record( System.nanoTime() - t );
+                        }
+                        else {
+                            log.add( line );
+                        }
+                    }
+                    done.countDown();
+                }
+            } , "Producer-" + p );
+            threads[p].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        // Save as JabberMain does, while the producers run
+        long saved = 0;
+        long saves = 0;
+        int bad = 0;
+        while ( done.getCount() > 0 ) {
+            maxInMemory.set( Math.max( maxInMemory.get() , log.size() ) );
+            List <String> lines = log.getLines();
+            bad += check( lines , nextExpected );
+            log.removeFirst( lines.size() );
+            saved += lines.size();
+            ++saves;
+            Thread.sleep( 20 );
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        log.close();
+        List <String> rest = log.getLines();
+        bad += check( rest , nextExpected );
+        log.removeFirst( rest.size() );
+        saved += rest.size();
+
+        long total = (long) producers * linesPerProducer;
+        long dropped = log.getDroppedCount();
+        System.out.println( String.format( "%d producers x %,d lines in %.2f s: %,.0f adds/s" ,
+                                           producers , linesPerProducer , elapsed / 1e9 ,
+                                           total / ( elapsed / 1e9 ) ) );
+        System.out.println( addTime );
+        System.out.println( String.format( "saved %,d lines in %,d saves, spilled %,d, dropped %,d, " +
+                                           "at most %,d lines in memory (capacity %d)" ,
+                                           saved , saves , log.getSpilledCount() , dropped ,
+                                           maxInMemory.get() , capacity ) );
+
+        // Every line is saved (in order, checked above) or dropped
+        boolean ok = bad == 0 && received + dropped == total;
+        System.out.println( ok ? "OK" : "FAILED: " + bad + " lines out of order, " +
+                                        ( total - received - dropped ) + " lines missing" );
+        spillFile.delete();
+        System.exit( ok ? 0 : 1 );
+    }
+
+    /** Sleeps until it is time for the given line. */
+    private static void pace( long begin , int line , int rate ) {
+        long ahead = begin + line * 1000000000L / rate - System.nanoTime();
+        if ( ahead > 0 ) {
+            try {
+                Thread.sleep( ahead / 1000000 , (int) ( ahead % 1000000 ) );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+       Checks that each producer's lines come in order, allowing for
+       dropped ones, and counts them.
+       @return the number of lines out of order
+     */
+    private static int check( List <String> lines , long[] nextExpected ) {
+        int bad = 0;
+        for ( String line : lines ) {
+            if ( line.startsWith( "[" ) ) {
+                // Drop marker
+                continue;
+            }
+            int space = line.indexOf( ' ' );
+            int producer = Integer.parseInt( line.substring( 1 , space ) );
+            long number = Long.parseLong( line.substring( line.lastIndexOf( ' ' ) + 1 ) );
+            if ( number < nextExpected[ producer ] ) {
+                ++bad;
+            }
+            nextExpected[ producer ] = number + 1;
+            ++received;
+        }
+        return bad;
+    }
+
+    /** Lines saved, not counting the drop markers. */
+    private static long received = 0;
+}
@@ -0,0 +1,406 @@
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+   Micro-benchmarks of the client's per-stanza hot paths, reporting the
+   garbage made alongside the throughput, so the allocation per message
+   can be tracked over time:
+   <ul>
+    <li> <b>handleNewMessage</b>: receiving chat messages, with the StAX
+         and the push parser; </li>
+    <li> <b>handleQuery</b>: receiving a large roster, with both parsers
+         into an in-memory roster store; </li>
+    <li> <b>sendMessageToClient</b>: queueing chat messages, built and
+         written (to a discarded stream) by the writer thread; </li>
+    <li> <b>JabberID.setJabberID</b> and <b>getSenderEmail</b>: splitting
+         JIDs; </li>
+    <li> <b>SASL</b>: the Base64 encoding of the PLAIN auth stanza, and
+         the decoding of a challenge plus the encoding of the response. </li>
+   </ul>
+
+   <p> The parsers read an endless stream (the same stanzas over and
+   over), so they run in steady state, like on a long-lived connection.
+
+   <p> Each benchmark is warmed up, then run for a few seconds. Reports
+   operations/s, the bytes allocated per operation and the allocation
+   rate (by the benchmark thread, and the writer thread for sending,
+   using the HotSpot ThreadMXBean extension), and the garbage
+   collections during the run.
+
+   <p> To run (optionally only the benchmarks whose name contains a filter):
+   <br> $ java -cp bin:commons-codec-1.8.jar HotPathBenchmark [filter] [roster_size] [seconds]
+
+   <p> The same benchmarks run under JMH in the jmh module
+   (jabberchat.jmh.HotPathBenchmarks), with its forks, statistics and
+   GC profiler: this main is the quick check that needs no build.
+ */
+public class HotPathBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        String filter = ( args.length > 0 ) ? args[0] : "";
+        int rosterSize = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 5000;
+        int seconds = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 3;
+
+        EventLog.setEnabled( false );
+        List <Benchmark> benchmarks = createBenchmarks( rosterSize );
+
+        System.out.println( String.format( "%-34s %14s %12s %10s %8s %8s" , "benchmark" , "ops/s" ,
+                                           "bytes/op" , "MB/s" , "gc.count" , "gc.ms" ) );
+        for ( Benchmark benchmark : benchmarks ) {
+            if ( benchmark.name.contains( filter ) ) {
+                measure( benchmark , seconds );
+            }
+            benchmark.close();
+        }
+        System.out.println( "(checksum " + checksum + ")" );
+    }
+
+    /** Creates all the benchmarks (also run by the JMH module, see HotPaths). */
+    static List <Benchmark> createBenchmarks( int rosterSize )
+        throws Exception {
+
+        final JabberID jid = new JabberID( "me@example.com" , "secret" , "example.com" , 5222 );
+        jid.setResource( "desk" );
+        XMLInputFactory xif = XMLInputFactory.newInstance();
+        List <Benchmark> benchmarks = new ArrayList <Benchmark>();
+
+        // Receiving messages
+        final XMLStreamReader messageParser =
+            xif.createXMLStreamReader( new InputStreamReader( messageStream() , "UTF-8" ) );
+        final XmppSenderReceiver staxMessages = createSenderReceiver( jid , messageParser , null );
+        benchmarks.add( new Benchmark( "handleNewMessage (StAX)" , staxMessages ) {
+            int run() throws Exception {
+                for ( int i = 0 ; i < BATCH ; ) {
+                    if ( messageParser.next() == XMLStreamConstants.START_ELEMENT
+                         && messageParser.getLocalName().equals( "message" ) ) {
+                        staxMessages.handleNewMessage();
+                        ++i;
+                    }
+                }
+                return BATCH;
+            }
+        } );
+        final XmlStanzaReader pushMessageReader = new XmlStanzaReader( messageStream() );
+        final XmppSenderReceiver pushMessages = createSenderReceiver( jid , null , pushMessageReader );
+        benchmarks.add( new Benchmark( "handleNewMessage (push)" , pushMessages ) {
+            int run() throws Exception {
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    pushMessages.handleNewMessage( pushMessageReader.next() );
+                }
+                return BATCH;
+            }
+        } );
+
+        // Receiving the roster
+        final XMLStreamReader rosterParser =
+            xif.createXMLStreamReader( new InputStreamReader( rosterStream( rosterSize ) , "UTF-8" ) );
+        final XmppSenderReceiver staxRoster = createSenderReceiver( jid , rosterParser , null );
+        benchmarks.add( new Benchmark( "handleQuery " + rosterSize + " items (StAX)" , staxRoster ) {
+            int run() throws Exception {
+                while ( ! ( rosterParser.next() == XMLStreamConstants.START_ELEMENT
+                            && rosterParser.getLocalName().equals( "query" ) ) ) {
+                    // Skip to the roster
+                }
+                staxRoster.handleQuery();
+                return 1;
+            }
+        } );
+        final XmlStanzaReader pushRosterReader = new XmlStanzaReader( rosterStream( rosterSize ) );
+        final XmppSenderReceiver pushRoster = createSenderReceiver( jid , null , pushRosterReader );
+        benchmarks.add( new Benchmark( "handleQuery " + rosterSize + " items (push)" , pushRoster ) {
+            int run() throws Exception {
+                XmlElement query;
+                do {
+                    // Skip the stream header
+                    query = pushRosterReader.next().getChild( "query" );
+                } while ( query == null );
+                pushRoster.handleQuery( query );
+                return 1;
+            }
+        } );
+
+        // Sending messages (the writer thread's allocations count too)
+        final XmppSenderReceiver sender = createSenderReceiver( jid , null , null );
+        final String[] bodies = createBodies();
+        benchmarks.add( new Benchmark( "sendMessageToClient" , sender ) {
+            int run() throws Exception {
+                OutboundStanzaQueue queue = sender.getOutboundQueue();
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    if ( i % OutboundStanzaQueue.MAX_BATCH_SIZE == 0 ) {
+                        // Don't overflow the queue (it throws when full)
+                        while ( queue.getQueueDepth() > QUEUE_LIMIT ) {
+                            Thread.yield();
+                        }
+                    }
+                    sender.sendMessageToClient( bodies[ i % bodies.length ] , "friend@example.com" );
+                }
+                while ( queue.getQueueDepth() > 0 ) {
+                    Thread.yield();
+                }
+                return BATCH;
+            }
+            long otherThreadsAllocatedBytes() {
+                return allocatedBytes( "XmppWriter" );
+            }
+        } );
+
+        // JIDs
+        final String[] bareJids = new String[ 100 ];
+        final String[] fullJids = new String[ bareJids.length ];
+        for ( int i = 0 ; i < bareJids.length ; ++i ) {
+            bareJids[i] = "friend" + i + "@example.com";
+            fullJids[i] = bareJids[i] + "/home" + i;
+        }
+        benchmarks.add( new Benchmark( "JabberID.setJabberID" , null ) {
+            int run() {
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    jid.setJabberID( bareJids[ i % bareJids.length ] );
+                    checksum += jid.getUsername().length() + jid.getDomain().length();
+                }
+                return BATCH;
+            }
+        } );
+        benchmarks.add( new Benchmark( "getSenderEmail" , null ) {
+            int run() {
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    checksum += sender.getSenderEmail( fullJids[ i % fullJids.length ] ).length();
+                }
+                return BATCH;
+            }
+        } );
+
+        // SASL
+        final byte[] plainResponse = "\0me\0secret".getBytes( "UTF-8" );
+        benchmarks.add( new Benchmark( "SASL PLAIN auth stanza" , null ) {
+            int run() {
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    checksum += XmppConnection.createAuthenticationStanza( "PLAIN" , plainResponse ).length();
+                }
+                return BATCH;
+            }
+        } );
+        final String challenge = Base64.encodeBase64String(
+            "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096".getBytes( "UTF-8" ) );
+        final byte[] clientFinal = ( "c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                                     "p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=" ).getBytes( "UTF-8" );
+        benchmarks.add( new Benchmark( "SASL challenge/response" , null ) {
+            int run() {
+                for ( int i = 0 ; i < BATCH ; ++i ) {
+                    checksum += Base64.decodeBase64( challenge ).length;
+                    checksum += XmppConnection.createResponseStanza( clientFinal ).length();
+                }
+                return BATCH;
+            }
+        } );
+        return benchmarks;
+    }
+
+    /** Warms up a benchmark, then runs it for the given time and prints the results. */
+    private static void measure( Benchmark benchmark , int seconds )
+        throws Exception {
+
+        long warmUpEnd = System.nanoTime() + WARM_UP_NANOS;
+        while ( System.nanoTime() < warmUpEnd ) {
+            benchmark.run();
+        }
+
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocatedBefore = StanzaSerializerBenchmark.allocatedBytes() + benchmark.otherThreadsAllocatedBytes();
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long now;
+        do {
+            ops += benchmark.run();
+            now = System.nanoTime();
+        } while ( now < end );
+        long allocated = StanzaSerializerBenchmark.allocatedBytes() + benchmark.otherThreadsAllocatedBytes()
+            - allocatedBefore;
+
+        double elapsed = ( now - start ) / 1e9;
+        System.out.println( String.format( "%-34s %14.0f %12.1f %10.1f %8d %8d" , benchmark.name ,
+                                           ops / elapsed , (double) allocated / ops ,
+                                           allocated / elapsed / ( 1024 * 1024 ) ,
+                                           gcCount() - gcCount , gcMillis() - gcMillis ) );
+    }
+
+    /** Creates a sender/receiver reading from the given parser, writing to a discarded stream. */
+    private static XmppSenderReceiver createSenderReceiver( JabberID jid , XMLStreamReader parser ,
+                                                            XmlStanzaReader stanzaReader ) {
+        XmppSenderReceiver senderReceiver = new XmppSenderReceiver( jid , parser , stanzaReader ,
+                                                                    NULL_STREAM );
+        senderReceiver.setMessageListener( new XmppSenderReceiver.MessageListener() {
+            public void receivedMessage( String message , String sender ) {
+                checksum += message.length() + sender.length();
+            }
+        } );
+        return senderReceiver;
+    }
+
+    /** An endless stream of chat messages. */
+    private static InputStream messageStream()
+        throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0 ; i < 100 ; ++i ) {
+            sb.append( "<message from='friend" ).append( i ).append( "@example.com/home' " +
+                       "to='me@example.com/desk' type='chat' xml:lang='en'>" +
+                       "<body>Message number " ).append( i ).append( ", with &amp; an entity</body>" +
+                       "<thread>1234567</thread></message>" );
+        }
+        return new RepeatingInputStream( STREAM_HEADER.getBytes( "UTF-8" ) , sb.toString().getBytes( "UTF-8" ) );
+    }
+
+    /** An endless stream of roster results. */
+    private static InputStream rosterStream( int rosterSize )
+        throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( "<iq to='me@example.com/desk' id='roster_1' type='result'>" +
+                   "<query xmlns='jabber:iq:roster' ver='ver7'>" );
+        for ( int i = 0 ; i < rosterSize ; ++i ) {
+            sb.append( "<item jid='contact" ).append( i ).append( "@example.com' name='Contact " )
+                .append( i ).append( "' subscription='both'><group>Friends</group></item>" );
+        }
+        sb.append( "</query></iq>" );
+        return new RepeatingInputStream( STREAM_HEADER.getBytes( "UTF-8" ) , sb.toString().getBytes( "UTF-8" ) );
+    }
+
+    /** Creates message bodies of typical length. */
+    private static String[] createBodies() {
+        String[] bodies = new String[ 100 ];
+        for ( int i = 0 ; i < bodies.length ; ++i ) {
+            bodies[i] = "Message number " + i + ", see you at the café at " + ( i % 24 ) + " o'clock";
+        }
+        return bodies;
+    }
+
+    /** Gets the number of bytes allocated so far by the threads with the given name. */
+    private static long allocatedBytes( String threadName ) {
+        long bytes = 0;
+        for ( Thread thread : Thread.getAllStackTraces().keySet() ) {
+            if ( thread.getName().equals( threadName ) ) {
+                bytes += ( (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() )
+                    .getThreadAllocatedBytes( thread.getId() );
+            }
+        }
+        return bytes;
+    }
+
+    /** Gets the number of garbage collections so far. */
+    private static long gcCount() {
+        long count = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            count += Math.max( gc.getCollectionCount() , 0 );
+        }
+        return count;
+    }
+
+    /** Gets the time spent in garbage collections so far (millisec). */
+    private static long gcMillis() {
+        long millis = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            millis += Math.max( gc.getCollectionTime() , 0 );
+        }
+        return millis;
+    }
+
+    /** A benchmark: runs a batch of operations. */
+    static abstract class Benchmark {
+
+        Benchmark( String name , XmppSenderReceiver senderReceiver ) {
+            this.name = name;
+            this.senderReceiver = senderReceiver;
+        }
+
+        /** Runs a batch, returns the number of operations. */
+        abstract int run() throws Exception;
+
+        /** Gets the bytes allocated so far by other threads doing the benchmark's work. */
+        long otherThreadsAllocatedBytes() {
+            return 0;
+        }
+
+        /** Stops the sender/receiver's writer thread. */
+        void close() {
+            if ( senderReceiver != null ) {
+                senderReceiver.close();
+            }
+        }
+
+        final String name;
+        private final XmppSenderReceiver senderReceiver;
+    }
+
+    /** Stream made of a header followed by the same body over and over. */
+    private static class RepeatingInputStream extends InputStream {
+
+        RepeatingInputStream( byte[] header , byte[] body ) {
+            this.header = header;
+            this.body = body;
+        }
+
+        public int read() {
+            byte[] b = new byte[1];
+            read( b , 0 , 1 );
+            return b[0] & 0xff;
+        }
+
+        public int read( byte[] b , int off , int len ) {
+            byte[] source = ( headerDone ) ? body : header;
+            int n = Math.min( len , source.length - position );
+            System.arraycopy( source , position , b , off , n );
+            position += n;
+            if ( position == source.length ) {
+                headerDone = true;
+                position = 0;
+            }
+            return n;
+        }
+
+        private final byte[] header;
+        private final byte[] body;
+        private boolean headerDone = false;
+        private int position = 0;
+    }
+
+    /** Stream that discards everything. */
+    private static class NullOutputStream extends OutputStream {
+        public void write( int b ) {
+            // Discard
+        }
+        public void write( byte[] b , int off , int len ) {
+            // Discard
+        }
+    }
+
+    private static final String STREAM_HEADER =
+        "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+        "xmlns:stream='http://etherx.jabber.org/streams' id='bench' version='1.0'>";
+
+    /** Operations per batch. */
+    static final int BATCH = 1000;
+    /** Queue depth at which sending waits for the writer thread. */
+    private static final int QUEUE_LIMIT = 512;
+    private static final long WARM_UP_NANOS = 2000000000L;
+
+    private static final OutputStream NULL_STREAM = new NullOutputStream();
+
+    /** Keeps the JIT from dropping the results. */
+    private static long checksum = 0;
+}
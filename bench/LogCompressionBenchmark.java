@@ -0,0 +1,350 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+   Measures what compressing conversation logs gains and costs: in the
+   {@link LogStore} segments, and in the batches the {@link LogShipper}
+   sends.
+
+   <p> Synthetic conversations (records of 10 lines of 8 words, from a
+   vocabulary of 20,000 words used with a Zipf distribution as in real
+   text, said by one of 1,000 users) are used throughout:
+   <ul>
+    <li> the store: <i>megabytes</i> of lines are appended, without and
+         with compression, and then read back (all the records, and
+         conversation queries). Reports the bytes stored per byte of
+         lines, MB of lines appended and read per second, and the CPU
+         seconds per GB; </li>
+    <li> the frames: batches of 256 records are encoded and decoded,
+         without and with compression. Reports their size and the MB
+         encoded and decoded per second; </li>
+    <li> shipping: a log server (storing compressed) is started, behind
+         a proxy passing <i>mbits</i> Mbit/s from the shipper at most
+         (as a link to a remote log server would), and a quarter of the
+         records is shipped through it, without and with compression.
+         Reports the lines acknowledged per second. </li>
+   </ul>
+
+   <p> To run (on the disk to measure):
+   <br> $ java -cp bin:commons-codec-1.8.jar LogCompressionBenchmark [megabytes] [mbits] [directory]
+ */
+public class LogCompressionBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int megabytes = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 512;
+        int mbits = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 20;
+        File dir = new File( ( args.length > 2 ) ? args[2] : "logcompression-bench" );
+        EventLog.setEnabled( false );
+        delete( dir );
+
+        Random random = new Random( 1 );
+        String[] words = newVocabulary( random );
+        double[] ranks = newZipf( words.length );
+        List <LogProtocol.Record> records = new ArrayList <LogProtocol.Record>();
+        long lineBytes = 0;
+        while ( lineBytes < megabytes * 1024L * 1024 ) {
+            LogProtocol.Record record = newRecord( records.size() , words , ranks , random );
+            records.add( record );
+            for ( String line : record.getLines() ) {
+                lineBytes += line.length() + 1;
+            }
+        }
+        System.out.println( String.format( "%,d records, %,d MB of lines" , records.size() , lineBytes >> 20 ) );
+
+        System.out.println( "Store:" );
+        for ( boolean compress : new boolean[] { false , true } ) {
+            runStore( new File( dir , compress ? "deflated" : "plain" ) , records , compress );
+        }
+
+        System.out.println( "Batch frames:" );
+        for ( boolean compress : new boolean[] { false , true } ) {
+            runFrames( records , compress );
+        }
+
+        System.out.println( String.format( "Shipping through %d Mbit/s:" , mbits ) );
+        LogStore store = new LogStore( new File( dir , "server" ) , LogStore.DEFAULT_SEGMENT_SIZE , 1024 , 2000 );
+        LogIngestServer server = new LogIngestServer( 0 , store , null , 1 , 2 , 64L * 1024 * 1024 );
+        server.start();
+        ThrottlingProxy proxy = new ThrottlingProxy( server.getPort() , mbits * 1000000L / 8 );
+        List <LogProtocol.Record> shipped = records.subList( 0 , records.size() / 4 );
+        for ( boolean compress : new boolean[] { false , true } ) {
+            runShipping( proxy.getPort() , shipped , compress );
+        }
+        proxy.close();
+        server.close();
+        store.close();
+        delete( dir );
+    }
+
+    /** Appends the records to a new store and reads them back. */
+    private static void runStore( File dir , List <LogProtocol.Record> records , boolean compress )
+        throws Exception {
+
+        LogStore store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , 1024 , 100000 , compress );
+        long cpu = getCpuTime();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < records.size() ; i += 256 ) {
+            store.append( records.subList( i , Math.min( i + 256 , records.size() ) ) );
+        }
+        store.sync( store.getWrittenOffset() );
+        double appendSeconds = ( System.nanoTime() - start ) / 1e9;
+        double appendCpu = ( getCpuTime() - cpu ) / 1e9;
+        double megabytes = store.getAppendedLineBytes() / 1048576.0;
+
+        cpu = getCpuTime();
+        start = System.nanoTime();
+        final long[] lines = new long[ 1 ];
+        store.scan( 0 , new LogStore.Visitor() {
+            public boolean visit( long offset , LogProtocol.Record record ) {
+                lines[0] += record.getLines().size();
+                return true;
+            }
+        } );
+        double scanSeconds = ( System.nanoTime() - start ) / 1e9;
+        double scanCpu = ( getCpuTime() - cpu ) / 1e9;
+
+        Histogram query = new Histogram( "query" );
+        Random random = new Random( 2 );
+        for ( int q = 0 ; q < 500 ; ++q ) {
+            start = System.nanoTime();
+            store.query( "user" + random.nextInt( USERS ) + "@localhost" , "friend" + random.nextInt( CONTACTS ) + "@localhost" ,
+                         0 , Long.MAX_VALUE , 200 );
+            query.record( ( System.nanoTime() - start ) / 1000 );
+        }
+        System.out.println( String.format( "  %-10s %,5d MB stored (%.2f bytes per byte of lines); " +
+                                           "append %,4.0f MB/s, %.1f CPU s/GB; read all %,4.0f MB/s, %.1f CPU s/GB; " +
+                                           "last 200 lines p50=%,dus" ,
+                                           compress ? "deflated:" : "plain:" , store.getAppendedBytes() >> 20 ,
+                                           store.getAppendedBytes() / ( megabytes * 1048576 ) ,
+                                           megabytes / appendSeconds , appendCpu / megabytes * 1024 ,
+                                           megabytes / scanSeconds , scanCpu / megabytes * 1024 , query.getPercentile( 50 ) ) );
+        store.close();
+    }
+
+    /** Encodes and decodes the records in batch frames. */
+    private static void runFrames( List <LogProtocol.Record> records , boolean compress )
+        throws IOException {
+
+        List <byte[]> frames = new ArrayList <byte[]>();
+        long plainBytes = 0;
+        long frameBytes = 0;
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < records.size() ; i += 256 ) {
+            byte[] frame = LogProtocol.encodeBatch( i , records.subList( i , Math.min( i + 256 , records.size() ) ) , compress );
+            frames.add( frame );
+            frameBytes += frame.length;
+        }
+        double encodeSeconds = ( System.nanoTime() - start ) / 1e9;
+        for ( LogProtocol.Record record : records ) {
+            plainBytes += record.getSize();
+        }
+        start = System.nanoTime();
+        for ( byte[] frame : frames ) {
+            LogProtocol.readBatch( Arrays.copyOfRange( frame , 4 , frame.length ) );
+        }
+        double decodeSeconds = ( System.nanoTime() - start ) / 1e9;
+        double megabytes = plainBytes / 1048576.0;
+        System.out.println( String.format( "  %-10s %,5d MB (%.2f bytes per byte of records); encode %,4.0f MB/s, decode %,4.0f MB/s" ,
+                                           compress ? "deflated:" : "plain:" , frameBytes >> 20 , frameBytes / (double) plainBytes ,
+                                           megabytes / encodeSeconds , megabytes / decodeSeconds ) );
+    }
+
+    /** Ships the records, and waits until all are acknowledged. */
+    private static void runShipping( int port , List <LogProtocol.Record> records , boolean compress )
+        throws Exception {
+
+        LogShipper shipper = new LogShipper( "localhost" , port , 64 * 1024 * 1024 , 256 * 1024 , 8 , compress );
+        long lines = 0;
+        long cpu = getCpuTime();
+        long start = System.nanoTime();
+        for ( LogProtocol.Record record : records ) {
+            while ( ! shipper.ship( record ) ) {
+                Thread.sleep( 1 );
+            }
+            lines += record.getLines().size();
+        }
+        if ( ! shipper.flush( 600000 ) ) {
+            System.out.println( "Not all acknowledged" );
+        }
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+        double cpuSeconds = ( getCpuTime() - cpu ) / 1e9;
+        System.out.println( String.format( "  %-10s %,d lines in %.1f s: %,.0f lines/s, %,.1f MB of lines/s; %,d MB sent; %.1f CPU s" ,
+                                           compress ? "deflated:" : "plain:" , lines , seconds , lines / seconds ,
+                                           shipper.getBatchedBytes() / 1048576.0 / seconds , shipper.getFrameBytes() >> 20 ,
+                                           cpuSeconds ) );
+        shipper.close( 1000 );
+    }
+
+    /** Passes the bytes from the clients to the server at a given rate at most. */
+    private static class ThrottlingProxy {
+
+        ThrottlingProxy( final int serverPort , final long bytesPerSecond )
+            throws IOException {
+
+            listener = new ServerSocket( 0 );
+            Thread acceptor = new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        while ( true ) {
+                            Socket client = listener.accept();
+                            Socket server = new Socket();
+                            server.connect( new InetSocketAddress( "localhost" , serverPort ) );
+                            server.setTcpNoDelay( true );
+                            client.setTcpNoDelay( true );
+                            pump( client.getInputStream() , server.getOutputStream() , bytesPerSecond );
+                            pump( server.getInputStream() , client.getOutputStream() , 0 );
+                        }
+                    }
+                    catch ( IOException e ) {
+                        // Closed
+                    }
+                }
+            } );
+            acceptor.setDaemon( true );
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        void close()
+            throws IOException {
+
+            listener.close();
+        }
+
+        /** Copies until the end of the input, at the rate if not 0. */
+        private static void pump( final InputStream in , final OutputStream out , final long bytesPerSecond ) {
+            Thread pump = new Thread( new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[ 16 * 1024 ];
+                    long start = System.nanoTime();
+                    long bytes = 0;
+                    try {
+                        int n;
+                        while ( ( n = in.read( buffer ) ) > 0 ) {
+                            out.write( buffer , 0 , n );
+                            bytes += n;
+                            if ( bytesPerSecond > 0 ) {
+                                long due = start + bytes * 1000000000L / bytesPerSecond;
+                                long wait = due - System.nanoTime();
+                                if ( wait > 0 ) {
+                                    Thread.sleep( wait / 1000000 , (int) ( wait % 1000000 ) );
+                                }
+                            }
+                        }
+                    }
+                    catch ( Exception e ) {
+                        // Closed
+                    }
+                    try {
+                        in.close();
+                        out.close();
+                    }
+                    catch ( IOException e ) {
+                        // Ignore
+                    }
+                }
+            } );
+            pump.setDaemon( true );
+            pump.start();
+        }
+
+        private final ServerSocket listener;
+    }
+
+    /** Gets the CPU time used by the process, all threads (nanosec). */
+    private static long getCpuTime() {
+        return ( (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean() ).getProcessCpuTime();
+    }
+
+    private static LogProtocol.Record newRecord( int count , String[] words , double[] ranks , Random random ) {
+        int user = random.nextInt( USERS );
+        int friend = random.nextInt( CONTACTS );
+        List <String> lines = new ArrayList <String>( LINES );
+        for ( int l = 0 ; l < LINES ; ++l ) {
+            StringBuilder line = new StringBuilder();
+            line.append( ( l % 2 == 0 ) ? "user" + user : "friend" + friend ).append( " says:" );
+            for ( int w = 0 ; w < WORDS ; ++w ) {
+                line.append( ' ' ).append( words[ pick( ranks , random ) ] );
+            }
+            lines.add( line.toString() );
+        }
+        return new LogProtocol.Record( "user" + user + "@localhost" , "friend" + friend + "@localhost" , count * 1000L , lines );
+    }
+
+    /** Makes up words of 2 to 4 syllables. */
+    private static String[] newVocabulary( Random random ) {
+        String[] syllables = { "ka" , "lo" , "mi" , "ne" , "ru" , "sa" , "ti" , "vo" , "ber" , "dan" , "gol" , "har" ,
+                               "jin" , "kor" , "lem" , "mos" , "nup" , "pal" , "quo" , "rin" , "sel" , "tor" , "ung" , "vex" };
+        Set <String> words = new HashSet <String>();
+        while ( words.size() < VOCABULARY ) {
+            StringBuilder word = new StringBuilder();
+            for ( int s = 2 + random.nextInt( 3 ) ; s > 0 ; --s ) {
+                word.append( syllables[ random.nextInt( syllables.length ) ] );
+            }
+            words.add( word.toString() );
+        }
+        String[] sorted = words.toArray( new String[ words.size() ] );
+        Arrays.sort( sorted );
+        // In a random order of frequency
+        for ( int i = sorted.length - 1 ; i > 0 ; --i ) {
+            int j = random.nextInt( i + 1 );
+            String word = sorted[i];
+            sorted[i] = sorted[j];
+            sorted[j] = word;
+        }
+        return sorted;
+    }
+
+    /** Gets the cumulative probabilities of the ranks (Zipf, exponent 1). */
+    private static double[] newZipf( int n ) {
+        double[] cumulative = new double[ n ];
+        double sum = 0;
+        for ( int i = 0 ; i < n ; ++i ) {
+            sum += 1.0 / ( i + 1 );
+            cumulative[i] = sum;
+        }
+        for ( int i = 0 ; i < n ; ++i ) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick( double[] cumulative , Random random ) {
+        int i = Arrays.binarySearch( cumulative , random.nextDouble() );
+        return ( i < 0 ) ? Math.min( -i - 1 , cumulative.length - 1 ) : i;
+    }
+
+    private static void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    private static final int VOCABULARY = 20000;
+    private static final int USERS = 1000;
+    private static final int CONTACTS = 20;
+    private static final int LINES = 10;
+    private static final int WORDS = 8;
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+   Load test of a log server ({@link LogIngestServer}, or the old
+   {@link ThreadedEchoServer}) with many concurrent uploaders.
+
+   <p> <i>uploaders</i> connections (driven by one selector thread, so
+   the test itself needs no thread per connection) each send
+   <i>batches</i> batch frames of one record of <i>lines</i> lines, as a
+   log shipper does, waiting for each batch's ack before sending the
+   next. Up to 500 connections are being opened at a time.
+
+   <p> Reports the lines acknowledged per second and the ingest latency
+   (from sending a batch to its ack), and the connections that failed.
+
+   <p> To run (the server in another process, so each has enough file
+   descriptors):
+   <br> $ java -cp bin LogIngestServer 9119 /tmp/logs
+   <br> $ java -cp bin:commons-codec-1.8.jar LogIngestLoadTest \
+                [uploaders] [batches] [lines] [host:port]
+ */
+public class LogIngestLoadTest {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int numUploaders = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 10000;
+        int batches = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 20;
+        int numLines = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 20;
+        String server = ( args.length > 3 ) ? args[3] : "localhost:9119";
+        InetSocketAddress address = new InetSocketAddress( server.substring( 0 , server.lastIndexOf( ':' ) ) ,
+                                                           Integer.parseInt( server.substring( server.lastIndexOf( ':' ) + 1 ) ) );
+
+        List <String> lines = new ArrayList <String>();
+        for ( int i = 0 ; i < numLines ; ++i ) {
+            lines.add( "load says: line " + i + " of a conversation that went on for a while" );
+        }
+
+        Selector selector = Selector.open();
+        Histogram latency = new Histogram( "ingest latency (us)" );
+        Uploader[] uploaders = new Uploader[ numUploaders ];
+        long time = System.currentTimeMillis();
+        for ( int u = 0 ; u < numUploaders ; ++u ) {
+            uploaders[u] = new Uploader( u , batches , new LogProtocol.Record( "load" + u + "@localhost" , "peer" , time , lines ) );
+        }
+
+        long start = System.nanoTime();
+        int nextToConnect = 0;
+        int connecting = 0;
+        int finished = 0;
+        int failed = 0;
+        long ackedLines = 0;
+        long lastReport = start;
+        while ( finished < numUploaders ) {
+
+            // Open more connections
+            while ( nextToConnect < numUploaders && connecting < MAX_CONNECTING ) {
+                uploaders[ nextToConnect++ ].connect( selector , address );
+                ++connecting;
+            }
+
+            selector.select( 1000 );
+            Iterator <SelectionKey> keys = selector.selectedKeys().iterator();
+            while ( keys.hasNext() ) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Uploader uploader = (Uploader) key.attachment();
+                try {
+                    if ( key.isConnectable() ) {
+                        uploader.finishConnect( key );
+                        --connecting;
+                    }
+                    if ( key.isValid() && key.isWritable() ) {
+                        uploader.write( key );
+                    }
+                    if ( key.isValid() && key.isReadable() ) {
+                        int acked = uploader.read( key , latency );
+                        ackedLines += (long) acked * numLines;
+                        if ( uploader.isDone() ) {
+                            uploader.close( key );
+                            ++finished;
+                        }
+                    }
+                }
+                catch ( IOException e ) {
+                    if ( ! uploader.connected ) {
+                        --connecting;
+                    }
+                    uploader.close( key );
+                    ++finished;
+                    ++failed;
+                    if ( failed <= 5 ) {
+                        System.out.println( "Uploader " + uploader.number + " failed: " + e );
+                    }
+                }
+            }
+
+            long now = System.nanoTime();
+            if ( now - lastReport > 5000000000L ) {
+                System.out.println( String.format( "%,d lines acknowledged, %,d uploaders done" , ackedLines , finished ) );
+                lastReport = now;
+            }
+        }
+        double elapsed = ( System.nanoTime() - start ) / 1e9;
+
+        System.out.println( String.format( "%,d uploaders x %d batches of %d lines in %.2f s: %,.0f lines/s, %d failed" ,
+                                           numUploaders , batches , numLines , elapsed , ackedLines / elapsed , failed ) );
+        System.out.println( latency );
+    }
+
+    /** One uploader's connection and state (selector thread only). */
+    private static class Uploader {
+
+        Uploader( int number , int batches , LogProtocol.Record record ) {
+            this.number = number;
+            this.batches = batches;
+            this.record = record;
+        }
+
+        void connect( Selector selector , InetSocketAddress address )
+            throws IOException {
+
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.setOption( StandardSocketOptions.TCP_NODELAY , true );
+            channel.connect( address );
+            channel.register( selector , SelectionKey.OP_CONNECT , this );
+        }
+
+        void finishConnect( SelectionKey key )
+            throws IOException {
+
+            channel.finishConnect();
+            connected = true;
+            ByteBuffer hello = ByteBuffer.allocate( 5 + 13 );
+            hello.putInt( LogProtocol.PREAMBLE );
+            hello.put( LogProtocol.VERSION );
+            hello.put( LogProtocol.encodeFrame( LogProtocol.HELLO , System.nanoTime() ^ ( (long) number << 40 ) ) );
+            hello.flip();
+            out = hello;
+            write( key );
+            sendNext( key );
+        }
+
+        /** Sends the next batch. */
+        void sendNext( SelectionKey key )
+            throws IOException {
+
+            ++sent;
+            byte[] frame = LogProtocol.encodeBatch( sent , Collections.singletonList( record ) );
+            if ( out != null && out.hasRemaining() ) {
+                ByteBuffer both = ByteBuffer.allocate( out.remaining() + frame.length );
+                both.put( out ).put( frame ).flip();
+                out = both;
+            }
+            else {
+                out = ByteBuffer.wrap( frame );
+            }
+            sentAt = System.nanoTime();
+            write( key );
+        }
+
+        void write( SelectionKey key )
+            throws IOException {
+
+            channel.write( out );
+            key.interestOps( out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+        }
+
+        /**
+           Reads the acks, sends the next batch once the last one is acknowledged.
+           @return the number of batches acknowledged
+         */
+        int read( SelectionKey key , Histogram latency )
+            throws IOException {
+
+            if ( channel.read( in ) < 0 ) {
+                throw new IOException( "Closed by the server" );
+            }
+            in.flip();
+            int newlyAcked = 0;
+            while ( in.remaining() >= 13 ) {
+                byte[] frame = new byte[ in.getInt() ];
+                in.get( frame );
+                long id = LogProtocol.getValue( frame );
+                newlyAcked += (int) ( id - acked );
+                acked = id;
+            }
+            in.compact();
+            if ( newlyAcked > 0 && acked == sent ) {
+                latency.record( ( System.nanoTime() - sentAt ) / 1000 );
+                if ( sent < batches ) {
+                    sendNext( key );
+                }
+            }
+            return newlyAcked;
+        }
+
+        boolean isDone() {
+            return acked == batches;
+        }
+
+        void close( SelectionKey key ) {
+            key.cancel();
+            try {
+                channel.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+        }
+
+        final int number;
+        final int batches;
+        final LogProtocol.Record record;
+        SocketChannel channel;
+        boolean connected = false;
+        ByteBuffer out;
+        final ByteBuffer in = ByteBuffer.allocate( 256 );
+        long sent = 0;
+        long acked = 0;
+        long sentAt;
+    }
+
+    private static final int MAX_CONNECTING = 500;
+}
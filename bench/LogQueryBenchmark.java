@@ -0,0 +1,165 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+   Measures history queries on a {@link LogStore} as the history grows.
+
+   <p> Synthetic conversations are appended (<i>users</i> accounts with
+   20 contacts each, records of 20 lines, 10 seconds apart so a few GB
+   span about a year) until the store holds <i>gigabytes</i>; at each of
+   <i>checkpoints</i> sizes on the way, <i>queries</i> queries of each
+   kind are timed:
+   <ul>
+    <li> the last 200 lines between a random account and one of its
+         contacts; </li>
+    <li> all of a random account's lines on a random day. </li>
+   </ul>
+   At the first checkpoint one query is also done by scanning the whole
+   store, for comparison. At the end, the store is opened again (which
+   maps the index files) and queried again.
+
+   <p> The segments just written are in the page cache (unless they are
+   bigger than the memory): the latencies are those of a warm server,
+   the blocks read from the disk otherwise. The index bytes per GB of
+   history show what grows with the history.
+
+   <p> To run (on the disk to measure):
+   <br> $ java -cp bin:commons-codec-1.8.jar LogQueryBenchmark \
+                [gigabytes] [checkpoints] [users] [queries] [directory]
+ */
+public class LogQueryBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        double gigabytes = ( args.length > 0 ) ? Double.parseDouble( args[0] ) : 4;
+        int checkpoints = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 4;
+        int users = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 1000;
+        int queries = ( args.length > 3 ) ? Integer.parseInt( args[3] ) : 500;
+        File dir = new File( ( args.length > 4 ) ? args[4] : "logquery-bench" );
+        EventLog.setEnabled( false );
+        delete( dir );
+
+        List <String> lines = new ArrayList <String>();
+        for ( int i = 0 ; i < LINES ; ++i ) {
+            lines.add( "bench says: line " + i + " of a conversation that went on for a while" );
+        }
+
+        LogStore store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , 1024 , 100000 );
+        long totalBytes = (long) ( gigabytes * 1024 * 1024 * 1024 );
+        Random random = new Random( 1 );
+        long count = 0;
+        long appendNanos = 0;
+        for ( int c = 1 ; c <= checkpoints ; ++c ) {
+            long target = totalBytes * c / checkpoints;
+            long start = System.nanoTime();
+            while ( store.getWrittenOffset() < target ) {
+                List <LogProtocol.Record> batch = new ArrayList <LogProtocol.Record>( BATCH );
+                for ( int i = 0 ; i < BATCH ; ++i , ++count ) {
+                    int user = random.nextInt( users );
+                    batch.add( new LogProtocol.Record( "user" + user + "@localhost" , "friend" + random.nextInt( CONTACTS ) + "@localhost" ,
+                                                       START + count * STEP , lines ) );
+                }
+                store.append( batch );
+            }
+            store.sync( store.getWrittenOffset() );
+            appendNanos += System.nanoTime() - start;
+
+            System.out.println( String.format( "%.2f GB, %,d records, %d segments, index %,d KB (appended at %.0f MB/s)" ,
+                                               store.getWrittenOffset() / 1073741824.0 , count , store.getSegmentCount() ,
+                                               store.getIndexBytes() / 1024 ,
+                                               store.getWrittenOffset() / 1048576.0 / ( appendNanos / 1e9 ) ) );
+            runQueries( store , users , count , queries , new Random( c ) );
+            if ( c == 1 ) {
+                runScan( store , users );
+            }
+        }
+        store.close();
+
+        long start = System.nanoTime();
+        store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , 1024 , 100000 );
+        System.out.println( String.format( "Opened again in %.0f ms" , ( System.nanoTime() - start ) / 1e6 ) );
+        runQueries( store , users , count , queries , new Random( 0 ) );
+        store.close();
+        delete( dir );
+    }
+
+    /** Times the queries of both kinds. */
+    private static void runQueries( LogStore store , int users , long count , int queries , Random random )
+        throws Exception {
+
+        Histogram conversation = new Histogram( "last 200 lines between two users (us)" );
+        Histogram day = new Histogram( "a user's day (us)" );
+        long conversationLines = 0;
+        long dayLines = 0;
+        long days = count * STEP / DAY;
+        for ( int q = 0 ; q < queries ; ++q ) {
+            String account = "user" + random.nextInt( users ) + "@localhost";
+            long start = System.nanoTime();
+            List <LogProtocol.Record> found = store.query( account , "friend" + random.nextInt( CONTACTS ) + "@localhost" ,
+                                                           0 , Long.MAX_VALUE , 200 );
+            conversation.record( ( System.nanoTime() - start ) / 1000 );
+            conversationLines += countLines( found );
+
+            long from = START + ( days > 0 ? random.nextInt( (int) days ) : 0 ) * DAY;
+            start = System.nanoTime();
+            found = store.query( random.nextBoolean() ? account : "user" + random.nextInt( users ) + "@localhost" , null ,
+                                 from , from + DAY - 1 , Integer.MAX_VALUE );
+            day.record( ( System.nanoTime() - start ) / 1000 );
+            dayLines += countLines( found );
+        }
+        System.out.println( String.format( "  conversation: p50=%,dus p99=%,dus (%.0f lines each); " +
+                                           "day: p50=%,dus p99=%,dus (%.0f lines each)" ,
+                                           conversation.getPercentile( 50 ) , conversation.getPercentile( 99 ) ,
+                                           conversationLines / (double) queries ,
+                                           day.getPercentile( 50 ) , day.getPercentile( 99 ) , dayLines / (double) queries ) );
+    }
+
+    /** Does a conversation query by reading the whole store. */
+    private static void runScan( LogStore store , int users )
+        throws Exception {
+
+        final String account = "user" + ( users / 2 ) + "@localhost";
+        final String contact = "friend0@localhost";
+        final List <LogProtocol.Record> found = new ArrayList <LogProtocol.Record>();
+        long start = System.nanoTime();
+        store.scan( 0 , new LogStore.Visitor() {
+            public boolean visit( long offset , LogProtocol.Record record ) {
+                if ( record.getAccount().equals( account ) && record.getContact().equals( contact ) ) {
+                    found.add( record );
+                }
+                return true;
+            }
+        } );
+        System.out.println( String.format( "  conversation by scanning the store: %,dus" , ( System.nanoTime() - start ) / 1000 ) );
+    }
+
+    private static long countLines( List <LogProtocol.Record> records ) {
+        long count = 0;
+        for ( LogProtocol.Record record : records ) {
+            count += record.getLines().size();
+        }
+        return count;
+    }
+
+    private static void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    private static final int LINES = 20;
+    private static final int CONTACTS = 20;
+    private static final int BATCH = 256;
+    private static final long START = 1400000000000L;
+    /** Time between records (millisec). */
+    private static final long STEP = 10000;
+    private static final long DAY = 24L * 3600 * 1000;
+}
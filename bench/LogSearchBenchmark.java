@@ -0,0 +1,207 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+   Measures the {@link LogSearchIndex}: how fast it indexes, and how
+   fast it answers searches.
+
+   <p> Synthetic conversations (<i>users</i> accounts, records of 10
+   lines of 8 words, from a vocabulary of 20,000 words used with a Zipf
+   distribution as in real text) are appended to a store until it holds
+   <i>megabytes</i>. The indexer is then started, and timed while it
+   catches up: records and MB of store indexed per second. Then
+   <i>queries</i> searches of each kind are timed (20 records at most):
+   <ul>
+    <li> a rare word (rank 2,000 to 20,000); </li>
+    <li> two words of rank 50 to 500; </li>
+    <li> a common word (rank 10 to 50) in one account's conversations. </li>
+   </ul>
+   One rare word search is also done by reading all the records, as
+   grepping the text files did. At the end, the index is opened again
+   (which loads the dictionary) and searched again.
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar LogSearchBenchmark [megabytes] [users] [queries] [directory]
+ */
+public class LogSearchBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        long megabytes = ( args.length > 0 ) ? Long.parseLong( args[0] ) : 1024;
+        int users = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 1000;
+        int queries = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 500;
+        File dir = new File( ( args.length > 3 ) ? args[3] : "logsearch-bench" );
+        EventLog.setEnabled( false );
+        delete( dir );
+
+        Random random = new Random( 1 );
+        String[] words = newVocabulary( random );
+        double[] ranks = newZipf( words.length );
+
+        LogStore store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , 1024 , 100000 );
+        long start = System.nanoTime();
+        long count = 0;
+        while ( store.getWrittenOffset() < megabytes * 1024 * 1024 ) {
+            List <LogProtocol.Record> batch = new ArrayList <LogProtocol.Record>( 256 );
+            for ( int i = 0 ; i < 256 ; ++i , ++count ) {
+                int user = random.nextInt( users );
+                List <String> lines = new ArrayList <String>( LINES );
+                for ( int l = 0 ; l < LINES ; ++l ) {
+                    StringBuilder line = new StringBuilder( "user" ).append( user ).append( " says:" );
+                    for ( int w = 0 ; w < WORDS ; ++w ) {
+                        line.append( ' ' ).append( words[ pick( ranks , random ) ] );
+                    }
+                    lines.add( line.toString() );
+                }
+                batch.add( new LogProtocol.Record( "user" + user + "@localhost" , "friend" + random.nextInt( 20 ) + "@localhost" ,
+                                                   count * 1000 , lines ) );
+            }
+            store.append( batch );
+        }
+        store.sync( store.getWrittenOffset() );
+        double appendSeconds = ( System.nanoTime() - start ) / 1e9;
+        long storeBytes = store.getWrittenOffset();
+        System.out.println( String.format( "%,d records, %,d MB appended in %.1f s" , count , storeBytes >> 20 , appendSeconds ) );
+
+        File indexDir = new File( dir , "search" );
+        LogSearchIndex search = new LogSearchIndex( store , indexDir , LogSearchIndex.DEFAULT_RUN_SIZE );
+        start = System.nanoTime();
+        search.start();
+        while ( search.getIndexedOffset() < storeBytes ) {
+            Thread.sleep( 10 );
+        }
+        double indexSeconds = ( System.nanoTime() - start ) / 1e9;
+        search.close();
+        System.out.println( String.format( "Indexed in %.1f s: %,.0f records/s, %.1f MB/s; %,d terms, runs %,d MB (%.0f%% of the store)" ,
+                                           indexSeconds , count / indexSeconds , storeBytes / 1048576.0 / indexSeconds ,
+                                           search.getTermCount() , search.getRunBytes() >> 20 ,
+                                           100.0 * search.getRunBytes() / storeBytes ) );
+
+        runSearches( search , words , users , queries , new Random( 2 ) );
+        runScan( store , words[ 5000 ] );
+
+        start = System.nanoTime();
+        search = new LogSearchIndex( store , indexDir , LogSearchIndex.DEFAULT_RUN_SIZE );
+        System.out.println( String.format( "Opened again in %.0f ms" , ( System.nanoTime() - start ) / 1e6 ) );
+        runSearches( search , words , users , queries , new Random( 3 ) );
+        search.close();
+        store.close();
+        delete( dir );
+    }
+
+    /** Times the searches of each kind. */
+    private static void runSearches( LogSearchIndex search , String[] words , int users , int queries , Random random )
+        throws Exception {
+
+        Histogram rare = new Histogram( "rare word (us)" );
+        Histogram two = new Histogram( "two words (us)" );
+        Histogram account = new Histogram( "common word of an account (us)" );
+        long[] found = new long[ 3 ];
+        for ( int q = 0 ; q < queries ; ++q ) {
+            long start = System.nanoTime();
+            found[0] += search.search( null , null , words[ 2000 + random.nextInt( words.length - 2000 ) ] , 20 ).size();
+            rare.record( ( System.nanoTime() - start ) / 1000 );
+
+            String text = words[ 50 + random.nextInt( 450 ) ] + " " + words[ 50 + random.nextInt( 450 ) ];
+            start = System.nanoTime();
+            found[1] += search.search( null , null , text , 20 ).size();
+            two.record( ( System.nanoTime() - start ) / 1000 );
+
+            start = System.nanoTime();
+            found[2] += search.search( "user" + random.nextInt( users ) + "@localhost" , null ,
+                                       words[ 10 + random.nextInt( 40 ) ] , 20 ).size();
+            account.record( ( System.nanoTime() - start ) / 1000 );
+        }
+        for ( int i = 0 ; i < 3 ; ++i ) {
+            Histogram histogram = ( i == 0 ) ? rare : ( ( i == 1 ) ? two : account );
+            System.out.println( String.format( "  %-32s p50=%,7dus p99=%,7dus (%.1f records each)" , histogram.getName() ,
+                                               histogram.getPercentile( 50 ) , histogram.getPercentile( 99 ) ,
+                                               found[i] / (double) queries ) );
+        }
+    }
+
+    /** Searches a word by reading all the records. */
+    private static void runScan( LogStore store , final String word )
+        throws Exception {
+
+        final long[] found = new long[ 1 ];
+        long start = System.nanoTime();
+        store.scan( 0 , new LogStore.Visitor() {
+            public boolean visit( long offset , LogProtocol.Record record ) {
+                for ( String line : record.getLines() ) {
+                    if ( LogSearchIndex.getTerms( line ).contains( word ) ) {
+                        ++found[0];
+                        break;
+                    }
+                }
+                return true;
+            }
+        } );
+        System.out.println( String.format( "  rare word by reading all the records: %,d ms (%,d records)" ,
+                                           ( System.nanoTime() - start ) / 1000000 , found[0] ) );
+    }
+
+    /** Makes up words of 2 to 4 syllables. */
+    private static String[] newVocabulary( Random random ) {
+        String[] syllables = { "ka" , "lo" , "mi" , "ne" , "ru" , "sa" , "ti" , "vo" , "ber" , "dan" , "gol" , "har" ,
+                               "jin" , "kor" , "lem" , "mos" , "nup" , "pal" , "quo" , "rin" , "sel" , "tor" , "ung" , "vex" };
+        Set <String> words = new HashSet <String>();
+        while ( words.size() < VOCABULARY ) {
+            StringBuilder word = new StringBuilder();
+            for ( int s = 2 + random.nextInt( 3 ) ; s > 0 ; --s ) {
+                word.append( syllables[ random.nextInt( syllables.length ) ] );
+            }
+            words.add( word.toString() );
+        }
+        String[] sorted = words.toArray( new String[ words.size() ] );
+        Arrays.sort( sorted );
+        // In a random order of frequency
+        for ( int i = sorted.length - 1 ; i > 0 ; --i ) {
+            int j = random.nextInt( i + 1 );
+            String word = sorted[i];
+            sorted[i] = sorted[j];
+            sorted[j] = word;
+        }
+        return sorted;
+    }
+
+    /** Gets the cumulative probabilities of the ranks (Zipf, exponent 1). */
+    private static double[] newZipf( int n ) {
+        double[] cumulative = new double[ n ];
+        double sum = 0;
+        for ( int i = 0 ; i < n ; ++i ) {
+            sum += 1.0 / ( i + 1 );
+            cumulative[i] = sum;
+        }
+        for ( int i = 0 ; i < n ; ++i ) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick( double[] cumulative , Random random ) {
+        int i = Arrays.binarySearch( cumulative , random.nextDouble() );
+        return ( i < 0 ) ? Math.min( -i - 1 , cumulative.length - 1 ) : i;
+    }
+
+    private static void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    private static final int VOCABULARY = 20000;
+    private static final int LINES = 10;
+    private static final int WORDS = 8;
+}
@@ -0,0 +1,130 @@
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+   Compares saving conversation logs with a new connection each time
+   (as the client did before the {@link LogShipper}) and with the log
+   shipper, against a running log server.
+
+   <p> <i>threads</i> threads (conversations) each save <i>records</i>
+   logs of <i>lines</i> lines, first one connection per log, then
+   through a {@link LogShipper}. Reports the logs saved per second and
+   the time a conversation waits to save a log (for the shipper,
+   queueing it; the time until everything is acknowledged is part of
+   the total).
+
+   <p> To run (the log server writes the logs in its directory):
+   <br> $ cd /tmp/logs && java -cp bin ThreadedEchoServer
+   <br> $ java -cp bin:commons-codec-1.8.jar LogShippingBenchmark \
+                [records] [lines] [threads] [host:port]
+ */
+public class LogShippingBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int records = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 2000;
+        int numLines = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 20;
+        int threads = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 4;
+        String server = ( args.length > 3 ) ? args[3] : "localhost:9119";
+        final String host = server.substring( 0 , server.lastIndexOf( ':' ) );
+        final int port = Integer.parseInt( server.substring( server.lastIndexOf( ':' ) + 1 ) );
+        EventLog.setEnabled( false );
+
+        final List <String> lines = new ArrayList <String>();
+        for ( int i = 0 ; i < numLines ; ++i ) {
+            lines.add( "bench says: line " + i + " of a conversation that went on for a while" );
+        }
+
+        // One connection per log, waiting for it to be written
+        final Histogram connectTime = new Histogram( "save, connection per log (us)" );
+        long elapsed = run( threads , records , new Task() {
+            public void save( int thread , int record )
+                throws Exception {
+
+                long start = System.nanoTime();
+                Socket client = new Socket( host , port );
+                PrintWriter out = new PrintWriter( client.getOutputStream() , true );
+                out.println( "bench" + thread + "_legacy" );
+                for ( String line : lines ) {
+                    out.println( line );
+                }
+                out.close();
+                client.close();
+                connectTime.record( ( System.nanoTime() - start ) / 1000 );
+            }
+        } );
+        report( connectTime , threads * records , numLines , elapsed );
+
+        // Log shipper
+        final LogShipper shipper = new LogShipper( host , port , 64 * 1024 * 1024 , 256 * 1024 , 8 );
+        final Histogram shipTime = new Histogram( "save, log shipper (us)" );
+        long start = System.nanoTime();
+        run( threads , records , new Task() {
+            public void save( int thread , int record )
+                throws Exception {
+
+                long start = System.nanoTime();
+                LogProtocol.Record log = new LogProtocol.Record( "bench" + thread + "@localhost" , "peer" + record ,
+                                                                 System.currentTimeMillis() , lines );
+                while ( ! shipper.ship( log ) ) {
+                    Thread.sleep( 1 );
+                }
+                shipTime.record( ( System.nanoTime() - start ) / 1000 );
+            }
+        } );
+        if ( ! shipper.flush( 60000 ) ) {
+            System.out.println( "Not all acknowledged" );
+        }
+        elapsed = System.nanoTime() - start;
+        report( shipTime , threads * records , numLines , elapsed );
+        System.out.println( String.format( "%,d batches, %,d lines acknowledged, %,d refused while full" ,
+                                           shipper.getShippedBatches() , shipper.getShippedLines() ,
+                                           shipper.getRejectedRecords() ) );
+        shipper.close( 1000 );
+    }
+
+    /** Saves one log. */
+    private interface Task {
+        void save( int thread , int record ) throws Exception;
+    }
+
+    /**
+       Runs the task on each thread for each record.
+       @return the time it took (nanosec)
+     */
+    private static long run( int threads , final int records , final Task task )
+        throws InterruptedException {
+
+        final CountDownLatch done = new CountDownLatch( threads );
+        long start = System.nanoTime();
+        for ( int t = 0 ; t < threads ; ++t ) {
+            final int thread = t;
+            new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        for ( int r = 0 ; r < records ; ++r ) {
+                            task.save( thread , r );
+                        }
+                    }
+                    catch ( Exception e ) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            } ).start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static void report( Histogram histogram , int records , int lines , long elapsed ) {
+        System.out.println( String.format( "%,d logs of %d lines in %.2f s: %,.0f logs/s" ,
+                                           records , lines , elapsed / 1e9 , records / ( elapsed / 1e9 ) ) );
+        System.out.println( histogram );
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+   Measures the {@link LogStore} with concurrent writers that each wait
+   for their record to be durable (as the log server waits before
+   acknowledging a batch), at several fsync batch sizes.
+
+   <p> For each batch size, <i>writers</i> threads each append
+   <i>records</i> records of <i>lines</i> lines, one at a time, and wait
+   for it to be synced (the store's longest sync delay is 10 ms). Reports
+   the records per second, the fsyncs and records per fsync, and the
+   write amplification: the bytes appended to the segments, and the
+   bytes the process had the disk write (from /proc/self/io, so only on
+   Linux: whole pages, counted again each time a page synced is written
+   to), over the bytes of the lines as text.
+   The old way, one text file per upload without fsync, is measured
+   first for comparison.
+
+   <p> To run (in a directory on the disk to measure):
+   <br> $ java -cp bin:commons-codec-1.8.jar LogStoreBenchmark \
+                [writers] [records] [lines] [directory] [batch_size ...]
+ */
+public class LogStoreBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int writers = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 64;
+        int records = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 200;
+        int numLines = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 20;
+        File dir = new File( ( args.length > 3 ) ? args[3] : "logstore-bench" );
+        List <Integer> batchSizes = new ArrayList <Integer>();
+        for ( int i = 4 ; i < args.length ; ++i ) {
+            batchSizes.add( Integer.parseInt( args[i] ) );
+        }
+        if ( batchSizes.isEmpty() ) {
+            Collections.addAll( batchSizes , 1 , 8 , 32 , 64 );
+        }
+        EventLog.setEnabled( false );
+
+        List <String> lines = new ArrayList <String>();
+        long textBytes = 0;
+        for ( int i = 0 ; i < numLines ; ++i ) {
+            lines.add( "bench says: line " + i + " of a conversation that went on for a while" );
+            textBytes += lines.get( i ).length() + 1;
+        }
+        long totalTextBytes = textBytes * writers * records;
+        System.out.println( String.format( "%d writers x %d records of %d lines (%,d bytes of text)" ,
+                                           writers , records , numLines , totalTextBytes ) );
+
+        runFilePerUpload( new File( dir , "files" ) , writers , records , lines , totalTextBytes );
+        for ( int batchSize : batchSizes ) {
+            runStore( new File( dir , "store-" + batchSize ) , batchSize , writers , records , lines );
+        }
+        delete( dir );
+    }
+
+    /** Writes each record to its own text file, as ThreadedEchoServer does. */
+    private static void runFilePerUpload( final File dir , int writers , final int records ,
+                                          final List <String> lines , long totalTextBytes )
+        throws Exception {
+
+        dir.mkdirs();
+        long diskBefore = getDiskWriteBytes();
+        long elapsed = run( writers , records , new Task() {
+            public void write( int writer , int record )
+                throws IOException {
+
+                BufferedWriter out = new BufferedWriter( new OutputStreamWriter(
+                    new FileOutputStream( new File( dir , "user" + writer + "_" + record + ".txt" ) ) , "UTF-8" ) );
+                for ( String line : lines ) {
+                    out.write( line );
+                    out.newLine();
+                }
+                out.close();
+            }
+        } );
+        long diskBytes = getDiskWriteBytes() - diskBefore;
+        long count = (long) writers * records;
+        System.out.println( String.format( "file per upload:  %,9.0f records/s, no fsync, %,d files, disk %s" ,
+                                           count / ( elapsed / 1e9 ) , count , amplification( diskBytes , totalTextBytes ) ) );
+        delete( dir );
+    }
+
+    /** Appends to a store with the given fsync batch size. */
+    private static void runStore( File dir , int batchSize , int writers , final int records , final List <String> lines )
+        throws Exception {
+
+        delete( dir );
+        final LogStore store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , batchSize , 10000 );
+        long diskBefore = getDiskWriteBytes();
+        long elapsed = run( writers , records , new Task() {
+            public void write( int writer , int record )
+                throws Exception {
+
+                LogProtocol.Record log = new LogProtocol.Record( "user" + writer + "@localhost" , "peer" ,
+                                                                 System.currentTimeMillis() , lines );
+                store.sync( store.append( Collections.singletonList( log ) ) );
+            }
+        } );
+        long diskBytes = getDiskWriteBytes() - diskBefore;
+        store.close();
+
+        long count = store.getAppendedRecords();
+        long syncs = store.getSyncCount();
+        System.out.println( String.format( "sync batch %4d: %,9.0f records/s, %,6d fsyncs (%5.1f records each), " +
+                                           "segments %.2fx, disk %s" ,
+                                           batchSize , count / ( elapsed / 1e9 ) , syncs , count / (double) Math.max( 1 , syncs ) ,
+                                           store.getAppendedBytes() / (double) store.getAppendedLineBytes() ,
+                                           amplification( diskBytes , store.getAppendedLineBytes() ) ) );
+        delete( dir );
+    }
+
+    /** Writes one record. */
+    private interface Task {
+        void write( int writer , int record ) throws Exception;
+    }
+
+    /**
+       Runs the task on each writer thread for each record.
+       @return the time it took (nanosec)
+     */
+    private static long run( int writers , final int records , final Task task )
+        throws InterruptedException {
+
+        final CountDownLatch done = new CountDownLatch( writers );
+        long start = System.nanoTime();
+        for ( int w = 0 ; w < writers ; ++w ) {
+            final int writer = w;
+            new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        for ( int r = 0 ; r < records ; ++r ) {
+                            task.write( writer , r );
+                        }
+                    }
+                    catch ( Exception e ) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            } ).start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static String amplification( long diskBytes , long textBytes ) {
+        return ( diskBytes < 0 ) ? "n/a" : String.format( "%.2fx" , diskBytes / (double) textBytes );
+    }
+
+    /** Gets the bytes this process had written to the disk, -1 if not known. */
+    private static long getDiskWriteBytes() {
+        try {
+            for ( String line : Files.readAllLines( Paths.get( "/proc/self/io" ) , StandardCharsets.US_ASCII ) ) {
+                if ( line.startsWith( "write_bytes:" ) ) {
+                    return Long.parseLong( line.substring( 12 ).trim() );
+                }
+            }
+        }
+        catch ( IOException e ) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    private static void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+   Measures the {@link OfflineMessageQueue}: how long queueing a message
+   typed while disconnected takes (it is forced to the disk), how long
+   opening a full queue takes, and how fast it is drained once
+   re-connected, one message at a time or in batches.
+
+   <p> <i>messages</i> chat messages are queued, then sent to an
+   {@link OutboundStanzaQueue} writing to a stream that counts the bytes
+   and flushes (each flush is a TLS record and a socket write on a real
+   connection), waiting for each batch to be written as JabberMain does.
+
+   <p> To run (on the disk to measure):
+   <br> $ java -cp bin:commons-codec-1.8.jar OfflineQueueBenchmark [messages] [directory]
+ */
+public class OfflineQueueBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int messages = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 5000;
+        File dir = new File( ( args.length > 1 ) ? args[1] : "offlinequeue-bench" );
+        EventLog.setEnabled( false );
+        File file = new File( dir , "bench.queue" );
+        file.delete();
+        JabberID jid = new JabberID( "me@example.com" , "secret" , "example.com" , 5222 );
+
+        for ( int batchSize : new int[] { 1 , OutboundStanzaQueue.MAX_BATCH_SIZE } ) {
+            OfflineMessageQueue queue = new OfflineMessageQueue( file , messages , 64L * 1024 * 1024 );
+            Histogram addTime = new Histogram( "queue a message (us)" );
+            for ( int i = 0 ; i < messages ; ++i ) {
+                long start = System.nanoTime();
+                queue.add( new OfflineMessageQueue.Message( "friend" + ( i % 10 ) + "@example.com" ,
+                                                            "message " + i + " typed while the connection was down" ) );
+                addTime.record( ( System.nanoTime() - start ) / 1000 );
+            }
+            queue.close();
+
+            long start = System.nanoTime();
+            queue = new OfflineMessageQueue( file , messages , 64L * 1024 * 1024 );
+            double openMillis = ( System.nanoTime() - start ) / 1e6;
+            int depth = queue.getDepth();
+
+            CountingStream out = new CountingStream();
+            final OutboundStanzaQueue outbound = new OutboundStanzaQueue( out , new StanzaSerializer( jid , "1234567" ) , 1024 , null );
+            outbound.start();
+            int sent = queue.drain( new OfflineMessageQueue.Sender() {
+                public void send( OfflineMessageQueue.Message message )
+                    throws IOException {
+
+                    outbound.enqueueMessage( message.getRecipient() , "" , message.getBody() );
+                }
+
+                public void endBatch()
+                    throws IOException {
+
+                    try {
+                        if ( ! outbound.awaitWritten( 10000 ) ) {
+                            throw new IOException( "Not written" );
+                        }
+                    }
+                    catch ( InterruptedException e ) {
+                        throw new IOException( e );
+                    }
+                }
+            } , batchSize );
+            outbound.close();
+
+            System.out.println( String.format( "Batches of %d: queued in p50=%,dus p99=%,dus; opened with %,d messages in %.1f ms; " +
+                                               "drained %,d at %,.0f messages/s, %,d flushes, %d left" ,
+                                               batchSize , addTime.getPercentile( 50 ) , addTime.getPercentile( 99 ) ,
+                                               depth , openMillis , sent , queue.getDrainRate() , out.flushes ,
+                                               queue.getDepth() ) );
+            queue.close();
+        }
+        file.delete();
+        dir.delete();
+    }
+
+    /** Counts the bytes and flushes. */
+    private static class CountingStream extends OutputStream {
+        public void write( int b ) {
+            ++bytes;
+        }
+        public void write( byte[] b , int off , int len ) {
+            bytes += len;
+        }
+        public void flush() {
+            ++flushes;
+        }
+        long bytes = 0;
+        long flushes = 0;
+    }
+}
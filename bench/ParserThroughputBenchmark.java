@@ -0,0 +1,141 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+   Compares the receive-path parsers on a synthetic stream of chat
+   messages: the StAX pull-parser over a UTF-8 Reader (as set up by
+   {@link XmppConnection}) and the {@link XmlPushParser} fed with raw
+   bytes in socket-sized chunks.
+
+   <p> Both extract the sender and body of every message, like
+   {@link XmppSenderReceiver} does.
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar ParserThroughputBenchmark [messages] [chunk_size]
+ */
+public class ParserThroughputBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int numMessages = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 200000;
+        int chunkSize = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 4096;
+
+        byte[] stream = createStream( numMessages );
+        System.out.println( "Stream of " + numMessages + " messages, " +
+                            stream.length / 1024 + " KB, push chunks of " + chunkSize + " bytes" );
+
+        // Warm up both, then measure
+        for ( int round = 0 ; round < 5 ; ++round ) {
+            boolean print = ( round >= 3 );
+            report( "StAX" , stream.length , numMessages , print , parseWithStax( stream ) );
+            report( "Push" , stream.length , numMessages , print , parseWithPushParser( stream , chunkSize ) );
+        }
+    }
+
+    /** Prints the throughput of one run. */
+    private static void report( String name , int bytes , int messages , boolean print , long nanos ) {
+        if ( print ) {
+            double seconds = nanos / 1e9;
+            System.out.println( String.format( "%-5s %8.1f MB/s %10.0f messages/s" , name ,
+                                               bytes / seconds / ( 1024 * 1024 ) , messages / seconds ) );
+        }
+    }
+
+    /** Builds a stream header followed by chat messages. */
+    static byte[] createStream( int numMessages )
+        throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+                   "xmlns:stream='http://etherx.jabber.org/streams' id='bench' version='1.0'>" );
+        for ( int i = 0 ; i < numMessages ; ++i ) {
+            sb.append( "<message from='friend" ).append( i % 100 ).append( "@example.com/home' " +
+                       "to='me@example.com/desk' type='chat' xml:lang='en'>" +
+                       "<body>Message number " ).append( i ).append( ", with &amp; an entity</body>" +
+                       "<thread>1234567</thread></message>" );
+        }
+        sb.append( "</stream:stream>" );
+        return sb.toString().getBytes( "UTF-8" );
+    }
+
+    /** Parses the stream with StAX, returns the time taken (nanosec). */
+    static long parseWithStax( byte[] stream )
+        throws Exception {
+
+        long start = System.nanoTime();
+        XMLStreamReader parser = XMLInputFactory.newInstance().createXMLStreamReader(
+            new InputStreamReader( new ByteArrayInputStream( stream ) , "UTF-8" ) );
+
+        int count = 0;
+        String sender = null;
+        while ( parser.hasNext() ) {
+            if ( parser.next() == XMLStreamConstants.START_ELEMENT ) {
+                String name = parser.getLocalName();
+                if ( name.equals( "message" ) ) {
+                    sender = parser.getAttributeValue( null , "from" );
+                }
+                else if ( name.equals( "body" ) ) {
+                    sink( sender , parser.getElementText() );
+                    ++count;
+                }
+            }
+        }
+        check( count );
+        return System.nanoTime() - start;
+    }
+
+    /** Parses the stream with the push parser, returns the time taken (nanosec). */
+    static long parseWithPushParser( byte[] stream , int chunkSize )
+        throws IOException {
+
+        long start = System.nanoTime();
+        final int[] count = { 0 };
+        XmlPushParser parser = new XmlPushParser( new XmlStanzaBuilder( new XmlStanzaBuilder.Listener() {
+            public void streamOpened( XmlElement header ) {
+                // Ignore
+            }
+            public void stanzaReceived( XmlElement stanza ) {
+                XmlElement body = stanza.getChild( "body" );
+                if ( body != null ) {
+                    sink( stanza.getAttribute( "from" ) , body.getText() );
+                    ++count[0];
+                }
+            }
+            public void streamClosed() {
+                // Ignore
+            }
+        } ) );
+
+        for ( int offset = 0 ; offset < stream.length ; offset += chunkSize ) {
+            parser.feed( ByteBuffer.wrap( stream , offset , Math.min( chunkSize , stream.length - offset ) ) );
+        }
+        check( count[0] );
+        return System.nanoTime() - start;
+    }
+
+    /** Keeps the JIT from dropping the parsed values. */
+    static void sink( String sender , String body ) {
+        checksum += sender.length() + body.length();
+    }
+
+    /** Makes sure every message was seen. */
+    private static void check( int count ) {
+        if ( expected < 0 ) {
+            expected = count;
+        }
+        else if ( count != expected ) {
+            throw new IllegalStateException( "Parsers disagree: " + count + " vs " + expected + " messages" );
+        }
+    }
+
+    private static long checksum = 0;
+    private static int expected = -1;
+}
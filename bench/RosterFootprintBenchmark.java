@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Measures the memory a large roster takes in the {@link RosterStore},
+   next to the same roster in maps of objects, and how fast it is read
+   while presences are applied.
+
+   <p> Makes <i>contacts</i> roster items (userN@ one of 20 domains, a
+   name, a group for a third of them), with one resource online for
+   half of them, and reports the heap used per contact (after a GC) by:
+   <ul>
+    <li> <b>RosterStore</b>; </li>
+    <li> <b>object maps</b>: a ConcurrentSkipListMap of the
+         {@link RosterStore.Item}s by JID, and a ConcurrentHashMap of
+         the {@link RosterStore.Presence}s by resource per contact, as
+         a straightforward store would keep them. </li>
+   </ul>
+   Then <i>readers</i> threads look up random contacts and their
+   presence for a few seconds while the main thread changes presences,
+   and the lookups and changes per second are reported.
+
+   <p> To run (give it enough heap for the object maps):
+   <br> $ java -Xmx2g -cp bin:commons-codec-1.8.jar RosterFootprintBenchmark [contacts] [readers] [seconds]
+ */
+public class RosterFootprintBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int contacts = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 100000;
+        int numReaders = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 2;
+        int seconds = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 5;
+        EventLog.setEnabled( false );
+
+        String[] jids = new String[ contacts ];
+        for ( int i = 0 ; i < contacts ; ++i ) {
+            jids[i] = "user" + i + "@" + DOMAINS[ i % DOMAINS.length ];
+        }
+
+        // RosterStore (the items are made from fresh strings, as parsed from the server)
+        long heapBefore = ConnectionFootprintBenchmark.usedHeapAfterGc();
+        RosterStore store = new RosterStore( null );
+        store.replaceAll( createItems( jids ) , "ver1" );
+        for ( int i = 0 ; i < contacts ; i += 2 ) {
+            store.setAvailable( new String( jids[i] + "/phone" ) , null , 0 );
+        }
+        long storeBytes = ConnectionFootprintBenchmark.usedHeapAfterGc() - heapBefore;
+        report( "RosterStore" , storeBytes , store.size() );
+
+        // Object maps
+        heapBefore = ConnectionFootprintBenchmark.usedHeapAfterGc();
+        ConcurrentSkipListMap <String , RosterStore.Item> items = new ConcurrentSkipListMap <String , RosterStore.Item>();
+        for ( RosterStore.Item item : createItems( jids ) ) {
+            items.put( item.getJid() , item );
+        }
+        ConcurrentHashMap <String , Map <String , RosterStore.Presence>> presences =
+            new ConcurrentHashMap <String , Map <String , RosterStore.Presence>>();
+        for ( int i = 0 ; i < contacts ; i += 2 ) {
+            Map <String , RosterStore.Presence> resources = new ConcurrentHashMap <String , RosterStore.Presence>();
+            resources.put( new String( "phone" ) , new RosterStore.Presence( new String( "phone" ) , "available" , 0 ) );
+            presences.put( new String( jids[i] ) , resources );
+        }
+        long mapBytes = ConnectionFootprintBenchmark.usedHeapAfterGc() - heapBefore;
+        report( "object maps" , mapBytes , items.size() );
+        checksum += items.size() + presences.size();
+        items = null;
+        presences = null;
+
+        readWhileUpdating( store , jids , numReaders , seconds );
+        System.out.println( "(checksum " + checksum + ")" );
+    }
+
+    /** Makes the roster items. */
+    private static List <RosterStore.Item> createItems( String[] jids ) {
+        List <RosterStore.Item> items = new ArrayList <RosterStore.Item>( jids.length );
+        for ( int i = 0 ; i < jids.length ; ++i ) {
+            List <String> groups = ( i % 3 == 0 ) ? Arrays.asList( new String( "Friends" ) ) : null;
+            items.add( new RosterStore.Item( new String( jids[i] ) , "User " + i , new String( "both" ) , groups ) );
+        }
+        return items;
+    }
+
+    private static void report( String name , long bytes , int contacts ) {
+        System.out.println( String.format( "%-12s %,8d contacts: %6.1f MB, %5.1f bytes/contact" ,
+                                           name , contacts , bytes / ( 1024.0 * 1024 ) ,
+                                           bytes / (double) Math.max( 1 , contacts ) ) );
+    }
+
+    /** Looks up contacts on reader threads while presences change. */
+    private static void readWhileUpdating( final RosterStore store , final String[] jids , int numReaders , int seconds )
+        throws InterruptedException {
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        Thread[] readers = new Thread[ numReaders ];
+        for ( int r = 0 ; r < numReaders ; ++r ) {
+            readers[r] = new Thread( new Runnable() {
+                public void run() {
+                    Random random = new Random();
+                    long n = 0;
+                    long sum = 0;
+                    while ( ! stop.get() ) {
+                        String jid = jids[ random.nextInt( jids.length ) ];
+                        RosterStore.Item item = store.get( jid );
+                        sum += item.getJid().length() + store.getPresences( jid ).size();
+                        ++n;
+                    }
+                    reads.addAndGet( n );
+                    checksum += sum;
+                }
+            } , "Reader-" + r );
+            readers[r].start();
+        }
+
+        // Resources going online and offline, as after connecting
+        Random random = new Random( 1 );
+        long updates = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while ( System.nanoTime() < end ) {
+            for ( int i = 0 ; i < 1000 ; ++i ) {
+                String jid = jids[ random.nextInt( jids.length ) ];
+                if ( random.nextBoolean() ) {
+                    store.setAvailable( jid + RESOURCES[ random.nextInt( RESOURCES.length ) ] , "away" , 1 );
+                }
+                else {
+                    store.setUnavailable( jid + RESOURCES[ random.nextInt( RESOURCES.length ) ] );
+                }
+            }
+            updates += 1000;
+        }
+        stop.set( true );
+        for ( Thread reader : readers ) {
+            reader.join();
+        }
+        double elapsed = ( System.nanoTime() - start ) / 1e9;
+        System.out.println( String.format( "%d readers: %,.0f lookups/s while applying %,.0f presences/s (%d online)" ,
+                                           numReaders , reads.get() / elapsed , updates / elapsed ,
+                                           store.getAvailableCount() ) );
+    }
+
+    private static final String[] DOMAINS = new String[ 20 ];
+    static {
+        for ( int i = 0 ; i < DOMAINS.length ; ++i ) {
+            DOMAINS[i] = "server" + i + ".example.com";
+        }
+    }
+
+    private static final String[] RESOURCES = { "/phone" , "/desk" , "/laptop" };
+
+    /** Keeps the JIT from dropping the results. */
+    private static volatile long checksum = 0;
+}
@@ -0,0 +1,133 @@
+/**
+   Measures the time to recover from a dropped connection, with a new
+   session vs with stream management resumption (XEP-0198).
+
+   <p> For each mode, connects the account, sends a few messages, then
+   <i>count</i> times: drops the connection (closes the socket, without
+   ending the stream), sends a few more messages that stay
+   unacknowledged, and re-connects. The recovery time runs from the drop
+   until the connection is set up again:
+   <ul>
+    <li> <b>new session</b>: TLS, authentication, resource binding,
+         enabling stream management and presence; </li>
+    <li> <b>resumed</b>: TLS, authentication and
+         <code>&lt;resume/&gt;</code>; the unacknowledged messages are
+         sent again. </li>
+   </ul>
+
+   <p> The time spent in each phase of the connection setup
+   ({@link ConnectionPhases}) is printed too; the event log is
+   switched off.
+
+   <p> The server must offer stream management, and the push parser
+   must be used. To run:
+   <br> $ java -Djabber.parser=push -cp bin:commons-codec-1.8.jar SessionResumeBenchmark \
+                jabber_id password server port [count]
+ */
+public class SessionResumeBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        if ( args.length < 4 ) {
+            System.err.println( "Usage: java -Djabber.parser=push SessionResumeBenchmark " +
+                                "jabber_id password server port [count]" );
+            return;
+        }
+        JabberID jid = new JabberID( args[0] , args[1] , args[2] , Integer.parseInt( args[3] ) );
+        int count = ( args.length > 4 ) ? Integer.parseInt( args[4] ) : 20;
+
+        EventLog.setEnabled( false );
+        Histogram newSession = run( jid , count , false );
+        Histogram resumed = run( jid , count , true );
+
+        System.out.println();
+        print( newSession );
+        print( resumed );
+        TlsReconnectBenchmark.printPhases( jid.getServerName() );
+    }
+
+    /** Drops and recovers the connection count times. */
+    private static Histogram run( JabberID jid , int count , boolean resume )
+        throws Exception {
+
+        Histogram recovery = new Histogram( resume ? "resumed session (us)" : "new session (us)" );
+        StreamManagement sm = new StreamManagement( 1024 );
+        XmppSenderReceiver senderReceiver = connect( jid , sm );
+
+        for ( int i = 0 ; i < count ; ++i ) {
+            sendMessages( senderReceiver , jid , MESSAGES_PER_ROUND );
+            waitForResumption( sm );
+            // Unacknowledged when the connection drops
+            sendMessages( senderReceiver , jid , MESSAGES_PER_ROUND );
+            Thread.sleep( 20 );
+
+            long start = System.nanoTime();
+            senderReceiver.close();
+            senderReceiver.getConnection().close();
+            if ( ! resume ) {
+                sm = new StreamManagement( 1024 );
+            }
+            senderReceiver = connect( jid , sm );
+            recovery.record( ( System.nanoTime() - start ) / 1000 );
+        }
+        senderReceiver.close();
+        senderReceiver.getConnection().close();
+
+        System.out.println( recovery.getName() + ": " + sm.getResumeCount() + " resumed, " +
+                            sm.getFailedResumeCount() + " failed, " +
+                            sm.getReplayedCount() + " stanzas sent again" );
+        return recovery;
+    }
+
+    /** Connects, starts the receive loop and, for a new session, sends presence. */
+    private static XmppSenderReceiver connect( JabberID jid , StreamManagement sm )
+        throws Exception {
+
+        XmppConnection connection = new XmppConnection( jid , sm );
+        connection.connect();
+        XmppSenderReceiver senderReceiver = new XmppSenderReceiver( connection );
+        Thread receiver = new Thread( senderReceiver , "XmppReceiver" );
+        receiver.setDaemon( true );
+        receiver.start();
+        if ( ! connection.isResumed() ) {
+            senderReceiver.sendPresence();
+        }
+        return senderReceiver;
+    }
+
+    /** Queues messages to the account itself. */
+    private static void sendMessages( XmppSenderReceiver senderReceiver , JabberID jid , int n )
+        throws Exception {
+
+        for ( int i = 0 ; i < n ; ++i ) {
+            senderReceiver.getOutboundQueue().enqueueMessage( jid.getJabberID() , jid.getResource() ,
+                                                              "message " + i );
+        }
+    }
+
+    /** Waits until the server has enabled resumption. */
+    private static void waitForResumption( StreamManagement sm )
+        throws Exception {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( ! sm.canResume() ) {
+            if ( System.currentTimeMillis() > deadline ) {
+                throw new IllegalStateException( "The server didn't enable stream management" );
+            }
+            Thread.sleep( 1 );
+        }
+    }
+
+    /** Prints a recovery time histogram. */
+    private static void print( Histogram histogram ) {
+        System.out.println( String.format( "%-24s n=%-5d p50 %6d us  p99 %6d us  max %6d us" ,
+                                           histogram.getName() , histogram.getCount() ,
+                                           histogram.getPercentile( 50 ) , histogram.getPercentile( 99 ) ,
+                                           histogram.getMax() ) );
+    }
+
+    /** Messages sent before and after each ack. */
+    private static final int MESSAGES_PER_ROUND = 3;
+}
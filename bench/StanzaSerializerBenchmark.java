@@ -0,0 +1,118 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+/**
+   Compares the cost of building and encoding chat messages the old
+   way (StringBuilder, String, then the socket's UTF-8 Writer) with the
+   {@link StanzaSerializer}.
+
+   <p> Reports messages/s and the bytes allocated per message on the
+   benchmark thread (using the HotSpot ThreadMXBean extension).
+   Messages are written in batches of {@link OutboundStanzaQueue#MAX_BATCH_SIZE}
+   to a stream that discards them.
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar StanzaSerializerBenchmark [messages]
+ */
+public class StanzaSerializerBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int numMessages = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 2000000;
+
+        JabberID jid = new JabberID( "me@example.com" , "secret" , "example.com" , 5222 );
+        String[] bodies = new String[ 100 ];
+        for ( int i = 0 ; i < bodies.length ; ++i ) {
+            bodies[i] = "Message number " + i + ", see you at the café at " + ( i % 24 ) + " o'clock";
+        }
+
+        // Warm up both, then measure
+        for ( int round = 0 ; round < 5 ; ++round ) {
+            boolean print = ( round >= 3 );
+            report( "StringBuilder" , numMessages , print , runStringBuilder( jid , bodies , numMessages ) );
+            report( "Serializer" , numMessages , print , runSerializer( jid , bodies , numMessages ) );
+        }
+        System.out.println( "(checksum " + NULL_STREAM.count + ")" );
+    }
+
+    /** Prints the result of one run: { nanosec, bytes allocated }. */
+    private static void report( String name , int messages , boolean print , long[] result ) {
+        if ( print ) {
+            System.out.println( String.format( "%-14s %10.0f messages/s %8.1f bytes allocated/message" , name ,
+                                               messages / ( result[0] / 1e9 ) ,
+                                               (double) result[1] / messages ) );
+        }
+    }
+
+    /** Builds the messages like XmppSenderReceiver used to. */
+    static long[] runStringBuilder( JabberID jid , String[] bodies , int numMessages )
+        throws IOException {
+
+        Writer writer = new BufferedWriter( new OutputStreamWriter( NULL_STREAM , "UTF-8" ) );
+        String threadID = "1234567";
+        String resource = "";
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < numMessages ; ++i ) {
+            StringBuilder temp = new StringBuilder();
+            temp.append( "<message" )
+                .append( " from='" ).append( jid.getJabberID() ).append( "/" ).append( jid.getResource() ).append( "'" )
+                .append( " to='" + "friend@example.com" ).append( resource ).append( "'" )
+                .append( " type='" ).append( "chat" ).append( "'" )
+                .append( " xml:lang='en'>" )
+                .append( " <body>" + bodies[ i % bodies.length ] + "</body>" )
+                .append( "<thread>" + threadID + "</thread>" )
+                .append( "</message>" );
+            writer.write( temp.toString() );
+            if ( i % OutboundStanzaQueue.MAX_BATCH_SIZE == 0 ) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+        return new long[] { System.nanoTime() - start , allocatedBytes() - allocatedBefore };
+    }
+
+    /** Builds the same messages with the serializer. */
+    static long[] runSerializer( JabberID jid , String[] bodies , int numMessages )
+        throws IOException {
+
+        StanzaSerializer serializer = new StanzaSerializer( jid , "1234567" );
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < numMessages ; ++i ) {
+            serializer.appendMessage( "friend@example.com" , "" , bodies[ i % bodies.length ] );
+            if ( i % OutboundStanzaQueue.MAX_BATCH_SIZE == 0 ) {
+                serializer.writeTo( NULL_STREAM );
+            }
+        }
+        serializer.writeTo( NULL_STREAM );
+        return new long[] { System.nanoTime() - start , allocatedBytes() - allocatedBefore };
+    }
+
+    /** Gets the number of bytes allocated so far by this thread. */
+    static long allocatedBytes() {
+        return ( (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() )
+            .getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    /** Stream that only counts the bytes written to it. */
+    private static class NullOutputStream extends OutputStream {
+        public void write( int b ) {
+            ++count;
+        }
+        public void write( byte[] b , int off , int len ) {
+            count += len;
+        }
+        long count = 0;
+    }
+
+    private static final NullOutputStream NULL_STREAM = new NullOutputStream();
+}
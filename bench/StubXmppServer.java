@@ -0,0 +1,975 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+// Apache commons codec library
+import org.apache.commons.codec.binary.Base64;
+
+/**
+   Lightweight local XMPP server, so that {@link XmppConnection},
+   {@link XmppSenderReceiver} and {@link XmppEventLoop} can be
+   benchmarked and tried out without a real server.
+
+   <p> It speaks just enough XMPP for the client:
+   <ul>
+    <li> stream headers and features; </li>
+    <li> STARTTLS, when given a key store (see below); </li>
+    <li> SASL PLAIN, SCRAM-SHA-1 and SCRAM-SHA-256: any user name is
+         accepted, with the server's password; </li>
+    <li> resource binding (the server picks the resource); </li>
+    <li> roster requests, answered with a generated roster of the
+         configured size, with roster versioning (XEP-0237): a request
+         with the current version gets an empty result; </li>
+    <li> the user's initial presence, answered with the presence of
+         every other contact of the generated roster (some of them
+         away); </li>
+    <li> chat messages, routed to the recipient's full JID, or to the
+         latest session of a bare JID (dropped if the recipient isn't
+         connected); </li>
+    <li> stream management (XEP-0198) acks, without resumption. </li>
+   </ul>
+   Other presences and IQs are accepted and ignored.
+
+   <p> Like {@link XmppEventLoop}, connections are spread over a few
+   selector threads, each owning its connections. TLS is done with a
+   {@link TlsCodec} in server mode and stanzas are parsed with the
+   {@link XmlPushParser}, so thousands of connections only cost a few
+   threads.
+
+   <p> To create a self-signed key store, and a trust store for the
+   clients:
+   <br> $ keytool -genkeypair -alias stub -keyalg RSA -keysize 2048 -dname CN=localhost \
+                  -validity 3650 -keystore stub.jks -storepass changeit -keypass changeit
+   <br> $ keytool -exportcert -alias stub -keystore stub.jks -storepass changeit -file stub.cer
+   <br> $ keytool -importcert -noprompt -alias stub -file stub.cer -keystore trust.jks -storepass changeit
+   <br> and start the clients with <code>-Djavax.net.ssl.trustStore=trust.jks</code>.
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar StubXmppServer \
+                port domain password [threads] [roster_size] [keystore storepass]
+ */
+public class StubXmppServer {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        if ( args.length < 3 ) {
+            System.err.println( "Usage: java StubXmppServer " +
+                                "port domain password [threads] [roster_size] [keystore storepass]" );
+            return;
+        }
+        int port = Integer.parseInt( args[0] );
+        int numThreads = ( args.length > 3 ) ? Integer.parseInt( args[3] )
+                                             : Runtime.getRuntime().availableProcessors();
+        SSLContext tlsContext = ( args.length > 6 ) ? createTlsContext( args[5] , args[6] ) : null;
+
+        StubXmppServer server = new StubXmppServer( port , args[1] , args[2] , tlsContext , numThreads );
+        if ( args.length > 4 ) {
+            server.setRosterSize( Integer.parseInt( args[4] ) );
+        }
+        server.start();
+        System.out.println( "Stub XMPP server for " + args[1] + " on port " + server.getPort() +
+                            ( tlsContext != null ? " (STARTTLS)" : " (no TLS)" ) );
+
+        // Print the counters every 10 seconds
+        long lastRouted = 0;
+        while ( true ) {
+            Thread.sleep( 10000 );
+            long routed = server.getRoutedCount();
+            System.out.println( server + ", " + ( routed - lastRouted ) / 10 + " msg/s" );
+            lastRouted = routed;
+        }
+    }
+
+    /** Loads a key store (JKS) for STARTTLS. */
+    public static SSLContext createTlsContext( String keyStoreFile , String password )
+        throws IOException , GeneralSecurityException {
+
+        KeyStore keyStore = KeyStore.getInstance( "JKS" );
+        InputStream in = new FileInputStream( keyStoreFile );
+        try {
+            keyStore.load( in , password.toCharArray() );
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+        kmf.init( keyStore , password.toCharArray() );
+        SSLContext context = SSLContext.getInstance( "TLS" );
+        context.init( kmf.getKeyManagers() , null , null );
+        return context;
+    }
+
+    /**
+       Constructor (doesn't listen yet).
+       @param port        port to listen on (0 for any free port)
+       @param tlsContext  context for STARTTLS (null to not offer it)
+     */
+    public StubXmppServer( int port , String domain , String password , SSLContext tlsContext ,
+                           int numThreads )
+        throws IOException , GeneralSecurityException {
+
+        this.port = port;
+        this.domain = domain;
+        this.password = password;
+        this.tlsContext = tlsContext;
+
+        RANDOM.nextBytes( salt );
+        scramSha1 = new ScramKeys( ScramSaslClient.SCRAM_SHA_1 , password , salt , SCRAM_ITERATIONS );
+        scramSha256 = new ScramKeys( ScramSaslClient.SCRAM_SHA_256 , password , salt , SCRAM_ITERATIONS );
+
+        workers = new Worker[ numThreads ];
+        for ( int i = 0 ; i < numThreads ; ++i ) {
+            workers[i] = new Worker( "StubXmppServer-" + i );
+        }
+    }
+
+    /** Sets the number of contacts in the roster sent to every user. */
+    public void setRosterSize( int rosterSize ) {
+        this.rosterSize = rosterSize;
+    }
+
+    /** Starts listening, and the threads. */
+    public void start()
+        throws IOException {
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption( StandardSocketOptions.SO_REUSEADDR , true );
+        serverChannel.bind( new InetSocketAddress( port ) , ACCEPT_BACKLOG );
+        port = serverChannel.socket().getLocalPort();
+
+        for ( Worker worker : workers ) {
+            worker.thread.start();
+        }
+        acceptThread = new Thread( new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        } , "StubXmppServer-accept" );
+        acceptThread.setDaemon( true );
+        acceptThread.start();
+    }
+
+    /** Stops listening, closes all the connections and stops the threads. */
+    public void close()
+        throws IOException , InterruptedException {
+
+        serverChannel.close();
+        acceptThread.join();
+        for ( Worker worker : workers ) {
+            worker.running = false;
+            worker.selector.wakeup();
+        }
+        for ( Worker worker : workers ) {
+            worker.thread.join();
+        }
+    }
+
+    /** Gets the port listened on. */
+    public int getPort() {
+        return port;
+    }
+
+    /** Gets the number of connections accepted so far. */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /** Gets the number of connections open now. */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /** Gets the number of sessions whose resource is bound now. */
+    public int getBoundCount() {
+        return fullJids.size();
+    }
+
+    /** Gets the number of authentication failures. */
+    public long getAuthFailureCount() {
+        return authFailureCount.get();
+    }
+
+    /** Gets the number of messages delivered to their recipient. */
+    public long getRoutedCount() {
+        return routedCount.get();
+    }
+
+    /** Gets the number of messages dropped (recipient offline). */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format( "%d connections (%d bound, %d accepted), %d auth failures, " +
+                              "%d messages routed, %d dropped" ,
+                              getConnectionCount() , getBoundCount() , getAcceptedCount() ,
+                              getAuthFailureCount() , getRoutedCount() , getDroppedCount() );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Accept thread: hands the new connections to the loop threads, round-robin. */
+    private void acceptConnections() {
+
+        int next = 0;
+        while ( serverChannel.isOpen() ) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking( false );
+                channel.setOption( StandardSocketOptions.TCP_NODELAY , true );
+                acceptedCount.incrementAndGet();
+
+                final Worker worker = workers[ next ];
+                next = ( next + 1 ) % workers.length;
+                worker.execute( new Runnable() {
+                    public void run() {
+                        new Session( worker , channel ).register();
+                    }
+                } );
+            }
+            catch ( IOException e ) {
+                // Closed (or out of file descriptors, the client sees it)
+            }
+        }
+    }
+
+    /** One loop thread, with its selector and pending tasks. */
+    private static class Worker
+        implements Runnable {
+
+        Worker( String name )
+            throws IOException {
+
+            this.selector = Selector.open();
+            this.thread = new Thread( this , name );
+            this.thread.setDaemon( true );
+        }
+
+        /** Runs a task on the loop thread (can be called from any thread). */
+        void execute( Runnable task ) {
+            tasks.add( task );
+            if ( Thread.currentThread() != thread ) {
+                selector.wakeup();
+            }
+        }
+
+        /** The loop. */
+        @Override
+        public void run() {
+
+            while ( running ) {
+                try {
+                    if ( tasks.isEmpty() ) {
+                        selector.select();
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+
+                    Runnable task;
+                    while ( ( task = tasks.poll() ) != null ) {
+                        task.run();
+                    }
+
+                    Iterator <SelectionKey> keys = selector.selectedKeys().iterator();
+                    while ( keys.hasNext() ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ( (Session) key.attachment() ).handleKey( key );
+                    }
+                }
+                catch ( Exception e ) {
+                    // Sessions handle their own errors; this is a bug, keep looping
+                    System.err.println( "Unexpected error in stub server loop" );
+                    e.printStackTrace();
+                }
+            }
+
+            for ( SelectionKey key : selector.keys() ) {
+                ( (Session) key.attachment() ).shutdown();
+            }
+            try {
+                selector.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+        }
+
+        /** Selector for this thread's connections. */
+        private final Selector selector;
+        /** The loop thread. */
+        private final Thread thread;
+        /** Tasks submitted from any thread. */
+        private final Queue <Runnable> tasks = new ConcurrentLinkedQueue <Runnable>();
+        /** Shared buffer for decrypted data (loop thread only). */
+        private final ByteBuffer scratch = ByteBuffer.allocate( 32 * 1024 );
+        /** Cleared to stop the loop. */
+        private volatile boolean running = true;
+    }
+
+    /** One client connection (used on its loop thread only, except {@link #deliver}). */
+    private class Session
+        implements XmlStanzaBuilder.Listener {
+
+        Session( Worker worker , SocketChannel channel ) {
+            this.worker = worker;
+            this.channel = channel;
+            this.streamID = "stub" + nextStreamID.incrementAndGet();
+        }
+
+        /** Starts reading from the connection. */
+        void register() {
+            try {
+                key = channel.register( worker.selector , SelectionKey.OP_READ , this );
+                connectionCount.incrementAndGet();
+            }
+            catch ( IOException e ) {
+                shutdown();
+            }
+        }
+
+        /** Queues a stanza routed from another session (can be called from any thread). */
+        void deliver( String stanza ) {
+            pending.add( stanza );
+            if ( flushScheduled.compareAndSet( false , true ) ) {
+                worker.execute( flushTask );
+            }
+        }
+
+        /** Handles a selected key. */
+        void handleKey( SelectionKey key ) {
+            try {
+                if ( key.isValid() && key.isReadable() ) {
+                    readAvailable();
+                }
+                if ( key.isValid() && key.isWritable() ) {
+                    flushOutput();
+                }
+            }
+            catch ( IOException e ) {
+                shutdown();
+            }
+            catch ( RuntimeException e ) {
+                // E.g. a client that doesn't like the certificate
+                shutdown();
+            }
+        }
+
+        /* XmlStanzaBuilder.Listener */
+
+        /** {@inheritDoc} */
+        public void streamOpened( XmlElement header )
+            throws IOException {
+
+            StringBuilder sb = new StringBuilder();
+            sb.append( "<?xml version='1.0'?><stream:stream xmlns='jabber:client'" );
+            sb.append( " xmlns:stream='http://etherx.jabber.org/streams' id='" ).append( streamID );
+            sb.append( "' from='" ).append( XmlEscaper.escapeAttribute( domain ) ).append( "' version='1.0'>" );
+            sb.append( "<stream:features>" );
+            if ( tlsContext != null && tls == null ) {
+                sb.append( "<starttls xmlns='" ).append( TLS_NAMESPACE ).append( "'><required/></starttls>" );
+            }
+            else if ( user == null ) {
+                sb.append( "<mechanisms xmlns='" ).append( SASL_NAMESPACE ).append( "'>" );
+                sb.append( "<mechanism>" ).append( ScramSaslClient.SCRAM_SHA_256 ).append( "</mechanism>" );
+                sb.append( "<mechanism>" ).append( ScramSaslClient.SCRAM_SHA_1 ).append( "</mechanism>" );
+                sb.append( "<mechanism>PLAIN</mechanism>" );
+                sb.append( "</mechanisms>" );
+            }
+            else {
+                sb.append( "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>" );
+                sb.append( "<sm xmlns='" ).append( StreamManagement.NAMESPACE ).append( "'/>" );
+                sb.append( "<ver xmlns='" ).append( RosterStore.VERSIONING_NAMESPACE ).append( "'/>" );
+            }
+            sb.append( "</stream:features>" );
+            write( sb.toString() );
+        }
+
+        /** {@inheritDoc} */
+        public void stanzaReceived( XmlElement stanza )
+            throws IOException {
+
+            String name = stanza.getName();
+            if ( StreamManagement.NAMESPACE.equals( stanza.getNamespace() ) ) {
+                handleStreamManagement( stanza );
+                return;
+            }
+            if ( smEnabled && ( name.equals( "message" ) || name.equals( "presence" ) || name.equals( "iq" ) ) ) {
+                ++inboundCount;
+            }
+
+            if ( name.equals( "message" ) ) {
+                routeMessage( stanza );
+            }
+            else if ( name.equals( "iq" ) ) {
+                handleIq( stanza );
+            }
+            else if ( name.equals( "starttls" ) ) {
+                startTls();
+            }
+            else if ( name.equals( "auth" ) ) {
+                handleAuth( stanza );
+            }
+            else if ( name.equals( "response" ) ) {
+                handleScramFinal( stanza.getText() );
+            }
+            else if ( name.equals( "presence" ) ) {
+                handlePresence( stanza );
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void streamClosed()
+            throws IOException {
+
+            write( "</stream:stream>" );
+            flushOutput();
+            shutdown();
+        }
+
+        /* Stanzas */
+
+        /** Upgrades to TLS after sending proceed. */
+        private void startTls()
+            throws IOException {
+
+            if ( tlsContext == null || tls != null ) {
+                write( "<failure xmlns='" + TLS_NAMESPACE + "'/>" );
+                return;
+            }
+
+            // The proceed tag must go out before the TLS handshake starts
+            write( "<proceed xmlns='" + TLS_NAMESPACE + "'/>" );
+            plainOut.flip();
+            while ( plainOut.hasRemaining() ) {
+                channel.write( plainOut );
+            }
+            plainOut = null;
+
+            SSLEngine engine = tlsContext.createSSLEngine();
+            engine.setUseClientMode( false );
+            tls = new TlsCodec( engine );
+            tls.beginHandshake();
+            // The client starts a new stream over TLS
+            parser.reset();
+        }
+
+        /** Handles the auth tag (PLAIN or the SCRAM client-first message). */
+        private void handleAuth( XmlElement auth )
+            throws IOException {
+
+            String mechanism = auth.getAttribute( "mechanism" );
+            byte[] data = Base64.decodeBase64( auth.getText() == null ? "" : auth.getText().trim() );
+            String message = new String( data , UTF8 );
+
+            if ( "PLAIN".equals( mechanism ) ) {
+                // authzid NUL authcid NUL password
+                String[] parts = message.split( "\u0000" , -1 );
+                if ( parts.length == 3 && parts[2].equals( password ) ) {
+                    authenticated( parts[1] , null );
+                }
+                else {
+                    authFailed();
+                }
+            }
+            else if ( ScramSaslClient.SCRAM_SHA_1.equals( mechanism ) ||
+                      ScramSaslClient.SCRAM_SHA_256.equals( mechanism ) ) {
+
+                // "n,,n=user,r=nonce"
+                int bare = message.indexOf( ",," );
+                String name = scramAttribute( message , 'n' , bare + 2 );
+                String nonce = scramAttribute( message , 'r' , bare + 2 );
+                if ( bare < 0 || name == null || nonce == null ) {
+                    authFailed();
+                    return;
+                }
+                byte[] random = new byte[ 18 ];
+                RANDOM.nextBytes( random );
+                scramKeys = ScramSaslClient.SCRAM_SHA_1.equals( mechanism ) ? scramSha1 : scramSha256;
+                scramUser = name.replace( "=2C" , "," ).replace( "=3D" , "=" );
+                scramNonce = nonce + Base64.encodeBase64String( random ).trim();
+                String serverFirst = "r=" + scramNonce + ",s=" + Base64.encodeBase64String( salt ).trim() +
+                                     ",i=" + SCRAM_ITERATIONS;
+                scramAuthMessage = message.substring( bare + 2 ) + "," + serverFirst;
+                write( "<challenge xmlns='" + SASL_NAMESPACE + "'>" +
+                       Base64.encodeBase64String( serverFirst.getBytes( UTF8 ) ).trim() + "</challenge>" );
+            }
+            else {
+                write( "<failure xmlns='" + SASL_NAMESPACE + "'><invalid-mechanism/></failure>" );
+            }
+        }
+
+        /** Checks the SCRAM client-final message ("c=...,r=nonce,p=proof"). */
+        private void handleScramFinal( String text )
+            throws IOException {
+
+            if ( scramKeys == null ) {
+                authFailed();
+                return;
+            }
+            String message = new String( Base64.decodeBase64( text == null ? "" : text.trim() ) , UTF8 );
+            int proofStart = message.lastIndexOf( ",p=" );
+            if ( proofStart < 0 || ! scramNonce.equals( scramAttribute( message , 'r' , 0 ) ) ) {
+                authFailed();
+                return;
+            }
+            byte[] authMessage = ( scramAuthMessage + "," + message.substring( 0 , proofStart ) ).getBytes( UTF8 );
+            byte[] proof = Base64.decodeBase64( message.substring( proofStart + 3 ) );
+
+            try {
+                // ClientKey = ClientProof XOR HMAC(StoredKey, AuthMessage), and H(ClientKey) must be StoredKey
+                byte[] clientKey = scramKeys.hmac( scramKeys.storedKey , authMessage );
+                if ( proof.length != clientKey.length ) {
+                    authFailed();
+                    return;
+                }
+                for ( int i = 0 ; i < clientKey.length ; ++i ) {
+                    clientKey[i] ^= proof[i];
+                }
+                if ( ! MessageDigest.isEqual( scramKeys.digest( clientKey ) , scramKeys.storedKey ) ) {
+                    authFailed();
+                    return;
+                }
+                String serverFinal = "v=" + Base64.encodeBase64String(
+                    scramKeys.hmac( scramKeys.serverKey , authMessage ) ).trim();
+                authenticated( scramUser , Base64.encodeBase64String( serverFinal.getBytes( UTF8 ) ).trim() );
+            }
+            catch ( GeneralSecurityException e ) {
+                throw new IOException( "SCRAM failed" , e );
+            }
+        }
+
+        /** Sends success; the client then restarts the stream. */
+        private void authenticated( String name , String additionalData )
+            throws IOException {
+
+            // The user name may be a bare JID (PLAIN from the JDK)
+            int at = name.indexOf( '@' );
+            user = ( at < 0 ) ? name : name.substring( 0 , at );
+            scramKeys = null;
+            write( "<success xmlns='" + SASL_NAMESPACE + "'" +
+                   ( additionalData == null ? "/>" : ">" + additionalData + "</success>" ) );
+            parser.reset();
+        }
+
+        /** Sends a SASL failure. */
+        private void authFailed()
+            throws IOException {
+
+            authFailureCount.incrementAndGet();
+            scramKeys = null;
+            write( "<failure xmlns='" + SASL_NAMESPACE + "'><not-authorized/></failure>" );
+        }
+
+        /** Handles resource binding and roster requests; other IQs get an empty result. */
+        private void handleIq( XmlElement iq )
+            throws IOException {
+
+            String id = XmlEscaper.escapeAttribute( iq.getAttribute( "id" ) == null ? "" : iq.getAttribute( "id" ) );
+            String type = iq.getAttribute( "type" );
+            if ( ! "get".equals( type ) && ! "set".equals( type ) ) {
+                return;
+            }
+
+            if ( iq.getChild( "bind" ) != null && user != null && fullJid == null ) {
+                bareJid = user + "@" + domain;
+                fullJid = bareJid + "/stub" + nextResource.incrementAndGet();
+                fullJids.put( fullJid , this );
+                bareJids.put( bareJid , this );
+                write( "<iq type='result' id='" + id + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>" +
+                       XmlEscaper.escapeText( fullJid ) + "</jid></bind></iq>" );
+            }
+            else if ( iq.getChild( "query" ) != null && "jabber:iq:roster".equals( iq.getChild( "query" ).getNamespace() ) ) {
+                // The roster only changes with its size
+                String version = "stub-" + rosterSize;
+                if ( version.equals( iq.getChild( "query" ).getAttribute( "ver" ) ) ) {
+                    write( "<iq type='result' id='" + id + "'/>" );
+                    return;
+                }
+                StringBuilder sb = new StringBuilder( 64 + rosterSize * 64 );
+                sb.append( "<iq type='result' id='" ).append( id ).append( "'><query xmlns='jabber:iq:roster' ver='" );
+                sb.append( version ).append( "'>" );
+                for ( int i = 0 ; i < rosterSize ; ++i ) {
+                    sb.append( "<item jid='contact" ).append( i ).append( '@' ).append( domain );
+                    sb.append( "' name='Contact " ).append( i ).append( "' subscription='both'/>" );
+                }
+                sb.append( "</query></iq>" );
+                write( sb.toString() );
+            }
+            else {
+                write( "<iq type='result' id='" + id + "'/>" );
+            }
+        }
+
+        /** Answers the initial presence with the presence of half the roster's contacts. */
+        private void handlePresence( XmlElement presence )
+            throws IOException {
+
+            if ( presenceSent || fullJid == null || presence.getAttribute( "to" ) != null ||
+                 presence.getAttribute( "type" ) != null ) {
+                return;
+            }
+            presenceSent = true;
+            StringBuilder sb = new StringBuilder( 64 * 1024 );
+            for ( int i = 0 ; i < rosterSize ; i += 2 ) {
+                sb.append( "<presence from='contact" ).append( i ).append( '@' ).append( domain );
+                sb.append( "/stub' to='" ).append( XmlEscaper.escapeAttribute( fullJid ) ).append( "'>" );
+                if ( i % 4 == 2 ) {
+                    sb.append( "<show>away</show>" );
+                }
+                sb.append( "<priority>1</priority></presence>" );
+                if ( sb.length() > 60 * 1024 ) {
+                    write( sb.toString() );
+                    sb.setLength( 0 );
+                }
+            }
+            write( sb.toString() );
+        }
+
+        /** Routes a chat message to its recipient's session. */
+        private void routeMessage( XmlElement message ) {
+
+            String to = message.getAttribute( "to" );
+            XmlElement body = message.getChild( "body" );
+            Session recipient = null;
+            if ( to != null ) {
+                recipient = fullJids.get( to );
+                if ( recipient == null ) {
+                    int slash = to.indexOf( '/' );
+                    recipient = bareJids.get( ( slash < 0 ) ? to : to.substring( 0 , slash ) );
+                }
+            }
+            if ( recipient == null || body == null || fullJid == null ) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder( 128 + ( body.getText() == null ? 0 : body.getText().length() ) );
+            sb.append( "<message from='" ).append( XmlEscaper.escapeAttribute( fullJid ) );
+            sb.append( "' to='" ).append( XmlEscaper.escapeAttribute( to ) ).append( "' type='chat'>" );
+            sb.append( "<body>" ).append( XmlEscaper.escapeText( body.getText() == null ? "" : body.getText() ) );
+            sb.append( "</body>" );
+            XmlElement thread = message.getChild( "thread" );
+            if ( thread != null && thread.getText() != null ) {
+                sb.append( "<thread>" ).append( XmlEscaper.escapeText( thread.getText() ) ).append( "</thread>" );
+            }
+            sb.append( "</message>" );
+            recipient.deliver( sb.toString() );
+            routedCount.incrementAndGet();
+        }
+
+        /** Handles enable, ack requests and acks (no resumption). */
+        private void handleStreamManagement( XmlElement element )
+            throws IOException {
+
+            String name = element.getName();
+            if ( name.equals( "enable" ) ) {
+                smEnabled = true;
+                inboundCount = 0;
+                write( "<enabled xmlns='" + StreamManagement.NAMESPACE + "' id='" + streamID + "'/>" );
+            }
+            else if ( name.equals( "r" ) ) {
+                write( "<a xmlns='" + StreamManagement.NAMESPACE + "' h='" + ( inboundCount & 0xFFFFFFFFL ) + "'/>" );
+            }
+            else if ( name.equals( "resume" ) ) {
+                write( "<failed xmlns='" + StreamManagement.NAMESPACE + "'/>" );
+            }
+        }
+
+        /* I/O */
+
+        /** Reads what the socket has and feeds it to the parser. */
+        private void readAvailable()
+            throws IOException {
+
+            if ( tls == null ) {
+                int n = channel.read( plainIn );
+                if ( n < 0 ) {
+                    throw new IOException( "Connection closed by client" );
+                }
+                plainIn.flip();
+                parser.feed( plainIn );
+                plainIn.clear();
+            }
+            else {
+                if ( channel.read( tls.getNetIn() ) < 0 ) {
+                    throw new IOException( "Connection closed by client" );
+                }
+                ByteBuffer appIn = worker.scratch;
+                boolean more;
+                do {
+                    appIn.clear();
+                    more = tls.unwrap( appIn );
+                    appIn.flip();
+                    if ( appIn.hasRemaining() ) {
+                        parser.feed( appIn );
+                    }
+                }
+                while ( more );
+            }
+
+            // Replies, TLS handshake messages, ...
+            if ( channel.isOpen() ) {
+                flushOutput();
+            }
+        }
+
+        /** Sends the stanzas routed to this session. */
+        private void flushPending() {
+
+            flushScheduled.set( false );
+            if ( ! channel.isOpen() ) {
+                pending.clear();
+                return;
+            }
+            try {
+                String stanza;
+                while ( ( stanza = pending.poll() ) != null ) {
+                    write( stanza );
+                }
+                flushOutput();
+            }
+            catch ( IOException e ) {
+                shutdown();
+            }
+        }
+
+        /** Encodes (and encrypts) XML into the outgoing buffer. */
+        private void write( String xml )
+            throws IOException {
+
+            byte[] bytes = xml.getBytes( UTF8 );
+            if ( tls != null ) {
+                tls.wrap( ByteBuffer.wrap( bytes ) );
+            }
+            else {
+                if ( plainOut.remaining() < bytes.length ) {
+                    plainOut = TlsCodec.grow( plainOut , bytes.length );
+                }
+                plainOut.put( bytes );
+            }
+        }
+
+        /** Writes as much of the outgoing buffer as the socket takes. */
+        private void flushOutput()
+            throws IOException {
+
+            ByteBuffer out = ( tls != null ) ? tls.getNetOut() : plainOut;
+            out.flip();
+            try {
+                channel.write( out );
+            }
+            finally {
+                out.compact();
+            }
+            if ( out.position() > MAX_PENDING_OUTPUT ) {
+                throw new IOException( "Client too slow to read its stanzas" );
+            }
+
+            // Ask to be told when the socket can take the rest
+            int ops = ( out.position() > 0 ) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                             : SelectionKey.OP_READ;
+            if ( key.interestOps() != ops ) {
+                key.interestOps( ops );
+            }
+        }
+
+        /** Closes the connection and forgets its JIDs. */
+        void shutdown() {
+
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            if ( key != null ) {
+                connectionCount.decrementAndGet();
+                key.cancel();
+            }
+            try {
+                channel.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+            if ( fullJid != null ) {
+                fullJids.remove( fullJid , this );
+                bareJids.remove( bareJid , this );
+            }
+            pending.clear();
+        }
+
+        private final Worker worker;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final String streamID;
+        private final XmlPushParser parser = new XmlPushParser( new XmlStanzaBuilder( this ) );
+        /** TLS codec (null before STARTTLS). */
+        private TlsCodec tls;
+        /** Plain bytes read from the socket (before STARTTLS). */
+        private final ByteBuffer plainIn = ByteBuffer.allocate( 4096 );
+        /** Plain bytes to write to the socket (before STARTTLS). */
+        private ByteBuffer plainOut = ByteBuffer.allocate( 4096 );
+        private boolean closed = false;
+
+        /** Authenticated user name (null before SASL success). */
+        private String user;
+        private String bareJid;
+        private String fullJid;
+        /** Indicates whether the contacts' presence was sent. */
+        private boolean presenceSent = false;
+
+        /** SCRAM exchange in progress. */
+        private ScramKeys scramKeys;
+        private String scramUser;
+        private String scramNonce;
+        private String scramAuthMessage;
+
+        /** Stream management. */
+        private boolean smEnabled = false;
+        private long inboundCount = 0;
+
+        /** Stanzas routed from other sessions, waiting for the loop thread. */
+        private final Queue <String> pending = new ConcurrentLinkedQueue <String>();
+        /** Indicates whether a flush of {@link #pending} is already scheduled. */
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        /** Task that sends the pending stanzas. */
+        private final Runnable flushTask = new Runnable() {
+            public void run() {
+                flushPending();
+            }
+        };
+    }
+
+    /** SCRAM keys derived from the server's password, for one mechanism. */
+    private static class ScramKeys {
+
+        ScramKeys( String mechanism , String password , byte[] salt , int iterations )
+            throws GeneralSecurityException {
+
+            hmacName = mechanism.equals( ScramSaslClient.SCRAM_SHA_1 ) ? "HmacSHA1" : "HmacSHA256";
+            digestName = mechanism.equals( ScramSaslClient.SCRAM_SHA_1 ) ? "SHA-1" : "SHA-256";
+
+            // SaltedPassword = Hi(password, salt, iterations): PBKDF2, one block
+            Mac mac = Mac.getInstance( hmacName );
+            mac.init( new SecretKeySpec( password.getBytes( UTF8 ) , hmacName ) );
+            mac.update( salt );
+            mac.update( new byte[] { 0 , 0 , 0 , 1 } );
+            byte[] u = mac.doFinal();
+            byte[] saltedPassword = u.clone();
+            for ( int i = 1 ; i < iterations ; ++i ) {
+                u = mac.doFinal( u );
+                for ( int j = 0 ; j < saltedPassword.length ; ++j ) {
+                    saltedPassword[j] ^= u[j];
+                }
+            }
+
+            storedKey = digest( hmac( saltedPassword , "Client Key".getBytes( UTF8 ) ) );
+            serverKey = hmac( saltedPassword , "Server Key".getBytes( UTF8 ) );
+        }
+
+        byte[] hmac( byte[] key , byte[] data )
+            throws GeneralSecurityException {
+
+            Mac mac = Mac.getInstance( hmacName );
+            mac.init( new SecretKeySpec( key , hmacName ) );
+            return mac.doFinal( data );
+        }
+
+        byte[] digest( byte[] data )
+            throws GeneralSecurityException {
+
+            return MessageDigest.getInstance( digestName ).digest( data );
+        }
+
+        private final String hmacName;
+        private final String digestName;
+        final byte[] storedKey;
+        final byte[] serverKey;
+    }
+
+    /** Gets an attribute ("x=value") from a SCRAM message, starting at an index, or null. */
+    private static String scramAttribute( String message , char name , int from ) {
+        for ( String attribute : message.substring( Math.max( from , 0 ) ).split( "," ) ) {
+            if ( attribute.length() >= 2 && attribute.charAt( 0 ) == name && attribute.charAt( 1 ) == '=' ) {
+                return attribute.substring( 2 );
+            }
+        }
+        return null;
+    }
+
+    private static final String TLS_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-tls";
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+    /** SCRAM iteration count (the minimum RFC 5802 recommends). */
+    private static final int SCRAM_ITERATIONS = 4096;
+    /** Connections waiting to be accepted. */
+    private static final int ACCEPT_BACKLOG = 4096;
+    /** Encrypted bytes a connection may have waiting before it is dropped as too slow. */
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Domain served. */
+    private final String domain;
+    /** Password of every user. */
+    private final String password;
+    /** TLS context (null if STARTTLS isn't offered). */
+    private final SSLContext tlsContext;
+    /** SCRAM salt, and the keys derived with it. */
+    private final byte[] salt = new byte[ 16 ];
+    private final ScramKeys scramSha1;
+    private final ScramKeys scramSha256;
+    /** Number of contacts in every roster. */
+    private volatile int rosterSize = 10;
+
+    /** Port listened on. */
+    private int port;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    /** Loop threads. */
+    private final Worker[] workers;
+
+    /** Bound sessions by full JID, and the latest one by bare JID. */
+    private final ConcurrentMap <String , Session> fullJids = new ConcurrentHashMap <String , Session>();
+    private final ConcurrentMap <String , Session> bareJids = new ConcurrentHashMap <String , Session>();
+
+    private final AtomicLong nextStreamID = new AtomicLong();
+    private final AtomicLong nextResource = new AtomicLong();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong authFailureCount = new AtomicLong();
+    private final AtomicLong routedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+}
@@ -0,0 +1,78 @@
+/**
+   Measures the cost of TLS and authentication on re-connection.
+
+   <p> Connects the same account <i>count</i> times in a row with
+   {@link XmppConnection}, closing each connection once it is bound,
+   and reports:
+   <ul>
+    <li> the {@link TlsSessions} statistics for the server: how many
+         handshakes resumed an earlier session, and the full vs
+         resumed handshake times; </li>
+    <li> the authentication times per SASL mechanism from
+         {@link SaslMechanisms} (SCRAM with cached keys separately); </li>
+    <li> the time spent in each phase of the connection setup
+         ({@link ConnectionPhases}), with new and resumed TLS sessions. </li>
+   </ul>
+
+   <p> The event log is switched off, so printing doesn't add to the times.
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar TlsReconnectBenchmark \
+                jabber_id password server port [count]
+ */
+public class TlsReconnectBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        if ( args.length < 4 ) {
+            System.err.println( "Usage: java TlsReconnectBenchmark jabber_id password server port [count]" );
+            return;
+        }
+        JabberID jid = new JabberID( args[0] , args[1] , args[2] , Integer.parseInt( args[3] ) );
+        int count = ( args.length > 4 ) ? Integer.parseInt( args[4] ) : 50;
+
+        EventLog.setEnabled( false );
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < count ; ++i ) {
+            XmppConnection connection = new XmppConnection( jid );
+            connection.connect();
+            connection.close();
+        }
+        long elapsedMillis = ( System.nanoTime() - start ) / 1000000L;
+
+        TlsSessions tls = TlsSessions.forServer( jid.getServerName() , jid.getServerPort() );
+        System.out.println();
+        System.out.println( count + " connections in " + elapsedMillis + " ms" );
+        System.out.println( tls );
+        print( tls.getFullHandshakeTime() );
+        print( tls.getResumedHandshakeTime() );
+        for ( Histogram authTime : SaslMechanisms.getAuthTimes().values() ) {
+            print( authTime );
+        }
+        printPhases( jid.getServerName() );
+    }
+
+    /** Prints the connection setup phase times for a server, in phase order. */
+    static void printPhases( String server ) {
+        String[] tlsLabels = { ConnectionPhases.NO_TLS , ConnectionPhases.NEW_TLS , ConnectionPhases.RESUMED_TLS };
+        for ( String tlsLabel : tlsLabels ) {
+            for ( int phase = 0 ; phase <= ConnectionPhases.PHASE_NAMES.length ; ++phase ) {
+                String name = ( phase < ConnectionPhases.PHASE_NAMES.length ) ? ConnectionPhases.PHASE_NAMES[ phase ] : "total";
+                Histogram histogram = ConnectionPhases.getHistogram( server , tlsLabel , name );
+                if ( histogram.getCount() > 0 ) {
+                    print( histogram );
+                }
+            }
+        }
+    }
+
+    /** Prints a time histogram. */
+    private static void print( Histogram histogram ) {
+        System.out.println( String.format( "%-44s n=%-5d p50 %6d us  p99 %6d us  max %6d us" ,
+                                           histogram.getName() , histogram.getCount() ,
+                                           histogram.getPercentile( 50 ) , histogram.getPercentile( 99 ) ,
+                                           histogram.getMax() ) );
+    }
+}
@@ -0,0 +1,95 @@
+/**
+   Measures the cost of escaping outbound message bodies with the
+   {@link XmlEscaper}, mostly in the common case where there is nothing
+   to escape.
+
+   <p> For each case, reports ns per body and the bytes allocated per
+   body on the benchmark thread:
+   <ul>
+    <li> <code>raw</code>: UTF-8 encoding only, no escaping (the cost
+         before escaping was added). </li>
+    <li> <code>encode</code>: escaping while encoding to bytes, as the
+         {@link StanzaSerializer} does. </li>
+    <li> <code>escapeText</code>: the String form (returns the same
+         String when there is nothing to escape). </li>
+    <li> The same, on bodies that do contain <code>&lt;</code>,
+         <code>&amp;</code> and quotes. </li>
+   </ul>
+
+   <p> To run:
+   <br> $ java -cp bin:commons-codec-1.8.jar XmlEscaperBenchmark [iterations]
+ */
+public class XmlEscaperBenchmark {
+
+    /** Main method. */
+    public static void main( String[] args ) {
+
+        int iterations = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 5000000;
+
+        String[] plain = new String[ 64 ];
+        String[] special = new String[ 64 ];
+        for ( int i = 0 ; i < plain.length ; ++i ) {
+            plain[i] = "Are we still meeting at the station at " + ( i % 24 ) + " tonight? See you there";
+            special[i] = "if (a < " + i + " && b > 2) say \"it's <b>bold</b>\" & leave";
+        }
+        byte[] buffer = new byte[ 128 * XmlEscaper.MAX_BYTES_PER_CHAR ];
+
+        // Warm up, then measure
+        for ( int round = 0 ; round < 4 ; ++round ) {
+            boolean print = ( round >= 2 );
+            report( "raw" , iterations , print , runRaw( plain , buffer , iterations ) );
+            report( "encode" , iterations , print , runEncode( plain , buffer , iterations ) );
+            report( "escapeText" , iterations , print , runEscapeText( plain , iterations ) );
+            report( "encode (special)" , iterations , print , runEncode( special , buffer , iterations ) );
+            report( "escapeText (special)" , iterations , print , runEscapeText( special , iterations ) );
+            if ( print ) {
+                System.out.println();
+            }
+        }
+        System.out.println( "(checksum " + checksum + ")" );
+    }
+
+    /** Prints the result of one run: { nanosec, bytes allocated }. */
+    private static void report( String name , int iterations , boolean print , long[] result ) {
+        if ( print ) {
+            System.out.println( String.format( "%-22s %8.1f ns/body %8.1f bytes allocated/body" , name ,
+                                               (double) result[0] / iterations ,
+                                               (double) result[1] / iterations ) );
+        }
+    }
+
+    /** Encodes without escaping. */
+    static long[] runRaw( String[] bodies , byte[] buffer , int iterations ) {
+        long allocatedBefore = StanzaSerializerBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < iterations ; ++i ) {
+            checksum += XmlEscaper.encodeRaw( bodies[ i & 63 ] , buffer , 0 );
+        }
+        return new long[] { System.nanoTime() - start ,
+                            StanzaSerializerBenchmark.allocatedBytes() - allocatedBefore };
+    }
+
+    /** Escapes while encoding. */
+    static long[] runEncode( String[] bodies , byte[] buffer , int iterations ) {
+        long allocatedBefore = StanzaSerializerBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < iterations ; ++i ) {
+            checksum += XmlEscaper.encode( bodies[ i & 63 ] , false , buffer , 0 );
+        }
+        return new long[] { System.nanoTime() - start ,
+                            StanzaSerializerBenchmark.allocatedBytes() - allocatedBefore };
+    }
+
+    /** Escapes to a String. */
+    static long[] runEscapeText( String[] bodies , int iterations ) {
+        long allocatedBefore = StanzaSerializerBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0 ; i < iterations ; ++i ) {
+            checksum += XmlEscaper.escapeText( bodies[ i & 63 ] ).length();
+        }
+        return new long[] { System.nanoTime() - start ,
+                            StanzaSerializerBenchmark.allocatedBytes() - allocatedBefore };
+    }
+
+    private static long checksum = 0;
+}
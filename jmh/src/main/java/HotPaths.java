@@ -0,0 +1,42 @@
+import jabberchat.jmh.HotPath;
+
+/**
+   Gives the JMH benchmarks (jabberchat.jmh.HotPathBenchmarks) the hot
+   paths of {@link HotPathBenchmark}, by name, so both measure the same
+   code. Called by reflection: the benchmarks can't import classes of
+   the default package.
+ */
+public class HotPaths {
+
+    /**
+       Creates a hot path.
+       @param name name of the {@link HotPathBenchmark} benchmark
+       @param rosterSize items in the roster of the roster benchmarks
+     */
+    public static HotPath create( String name , int rosterSize )
+        throws Exception {
+
+        EventLog.setEnabled( false );
+        HotPath found = null;
+        for ( final HotPathBenchmark.Benchmark benchmark : HotPathBenchmark.createBenchmarks( rosterSize ) ) {
+            if ( found != null || ! benchmark.name.equals( name ) ) {
+                benchmark.close();
+                continue;
+            }
+            found = new HotPath() {
+                public int run()
+                    throws Exception {
+                    return benchmark.run();
+                }
+
+                public void close() {
+                    benchmark.close();
+                }
+            };
+        }
+        if ( found == null ) {
+            throw new IllegalArgumentException( "No hot path named " + name );
+        }
+        return found;
+    }
+}
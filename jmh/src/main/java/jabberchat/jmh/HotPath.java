@@ -0,0 +1,17 @@
+package jabberchat.jmh;
+
+/**
+   A batch of operations on one of the client's hot paths, as created
+   by <code>HotPaths</code>: the client's classes are in the default
+   package, which can't be imported here, and JMH won't have
+   benchmarks in the default package.
+ */
+public interface HotPath {
+
+    /** Runs a batch, returns the number of operations. */
+    int run()
+        throws Exception;
+
+    /** Releases what the hot path uses (e.g. stops a writer thread). */
+    void close();
+}
@@ -0,0 +1,212 @@
+package jabberchat.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+   JMH benchmarks of the client's per-stanza hot paths (the ones of
+   bench/HotPathBenchmark):
+   <ul>
+    <li> <b>handleNewMessage</b>: receiving chat messages, with the StAX
+         and the push parser; </li>
+    <li> <b>handleQuery</b>: receiving a large roster, with both parsers
+         into an in-memory roster store; </li>
+    <li> <b>sendMessageToClient</b>: queueing chat messages, built and
+         written (to a discarded stream) by the writer thread; </li>
+    <li> <b>setJabberID</b> and <b>getSenderEmail</b>: splitting JIDs; </li>
+    <li> <b>saslPlainAuthStanza</b> and <b>saslChallengeResponse</b>: the
+         Base64 encoding of the PLAIN auth stanza, and the decoding of a
+         challenge plus the encoding of the response. </li>
+   </ul>
+
+   <p> Each invocation runs a batch of operations; the scores are per
+   operation. Run with the GC profiler to get the bytes allocated per
+   operation (gc.alloc.rate.norm) next to the throughput:
+   <br> $ java -jar jmh/target/benchmarks.jar -prof gc
+   <br> $ java -jar jmh/target/benchmarks.jar HotPathBenchmarks.handleQuery -p rosterSize=500,5000 -prof gc
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 , time = 2 )
+@Measurement( iterations = 5 , time = 2 )
+@Fork( 1 )
+public class HotPathBenchmarks {
+
+    /** Operations per batch (HotPathBenchmark.BATCH). */
+    private static final int BATCH = 1000;
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int handleNewMessage( Messages state )
+        throws Exception {
+        return state.hotPath.run();
+    }
+
+    @Benchmark
+    public int handleQuery( Roster state )
+        throws Exception {
+        return state.hotPath.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int sendMessageToClient( Sending state )
+        throws Exception {
+        return state.hotPath.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int setJabberID( Jids state )
+        throws Exception {
+        return state.setJabberID.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int getSenderEmail( Jids state )
+        throws Exception {
+        return state.getSenderEmail.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int saslPlainAuthStanza( Sasl state )
+        throws Exception {
+        return state.plainAuthStanza.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public int saslChallengeResponse( Sasl state )
+        throws Exception {
+        return state.challengeResponse.run();
+    }
+
+    /** Chat messages, read from an endless stream. */
+    @State( Scope.Thread )
+    public static class Messages {
+
+        @Param( { "StAX" , "push" } )
+        public String parser;
+
+        @Setup( Level.Trial )
+        public void setUp()
+            throws Exception {
+            hotPath = createHotPath( "handleNewMessage (" + parser + ")" , 0 );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            hotPath.close();
+        }
+
+        HotPath hotPath;
+    }
+
+    /** Roster results, read from an endless stream. */
+    @State( Scope.Thread )
+    public static class Roster {
+
+        @Param( { "StAX" , "push" } )
+        public String parser;
+
+        @Param( { "5000" } )
+        public int rosterSize;
+
+        @Setup( Level.Trial )
+        public void setUp()
+            throws Exception {
+            hotPath = createHotPath( "handleQuery " + rosterSize + " items (" + parser + ")" , rosterSize );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            hotPath.close();
+        }
+
+        HotPath hotPath;
+    }
+
+    /** A sender/receiver whose writer thread writes to a discarded stream. */
+    @State( Scope.Thread )
+    public static class Sending {
+
+        @Setup( Level.Trial )
+        public void setUp()
+            throws Exception {
+            hotPath = createHotPath( "sendMessageToClient" , 0 );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            hotPath.close();
+        }
+
+        HotPath hotPath;
+    }
+
+    /** Bare and full JIDs. */
+    @State( Scope.Thread )
+    public static class Jids {
+
+        @Setup( Level.Trial )
+        public void setUp()
+            throws Exception {
+            setJabberID = createHotPath( "JabberID.setJabberID" , 0 );
+            getSenderEmail = createHotPath( "getSenderEmail" , 0 );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            setJabberID.close();
+            getSenderEmail.close();
+        }
+
+        HotPath setJabberID;
+        HotPath getSenderEmail;
+    }
+
+    /** SASL responses and challenges. */
+    @State( Scope.Thread )
+    public static class Sasl {
+
+        @Setup( Level.Trial )
+        public void setUp()
+            throws Exception {
+            plainAuthStanza = createHotPath( "SASL PLAIN auth stanza" , 0 );
+            challengeResponse = createHotPath( "SASL challenge/response" , 0 );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            plainAuthStanza.close();
+            challengeResponse.close();
+        }
+
+        HotPath plainAuthStanza;
+        HotPath challengeResponse;
+    }
+
+    /** Creates a hot path with HotPaths (in the default package, so by reflection). */
+    static HotPath createHotPath( String name , int rosterSize )
+        throws Exception {
+
+        return (HotPath) Class.forName( "HotPaths" ).getMethod( "create" , String.class , int.class )
+            .invoke( null , name , rosterSize );
+    }
+}
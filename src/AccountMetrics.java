@@ -0,0 +1,274 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+   Receive-side metrics of one account, kept across re-connections and
+   published as an MBean named
+   <code>JabberChat:type=Account,name="user@domain"</code>.
+
+   <p> {@link XmppConnection} counts the bytes going through its
+   socket streams ({@link CountingInputStream},
+   {@link CountingOutputStream}) and the connections;
+   {@link XmppSenderReceiver} counts the stanzas received, by type, and
+   times the message and roster handlers in {@link Histogram}s.
+   The {@link OfflineMessageQueue} of the account, once set, gives the
+   messages waiting for a re-connection.
+
+   <p> Everything is updated with a few uncontended atomic operations
+   per stanza (or per socket read), so the metrics are always on.
+ */
+public class AccountMetrics implements AccountMetricsMBean {
+
+    /**
+       Gets the metrics of an account, creating and registering them
+       the first time.
+     */
+    public static AccountMetrics forAccount( JabberID jid ) {
+        String account = jid.getJabberID();
+        AccountMetrics metrics = accounts.get( account );
+        if ( metrics == null ) {
+            AccountMetrics created = new AccountMetrics( account );
+            metrics = accounts.putIfAbsent( account , created );
+            if ( metrics == null ) {
+                metrics = created;
+                metrics.register();
+            }
+        }
+        return metrics;
+    }
+
+    /** Gets the metrics of all the accounts, by bare JID. */
+    public static Map <String , AccountMetrics> getAccounts() {
+        return accounts;
+    }
+
+    /** Gets the account's bare JID. */
+    public String getAccount() {
+        return account;
+    }
+
+    /** Counts a connection set up. */
+    public void connected() {
+        connections.incrementAndGet();
+    }
+
+    /** Gets the counter of bytes received, for {@link CountingInputStream}. */
+    public AtomicLong getBytesReceivedCounter() {
+        return bytesReceived;
+    }
+
+    /** Gets the counter of bytes sent, for {@link CountingOutputStream}. */
+    public AtomicLong getBytesSentCounter() {
+        return bytesSent;
+    }
+
+    /** Counts a chat message. */
+    public void messageReceived() {
+        messages.incrementAndGet();
+    }
+
+    /** Records the time taken to hand a message to the listener. */
+    public void messageHandled( long nanos ) {
+        messageHandlerTime.record( nanos );
+    }
+
+    /** Counts a roster result, and the time taken to handle it. */
+    public void rosterHandled( long nanos ) {
+        rosterResults.incrementAndGet();
+        rosterHandlerTime.record( nanos / 1000 );
+    }
+
+    /** Counts a presence stanza. */
+    public void presenceReceived() {
+        presences.incrementAndGet();
+    }
+
+    /** Counts an iq stanza. */
+    public void iqReceived() {
+        iqs.incrementAndGet();
+    }
+
+    /** Counts a stream management ack or ack request. */
+    public void streamManagementReceived() {
+        streamManagement.incrementAndGet();
+    }
+
+    /** Counts a stanza of another type. */
+    public void otherStanzaReceived() {
+        otherStanzas.incrementAndGet();
+    }
+
+    /** Sets the queue of the messages typed while disconnected. */
+    public void setOfflineQueue( OfflineMessageQueue offlineQueue ) {
+        this.offlineQueue = offlineQueue;
+    }
+
+    /** Gets the histogram of times to hand a message to the listener (nanosec). */
+    public Histogram getMessageHandlerTime() {
+        return messageHandlerTime;
+    }
+
+    /** Gets the histogram of times to handle a roster result (microsec). */
+    public Histogram getRosterHandlerTime() {
+        return rosterHandlerTime;
+    }
+
+    /** {@inheritDoc} */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMessagesReceived() {
+        return messages.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getPresencesReceived() {
+        return presences.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getIqsReceived() {
+        return iqs.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getRosterResultsReceived() {
+        return rosterResults.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getStreamManagementReceived() {
+        return streamManagement.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getOtherStanzasReceived() {
+        return otherStanzas.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMessageHandlerP50Nanos() {
+        return messageHandlerTime.getPercentile( 50 );
+    }
+
+    /** {@inheritDoc} */
+    public long getMessageHandlerP99Nanos() {
+        return messageHandlerTime.getPercentile( 99 );
+    }
+
+    /** {@inheritDoc} */
+    public long getMessageHandlerP999Nanos() {
+        return messageHandlerTime.getPercentile( 99.9 );
+    }
+
+    /** {@inheritDoc} */
+    public long getMessageHandlerMaxNanos() {
+        return messageHandlerTime.getMax();
+    }
+
+    /** {@inheritDoc} */
+    public long getRosterHandlerP50Micros() {
+        return rosterHandlerTime.getPercentile( 50 );
+    }
+
+    /** {@inheritDoc} */
+    public long getRosterHandlerMaxMicros() {
+        return rosterHandlerTime.getMax();
+    }
+
+    /** {@inheritDoc} */
+    public int getOfflineQueueDepth() {
+        OfflineMessageQueue queue = offlineQueue;
+        return ( queue == null ) ? 0 : queue.getDepth();
+    }
+
+    /** {@inheritDoc} */
+    public long getOfflineMessagesSent() {
+        OfflineMessageQueue queue = offlineQueue;
+        return ( queue == null ) ? 0 : queue.getDrainedCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getOfflineDrainRate() {
+        OfflineMessageQueue queue = offlineQueue;
+        return ( queue == null ) ? 0 : queue.getDrainRate();
+    }
+
+    /** {@inheritDoc} */
+    public void resetHandlerTimes() {
+        messageHandlerTime.reset();
+        rosterHandlerTime.reset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return account + ": " + connections + " connections, " +
+               bytesReceived + " bytes received, " + bytesSent + " bytes sent, " +
+               messages + " messages, " + presences + " presences, " + iqs + " iqs (" +
+               rosterResults + " rosters), " + streamManagement + " stream management, " +
+               otherStanzas + " other; " + messageHandlerTime + "; " + rosterHandlerTime +
+               ( ( offlineQueue == null ) ? "" : "; " + offlineQueue );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Constructor. */
+    private AccountMetrics( String account ) {
+        this.account = account;
+    }
+
+    /** Registers the MBean with the platform MBean server. */
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                this , new ObjectName( "JabberChat:type=Account,name=" + ObjectName.quote( account ) ) );
+        }
+        catch ( JMException e ) {
+            // The metrics still work, they just aren't visible over JMX
+            EventLog.log( "Could not register the metrics of " , account , ": " , e );
+        }
+    }
+
+    /** Bare JID of the account. */
+    private final String account;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong presences = new AtomicLong();
+    private final AtomicLong iqs = new AtomicLong();
+    private final AtomicLong rosterResults = new AtomicLong();
+    private final AtomicLong streamManagement = new AtomicLong();
+    private final AtomicLong otherStanzas = new AtomicLong();
+
+    /** Time to hand a message to the listener (e.g. JabberMain.receivedMessage). */
+    private final Histogram messageHandlerTime = new Histogram( "message handler (ns)" );
+    /** Time to handle a roster result (including printing it). */
+    private final Histogram rosterHandlerTime = new Histogram( "roster handler (us)" );
+    /** Messages typed while disconnected (null until set). */
+    private volatile OfflineMessageQueue offlineQueue;
+
+    /** All the accounts' metrics, by bare JID. */
+    private static final ConcurrentMap <String , AccountMetrics> accounts =
+        new ConcurrentSkipListMap <String , AccountMetrics>();
+}
@@ -0,0 +1,63 @@
+/**
+   JMX view of an account's {@link AccountMetrics}: what the connection
+   received and sent, and how long handling the stanzas took.
+ */
+public interface AccountMetricsMBean {
+
+    /** Gets the number of connections set up (including re-connections). */
+    long getConnections();
+
+    /** Gets the number of bytes read from the server (after TLS decryption). */
+    long getBytesReceived();
+
+    /** Gets the number of bytes written to the server (before TLS encryption). */
+    long getBytesSent();
+
+    /** Gets the number of chat messages received. */
+    long getMessagesReceived();
+
+    /** Gets the number of presence stanzas received. */
+    long getPresencesReceived();
+
+    /** Gets the number of iq stanzas received (roster results included). */
+    long getIqsReceived();
+
+    /** Gets the number of roster results received. */
+    long getRosterResultsReceived();
+
+    /** Gets the number of stream management acks and ack requests received. */
+    long getStreamManagementReceived();
+
+    /** Gets the number of other stanzas received. */
+    long getOtherStanzasReceived();
+
+    /** Gets the median time to hand a message to the listener (nanosec). */
+    long getMessageHandlerP50Nanos();
+
+    /** Gets the 99th percentile time to hand a message to the listener (nanosec). */
+    long getMessageHandlerP99Nanos();
+
+    /** Gets the 99.9th percentile time to hand a message to the listener (nanosec). */
+    long getMessageHandlerP999Nanos();
+
+    /** Gets the longest time to hand a message to the listener (nanosec). */
+    long getMessageHandlerMaxNanos();
+
+    /** Gets the median time to handle a roster result (microsec). */
+    long getRosterHandlerP50Micros();
+
+    /** Gets the longest time to handle a roster result (microsec). */
+    long getRosterHandlerMaxMicros();
+
+    /** Gets the number of messages typed while disconnected, waiting to be sent. */
+    int getOfflineQueueDepth();
+
+    /** Gets the number of messages typed while disconnected, sent once re-connected. */
+    long getOfflineMessagesSent();
+
+    /** Gets the messages per second sent from the offline queue, the last time. */
+    double getOfflineDrainRate();
+
+    /** Clears the handler times. */
+    void resetHandlerTimes();
+}
@@ -0,0 +1,136 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+   Times the phases of setting up one connection, and publishes them
+   as histograms shared by all connections.
+
+   <p> {@link XmppConnection#connect()} marks the end of each phase as
+   it goes; the time since the previous mark (System.nanoTime()) is
+   added to the phase, so the phases add up to the whole setup:
+   <ul>
+    <li> <b>tcp connect</b>: opening the socket; </li>
+    <li> <b>stream open</b>: from sending the stream tag to getting the
+         server's features (done again after TLS and SASL); </li>
+    <li> <b>starttls</b>: from the features to the server's proceed; </li>
+    <li> <b>tls handshake</b>; </li>
+    <li> <b>sasl</b>: from the features to the server's success; </li>
+    <li> <b>bind</b>: from the features to the bound resource (or the
+         resumed stream management session). </li>
+   </ul>
+
+   <p> When the connection is set up, {@link #finish()} records each
+   phase and the total (microsec) in histograms labelled by server
+   and by whether the TLS session was resumed, e.g.
+   "talk.google.com resumed TLS sasl (us)".
+ */
+class ConnectionPhases {
+
+    /** Phases. */
+    public static final int TCP_CONNECT = 0;
+    public static final int STREAM_OPEN = 1;
+    public static final int STARTTLS = 2;
+    public static final int TLS_HANDSHAKE = 3;
+    public static final int SASL = 4;
+    public static final int BIND = 5;
+
+    /** Phase names, by phase. */
+    public static final String[] PHASE_NAMES = {
+        "tcp connect" , "stream open" , "starttls" , "tls handshake" , "sasl" , "bind" };
+
+    /** TLS labels. */
+    public static final String NO_TLS = "no TLS";
+    public static final String NEW_TLS = "new TLS";
+    public static final String RESUMED_TLS = "resumed TLS";
+
+    /** Constructor. */
+    public ConnectionPhases( String server ) {
+        this.server = server;
+    }
+
+    /** Starts timing (again). */
+    public void start() {
+        startNanos = System.nanoTime();
+        lastMark = startNanos;
+        tlsLabel = NO_TLS;
+        for ( int i = 0 ; i < elapsed.length ; ++i ) {
+            elapsed[i] = -1;
+        }
+    }
+
+    /** Marks the end of a phase: the time since the previous mark is added to it. */
+    public void phaseDone( int phase ) {
+        long now = System.nanoTime();
+        elapsed[ phase ] = Math.max( elapsed[ phase ] , 0 ) + ( now - lastMark );
+        lastMark = now;
+    }
+
+    /** Sets whether the TLS handshake resumed an earlier session. */
+    public void setTlsResumed( boolean resumed ) {
+        tlsLabel = resumed ? RESUMED_TLS : NEW_TLS;
+    }
+
+    /**
+       Gets the time spent in a phase so far (nanosec).
+       @return -1 if the phase wasn't reached
+     */
+    public long getElapsed( int phase ) {
+        return elapsed[ phase ];
+    }
+
+    /** Gets the total time so far (nanosec). */
+    public long getTotal() {
+        return lastMark - startNanos;
+    }
+
+    /** Records the phases reached, and the total, in the shared histograms. */
+    public void finish() {
+        for ( int phase = 0 ; phase < elapsed.length ; ++phase ) {
+            if ( elapsed[ phase ] >= 0 ) {
+                getHistogram( server , tlsLabel , PHASE_NAMES[ phase ] ).record( elapsed[ phase ] / 1000 );
+            }
+        }
+        getHistogram( server , tlsLabel , "total" ).record( getTotal() / 1000 );
+    }
+
+    /**
+       Gets the histogram of a phase's times (microsec).
+       @param tlsLabel  {@link #NO_TLS}, {@link #NEW_TLS} or {@link #RESUMED_TLS}
+       @param phase     a phase name, or "total"
+     */
+    public static Histogram getHistogram( String server , String tlsLabel , String phase ) {
+        String name = server + " " + tlsLabel + " " + phase + " (us)";
+        Histogram histogram = histograms.get( name );
+        if ( histogram == null ) {
+            Histogram created = new Histogram( name );
+            histogram = histograms.putIfAbsent( name , created );
+            if ( histogram == null ) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /** Gets all the phase histograms, by name. */
+    public static Map <String , Histogram> getHistograms() {
+        return histograms;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Server name. */
+    private final String server;
+    /** Time spent in each phase (nanosec), -1 if not reached. */
+    private final long[] elapsed = new long[ PHASE_NAMES.length ];
+    /** When timing started. */
+    private long startNanos;
+    /** When the previous phase ended. */
+    private long lastMark;
+    /** Whether the TLS session was resumed. */
+    private String tlsLabel = NO_TLS;
+
+    /** All the phase histograms, by name. */
+    private static final ConcurrentMap <String , Histogram> histograms =
+        new ConcurrentSkipListMap <String , Histogram>();
+}
@@ -0,0 +1,435 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+   The lines of the conversations, until they are saved to the log
+   server: a bounded buffer that any number of threads (the receive
+   thread, the console thread) add to, with the older lines spilled to
+   an append-only file when it fills up.
+
+   <p> The lines are held in a fixed ring (entries and chars), added to
+   without locking: a thread claims the next position with a CAS, then
+   publishes its line there. Adding never waits for the disk. When the
+   ring is half full, a spill thread is woken that appends the oldest
+   lines to the file, so the memory used stays within the budget
+   whatever the length of the conversation. Should the disk fall behind
+   by a whole ring, new lines are dropped (and counted) rather than
+   holding up chatting; a line in the log records where.
+
+   <p> {@link #getLines()} reads back the spilled lines, then the ones
+   in memory, in the order they were added. Once they are saved,
+   {@link #removeFirst(int)} removes them; lines added meanwhile stay.
+   Both are serialized with the spill thread, but not with the adding
+   threads.
+
+   <p> The spill file of an account goes to the directory given by
+   <code>-Djabber.conversation.dir</code> (by default
+   ~/.jabberchat/conversation). Lines spilled but not saved before the
+   program ended are saved with the next conversation.
+ */
+class ConversationLog {
+
+    /** Default number of lines kept in memory. */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /** Default number of chars kept in memory. */
+    public static final long DEFAULT_MAX_CHARS = 1024 * 1024;
+
+    /** Constructor, with the default budget and spill file of an account. */
+    public ConversationLog( String account ) {
+        this( getSpillFile( account ) , DEFAULT_CAPACITY , DEFAULT_MAX_CHARS );
+    }
+
+    /**
+       Constructor, starts the spill thread.
+       @param spillFile  where the older lines go (null to drop them when full)
+       @param capacity   number of lines kept in memory (rounded up to a power of 2)
+       @param maxChars   number of chars kept in memory
+     */
+    public ConversationLog( File spillFile , int capacity , long maxChars ) {
+        int size = 2;
+        while ( size < capacity ) {
+            size *= 2;
+        }
+        this.spillFile = spillFile;
+        this.maxChars = maxChars;
+        this.mask = size - 1;
+        this.lines = new AtomicReferenceArray <String>( size );
+        this.sequences = new AtomicLongArray( size );
+        for ( int i = 0 ; i < size ; ++i ) {
+            sequences.set( i , i );
+        }
+        // Lines left from last time
+        try {
+            this.spilledLines = readSpillFile().size();
+        }
+        catch ( IOException e ) {
+            EventLog.log( "Could not read " , spillFile , ": " , e );
+        }
+        this.spillThread = JabberThreads.newThread( new Runnable() {
+            public void run() {
+                spillLoop();
+            }
+        } , "ConversationLogSpill" , true );
+        spillThread.start();
+    }
+
+    /**
+       Adds a line (any thread, never blocks).
+       @return false if it was dropped: the buffer is full and the spill
+               thread hasn't caught up
+     */
+    public boolean add( String line ) {
+        if ( ! offer( line ) ) {
+            droppedCount.incrementAndGet();
+            LockSupport.unpark( spillThread );
+            return false;
+        }
+        if ( size() >= ( mask + 1 ) / 2 || chars.get() >= maxChars / 2 ) {
+            LockSupport.unpark( spillThread );
+        }
+        return true;
+    }
+
+    /**
+       Gets all the lines (the spilled ones, then the ones in memory) in
+       the order they were added.
+     */
+    public List <String> getLines()
+        throws IOException {
+
+        synchronized ( spillLock ) {
+            List <String> result = readSpillFile();
+            long end = tail.get();
+            for ( long position = head ; position < end ; ++position ) {
+                int index = (int) position & mask;
+                if ( sequences.get( index ) != position + 1 ) {
+                    // Still being added: the lines after it are left for next time
+                    break;
+                }
+                result.add( lines.get( index ) );
+            }
+            return result;
+        }
+    }
+
+    /**
+       Removes the first n lines (as returned by getLines()), e.g. once
+       they are saved. Some may have been spilled since: the order is
+       the same.
+     */
+    public void removeFirst( int n )
+        throws IOException {
+
+        synchronized ( spillLock ) {
+            if ( n >= spilledLines ) {
+                closeSpillOutput();
+                if ( spillFile != null && spillFile.exists() && ! spillFile.delete() ) {
+                    throw new IOException( "Can't delete " + spillFile );
+                }
+                for ( int i = spilledLines ; i < n && take() != null ; ++i ) {
+                    // Taken out
+                }
+                spilledLines = 0;
+            }
+            else {
+                // Rare: keep the rest of the file
+                List <String> spilled = readSpillFile();
+                closeSpillOutput();
+                if ( ! spillFile.delete() ) {
+                    throw new IOException( "Can't delete " + spillFile );
+                }
+                spilledLines = 0;
+                for ( String line : spilled.subList( n , spilled.size() ) ) {
+                    writeSpilled( line );
+                }
+                syncSpillOutput();
+            }
+        }
+    }
+
+    /** Gets the number of lines in memory. */
+    public int size() {
+        return (int) ( tail.get() - head );
+    }
+
+    /** Gets the number of lines written to the spill file so far. */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /** Gets the number of lines dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Stops the spill thread, and spills the lines in memory (so they are saved next time). */
+    public void close() {
+        closed = true;
+        LockSupport.unpark( spillThread );
+        try {
+            spillThread.join();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized ( spillLock ) {
+            spill( 0 );
+            closeSpillOutput();
+        }
+    }
+
+    /** Gets the spill file of an account (null if spilling is off). */
+    public static File getSpillFile( String account ) {
+        String dir = System.getProperty( "jabber.conversation.dir" ,
+                                         System.getProperty( "user.home" ) + File.separator + ".jabberchat" +
+                                         File.separator + "conversation" );
+        if ( dir.equals( "off" ) ) {
+            return null;
+        }
+        return new File( dir , account.replaceAll( "[^A-Za-z0-9@._-]" , "_" ) + ".spill" );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Spill thread: waits until the ring is half full, then spills it down to a quarter. */
+    private void spillLoop() {
+        while ( ! closed ) {
+            LockSupport.parkNanos( this , SPILL_CHECK_NANOS );
+            if ( size() < ( mask + 1 ) / 2 && chars.get() < maxChars / 2 && droppedCount.get() == reportedDrops ) {
+                continue;
+            }
+            synchronized ( spillLock ) {
+                spill( ( mask + 1 ) / 4 );
+            }
+        }
+    }
+
+    /** Spills the oldest lines until at most the given number (and a quarter of the chars) are left. */
+    private void spill( int keep ) {
+        if ( spillFile == null ) {
+            // Nowhere to spill to: make room by dropping the oldest lines
+            reportedDrops = droppedCount.get();
+            while ( size() > keep || chars.get() > maxChars / 4 ) {
+                if ( take() == null ) {
+                    break;
+                }
+                droppedCount.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            while ( size() > keep || ( keep > 0 && chars.get() > maxChars / 4 ) ) {
+                String line = take();
+                if ( line == null ) {
+                    break;
+                }
+                writeSpilled( line );
+                spilledCount.incrementAndGet();
+            }
+            // The lines are out of memory: they must survive a crash
+            syncSpillOutput();
+
+            // Record the dropped lines where they would have been, roughly
+            long drops = droppedCount.get();
+            if ( drops != reportedDrops && offer( "[" + ( drops - reportedDrops ) +
+                                                  " lines lost: the log buffer was full]" ) ) {
+                reportedDrops = drops;
+            }
+        }
+        catch ( IOException e ) {
+            EventLog.log( "Could not spill the conversation log to " , spillFile , ": " , e );
+        }
+    }
+
+    /** Adds a line if there is room. */
+    private boolean offer( String line ) {
+        if ( chars.addAndGet( line.length() ) > maxChars ) {
+            chars.addAndGet( - line.length() );
+            return false;
+        }
+
+        // Claim a position: free when its sequence is the position itself
+        long position = tail.get();
+        while ( true ) {
+            int index = (int) position & mask;
+            long sequence = sequences.get( index );
+            if ( sequence == position ) {
+                if ( tail.compareAndSet( position , position + 1 ) ) {
+                    break;
+                }
+                position = tail.get();
+            }
+            else if ( sequence < position ) {
+                // Not taken out yet: full
+                chars.addAndGet( - line.length() );
+                return false;
+            }
+            else {
+                position = tail.get();
+            }
+        }
+        int index = (int) position & mask;
+        lines.set( index , line );
+        // Publishes the line to the spill thread and getLines()
+        sequences.set( index , position + 1 );
+        return true;
+    }
+
+    /** Takes out the oldest line (null if none, or if it is still being added). Under the spill lock. */
+    private String take() {
+        long position = head;
+        int index = (int) position & mask;
+        if ( sequences.get( index ) != position + 1 ) {
+            return null;
+        }
+        String line = lines.get( index );
+        lines.set( index , null );
+        head = position + 1;
+        chars.addAndGet( - line.length() );
+        // Frees the position for the next round
+        sequences.set( index , position + mask + 1 );
+        return line;
+    }
+
+    /** Appends a line to the spill file: its length, then its UTF-8 bytes. */
+    private void writeSpilled( String line )
+        throws IOException {
+
+        if ( spillOutput == null ) {
+            File parent = spillFile.getAbsoluteFile().getParentFile();
+            if ( parent != null && ! parent.isDirectory() && ! parent.mkdirs() ) {
+                throw new IOException( "Can't create the directory " + parent );
+            }
+            spillFileOutput = new FileOutputStream( spillFile , true );
+            spillOutput = new DataOutputStream( new BufferedOutputStream( spillFileOutput ) );
+        }
+        byte[] bytes = line.getBytes( UTF_8 );
+        spillOutput.writeInt( bytes.length );
+        spillOutput.write( bytes );
+        ++spilledLines;
+    }
+
+    private void flushSpillOutput()
+        throws IOException {
+
+        if ( spillOutput != null ) {
+            spillOutput.flush();
+        }
+    }
+
+    /** Flushes the spill file, and forces it to the disk. */
+    private void syncSpillOutput()
+        throws IOException {
+
+        if ( spillOutput != null ) {
+            spillOutput.flush();
+            spillFileOutput.getFD().sync();
+        }
+    }
+
+    private void closeSpillOutput() {
+        if ( spillOutput != null ) {
+            try {
+                spillOutput.close();
+            }
+            catch ( IOException e ) {
+                EventLog.log( "Could not close " , spillFile , ": " , e );
+            }
+            spillOutput = null;
+            spillFileOutput = null;
+        }
+    }
+
+    /** Reads the spilled lines (a truncated or garbled last line, and what follows, is removed). */
+    private List <String> readSpillFile()
+        throws IOException {
+
+        List <String> result = new ArrayList <String>();
+        flushSpillOutput();
+        if ( spillFile == null || ! spillFile.isFile() ) {
+            return result;
+        }
+        long fileLength = spillFile.length();
+        long end = 0;  // of the last whole line
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( spillFile ) ) );
+        try {
+            while ( fileLength - end >= 4 ) {
+                int length = in.readInt();
+                if ( length < 0 || length > fileLength - end - 4 ) {
+                    // Written partly when the program ended (or not by writeSpilled)
+                    break;
+                }
+                byte[] bytes = new byte[ length ];
+                in.readFully( bytes );
+                end += 4 + length;
+                result.add( new String( bytes , UTF_8 ) );
+            }
+        }
+        finally {
+            in.close();
+        }
+        if ( end < fileLength ) {
+            // Otherwise the lines spilled next would be after it, and lost
+            EventLog.log( "Ignoring the last " + ( fileLength - end ) + " bytes of " , spillFile );
+            RandomAccessFile file = new RandomAccessFile( spillFile , "rw" );
+            try {
+                file.setLength( end );
+            }
+            finally {
+                file.close();
+            }
+        }
+        return result;
+    }
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    /** How often the spill thread looks, if not woken up. */
+    private static final long SPILL_CHECK_NANOS = 1000000000L;
+
+    private final File spillFile;
+    private final long maxChars;
+    /** Ring size - 1. */
+    private final int mask;
+    /** The lines, by position modulo the ring size. */
+    private final AtomicReferenceArray <String> lines;
+    /**
+       Per index, the position it is free for, or (that position + 1)
+       once its line is published.
+     */
+    private final AtomicLongArray sequences;
+    /** Next position to add at. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Oldest position in memory (changed under the spill lock). */
+    private volatile long head = 0;
+    /** Chars of the lines in memory. */
+    private final AtomicLong chars = new AtomicLong();
+
+    private final Thread spillThread;
+    private volatile boolean closed = false;
+    /** Guards the spill file and taking lines out. */
+    private final Object spillLock = new Object();
+    private DataOutputStream spillOutput;
+    /** The file under spillOutput (to sync it). */
+    private FileOutputStream spillFileOutput;
+    /** Number of lines in the spill file. */
+    private int spilledLines = 0;
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** Dropped lines already recorded in the spill file. */
+    private long reportedDrops = 0;
+}
@@ -0,0 +1,61 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Input stream that adds the number of bytes read to a counter
+   (e.g. the account's {@link AccountMetrics}).
+
+   <p> Only one atomic add per read call: the socket streams are read
+   in chunks by the buffered readers and parsers above this one.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    /** Constructor. */
+    public CountingInputStream( InputStream in , AtomicLong counter ) {
+        super( in );
+        this.counter = counter;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read()
+        throws IOException {
+
+        int b = in.read();
+        if ( b >= 0 ) {
+            counter.incrementAndGet();
+        }
+        return b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read( byte[] b , int off , int len )
+        throws IOException {
+
+        int n = in.read( b , off , len );
+        if ( n > 0 ) {
+            counter.addAndGet( n );
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip( long n )
+        throws IOException {
+
+        long skipped = in.skip( n );
+        if ( skipped > 0 ) {
+            counter.addAndGet( skipped );
+        }
+        return skipped;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Bytes read so far. */
+    private final AtomicLong counter;
+}
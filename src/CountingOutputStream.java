@@ -0,0 +1,43 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Output stream that adds the number of bytes written to a counter
+   (e.g. the account's {@link AccountMetrics}).
+
+   <p> Writes arrays straight through (FilterOutputStream would write
+   them byte by byte), with one atomic add per write call.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    /** Constructor. */
+    public CountingOutputStream( OutputStream out , AtomicLong counter ) {
+        super( out );
+        this.counter = counter;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write( int b )
+        throws IOException {
+
+        out.write( b );
+        counter.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write( byte[] b , int off , int len )
+        throws IOException {
+
+        out.write( b , off , len );
+        counter.addAndGet( len );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Bytes written so far. */
+    private final AtomicLong counter;
+}
@@ -0,0 +1,54 @@
+/**
+   Switchable log of connection events (handshake steps, stream ID,
+   resource, ...), replacing the DEBUG prints.
+
+   <p> On by default, printing to <code>System.out</code> as before.
+   Start with <code>-Djabber.log=off</code>, or call
+   {@link #setEnabled(boolean)} (e.g. in benchmarks and load tests), to
+   switch it off: each event then costs a single volatile read, since
+   the message is passed in parts and only put together when it is
+   printed.
+ */
+class EventLog {
+
+    /** Switches the log on or off. */
+    public static void setEnabled( boolean enabled ) {
+        EventLog.enabled = enabled;
+    }
+
+    /** Indicates whether events are logged (to avoid building a costly message for nothing). */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Logs an event. */
+    public static void log( String message ) {
+        if ( enabled ) {
+            System.out.println( message );
+        }
+    }
+
+    /** Logs an event made of two parts. */
+    public static void log( String message , Object arg ) {
+        if ( enabled ) {
+            System.out.println( message + arg );
+        }
+    }
+
+    /** Logs an event made of three parts. */
+    public static void log( String message , Object arg1 , Object arg2 ) {
+        if ( enabled ) {
+            System.out.println( message + arg1 + arg2 );
+        }
+    }
+
+    /** Logs an event made of four parts. */
+    public static void log( String message , Object arg1 , Object arg2 , Object arg3 ) {
+        if ( enabled ) {
+            System.out.println( message + arg1 + arg2 + arg3 );
+        }
+    }
+
+    /** Indicates whether events are logged. */
+    private static volatile boolean enabled = ! "off".equals( System.getProperty( "jabber.log" ) );
+}
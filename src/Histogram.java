@@ -0,0 +1,127 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+   Lock-free histogram of non-negative long values.
+
+   <p> Values are counted in power-of-two buckets (bucket <i>k</i>
+   holds values in [2^(k-1), 2^k) ), which is precise enough for
+   latencies and batch sizes while costing only a couple of atomic
+   increments per recorded value. Percentiles are reported as the
+   upper bound of the bucket they fall in.
+ */
+class Histogram {
+
+    /** Constructor. */
+    public Histogram( String name ) {
+        this.name = name;
+    }
+
+    /** Gets the name of this histogram. */
+    public String getName() {
+        return name;
+    }
+
+    /** Records one value (negative values are counted as 0). */
+    public void record( long value ) {
+
+        if ( value < 0 ) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros( value ) );
+        count.incrementAndGet();
+        sum.addAndGet( value );
+
+        // Update the maximum without locking
+        long currentMax = max.get();
+        while ( value > currentMax && ! max.compareAndSet( currentMax , value ) ) {
+            currentMax = max.get();
+        }
+    }
+
+    /** Gets the number of recorded values. */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Gets the sum of all recorded values. */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /** Gets the largest recorded value. */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** Gets the mean of all recorded values (0 if empty). */
+    public double getMean() {
+        long n = count.get();
+        return ( n == 0 ) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+       Gets the (approximate) value at the given percentile.
+       @param percentile in the range [0, 100]
+     */
+    public long getPercentile( double percentile ) {
+
+        long n = count.get();
+        if ( n == 0 ) {
+            return 0;
+        }
+
+        // Rank of the value we are looking for (1-based)
+        long rank = (long) Math.ceil( percentile / 100.0 * n );
+        if ( rank < 1 ) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for ( int i = 0 ; i < NUM_BUCKETS ; ++i ) {
+            seen += buckets.get( i );
+            if ( seen >= rank ) {
+                // Upper bound of the bucket, capped by the real maximum
+                long upper = ( i == 0 ) ? 0 : ( i >= 63 ? Long.MAX_VALUE : ( 1L << i ) - 1 );
+                return Math.min( upper , max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /** Clears all recorded values. */
+    public void reset() {
+        for ( int i = 0 ; i < NUM_BUCKETS ; ++i ) {
+            buckets.set( i , 0 );
+        }
+        count.set( 0 );
+        sum.set( 0 );
+        max.set( 0 );
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount() +
+               " mean=" + String.format( "%.1f" , getMean() ) +
+               " p50=" + getPercentile( 50 ) +
+               " p99=" + getPercentile( 99 ) +
+               " p999=" + getPercentile( 99.9 ) +
+               " max=" + getMax();
+    }
+
+    /** Number of buckets (one per bit of a long, plus one for 0). */
+    private static final int NUM_BUCKETS = 65;
+
+    /** Name of the histogram (used when printing). */
+    private final String name;
+    /** Bucket counters. */
+    private final AtomicLongArray buckets = new AtomicLongArray( NUM_BUCKETS );
+    /** Number of recorded values. */
+    private final AtomicLong count = new AtomicLong();
+    /** Sum of recorded values. */
+    private final AtomicLong sum = new AtomicLong();
+    /** Largest recorded value. */
+    private final AtomicLong max = new AtomicLong();
+}
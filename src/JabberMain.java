@@ -14,6 +14,7 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.util.*;
 
@@ -36,8 +37,26 @@ public class JabberMain {
     private static Thread reconnectionThread = null;
     private static Thread senderReceiverThread = null;
     private static XmppSenderReceiver senderReceiver;
-	private static Timer keepAliveTimer;
-	private static ArrayList<String> conversationLog = new ArrayList<String>();
+	private static Thread keepAliveThread;
+	// Lines of the conversations until they are saved to the log server (bounded, spilled to disk)
+	private static ConversationLog conversationLog;
+	// Messages typed while disconnected, sent once re-connected (bounded, on disk)
+	private static OfflineMessageQueue offlineQueue;
+	// Whether messages are sent at once: from a connection (and the offline messages sent) until a disconnection
+	private static boolean connected = false;
+	// The last connection that sent at once: the messages it fails to write go back to the offline queue
+	private static XmppSenderReceiver liveSenderReceiver;
+	// Guards connected, and sending or queueing a message
+	private static final Object sendLock = new Object();
+	// Stream management state, kept across re-connections (push parser only)
+	private static StreamManagement streamManagement = new StreamManagement(1024);
+	// Prints the received chat messages and adds them to the conversation log
+	private static final XmppSenderReceiver.MessageListener messageListener = new XmppSenderReceiver.MessageListener() {
+		@Override
+		public void receivedMessage(String message, String sender) {
+			JabberMain.receivedMessage(message, sender);
+		}
+	};
 
     /** Main method that starts off everything. */
     public static void main( String[] args ) {
@@ -49,6 +68,12 @@ public class JabberMain {
             //  extend your client to handle multiple Jabber
             //  servers (multiple Jabber IDs) simultaneously.
 
+            // With -Djabber.mode=load, run the headless load generator instead
+            if ( "load".equals( System.getProperty( "jabber.mode" ) ) ) {
+            	LoadGenerator.run( args );
+            	return;
+            }
+
             // Check if number of args are ok (multiple of 4)
             if ( args.length < 4 || args.length % 4 != 0 ) {
                 System.err.println( "Usage: java JabberMain " + 
@@ -61,12 +86,22 @@ public class JabberMain {
             // Get the list of Jabber IDs
             List <JabberID> jidList = getJidList( args );
 
+            // With -Djabber.engine=nio, all the Jabber IDs are connected
+            //  over a shared event loop instead (no interactive chat)
+            if ( "nio".equals( System.getProperty( "jabber.engine" ) ) ) {
+            	runEventLoop( jidList );
+            	return;
+            }
+
             // In this assignment, handling one server is sufficient
             // Create an XMPP connection
             jid = jidList.get( 0 );
+            conversationLog = new ConversationLog( jid.getJabberID() );
+            offlineQueue = new OfflineMessageQueue( jid.getJabberID() );
+            AccountMetrics.forAccount( jid ).setOfflineQueue( offlineQueue );
             
             try {
-            	connection = new XmppConnection( jid );
+            	connection = new XmppConnection( jid, streamManagement );
             	connection.connect();
             	
             	// Write code here for the assignment's three tasks...
@@ -76,10 +111,17 @@ public class JabberMain {
                 
                 // Start the XmppReceiver on another thread:
                 senderReceiver = new XmppSenderReceiver(connection);
-                senderReceiverThread = new Thread(senderReceiver);
+                senderReceiver.setMessageListener(messageListener);
+                senderReceiver.getOutboundQueue().setFailureListener(writeFailureListener(senderReceiver));
+                senderReceiverThread = JabberThreads.newThread(receiveLoop(senderReceiver), "XmppReceiver");
                 senderReceiverThread.start();
                 startKeepAliveTimer();
+                // Bring the local roster up to date (only the changes, if the server supports versions),
+                // before the presence: the contacts' presences that it brings are only kept for known contacts
+                senderReceiver.sendRoasterRequest();
                 senderReceiver.sendPresence();
+                // Messages left from last time
+                flushOfflineMessages();
                 
             } catch (Exception e){
             	startReconnecting();
@@ -110,6 +152,12 @@ public class JabberMain {
     						String receiverEmail = getWordAtIndex(1, currentLine);
     						beginChattingSession(receiverEmail);
     						break;
+    					case "@history":
+    						displayHistory(currentLine);
+    						break;
+    					case "@search":
+    						searchHistory(currentLine.trim().substring("@search".length()));
+    						break;
     					case "@end":
     						// The while loop will terminate
     						break;
@@ -126,6 +174,18 @@ public class JabberMain {
                 e.printStackTrace();
     		}
             
+            // Give the log server a moment to save the last conversations; what it
+            //  doesn't, and the lines not saved yet, are spilled and saved next time
+            for (LogProtocol.Record record : LogShipper.getDefault().close(5000)) {
+            	for (String line : record.getLines()) {
+            		conversationLog.add(line);
+            	}
+            }
+            conversationLog.close();
+            if (offlineQueue.getDepth() > 0) {
+            	System.out.println(offlineQueue.getDepth() + " message(s) typed while disconnected will be sent next time");
+            }
+            offlineQueue.close();
             System.out.println("Exited. Hope you had fun!");
             
         }
@@ -142,7 +202,16 @@ public class JabberMain {
             	// Must stop this first, because if we stop the thread/connections first, 
             	// the timer will detect this and issue order to re-connect
                 stopKeepAliveTimer();
-                connection.close();
+                synchronized ( sendLock ) {
+                	// Nor the receiver thread, when it stops
+                	connected = false;
+                }
+                if ( senderReceiver != null ) {
+                	senderReceiver.close();
+                }
+                if ( connection != null ) {
+                	connection.close();
+                }
                 stopreconnectionThread();
                 stopreSenderReceiverThread();
             }
@@ -152,26 +221,166 @@ public class JabberMain {
         }
     }
     
+    /**
+     * Connects all the Jabber IDs over an XmppEventLoop, which uses a few threads
+     * for all of them, instead of one XmppConnection and thread per account.
+     * Incoming messages are printed with the account they were sent to.
+     * Runs until '@end' is typed.
+     */
+    private static void runEventLoop(List<JabberID> jidList) throws IOException, InterruptedException {
+    	int numThreads = Integer.getInteger("jabber.engine.threads", Runtime.getRuntime().availableProcessors());
+    	XmppEventLoop eventLoop = new XmppEventLoop(numThreads);
+    	eventLoop.start();
+    	
+    	EventLoopListener listener = new EventLoopListener();
+    	for (JabberID id : jidList){
+    		eventLoop.connect(id, listener);
+    	}
+    	System.out.println("Connecting " + jidList.size() + " accounts on " + numThreads + " threads. Type '@end' to exit.");
+    	
+    	in = new BufferedReader(new InputStreamReader(System.in));
+    	String currentLine = in.readLine();
+    	while (currentLine != null && !currentLine.trim().equals("@end")){
+    		System.out.println(eventLoop.getReadySessionCount() + " of " + jidList.size() + " accounts connected");
+    		currentLine = in.readLine();
+    	}
+    	
+    	eventLoop.close();
+    	System.out.println("Exited. Hope you had fun!");
+    }
+    
+    /** Handles the events of the accounts connected by runEventLoop() (called on the event loop threads) */
+    private static class EventLoopListener implements XmppNioSession.Listener {
+    	
+    	@Override
+    	public void connected(XmppNioSession session){
+    		JabberID id = session.getJabberID();
+    		System.out.println("Welcome " + id.getJabberID() + "/" + id.getResource() + " ! ");
+    		session.send("<presence/>");
+    	}
+    	
+    	@Override
+    	public void stanzaReceived(XmppNioSession session, XmlElement stanza){
+    		XmlElement body = stanza.getChild("body");
+    		if (!stanza.getName().equals("message") || body == null || "error".equals(stanza.getAttribute("type"))){
+    			return;
+    		}
+    		String sender = stanza.getAttribute("from");
+    		if (sender != null && sender.indexOf("/") != -1){
+    			sender = sender.substring(0, sender.indexOf("/"));
+    		}
+    		System.out.println("[" + session.getJabberID().getJabberID() + "] " + sender + " says: " + body.getText());
+    	}
+    	
+    	@Override
+    	public void disconnected(XmppNioSession session, IOException cause){
+    		// Same exponential back-off as startReconnecting()
+    		int backoffTime = calculateExponentialBackoff(session.getFailedAttempts(), 10);
+    		System.out.println("[" + session.getJabberID().getJabberID() + "] Disconnected (" + 
+    				(cause == null ? "closed" : cause.getMessage()) + "), re-connecting in " + backoffTime / 1000 + "s");
+    		session.reconnect(backoffTime);
+    	}
+    }
+    
     /** Show help */
     private static void displayHelpInformation(){
     	System.out.println("@roster - Gets the roster list");
     	System.out.println("@chat <friend_jabber_id> - This ends any ongoing chat session, and starts a new chat session with a friend with specified Jabber ID.");
+    	System.out.println("@history <friend_jabber_id> [lines] - Shows the last lines (20 by default) of the conversations with a friend, saved on the log server.");
+    	System.out.println("@search <words> - Shows the lines with these words of the last conversations that have them all, saved on the log server.");
     	System.out.println("@end - End any ongoing chat");
     	System.out.println("@help - Display this help menu");
     }
     
-    /** Retrieve and display contact list */
+    /** Display contact list, from the local roster (requested when connecting) */
     private static void displayContactList(){
+    	RosterStore roster = RosterStore.forAccount(jid);
     	try {
-			senderReceiver.sendRoasterRequest();
+    		if (!roster.waitUntilLoaded(5000)) {
+    			System.out.println("The contact list hasn't arrived yet, asking the server again");
+    			senderReceiver.sendRoasterRequest();
+    			return;
+    		}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
 		} catch (Exception e) {
 			System.out.println("Error occured when sending request for contact list");
 			e.printStackTrace();
 			handleDisconnection();
+			return;
 		}
+    	StringBuilder list = new StringBuilder("Contact list (" + roster.getAvailableCount() + " online):");
+    	for (RosterStore.Item item : roster.getItems()) {
+    		list.append(System.lineSeparator()).append(item.getJid());
+    		if (roster.isAvailable(item.getJid())) {
+    			list.append(" (online)");
+    		}
+    	}
+    	System.out.println(list);
     }
 
     
+    /** Display the last lines of the conversations with a contact, from the log server */
+    private static void displayHistory(String commandLine){
+    	String[] words = commandLine.trim().split("\\s+");
+    	if (words.length < 2) {
+    		System.out.println("Usage: @history <friend_jabber_id> [lines]");
+    		return;
+    	}
+    	String contact = words[1];
+    	int maxLines = 20;
+    	try {
+    		if (words.length > 2) {
+    			maxLines = Integer.parseInt(words[2]);
+    		}
+    	} catch (NumberFormatException e) {
+    		System.out.println("Invalid number of lines: " + words[2]);
+    		return;
+    	}
+    	try {
+    		List<LogProtocol.Record> records = LogQueryClient.getDefault().query(
+    				new LogProtocol.Query(jid.getJabberID(), contact, 0, Long.MAX_VALUE, maxLines));
+    		if (records.isEmpty()) {
+    			System.out.println("No saved conversation with " + contact);
+    		}
+    		for (LogProtocol.Record record : records) {
+    			System.out.println("--- " + new Date(record.getTime()));
+    			for (String line : record.getLines()) {
+    				System.out.println(line);
+    			}
+    		}
+    	} catch (IOException e) {
+    		System.out.println("Could not get the history from the log server: " + e.getMessage());
+    	}
+    }
+    
+    /** Display the lines with the words of the last conversations that have them all, from the log server */
+    private static void searchHistory(String words){
+    	List<String> terms = LogSearchIndex.getTerms(words);
+    	if (terms.isEmpty()) {
+    		System.out.println("Usage: @search <words>");
+    		return;
+    	}
+    	try {
+    		List<LogProtocol.Record> records = LogQueryClient.getDefault().search(
+    				new LogProtocol.Search(jid.getJabberID(), "", words, 10));
+    		if (records.isEmpty()) {
+    			System.out.println("No saved conversation has all these words");
+    		}
+    		for (LogProtocol.Record record : records) {
+    			System.out.println("--- " + record.getContact() + ", " + new Date(record.getTime()));
+    			for (String line : record.getLines()) {
+    				if (!Collections.disjoint(terms, LogSearchIndex.getTerms(line))) {
+    					System.out.println(line);
+    				}
+    			}
+    		}
+    	} catch (IOException e) {
+    		System.out.println("Could not search the log server: " + e.getMessage());
+    	}
+    }
+    
     /** Start a chat session */
     private static void beginChattingSession (String receiver)throws IOException{
     	System.out.println("Start chatting with " + receiver);
@@ -180,44 +389,120 @@ public class JabberMain {
 		String command = getWordAtIndex(0, currentLine);
 		while (!command.equals("@end")){
 			if (command.equals("@chat")){
-				saveConversationHistory();
+				saveConversationHistory(receiver);
 				System.out.println("Ended chatting with " + receiver);
 				String receiverEmail = getWordAtIndex(1, currentLine);
 				beginChattingSession(receiverEmail);
 				return;
 			}
 			
-			try{
-				
-				senderReceiver.sendMessageToClient(currentLine, receiver);
-				conversationLog.add(jid.getUsername() + " says: " + currentLine);
-				
-			} catch (IOException e){
-				System.out.println("Error occured when sending message");
-				handleDisconnection();
-			}
+			sendMessage(currentLine, receiver);
+			conversationLog.add(jid.getUsername() + " says: " + currentLine);
 			
 			currentLine = in.readLine();
 			command = getWordAtIndex(0, currentLine);
 		}
 		
-		saveConversationHistory();
+		saveConversationHistory(receiver);
 		
 		System.out.println("Ended chatting with " + receiver);
     }
     
-    private static void saveConversationHistory(){
+    /**
+     * Sends a message, or queues it to be sent once re-connected
+     * (after the ones already queued, so they arrive in order).
+     */
+    private static void sendMessage(String message, String receiver){
+    	synchronized (sendLock) {
+    		if (connected) {
+    			try {
+    				senderReceiver.sendMessageToClient(message, receiver);
+    				return;
+    			} catch (OutboundStanzaQueue.QueueFullException e){
+    				// Still connected, only too much to write: the ones already queued go out
+    				System.out.println("Too many messages waiting to be sent, this one was not sent");
+    				return;
+    			} catch (IOException e){
+    				System.out.println("Error occured when sending message");
+    				// The ones the connection hadn't written yet go before this one
+    				requeueUnsentMessages(senderReceiver);
+    				handleDisconnection();
+    			}
+    		}
+    		try {
+    			if (!offlineQueue.add(new OfflineMessageQueue.Message(receiver, message))) {
+    				System.out.println("Too many messages waiting for the connection, this one was not sent");
+    			} else if (offlineQueue.getDepth() == 1) {
+    				System.out.println("Not connected: messages will be sent once re-connected");
+    			}
+    		} catch (IOException e) {
+    			System.out.println("Could not keep the message until re-connected: " + e.getMessage());
+    		}
+    	}
+    }
+    
+    /**
+     * Sends the messages typed while disconnected, in order and a batch at a time,
+     * then lets the console send at once again. Called once connected.
+     */
+    private static void flushOfflineMessages() throws IOException {
+    	// Most of them without holding up the console, the ones typed meanwhile under the lock
+    	drainOfflineQueue();
+    	synchronized (sendLock) {
+    		drainOfflineQueue();
+    		connected = true;
+    		liveSenderReceiver = senderReceiver;
+    	}
+    }
+    
+    /** Sends the queued messages, waiting for each batch to be written before the next */
+    private static void drainOfflineQueue() throws IOException {
+    	if (offlineQueue.getDepth() == 0) {
+    		return;
+    	}
+    	final XmppSenderReceiver sender = senderReceiver;
+    	int sent = offlineQueue.drain(new OfflineMessageQueue.Sender() {
+    		@Override
+    		public void send(OfflineMessageQueue.Message message) throws IOException {
+    			sender.sendMessageToClient(message.getBody(), message.getRecipient());
+    		}
+    		
+    		@Override
+    		public void endBatch() throws IOException {
+    			try {
+    				if (!sender.getOutboundQueue().awaitWritten(10000)) {
+    					throw new IOException("Timed out sending the messages typed while disconnected");
+    				}
+    			} catch (InterruptedException e) {
+    				throw new InterruptedIOException("Interrupted sending the messages typed while disconnected");
+    			}
+    		}
+    	}, OutboundStanzaQueue.MAX_BATCH_SIZE);
+    	System.out.println(String.format("Sent %d message(s) typed while disconnected (%.0f/s)", sent, offlineQueue.getDrainRate()));
+    }
+    
+    private static void saveConversationHistory(String receiver){
     	try {
-			senderReceiver.sendLogToServer(conversationLog);
-			// After saving the log, empty the log,
-			conversationLog.clear();
-		} catch (Exception e) {
+    		List<String> lines = conversationLog.getLines();
+    		if (lines.isEmpty()) {
+    			return;
+    		}
+    		// Saved in the background: once handed over, remove the lines (the ones added meanwhile stay)
+    		// Not connected yet (typed offline): straight to the log shipper, as sendLogToServer() does
+    		boolean shipped = (senderReceiver != null) ? senderReceiver.sendLogToServer(receiver, lines)
+    				: LogShipper.getDefault().ship(new LogProtocol.Record(jid.getJabberID(), receiver, System.currentTimeMillis(), lines));
+    		if (shipped) {
+    			conversationLog.removeFirst(lines.size());
+    		} else {
+    			System.out.println("The log server is behind, the conversation will be saved later");
+    		}
+		} catch (IOException e) {
 			System.out.println("Error when saving log to server");
 			e.printStackTrace();
 		}
     }
     
-    /** Receives a message. Called by the parallel thread in XmppSenderReceiver.java */
+    /** Receives a message. Called on the receiver thread, through the message listener */
     public static void receivedMessage(String message, String sender){
 		System.out.println(sender + " says: " + message);	
 		conversationLog.add(sender + " says: " + message);
@@ -229,12 +514,14 @@ public class JabberMain {
      */
     private static void startReconnecting() {
     	
-    	reconnectionThread = new Thread() {
+    	reconnectionThread = JabberThreads.newThread(new Runnable() {
 			@Override
 			public void run() {
 				final int maxNumOfAttempts = 10;
 				int numOfAttempts = 0;
 		
+				long disconnectedAt = System.nanoTime();
+		
 				try {
 					while(reconnectionThread != null) {						
 						// Calculate the exponential back-off time:
@@ -246,22 +533,39 @@ public class JabberMain {
 						
 						Thread.sleep(backoffTime);
 						
+						XmppConnection connection = null;
 						try {
 
-							XmppConnection connection = new XmppConnection(jid);
+							connection = new XmppConnection(jid, streamManagement);
 							connection.connect();
 							
 							senderReceiver = new XmppSenderReceiver(connection);
-			                senderReceiverThread = new Thread(senderReceiver);
+							senderReceiver.setMessageListener(messageListener);
+							senderReceiver.getOutboundQueue().setFailureListener(writeFailureListener(senderReceiver));
+			                senderReceiverThread = JabberThreads.newThread(receiveLoop(senderReceiver), "XmppReceiver");
 			                senderReceiverThread.start();
 			                startKeepAliveTimer();
-			                senderReceiver.sendPresence();
+			                if (connection.isResumed()) {
+			                	// Same session: the server still has our presence
+			                	System.out.println("Session resumed");
+			                } else {
+			                	senderReceiver.sendRoasterRequest();
+			                	senderReceiver.sendPresence();
+			                }
+			                flushOfflineMessages();
 							
-							System.out.println("Re-Connection successful!");
+							long recoveryMillis = (System.nanoTime() - disconnectedAt) / 1000000L;
+							System.out.println("Re-Connection successful! (" + recoveryMillis + " ms)");
 							break;
 							
 						} catch (IOException e) {
-							System.out.println("Re-Connection failed!");							
+							System.out.println("Re-Connection failed!");
+							abandonConnection(connection);
+						} catch (Exception e) {
+							// E.g. from the roster request: try again, as after a network error
+							System.err.println("Error detected when reconnecting");
+							e.printStackTrace();
+							abandonConnection(connection);
 						}
 						numOfAttempts++;
 					}
@@ -271,38 +575,135 @@ public class JabberMain {
 					e.printStackTrace();
 				}
 			}
-		};
+		}, "Reconnection");
 		
 		reconnectionThread.start();
 	}
     
-    /** Start the timer that periodically checks the availability of the network */
+    /**
+     * Stops what a failed re-connection attempt started (e.g. lost again while
+     * sending the offline messages), and closes its connection.
+     */
+    private static void abandonConnection(XmppConnection connection) {
+    	stopKeepAliveTimer();
+    	if (connection == null) {
+    		return;
+    	}
+    	if (senderReceiver != null && senderReceiver.getConnection() == connection) {
+    		senderReceiver.close();
+    	}
+    	try {
+    		connection.close();
+    	} catch (IOException e) {
+    		// Ignore
+    	}
+    }
+    
+    /**
+     * Told when a connection fails to write: the messages it hadn't written go
+     * back to the offline queue, and the re-connection starts at once.
+     */
+    private static OutboundStanzaQueue.FailureListener writeFailureListener(final XmppSenderReceiver sender) {
+    	return new OutboundStanzaQueue.FailureListener() {
+    		@Override
+    		public void writeFailed(IOException e) {
+    			synchronized (sendLock) {
+    				if (sender == liveSenderReceiver) {
+    					System.out.println("Error occured when sending message: " + e.getMessage());
+    				}
+    				requeueUnsentMessages(sender);
+    			}
+    			if (sender == senderReceiver) {
+    				handleDisconnection();
+    			}
+    		}
+    	};
+    }
+    
+    /**
+     * Puts the messages a failed connection hadn't written back in the offline queue
+     * (unless it was sending the offline queue, which keeps them). Called with sendLock
+     * held, by whichever comes first: the failure listener, or a message typed meanwhile.
+     */
+    private static void requeueUnsentMessages(XmppSenderReceiver sender) {
+    	if (sender != liveSenderReceiver) {
+    		return;
+    	}
+    	List<OfflineMessageQueue.Message> unsent = sender.getOutboundQueue().takeUnsentMessages();
+    	int lost = 0;
+    	for (OfflineMessageQueue.Message message : unsent) {
+    		try {
+    			if (!offlineQueue.add(message)) {
+    				++lost;
+    			}
+    		} catch (IOException e) {
+    			++lost;
+    		}
+    	}
+    	if (unsent.size() > lost) {
+    		System.out.println((unsent.size() - lost) + " message(s) not sent will be sent once re-connected");
+    	}
+    	if (lost > 0) {
+    		System.out.println(lost + " message(s) could not be kept, they were not sent");
+    	}
+    }
+    
+    /**
+     * Runs the receive loop of a connection. When it ends, the server has closed
+     * the connection: the re-connection starts at once, instead of once a message
+     * written to the dead connection fails (unless it was closed on purpose).
+     */
+    private static Runnable receiveLoop(final XmppSenderReceiver receiver) {
+    	return new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				receiver.run();
+    			} finally {
+    				if (receiver == senderReceiver) {
+    					handleDisconnection();
+    				}
+    			}
+    		}
+    	};
+    }
+    
+    /** Start the thread that periodically checks the availability of the network */
     private static void startKeepAliveTimer() {
-    	if (keepAliveTimer != null){
+    	if (keepAliveThread != null){
     		return;
     	}
     	
-		keepAliveTimer = new Timer();
-		keepAliveTimer.schedule(new TimerTask() {
+		keepAliveThread = JabberThreads.newThread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					System.out.println("Sending keep-alive packet");
-					senderReceiver.sendKeepAlivePacket();
+					while (true){
+						Thread.sleep(30000); // 5 min: 5 * 60 * 100 = 30000 by default
+						System.out.println("Sending keep-alive packet");
+						try {
+							senderReceiver.sendKeepAlivePacket();
+						} catch (OutboundStanzaQueue.QueueFullException e) {
+							// Busy writing: the connection is alive
+						}
+					}
+				} catch (InterruptedException e) {
+					// Stopped by stopKeepAliveTimer()
 				} catch (IOException e) {
 					handleDisconnection();
 				}
 			}
-		}, 30000, 30000); // (task, delay, period), 5 min: 5 * 60 * 100 = 30000 by default
+		}, "KeepAlive");
+		keepAliveThread.start();
 	}
     
-    /** Stops the keepAliveTimer.
+    /** Stops the keep-alive thread.
      *	Called when disconnection happens, or the program terminates.
      */
     private static void stopKeepAliveTimer() {
-		if(keepAliveTimer != null) {
-			keepAliveTimer.cancel();
-			keepAliveTimer = null;
+		if(keepAliveThread != null) {
+			keepAliveThread.interrupt();
+			keepAliveThread = null;
 		}
 	}
     
@@ -345,7 +746,18 @@ public class JabberMain {
      * Called on disconnection.
      */
     private static void handleDisconnection(){
+    	synchronized (sendLock) {
+    		if (!connected) {
+    			// Already re-connecting: the messages go to the offline queue meanwhile
+    			return;
+    		}
+    		connected = false;
+    	}
     	stopKeepAliveTimer();
+    	if (senderReceiver != null){
+    		// Stop the writer thread of the dead connection
+    		senderReceiver.close();
+    	}
     	System.out.println("Disconnected!");
     	startReconnecting();
     }
@@ -0,0 +1,84 @@
+import java.lang.reflect.Method;
+
+/**
+   Creates the client's long-running threads.
+
+   <p> By default these are ordinary (platform) threads. Started with
+   <code>-Djabber.threads=virtual</code> on a Java runtime that has
+   virtual threads (Java 21 and later), they are virtual threads
+   instead, so blocking reads on thousands of sockets don't need
+   thousands of OS threads. On older runtimes the setting is ignored
+   with a warning.
+
+   <p> Virtual threads are looked up by reflection, since the code is
+   compiled for Java 7.
+ */
+class JabberThreads {
+
+    /**
+       Creates an unstarted thread running the given task. A platform
+       thread is a daemon thread if the calling thread is one.
+     */
+    public static Thread newThread( Runnable task , String name ) {
+
+        if ( ofVirtualMethod != null ) {
+            try {
+                // A builder per thread: builders aren't thread-safe
+                Object builder = nameMethod.invoke( ofVirtualMethod.invoke( null ) , name );
+                return (Thread) unstartedMethod.invoke( builder , task );
+            }
+            catch ( Exception e ) {
+                throw new IllegalStateException( "Unable to create a virtual thread" , e );
+            }
+        }
+        return new Thread( task , name );
+    }
+
+    /**
+       Creates an unstarted thread running the given task, that holds
+       up the JVM's exit or not (virtual threads are always daemon
+       threads).
+     */
+    public static Thread newThread( Runnable task , String name , boolean daemon ) {
+
+        Thread thread = newThread( task , name );
+        if ( ! isVirtual() ) {
+            thread.setDaemon( daemon );
+        }
+        return thread;
+    }
+
+    /** Indicates whether threads are created as virtual threads. */
+    public static boolean isVirtual() {
+        return ofVirtualMethod != null;
+    }
+
+    /** Finds the virtual thread builder, if asked for and available. */
+    private static void init() {
+
+        if ( ! "virtual".equals( System.getProperty( "jabber.threads" ) ) ) {
+            return;
+        }
+        try {
+            Method ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            Class <?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            nameMethod = builderClass.getMethod( "name" , String.class );
+            unstartedMethod = builderClass.getMethod( "unstarted" , Runnable.class );
+            ofVirtualMethod = ofVirtual;
+        }
+        catch ( Exception e ) {
+            System.err.println( "Virtual threads need Java 21 or later, using platform threads" );
+        }
+    }
+
+    static {
+        init();
+    }
+
+    /** Thread.ofVirtual() (null when using platform threads). */
+    private static Method ofVirtualMethod;
+    /** Thread.Builder.name(String). */
+    private static Method nameMethod;
+    /** Thread.Builder.unstarted(Runnable). */
+    private static Method unstartedMethod;
+}
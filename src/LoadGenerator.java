@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Headless load generator: connects N synthetic accounts and has them
+   chat with each other at a given rate, to size hosts and catch
+   throughput regressions.
+
+   <p> The accounts are prefix0@domain, prefix1@domain, ... with the
+   same password (e.g. the bench's StubXmppServer accepts them all).
+   Each one uses an {@link XmppConnection} and an
+   {@link XmppSenderReceiver}, like the interactive client, and
+   account <i>i</i> sends to account <i>i+1</i>. Messages carry their
+   send time, so the receiving account measures the end-to-end latency.
+
+   <p> Reports, every few seconds and at the end:
+   <ul>
+    <li> the connect rate (accounts/s) and connect times; </li>
+    <li> the messages sent and received per second; </li>
+    <li> the end-to-end latency percentiles (p50, p99, p99.9); </li>
+    <li> errors: failed connections, failed sends (queue full or
+         connection lost) and lost connections. </li>
+   </ul>
+
+   <p> Started by {@link JabberMain} with <code>-Djabber.mode=load</code>
+   (the connection setup messages are switched off):
+   <br> $ java -Djabber.mode=load -cp bin:commons-codec-1.8.jar JabberMain \
+                server port domain prefix password count [msg_per_sec] [seconds] [connect_threads]
+ */
+class LoadGenerator {
+
+    /** Runs the load generator with the command line arguments. */
+    public static void run( String[] args )
+        throws Exception {
+
+        if ( args.length < 6 ) {
+            System.err.println( "Usage: java -Djabber.mode=load JabberMain " +
+                                "server port domain prefix password count " +
+                                "[msg_per_sec] [seconds] [connect_threads]" );
+            return;
+        }
+        int count = Integer.parseInt( args[5] );
+        double rate = ( args.length > 6 ) ? Double.parseDouble( args[6] ) : count;
+        int seconds = ( args.length > 7 ) ? Integer.parseInt( args[7] ) : 60;
+        int connectThreads = ( args.length > 8 ) ? Integer.parseInt( args[8] ) : 16;
+
+        EventLog.setEnabled( false );
+        LoadGenerator generator = new LoadGenerator( args[0] , Integer.parseInt( args[1] ) , args[2] ,
+                                                     args[3] , args[4] , count );
+        generator.connectAll( connectThreads );
+        generator.sendMessages( rate , seconds );
+        generator.printSummary();
+        generator.close();
+    }
+
+    /** Constructor (doesn't connect). */
+    public LoadGenerator( String server , int port , String domain , String prefix , String password ,
+                          int count ) {
+
+        for ( int i = 0 ; i < count ; ++i ) {
+            accounts.add( new Account( new JabberID( prefix + i + "@" + domain , password , server , port ) ,
+                                       prefix + ( ( i + 1 ) % count ) + "@" + domain ) );
+        }
+    }
+
+    /** Connects all the accounts, a few at a time. */
+    public void connectAll( int numThreads )
+        throws InterruptedException {
+
+        ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        long start = System.nanoTime();
+        for ( final Account account : accounts ) {
+            executor.execute( new Runnable() {
+                public void run() {
+                    account.connect();
+                }
+            } );
+        }
+        executor.shutdown();
+        executor.awaitTermination( Long.MAX_VALUE , TimeUnit.MILLISECONDS );
+        connectSeconds = ( System.nanoTime() - start ) / 1e9;
+
+        System.out.println( String.format( "Connected %d of %d accounts in %.1f s (%.1f accounts/s), %d failed" ,
+                                           connectTime.getCount() , accounts.size() , connectSeconds ,
+                                           connectTime.getCount() / connectSeconds , connectErrors.get() ) );
+    }
+
+    /**
+       Sends messages at the given rate (over all the accounts, round-robin)
+       for the given time, then waits a little for the last ones to arrive.
+     */
+    public void sendMessages( double rate , int seconds )
+        throws InterruptedException {
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + REPORT_INTERVAL;
+        long sent = 0;
+        int next = 0;
+        Interval interval = new Interval( start );
+
+        while ( true ) {
+            long now = System.nanoTime();
+            if ( now >= end ) {
+                break;
+            }
+
+            // Send the messages due by now
+            long due = (long) ( ( now - start ) / 1e9 * rate );
+            while ( sent < due ) {
+                accounts.get( next ).send();
+                next = ( next + 1 == accounts.size() ) ? 0 : next + 1;
+                ++sent;
+            }
+
+            if ( now >= nextReport ) {
+                interval = interval.report( now );
+                nextReport += REPORT_INTERVAL;
+            }
+            Thread.sleep( 1 );
+        }
+        sendSeconds = ( System.nanoTime() - start ) / 1e9;
+
+        // Let the messages in flight arrive
+        long deadline = System.nanoTime() + DRAIN_TIME;
+        while ( received.get() < sentCount.get() && System.nanoTime() < deadline ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    /** Prints the totals. */
+    public void printSummary() {
+
+        long lost = 0;
+        for ( Account account : accounts ) {
+            if ( account.lost ) {
+                ++lost;
+            }
+        }
+        System.out.println();
+        System.out.println( String.format( "Connect: %d accounts, %.1f accounts/s, p50 %d us, p99 %d us, max %d us" ,
+                                           connectTime.getCount() , connectTime.getCount() / connectSeconds ,
+                                           connectTime.getPercentile( 50 ) , connectTime.getPercentile( 99 ) ,
+                                           connectTime.getMax() ) );
+        System.out.println( String.format( "Messages: %d sent, %d received in %.1f s, %.1f msg/s sustained" ,
+                                           sentCount.get() , received.get() , sendSeconds ,
+                                           received.get() / sendSeconds ) );
+        System.out.println( String.format( "Latency: p50 %d us, p99 %d us, p99.9 %d us, max %d us" ,
+                                           latency.getPercentile( 50 ) , latency.getPercentile( 99 ) ,
+                                           latency.getPercentile( 99.9 ) , latency.getMax() ) );
+        System.out.println( String.format( "Errors: %d connect, %d send, %d connections lost" ,
+                                           connectErrors.get() , sendErrors.get() , lost ) );
+    }
+
+    /** Closes all the connections. */
+    public void close() {
+        for ( Account account : accounts ) {
+            account.close();
+        }
+    }
+
+    /** Gets the end-to-end latency histogram (microsec). */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /** Gets the connect time histogram (microsec). */
+    public Histogram getConnectTime() {
+        return connectTime;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** One synthetic account. */
+    private class Account
+        implements XmppSenderReceiver.MessageListener {
+
+        Account( JabberID jid , String peer ) {
+            this.jid = jid;
+            this.peer = peer;
+        }
+
+        /** Connects, starts the receive loop and sends presence. */
+        void connect() {
+            long start = System.nanoTime();
+            try {
+                connection = new XmppConnection( jid );
+                connection.connect();
+                senderReceiver = new XmppSenderReceiver( connection );
+                senderReceiver.setMessageListener( this );
+                JabberThreads.newThread( senderReceiver , "XmppReceiver" ).start();
+                senderReceiver.getOutboundQueue().enqueuePresence();
+                connectTime.record( ( System.nanoTime() - start ) / 1000 );
+            }
+            catch ( IOException e ) {
+                connectErrors.incrementAndGet();
+                senderReceiver = null;
+            }
+        }
+
+        /** Sends a message stamped with the time to the peer account. */
+        void send() {
+            if ( senderReceiver == null || lost ) {
+                sendErrors.incrementAndGet();
+                return;
+            }
+            try {
+                senderReceiver.getOutboundQueue().enqueueMessage( peer , "" , BODY_PREFIX + System.nanoTime() );
+                sentCount.incrementAndGet();
+            }
+            catch ( OutboundStanzaQueue.QueueFullException e ) {
+                // Only a burst
+                sendErrors.incrementAndGet();
+            }
+            catch ( IOException e ) {
+                // A failed writer is a lost connection
+                sendErrors.incrementAndGet();
+                lost = true;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void receivedMessage( String message , String sender ) {
+            if ( ! message.startsWith( BODY_PREFIX ) ) {
+                return;
+            }
+            long micros = ( System.nanoTime() - Long.parseLong( message.substring( BODY_PREFIX.length() ) ) ) / 1000;
+            latency.record( micros );
+            currentLatency.record( micros );
+            received.incrementAndGet();
+        }
+
+        /** Closes the connection. */
+        void close() {
+            try {
+                if ( senderReceiver != null ) {
+                    senderReceiver.close();
+                }
+                if ( connection != null ) {
+                    connection.close();
+                }
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+        }
+
+        private final JabberID jid;
+        /** Bare JID of the account this one sends to. */
+        private final String peer;
+        private XmppConnection connection;
+        private volatile XmppSenderReceiver senderReceiver;
+        /** Set when sending failed because the connection is gone. */
+        private volatile boolean lost = false;
+    }
+
+    /** Counters at the start of a reporting interval. */
+    private class Interval {
+
+        Interval( long start ) {
+            this.start = start;
+            this.sent = sentCount.get();
+            this.received = LoadGenerator.this.received.get();
+            this.errors = sendErrors.get();
+        }
+
+        /** Prints the rates since the start of the interval, and starts a new one. */
+        Interval report( long now ) {
+            double seconds = ( now - start ) / 1e9;
+            Histogram intervalLatency = currentLatency;
+            currentLatency = new Histogram( "latency (us)" );
+            Interval next = new Interval( now );
+            System.out.println( String.format( "%8.0f msg/s sent %8.0f msg/s received   p50 %6d us  p99 %6d us  p99.9 %6d us   %d send errors" ,
+                                               ( next.sent - sent ) / seconds , ( next.received - received ) / seconds ,
+                                               intervalLatency.getPercentile( 50 ) , intervalLatency.getPercentile( 99 ) ,
+                                               intervalLatency.getPercentile( 99.9 ) , next.errors - errors ) );
+            return next;
+        }
+
+        private final long start;
+        private final long sent;
+        private final long received;
+        private final long errors;
+    }
+
+    /** Start of the message bodies (followed by the send time). */
+    private static final String BODY_PREFIX = "load ";
+    /** Time between progress reports (nanosec). */
+    private static final long REPORT_INTERVAL = 5000000000L;
+    /** Longest wait for the messages in flight at the end (nanosec). */
+    private static final long DRAIN_TIME = 5000000000L;
+
+    /** The accounts. */
+    private final List <Account> accounts = new ArrayList <Account>();
+
+    private final Histogram connectTime = new Histogram( "connect (us)" );
+    private final Histogram latency = new Histogram( "latency (us)" );
+    /** Latency since the last progress report. */
+    private volatile Histogram currentLatency = new Histogram( "latency (us)" );
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    /** Time spent connecting and sending (sec). */
+    private double connectSeconds;
+    private double sendSeconds;
+}
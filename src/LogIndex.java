@@ -0,0 +1,404 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+   Sparse index of a {@link LogStore}'s records by user, contact and
+   time.
+
+   <p> The segments are cut into blocks of {@link #BLOCK_SIZE} bytes.
+   For each key (an account, and an account with a contact) the index
+   has one posting per block where records of the key start, with the
+   earliest and latest time of those records: so a query reads only the
+   blocks that have records of the key in the time range, and the index
+   has an entry per user per block, not per record.
+
+   <p> The postings of the segment being written are kept in memory.
+   When a segment is finished they are written, sorted by key, to an
+   index file next to it (<code>segment-N.idx</code>), which is then
+   searched through a memory mapping; an index file missing or damaged
+   is made again from its segment when the store is opened. Keys are
+   64-bit hashes: a record of another key with the same hash only
+   costs reading its block, the records are checked anyway.
+
+   <p> Index file: a header (magic, version, number of blocks, number
+   of postings, earliest and latest time, segment length), the offset
+   of the first record starting in each block (-1 if none), then the
+   postings (key hash, block, earliest and latest time) sorted by key
+   hash and block.
+ */
+class LogIndex {
+
+    /** Size of the blocks indexed (bytes). */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /** A block of a segment that may have records of a query. */
+    public static class Hit {
+
+        Hit( long segmentBase , int block , long start , long end ) {
+            this.segmentBase = segmentBase;
+            this.block = block;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** Offset of the segment. */
+        public final long segmentBase;
+        public final int block;
+        /** Position of the first record starting in the block, in the segment. */
+        public final long start;
+        /** Position after which no record of the block starts. */
+        public final long end;
+    }
+
+    /** Gets the key of an account's records. */
+    public static long accountKey( String account ) {
+        return hash( "a" , account , "" );
+    }
+
+    /** Gets the key of an account's records with a contact. */
+    public static long contactKey( String account , String contact ) {
+        return hash( "c" , account , contact );
+    }
+
+    /**
+       Loads the index file of a finished segment, or makes it from the
+       segment if it is missing or damaged.
+     */
+    public void openSegment( long base , File segmentFile , SegmentReader reader )
+        throws IOException {
+
+        Segment segment = new Segment( base );
+        File indexFile = getIndexFile( segmentFile );
+        if ( ! segment.map( indexFile , segmentFile.length() ) ) {
+            // Build it again from the records
+            reader.read( segment );
+            try {
+                segment.seal( indexFile , segmentFile.length() );
+            }
+            catch ( IOException e ) {
+                // Searched in memory then
+                EventLog.log( "Could not write the index " , indexFile , ": " , e );
+            }
+        }
+        segments.put( base , segment );
+    }
+
+    /** Reads a segment's records into the index (see openSegment()). */
+    public interface SegmentReader {
+        void read( Segment segment ) throws IOException;
+    }
+
+    /** Starts the index of a new segment (being written). */
+    public Segment startSegment( long base ) {
+        Segment segment = new Segment( base );
+        segments.put( base , segment );
+        return segment;
+    }
+
+    /**
+       Gets the blocks that may have records of a key in the time range,
+       newest first.
+       @param before only blocks of records before this offset
+     */
+    public List <Hit> find( long key , long fromTime , long toTime , long before ) {
+        List <Hit> hits = new ArrayList <Hit>();
+        for ( Segment segment : segments.descendingMap().values() ) {
+            if ( segment.base >= before ) {
+                continue;
+            }
+            segment.find( key , fromTime , toTime , hits );
+        }
+        return hits;
+    }
+
+    /** Gets the offset of the segment holding an offset, null if none. */
+    public Long getSegmentBase( long offset ) {
+        return segments.floorKey( offset );
+    }
+
+    /** Gets the number of index entries (postings). */
+    public long getPostingCount() {
+        long count = 0;
+        for ( Segment segment : segments.values() ) {
+            count += segment.getPostingCount();
+        }
+        return count;
+    }
+
+    /** Gets the bytes of the index files. */
+    public long getIndexBytes() {
+        long bytes = 0;
+        for ( Segment segment : segments.values() ) {
+            bytes += segment.getIndexBytes();
+        }
+        return bytes;
+    }
+
+    /** Gets the index file of a segment file. */
+    public static File getIndexFile( File segmentFile ) {
+        String name = segmentFile.getName();
+        return new File( segmentFile.getParentFile() , name.substring( 0 , name.lastIndexOf( '.' ) ) + ".idx" );
+    }
+
+    /**
+       The index of one segment: in memory while it is written, then in
+       its (mapped) index file. Safe for one writer and many readers.
+     */
+    public static class Segment {
+
+        Segment( long base ) {
+            this.base = base;
+        }
+
+        /** Indexes a record starting at the given position. */
+        public synchronized void add( long position , LogProtocol.Record record ) {
+            int block = (int) ( position / BLOCK_SIZE );
+            while ( blockStarts.length <= block ) {
+                blockStarts = Arrays.copyOf( blockStarts , blockStarts.length * 2 );
+                Arrays.fill( blockStarts , blockStarts.length / 2 , blockStarts.length , -1 );
+            }
+            if ( blockStarts[ block ] < 0 ) {
+                blockStarts[ block ] = (int) position;
+            }
+            numBlocks = Math.max( numBlocks , block + 1 );
+            addPosting( accountKey( record.getAccount() ) , block , record.getTime() );
+            addPosting( contactKey( record.getAccount() , record.getContact() ) , block , record.getTime() );
+            minTime = Math.min( minTime , record.getTime() );
+            maxTime = Math.max( maxTime , record.getTime() );
+        }
+
+        /** Writes the index file of the finished segment, and uses it from then on. */
+        public void seal( File indexFile , long segmentLength )
+            throws IOException {
+
+            long[][] sorted;
+            int[] starts;
+            int blocks;
+            synchronized ( this ) {
+                sorted = new long[ postingCount ][];
+                int i = 0;
+                for ( List <long[]> list : postings.values() ) {
+                    for ( long[] posting : list ) {
+                        sorted[ i++ ] = posting;
+                    }
+                }
+                starts = Arrays.copyOf( blockStarts , numBlocks );
+                blocks = numBlocks;
+            }
+            Arrays.sort( sorted , POSTING_ORDER );
+
+            ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + 4 * blocks + POSTING_SIZE * sorted.length );
+            buffer.putInt( MAGIC ).putInt( VERSION ).putInt( blocks ).putInt( sorted.length );
+            buffer.putLong( minTime ).putLong( maxTime ).putLong( segmentLength );
+            for ( int start : starts ) {
+                buffer.putInt( start );
+            }
+            for ( long[] posting : sorted ) {
+                buffer.putLong( posting[0] ).putInt( (int) posting[1] ).putLong( posting[2] ).putLong( posting[3] );
+            }
+            buffer.flip();
+
+            // Written to a temporary file first, so a crash leaves no half index
+            File temp = new File( indexFile.getPath() + ".tmp" );
+            FileChannel channel = FileChannel.open( temp.toPath() , StandardOpenOption.CREATE , StandardOpenOption.WRITE ,
+                                                    StandardOpenOption.TRUNCATE_EXISTING );
+            try {
+                while ( buffer.hasRemaining() ) {
+                    channel.write( buffer );
+                }
+                channel.force( false );
+            }
+            finally {
+                channel.close();
+            }
+            if ( ! temp.renameTo( indexFile ) ) {
+                throw new IOException( "Unable to rename " + temp + " to " + indexFile );
+            }
+            if ( ! map( indexFile , segmentLength ) ) {
+                throw new IOException( "Index file " + indexFile + " unreadable" );
+            }
+        }
+
+        /**
+           Maps the index file, if it is there and matches the segment.
+           @return false if it can't be used
+         */
+        boolean map( File indexFile , long segmentLength )
+            throws IOException {
+
+            if ( ! indexFile.isFile() || indexFile.length() < HEADER_SIZE ) {
+                return false;
+            }
+            FileChannel channel = FileChannel.open( indexFile.toPath() , StandardOpenOption.READ );
+            try {
+                MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY , 0 , channel.size() );
+                int blocks = buffer.getInt( 8 );
+                int count = buffer.getInt( 12 );
+                if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION || buffer.getLong( 32 ) != segmentLength
+                     || blocks < 0 || count < 0
+                     || buffer.capacity() != HEADER_SIZE + 4L * blocks + (long) POSTING_SIZE * count ) {
+                    return false;
+                }
+                synchronized ( this ) {
+                    minTime = buffer.getLong( 16 );
+                    maxTime = buffer.getLong( 24 );
+                    numBlocks = blocks;
+                    postingCount = count;
+                    mapped = buffer;
+                    // The postings in memory aren't needed any more
+                    postings = null;
+                    blockStarts = null;
+                }
+                return true;
+            }
+            finally {
+                channel.close();
+            }
+        }
+
+        /** Adds the blocks with postings of the key in the time range, newest first. */
+        synchronized void find( long key , long fromTime , long toTime , List <Hit> hits ) {
+
+            if ( postingCount == 0 || maxTime < fromTime || minTime > toTime ) {
+                return;
+            }
+            if ( mapped == null ) {
+                List <long[]> list = postings.get( key );
+                if ( list != null ) {
+                    for ( int i = list.size() - 1 ; i >= 0 ; --i ) {
+                        long[] posting = list.get( i );
+                        if ( posting[3] >= fromTime && posting[2] <= toTime ) {
+                            hits.add( newHit( (int) posting[1] , blockStarts ) );
+                        }
+                    }
+                }
+                return;
+            }
+
+            // Binary search for the first posting of the key
+            ByteBuffer buffer = mapped;
+            int postingsStart = HEADER_SIZE + 4 * numBlocks;
+            int low = 0;
+            int high = postingCount;
+            while ( low < high ) {
+                int middle = ( low + high ) >>> 1;
+                if ( buffer.getLong( postingsStart + middle * POSTING_SIZE ) < key ) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            int last = low;
+            while ( last < postingCount && buffer.getLong( postingsStart + last * POSTING_SIZE ) == key ) {
+                ++last;
+            }
+            for ( int i = last - 1 ; i >= low ; --i ) {
+                int at = postingsStart + i * POSTING_SIZE;
+                if ( buffer.getLong( at + 20 ) >= fromTime && buffer.getLong( at + 12 ) <= toTime ) {
+                    int block = buffer.getInt( at + 8 );
+                    hits.add( new Hit( base , block , buffer.getInt( HEADER_SIZE + 4 * block ) ,
+                                       (long) ( block + 1 ) * BLOCK_SIZE ) );
+                }
+            }
+        }
+
+        synchronized int getPostingCount() {
+            return postingCount;
+        }
+
+        synchronized long getIndexBytes() {
+            return ( mapped == null ) ? 0 : mapped.capacity();
+        }
+
+        private Hit newHit( int block , int[] starts ) {
+            return new Hit( base , block , starts[ block ] , (long) ( block + 1 ) * BLOCK_SIZE );
+        }
+
+        /** Adds a record's time to the key's posting of the block. */
+        private void addPosting( long key , int block , long time ) {
+            List <long[]> list = postings.get( key );
+            if ( list == null ) {
+                list = new ArrayList <long[]>( 2 );
+                postings.put( key , list );
+            }
+            long[] last = list.isEmpty() ? null : list.get( list.size() - 1 );
+            if ( last != null && last[1] == block ) {
+                last[2] = Math.min( last[2] , time );
+                last[3] = Math.max( last[3] , time );
+            }
+            else {
+                list.add( new long[] { key , block , time , time } );
+                ++postingCount;
+            }
+        }
+
+        /** Offset of the segment. */
+        final long base;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private int numBlocks = 0;
+        private int postingCount = 0;
+        /** While written: postings (key, block, earliest, latest) by key, in block order. */
+        private Map <Long , List <long[]>> postings = new HashMap <Long , List <long[]>>();
+        /** While written: position of the first record starting in each block, or -1. */
+        private int[] blockStarts = newBlockStarts();
+        /** Once finished: the index file. */
+        private MappedByteBuffer mapped;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** 64-bit FNV-1a hash of a kind of key and its strings. */
+    private static long hash( String kind , String account , String contact ) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash( hash , kind );
+        hash = hash( hash , account );
+        hash = ( hash ^ 0 ) * 0x100000001b3L;
+        return hash( hash , contact );
+    }
+
+    private static long hash( long hash , String s ) {
+        for ( int i = 0 ; i < s.length() ; ++i ) {
+            char c = s.charAt( i );
+            hash = ( hash ^ ( c & 0xff ) ) * 0x100000001b3L;
+            hash = ( hash ^ ( c >>> 8 ) ) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int[] newBlockStarts() {
+        int[] starts = new int[ 64 ];
+        Arrays.fill( starts , -1 );
+        return starts;
+    }
+
+    /** Order of the postings in an index file: key hash, then block. */
+    private static final Comparator <long[]> POSTING_ORDER = new Comparator <long[]>() {
+        public int compare( long[] a , long[] b ) {
+            if ( a[0] != b[0] ) {
+                return ( a[0] < b[0] ) ? -1 : 1;
+            }
+            return ( a[1] < b[1] ) ? -1 : ( ( a[1] == b[1] ) ? 0 : 1 );
+        }
+    };
+
+    private static final int MAGIC = 0x4a4c4958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int POSTING_SIZE = 28;
+
+    /** The segments' indexes by offset. */
+    private final ConcurrentSkipListMap <Long , Segment> segments = new ConcurrentSkipListMap <Long , Segment>();
+}
@@ -0,0 +1,866 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Log server for many clients: the scalable replacement of
+   {@link ThreadedEchoServer}, with the same protocols.
+
+   <p> A few event loop threads (each with its {@link Selector}) accept
+   the connections, read them and cut the input into work: the batch
+   frames of log shippers ({@link LogProtocol}), or the lines of old
+   clients (a file name line, then the lines). The records are appended
+   to a {@link LogStore} by a fixed pool of worker threads; a
+   connection's work is done in order by one worker at a time, which
+   acknowledges the last batch once the store has made it durable (one
+   ack covers them all).
+
+   <p> Backpressure: a connection is not read while it has more than
+   {@link #MAX_CONNECTION_PENDING} bytes waiting for the workers, nor any
+   connection while all of them have more than the server's limit, so
+   TCP holds back the clients (a log shipper's queue fills up and it
+   refuses logs) instead of the server running out of memory. The line
+   of an old client is only counted once whole, so a line longer than
+   {@link #MAX_LINE_LENGTH} closes the connection. Nothing
+   is printed per line; a summary is printed every 10 seconds while
+   logs come in.
+
+   <p> The lines of an old client are stored as one record, with the
+   file name it sent as the account.
+
+   <p> Query and search frames are answered by the workers too, from the
+   history in the store and its search index (see {@link LogQueryClient}).
+
+   <p> To run:
+   <br> $ java -cp bin LogIngestServer [port] [directory] [event_loop_threads] [worker_threads] [sync_batch]
+   <br> (the search index is in the "search" directory inside)
+ */
+class LogIngestServer {
+
+    /** Bytes read from a connection, not written yet, above which it isn't read. */
+    public static final int MAX_CONNECTION_PENDING = 256 * 1024;
+
+    /** Longest line accepted from an old client (bytes). */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /** Most lines answered to a query. */
+    public static final int MAX_QUERY_LINES = 10000;
+
+    /** Most records answered to a search. */
+    public static final int MAX_SEARCH_RECORDS = 1000;
+
+    /** Main method. */
+    public static void main( String[] args )
+        throws Exception {
+
+        int port = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 9119;
+        File dir = new File( ( args.length > 1 ) ? args[1] : "." );
+        int loops = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 1;
+        int workers = ( args.length > 3 ) ? Integer.parseInt( args[3] ) : 4;
+        int syncBatch = ( args.length > 4 ) ? Integer.parseInt( args[4] ) : 64;
+        EventLog.setEnabled( false );
+
+        LogStore store = new LogStore( dir , LogStore.DEFAULT_SEGMENT_SIZE , syncBatch , 2000 );
+        LogSearchIndex search = new LogSearchIndex( store , new File( dir , "search" ) , LogSearchIndex.DEFAULT_RUN_SIZE );
+        search.start();
+        LogIngestServer server = new LogIngestServer( port , store , search , loops , workers , 64L * 1024 * 1024 );
+        server.start();
+        System.out.println( "Log server listening on port " + server.getPort() + ", writing to " + dir.getAbsolutePath() );
+
+        long lastLines = 0;
+        while ( true ) {
+            Thread.sleep( 10000 );
+            long lines = server.getIngestedLines();
+            if ( lines != lastLines ) {
+                System.out.println( server );
+                lastLines = lines;
+            }
+        }
+    }
+
+    /**
+       Constructor (doesn't start the threads).
+       @param port            the port (0 for any free one)
+       @param store           where the records are written (not closed
+                              by close())
+       @param search          the search index of the store, or null (no
+                              results)
+       @param maxPendingBytes bytes read and not written yet, over all
+                              connections, above which nothing is read
+     */
+    public LogIngestServer( int port , LogStore store , LogSearchIndex search , int numLoops , int numWorkers , long maxPendingBytes )
+        throws IOException {
+
+        this.store = store;
+        this.search = search;
+        this.maxPendingBytes = maxPendingBytes;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking( false );
+        serverChannel.bind( new InetSocketAddress( port ) , 4096 );
+
+        loops = new Loop[ numLoops ];
+        for ( int i = 0 ; i < numLoops ; ++i ) {
+            loops[i] = new Loop( "LogIngestLoop-" + i );
+        }
+        serverChannel.register( loops[0].selector , SelectionKey.OP_ACCEPT );
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor( numWorkers , numWorkers , 0 , TimeUnit.SECONDS ,
+                                          new LinkedBlockingQueue <Runnable>() , new ThreadFactory() {
+            public Thread newThread( Runnable task ) {
+                return JabberThreads.newThread( task , "LogIngestWorker-" + threadNumber.getAndIncrement() , true );
+            }
+        } );
+    }
+
+    /** Starts the threads. */
+    public void start() {
+        for ( Loop loop : loops ) {
+            loop.thread.start();
+        }
+    }
+
+    /** Gets the port listened to. */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Stops accepting, closes the connections and the files. */
+    public void close()
+        throws InterruptedException {
+
+        for ( Loop loop : loops ) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        for ( Loop loop : loops ) {
+            loop.thread.join();
+        }
+        workers.shutdown();
+        workers.awaitTermination( 10 , TimeUnit.SECONDS );
+        try {
+            serverChannel.close();
+        }
+        catch ( IOException e ) {
+            // Ignore
+        }
+    }
+
+    /** Gets the number of lines written. */
+    public long getIngestedLines() {
+        return ingestedLines.get();
+    }
+
+    /** Gets the number of batches written (log shippers). */
+    public long getIngestedBatches() {
+        return ingestedBatches.get();
+    }
+
+    /** Gets the number of open connections. */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /** Gets the number of times a connection stopped being read for backpressure. */
+    public long getPauseCount() {
+        return pauses.get();
+    }
+
+    /** Gets the time from a batch being read to it being durable (microsec). */
+    public Histogram getIngestLatency() {
+        return ingestLatency;
+    }
+
+    /** Gets the number of queries (and searches) answered. */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /** Gets the time from a query (or search) being read to its result being ready (microsec). */
+    public Histogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "%,d lines, %,d batches, %d connections, %,d pauses, ingest p50=%dus p99=%dus, " +
+                              "%,d queries p50=%dus p99=%dus" ,
+                              ingestedLines.get() , ingestedBatches.get() , connections.get() , pauses.get() ,
+                              ingestLatency.getPercentile( 50 ) , ingestLatency.getPercentile( 99 ) ,
+                              queries.get() , queryLatency.getPercentile( 50 ) , queryLatency.getPercentile( 99 ) );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** An event loop thread with its selector and connections. */
+    private class Loop
+        implements Runnable {
+
+        Loop( String name )
+            throws IOException {
+
+            selector = Selector.open();
+            thread = new Thread( this , name );
+            thread.setDaemon( true );
+        }
+
+        /** Runs a task on the loop thread (can be called from any thread). */
+        void execute( Runnable task ) {
+            tasks.add( task );
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+
+            while ( running ) {
+                try {
+                    // Paused connections are looked at again every few millisec
+                    if ( tasks.isEmpty() ) {
+                        selector.select( paused.isEmpty() ? 0 : 5 );
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+
+                    Runnable task;
+                    while ( ( task = tasks.poll() ) != null ) {
+                        task.run();
+                    }
+                    resumePaused();
+
+                    Iterator <SelectionKey> keys = selector.selectedKeys().iterator();
+                    while ( keys.hasNext() ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if ( ! key.isValid() ) {
+                            continue;
+                        }
+                        if ( key.isAcceptable() ) {
+                            accept();
+                        }
+                        else {
+                            ( (Connection) key.attachment() ).handleKey( key );
+                        }
+                    }
+                }
+                catch ( Exception e ) {
+                    // Connections handle their own errors; this is a bug, keep looping
+                    System.err.println( "Unexpected error in log server loop" );
+                    e.printStackTrace();
+                }
+            }
+
+            for ( SelectionKey key : selector.keys() ) {
+                if ( key.attachment() instanceof Connection ) {
+                    ( (Connection) key.attachment() ).close();
+                }
+            }
+            try {
+                selector.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+        }
+
+        /** Accepts the waiting connections, spreading them over the loops. */
+        private void accept()
+            throws IOException {
+
+            SocketChannel channel;
+            while ( ( channel = serverChannel.accept() ) != null ) {
+                channel.configureBlocking( false );
+                channel.setOption( StandardSocketOptions.TCP_NODELAY , true );
+                final Loop loop = loops[ Math.abs( nextLoop++ % loops.length ) ];
+                final Connection connection = new Connection( channel , loop );
+                connections.incrementAndGet();
+                loop.execute( new Runnable() {
+                    public void run() {
+                        connection.register();
+                    }
+                } );
+            }
+        }
+
+        /** Reads the paused connections that are under the limits again. */
+        private void resumePaused() {
+            if ( paused.isEmpty() || pendingBytes.get() > maxPendingBytes ) {
+                return;
+            }
+            Iterator <Connection> it = paused.iterator();
+            while ( it.hasNext() ) {
+                Connection connection = it.next();
+                if ( connection.pendingBytes.get() <= MAX_CONNECTION_PENDING ) {
+                    it.remove();
+                    connection.resume();
+                }
+            }
+        }
+
+        final Selector selector;
+        final Thread thread;
+        /** Tasks submitted from any thread. */
+        final Queue <Runnable> tasks = new ConcurrentLinkedQueue <Runnable>();
+        /** Connections not read because of backpressure (loop thread only). */
+        final List <Connection> paused = new ArrayList <Connection>();
+        volatile boolean running = true;
+        /** Round-robin counter for new connections (accepting loop only). */
+        private int nextLoop = 0;
+    }
+
+    /** Work taken from a connection: a batch, query or search frame, or lines. */
+    private static class Work {
+
+        Work( byte[] frame , List <String> lines , int bytes , boolean end ) {
+            this.frame = frame;
+            this.lines = lines;
+            this.bytes = bytes;
+            this.end = end;
+            this.received = System.nanoTime();
+        }
+
+        /** Batch, query or search frame body (with the type), or null. */
+        final byte[] frame;
+        /** Lines of an old client, or null. */
+        final List <String> lines;
+        final int bytes;
+        /** Whether the connection was closed by the client after this. */
+        final boolean end;
+        final long received;
+        /** Log shipper session it came from (null for old clients). */
+        Long session;
+    }
+
+    /**
+       One client connection. Reading, parsing and writing to the socket
+       happen on its loop thread; the work is done by the workers (one at
+       a time, see {@link #run()}).
+     */
+    private class Connection
+        implements Runnable {
+
+        Connection( SocketChannel channel , Loop loop ) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /** Registers with the loop's selector (loop thread). */
+        void register() {
+            try {
+                key = channel.register( loop.selector , SelectionKey.OP_READ , this );
+            }
+            catch ( IOException e ) {
+                close();
+            }
+        }
+
+        /** Handles the selected operations (loop thread). */
+        void handleKey( SelectionKey key ) {
+            try {
+                if ( key.isWritable() ) {
+                    writeAcks();
+                }
+                if ( key.isValid() && key.isReadable() ) {
+                    read();
+                }
+            }
+            catch ( IOException e ) {
+                close();
+            }
+        }
+
+        /** Reads what is available and hands the complete parts to the workers. */
+        private void read()
+            throws IOException {
+
+            int n = channel.read( in );
+            if ( n < 0 ) {
+                eof = true;
+                in.flip();
+                if ( in.hasRemaining() && protocol == PROTOCOL_LINES ) {
+                    // Last line without an end of line
+                    byte[] bytes = new byte[ in.remaining() ];
+                    in.get( bytes );
+                    List <String> last = new ArrayList <String>( 1 );
+                    addLine( last , new String( bytes , UTF_8 ) );
+                    submit( new Work( null , last , bytes.length , true ) );
+                }
+                else {
+                    submit( new Work( null , null , 0 , true ) );
+                }
+                in.clear();
+                updateInterest();
+                return;
+            }
+
+            in.flip();
+            if ( protocol == PROTOCOL_UNKNOWN && in.hasRemaining() ) {
+                protocol = ( in.get( in.position() ) == 0 ) ? PROTOCOL_FRAMES : PROTOCOL_LINES;
+            }
+            if ( protocol == PROTOCOL_FRAMES ) {
+                readFrames();
+            }
+            else if ( protocol == PROTOCOL_LINES ) {
+                readLines();
+            }
+            compactInput();
+
+            if ( pendingBytes.get() > MAX_CONNECTION_PENDING || LogIngestServer.this.pendingBytes.get() > maxPendingBytes ) {
+                pause();
+            }
+        }
+
+        /** Takes the complete frames from the input. */
+        private void readFrames()
+            throws IOException {
+
+            if ( ! preambleRead ) {
+                if ( in.remaining() < 5 ) {
+                    return;
+                }
+                if ( in.getInt() != LogProtocol.PREAMBLE || in.get() != LogProtocol.VERSION ) {
+                    throw new IOException( "Unknown protocol" );
+                }
+                preambleRead = true;
+            }
+
+            while ( in.remaining() >= 4 ) {
+                int length = in.getInt( in.position() );
+                if ( length < LogProtocol.MIN_FRAME_SIZE || length > LogProtocol.MAX_FRAME_SIZE ) {
+                    throw new IOException( "Bad frame length " + length );
+                }
+                if ( in.remaining() < 4 + length ) {
+                    if ( in.capacity() < 4 + length ) {
+                        // Make room for the whole frame
+                        ByteBuffer bigger = ByteBuffer.allocate( 4 + length );
+                        bigger.put( in );
+                        bigger.flip();
+                        in = bigger;
+                    }
+                    return;
+                }
+                in.getInt();
+                byte[] frame = new byte[ length ];
+                in.get( frame );
+                if ( frame[0] == LogProtocol.HELLO ) {
+                    session = LogProtocol.getValue( frame );
+                }
+                else if ( frame[0] == LogProtocol.BATCH || frame[0] == LogProtocol.DEFLATED_BATCH
+                          || frame[0] == LogProtocol.QUERY || frame[0] == LogProtocol.SEARCH ) {
+                    submit( new Work( frame , null , length , false ) );
+                }
+            }
+        }
+
+        /** Takes the complete lines from the input. */
+        private void readLines()
+            throws IOException {
+
+            List <String> lines = null;
+            int bytes = 0;
+            int start = in.position();
+            for ( int i = start ; i < in.limit() ; ++i ) {
+                if ( in.get( i ) == '\n' ) {
+                    byte[] line = new byte[ i - start ];
+                    in.get( line );
+                    in.get();
+                    if ( lines == null ) {
+                        lines = new ArrayList <String>();
+                    }
+                    addLine( lines , new String( line , UTF_8 ) );
+                    bytes += line.length + 1;
+                    start = i + 1;
+                }
+            }
+            if ( lines != null ) {
+                submit( new Work( null , lines , bytes , false ) );
+            }
+            else if ( in.position() == 0 && in.limit() == in.capacity() ) {
+                // A line longer than the buffer
+                if ( in.capacity() >= MAX_LINE_LENGTH ) {
+                    throw new IOException( "Line longer than " + MAX_LINE_LENGTH + " bytes" );
+                }
+                ByteBuffer bigger = ByteBuffer.allocate( in.capacity() * 2 );
+                bigger.put( in );
+                bigger.flip();
+                in = bigger;
+            }
+        }
+
+        /** Adds a line read from an old client (the first is the file name). */
+        private void addLine( List <String> lines , String line ) {
+            if ( line.endsWith( "\r" ) ) {
+                line = line.substring( 0 , line.length() - 1 );
+            }
+            lines.add( line );
+        }
+
+        /** Makes room in the input buffer for the next read (and gives back a big one). */
+        private void compactInput() {
+            if ( ! in.hasRemaining() && in.capacity() > INPUT_SIZE ) {
+                in = ByteBuffer.allocate( INPUT_SIZE );
+            }
+            else {
+                in.compact();
+            }
+        }
+
+        /** Queues work for the workers (loop thread). */
+        private void submit( Work work ) {
+            work.session = session;
+            pendingBytes.addAndGet( work.bytes );
+            LogIngestServer.this.pendingBytes.addAndGet( work.bytes );
+            queue.add( work );
+            if ( scheduled.compareAndSet( false , true ) ) {
+                workers.execute( this );
+            }
+        }
+
+        /**
+           Does the queued work (worker thread, one at a time): appends
+           the records to the store, and acknowledges the last batch once
+           they are durable; answers the queries and searches.
+         */
+        @Override
+        public void run() {
+
+            List <LogProtocol.Record> records = new ArrayList <LogProtocol.Record>();
+            // When each batch was read
+            final List <Long> batches = new ArrayList <Long>();
+            final int[] batchLines = new int[ 1 ];
+            // Last batch taken of each session, saved in lastBatches once written
+            Map <Long , Long> taken = new HashMap <Long , Long>();
+            long ackId = -1;
+            boolean end = false;
+            int bytes = 0;
+            Work work;
+            while ( ( work = queue.poll() ) != null ) {
+                try {
+                    if ( work.frame != null && ( work.frame[0] == LogProtocol.QUERY || work.frame[0] == LogProtocol.SEARCH ) ) {
+                        answerQuery( work );
+                    }
+                    else if ( work.frame != null ) {
+                        ackId = takeBatch( work , records , batchLines , taken );
+                        batches.add( work.received );
+                    }
+                    else if ( work.lines != null ) {
+                        takeLines( work.lines , records );
+                    }
+                    end |= work.end;
+                }
+                catch ( IOException e ) {
+                    System.err.println( "Bad frame: " + e );
+                    end = true;
+                    abort = true;
+                }
+                catch ( RuntimeException e ) {
+                    // Same (e.g. a record the decoder doesn't expect), the pending bytes are still given back below
+                    System.err.println( "Bad frame: " + e );
+                    end = true;
+                    abort = true;
+                }
+                bytes += work.bytes;
+            }
+
+            long offset = -1;
+            try {
+                offset = records.isEmpty() ? store.getWrittenOffset() : store.append( records );
+                lastBatches.putAll( taken );
+            }
+            catch ( IOException e ) {
+                // Not acknowledged, the client sends it again
+                System.err.println( "Could not write a log: " + e );
+                end = true;
+                abort = true;
+                ackId = -1;
+            }
+            pendingBytes.addAndGet( -bytes );
+            LogIngestServer.this.pendingBytes.addAndGet( -bytes );
+
+            if ( ackId >= 0 ) {
+                final ByteBuffer ack = ByteBuffer.wrap( LogProtocol.encodeFrame( LogProtocol.ACK , ackId ) );
+                store.whenDurable( offset , new Runnable() {
+                    public void run() {
+                        long now = System.nanoTime();
+                        for ( long received : batches ) {
+                            ingestLatency.record( ( now - received ) / 1000 );
+                        }
+                        ingestedLines.addAndGet( batchLines[0] );
+                        ingestedBatches.addAndGet( batches.size() );
+                        acks.add( ack );
+                        loop.execute( writeAcksTask );
+                    }
+                } );
+            }
+            if ( end || paused ) {
+                final boolean finished = end;
+                loop.execute( new Runnable() {
+                    public void run() {
+                        if ( finished ) {
+                            done = true;
+                        }
+                        writeAcksTask.run();
+                    }
+                } );
+            }
+
+            scheduled.set( false );
+            if ( ! queue.isEmpty() && scheduled.compareAndSet( false , true ) ) {
+                workers.execute( this );
+            }
+        }
+
+        /**
+           Takes the records of a batch, unless written or taken already.
+           @param taken the last batch taken of each session (to be saved
+                        in lastBatches once written, so that a batch that
+                        fails to be written is taken again when resent)
+           @return the batch number
+         */
+        private long takeBatch( Work work , List <LogProtocol.Record> records , int[] lines , Map <Long , Long> taken )
+            throws IOException {
+
+            long batchId = LogProtocol.getValue( work.frame );
+            Long last = ( work.session == null ) ? null : taken.get( work.session );
+            if ( last == null && work.session != null ) {
+                last = lastBatches.get( work.session );
+            }
+            if ( last != null && batchId <= last ) {
+                return batchId;
+            }
+            for ( LogProtocol.Record record : LogProtocol.readBatch( work.frame ) ) {
+                records.add( record );
+                lines[0] += record.getLines().size();
+            }
+            if ( work.session != null ) {
+                taken.put( work.session , batchId );
+            }
+            return batchId;
+        }
+
+        /** Queues the result of a query or search, to be written by the loop thread. */
+        private void answerQuery( Work work )
+            throws IOException {
+
+            DataInputStream frame = new DataInputStream( new ByteArrayInputStream( work.frame , 1 , work.frame.length - 1 ) );
+            long requestId = frame.readLong();
+            List <LogProtocol.Record> result;
+            if ( work.frame[0] == LogProtocol.QUERY ) {
+                LogProtocol.Query query = LogProtocol.readQuery( frame );
+                result = store.query( query.getAccount() , query.getContact().isEmpty() ? null : query.getContact() ,
+                                      query.getFromTime() , query.getToTime() , Math.min( query.getMaxLines() , MAX_QUERY_LINES ) );
+            }
+            else {
+                LogProtocol.Search words = LogProtocol.readSearch( frame );
+                result = ( search == null ) ? Collections.<LogProtocol.Record>emptyList()
+                    : search.search( words.getAccount().isEmpty() ? null : words.getAccount() ,
+                                     words.getContact().isEmpty() ? null : words.getContact() ,
+                                     words.getText() , Math.min( words.getMaxRecords() , MAX_SEARCH_RECORDS ) );
+            }
+            acks.add( ByteBuffer.wrap( LogProtocol.encodeResult( requestId , result ) ) );
+            queries.incrementAndGet();
+            queryLatency.record( ( System.nanoTime() - work.received ) / 1000 );
+            loop.execute( writeAcksTask );
+        }
+
+        /**
+           Takes the lines of an old client as a record (the first line is
+           the file name the old server wrote to, it is kept as the account).
+         */
+        private void takeLines( List <String> lines , List <LogProtocol.Record> records ) {
+
+            int first = 0;
+            if ( linesName == null ) {
+                linesName = lines.get( 0 ).trim();
+                first = 1;
+            }
+            if ( linesDone ) {
+                return;
+            }
+            List <String> toWrite = lines.subList( first , lines.size() );
+            for ( int i = 0 ; i < toWrite.size() ; ++i ) {
+                if ( toWrite.get( i ).trim().equals( "BYE" ) ) {
+                    // The old server stops there (after writing it)
+                    toWrite = toWrite.subList( 0 , i + 1 );
+                    linesDone = true;
+                    break;
+                }
+            }
+            if ( ! toWrite.isEmpty() ) {
+                records.add( new LogProtocol.Record( linesName , "" , connectedAt , toWrite ) );
+                ingestedLines.addAndGet( toWrite.size() );
+            }
+        }
+
+        /** Writes the acks and results (loop thread), then closes if the client is done. */
+        private void writeAcks()
+            throws IOException {
+
+            if ( closed ) {
+                return;
+            }
+            ByteBuffer ack;
+            while ( ( ack = acks.peek() ) != null ) {
+                channel.write( ack );
+                if ( ack.hasRemaining() ) {
+                    break;
+                }
+                acks.poll();
+            }
+            if ( ( done || abort ) && acks.isEmpty() ) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        /** Stops reading for backpressure (loop thread). */
+        private void pause() {
+            if ( ! paused ) {
+                paused = true;
+                pauses.incrementAndGet();
+                loop.paused.add( this );
+                updateInterest();
+            }
+        }
+
+        /** Reads again (loop thread). */
+        void resume() {
+            paused = false;
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if ( key == null || ! key.isValid() ) {
+                return;
+            }
+            int ops = ( ( paused || eof ) ? 0 : SelectionKey.OP_READ ) |
+                      ( acks.isEmpty() ? 0 : SelectionKey.OP_WRITE );
+            if ( key.interestOps() != ops ) {
+                key.interestOps( ops );
+            }
+        }
+
+        /** Closes the connection (loop thread). */
+        void close() {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            connections.decrementAndGet();
+            loop.paused.remove( this );
+            if ( key != null ) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+            if ( ! eof ) {
+                // Let the worker close the file
+                submit( new Work( null , null , 0 , true ) );
+            }
+        }
+
+        private final SocketChannel channel;
+        private final Loop loop;
+        private SelectionKey key;
+
+        /** Input not parsed yet (loop thread). */
+        private ByteBuffer in = ByteBuffer.allocate( INPUT_SIZE );
+        private int protocol = PROTOCOL_UNKNOWN;
+        private boolean preambleRead = false;
+        /** Log shipper session (loop thread). */
+        private Long session;
+        private boolean eof = false;
+        private boolean closed = false;
+        /** Set once the work is done after the end of the input (loop thread). */
+        private boolean done = false;
+        private volatile boolean abort = false;
+        /** Whether reading is stopped for backpressure (set on the loop thread). */
+        private volatile boolean paused = false;
+
+        /** Work not done yet. */
+        private final Queue <Work> queue = new ConcurrentLinkedQueue <Work>();
+        /** Bytes of the work not done yet. */
+        private final AtomicInteger pendingBytes = new AtomicInteger();
+        /** Whether a worker has the connection's work. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Acks and query results to send. */
+        private final Queue <ByteBuffer> acks = new ConcurrentLinkedQueue <ByteBuffer>();
+
+        /** Sends the acks and results (on the loop thread). */
+        private final Runnable writeAcksTask = new Runnable() {
+            public void run() {
+                try {
+                    writeAcks();
+                }
+                catch ( IOException e ) {
+                    close();
+                }
+            }
+        };
+
+        private final long connectedAt = System.currentTimeMillis();
+        /** File name sent by an old client, and whether "BYE" was received (worker). */
+        private String linesName;
+        private boolean linesDone = false;
+    }
+
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_FRAMES = 1;
+    private static final int PROTOCOL_LINES = 2;
+
+    private static final int INPUT_SIZE = 4096;
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final LogStore store;
+    private final LogSearchIndex search;
+    private final long maxPendingBytes;
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private final ExecutorService workers;
+
+    /** Last batch written for each log shipper session. */
+    private final ConcurrentHashMap <Long , Long> lastBatches = new ConcurrentHashMap <Long , Long>();
+
+    /** Bytes read and not written yet, over all connections. */
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong ingestedLines = new AtomicLong();
+    private final AtomicLong ingestedBatches = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong pauses = new AtomicLong();
+    private final Histogram ingestLatency = new Histogram( "ingest (us)" );
+    private final AtomicLong queries = new AtomicLong();
+    private final Histogram queryLatency = new Histogram( "query (us)" );
+}
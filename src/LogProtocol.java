@@ -0,0 +1,549 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+   Framed protocol between the {@link LogShipper} and the log server
+   (see {@link ThreadedEchoServer}).
+
+   <p> The client starts with {@link #PREAMBLE} (its first byte is 0,
+   which the old protocol, a file name line then the lines, can't
+   start with), then sends frames: the length of the rest of the frame
+   (4 bytes), the frame type (1 byte) and its body.
+   <ul>
+    <li> {@link #HELLO}: the client's session ID (8 bytes), so that the
+         server can recognize batches sent again after a
+         re-connection; </li>
+    <li> {@link #BATCH}: the batch number (8 bytes), the number of
+         records (4 bytes) and the records: account, contact (UTF),
+         time (8 bytes), number of lines (4 bytes) and the lines, each
+         its length (4 bytes) and UTF-8 bytes; </li>
+    <li> {@link #DEFLATED_BATCH}: the same, with all after the batch
+         number compressed (see {@link #deflate}). </li>
+   </ul>
+   The server answers each batch, once its records are written, with an
+   {@link #ACK} frame holding the batch number; an ack covers all the
+   batches up to it. Batches numbers start at 1 and increase by one in
+   a session.
+
+   <p> A client can also ask for history (see {@link LogStore#query}):
+   <ul>
+    <li> {@link #QUERY}: the request number (8 bytes), account, contact
+         ("" for all) (UTF), time range (8 bytes each) and the most
+         lines (4 bytes); </li>
+    <li> {@link #SEARCH}: the request number, account and contact (""
+         for all) and words (UTF), and the most records (4 bytes) (see
+         {@link LogSearchIndex#search}); </li>
+    <li> {@link #RESULT}, the answer: the request number, then the
+         number of records and the records as in a batch. </li>
+   </ul>
+   Queries don't need a hello, and are answered in order.
+ */
+class LogProtocol {
+
+    /** First bytes sent by the client ("\0JLS", then the version). */
+    public static final int PREAMBLE = 0x004a4c53;
+    public static final byte VERSION = 1;
+
+    /** Frame types. */
+    public static final byte HELLO = 1;
+    public static final byte BATCH = 2;
+    public static final byte ACK = 3;
+    public static final byte QUERY = 4;
+    public static final byte RESULT = 5;
+    public static final byte SEARCH = 6;
+    public static final byte DEFLATED_BATCH = 7;
+
+    /** Largest frame accepted (bytes). */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** Smallest frame accepted (bytes): every frame has its type and a number. */
+    public static final int MIN_FRAME_SIZE = 9;
+
+    /** Lines of a conversation to be saved (immutable). */
+    public static class Record {
+
+        /** Constructor. */
+        public Record( String account , String contact , long time , List <String> lines ) {
+            this.account = account;
+            this.contact = ( contact == null ) ? "" : contact;
+            this.time = time;
+            this.lines = Collections.unmodifiableList( new ArrayList <String>( lines ) );
+        }
+
+        /** Gets the account (bare JID) the conversation is logged for. */
+        public String getAccount() {
+            return account;
+        }
+
+        /** Gets the other side of the conversation ("" if not known). */
+        public String getContact() {
+            return contact;
+        }
+
+        /** Gets the time the conversation was saved (millisec since 1970). */
+        public long getTime() {
+            return time;
+        }
+
+        /** Gets the lines. */
+        public List <String> getLines() {
+            return lines;
+        }
+
+        /**
+           Gets the name of the file the record is saved to by the log
+           server, as with the old protocol: the account's user name and
+           the time.
+         */
+        public String getFileName() {
+            int at = account.indexOf( '@' );
+            String user = ( at < 0 ) ? account : account.substring( 0 , at );
+            return user + "_" + new SimpleDateFormat( "yyyy_MM_dd_hh_mm_ss" ).format( new Date( time ) );
+        }
+
+        /** Gets (roughly) the bytes the record takes in a frame. */
+        public int getSize() {
+            int size = 64 + account.length() + contact.length();
+            for ( String line : lines ) {
+                size += 4 + line.length();
+            }
+            return size;
+        }
+
+        private final String account;
+        private final String contact;
+        private final long time;
+        private final List <String> lines;
+    }
+
+    /** A history query (immutable). */
+    public static class Query {
+
+        /**
+           Constructor.
+           @param contact  "" (or null) for the conversations with anyone
+           @param maxLines the most lines answered (the last ones)
+         */
+        public Query( String account , String contact , long fromTime , long toTime , int maxLines ) {
+            this.account = account;
+            this.contact = ( contact == null ) ? "" : contact;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            this.maxLines = maxLines;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        /** Gets the contact, "" for anyone. */
+        public String getContact() {
+            return contact;
+        }
+
+        /** Gets the start of the time range (millisec since 1970). */
+        public long getFromTime() {
+            return fromTime;
+        }
+
+        /** Gets the end of the time range, included. */
+        public long getToTime() {
+            return toTime;
+        }
+
+        public int getMaxLines() {
+            return maxLines;
+        }
+
+        private final String account;
+        private final String contact;
+        private final long fromTime;
+        private final long toTime;
+        private final int maxLines;
+    }
+
+    /** A full-text search (immutable). */
+    public static class Search {
+
+        /**
+           Constructor.
+           @param account "" for all accounts
+           @param contact "" (or null) for the conversations with anyone
+           @param text    the words the records must all have
+         */
+        public Search( String account , String contact , String text , int maxRecords ) {
+            this.account = account;
+            this.contact = ( contact == null ) ? "" : contact;
+            this.text = text;
+            this.maxRecords = maxRecords;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        /** Gets the contact, "" for anyone. */
+        public String getContact() {
+            return contact;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getMaxRecords() {
+            return maxRecords;
+        }
+
+        private final String account;
+        private final String contact;
+        private final String text;
+        private final int maxRecords;
+    }
+
+    /** Encodes a whole batch frame. */
+    public static byte[] encodeBatch( long batchId , List <Record> records ) {
+        return encodeRecords( BATCH , batchId , records );
+    }
+
+    /**
+       Encodes a whole batch frame, compressed or not. Conversation lines
+       are repetitive (each starts with who says it), they take about a
+       fifth compressed.
+     */
+    public static byte[] encodeBatch( long batchId , List <Record> records , boolean deflated ) {
+        if ( ! deflated ) {
+            return encodeBatch( batchId , records );
+        }
+        byte[] plain = encodeRecords( BATCH , batchId , records );
+        byte[] compressed = deflate( plain , 13 , plain.length - 13 );
+        byte[] frame = new byte[ 13 + compressed.length ];
+        System.arraycopy( plain , 0 , frame , 0 , 13 );
+        frame[4] = DEFLATED_BATCH;
+        System.arraycopy( compressed , 0 , frame , 13 , compressed.length );
+        setLength( frame );
+        return frame;
+    }
+
+    /**
+       Decodes the records of a batch frame body, compressed or not (from
+       readFrame(); its number is getValue()).
+     */
+    public static List <Record> readBatch( byte[] frame )
+        throws IOException {
+
+        if ( frame[0] == DEFLATED_BATCH ) {
+            byte[] plain = inflate( frame , 9 , frame.length - 9 );
+            return decodeBatch( new DataInputStream( new ByteArrayInputStream( plain ) ) );
+        }
+        return decodeBatch( new DataInputStream( new ByteArrayInputStream( frame , 9 , frame.length - 9 ) ) );
+    }
+
+    /** Encodes a whole result frame. */
+    public static byte[] encodeResult( long requestId , List <Record> records ) {
+        return encodeRecords( RESULT , requestId , records );
+    }
+
+    /** Encodes a whole query frame. */
+    public static byte[] encodeQuery( long requestId , Query query ) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 + query.getAccount().length() + query.getContact().length() );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( 0 );
+            out.writeByte( QUERY );
+            out.writeLong( requestId );
+            out.writeUTF( query.getAccount() );
+            out.writeUTF( query.getContact() );
+            out.writeLong( query.getFromTime() );
+            out.writeLong( query.getToTime() );
+            out.writeInt( query.getMaxLines() );
+            out.close();
+            byte[] frame = bytes.toByteArray();
+            setLength( frame );
+            return frame;
+        }
+        catch ( IOException e ) {
+            // Not with a byte array
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /** Encodes a whole search frame. */
+    public static byte[] encodeSearch( long requestId , Search search ) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 32 + search.getAccount().length() + search.getContact().length()
+                                                                     + search.getText().length() );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( 0 );
+            out.writeByte( SEARCH );
+            out.writeLong( requestId );
+            out.writeUTF( search.getAccount() );
+            out.writeUTF( search.getContact() );
+            out.writeUTF( search.getText() );
+            out.writeInt( search.getMaxRecords() );
+            out.close();
+            byte[] frame = bytes.toByteArray();
+            setLength( frame );
+            return frame;
+        }
+        catch ( IOException e ) {
+            // Not with a byte array
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /** Decodes the search of a search frame body, after the request number. */
+    public static Search readSearch( DataInputStream in )
+        throws IOException {
+
+        String account = in.readUTF();
+        String contact = in.readUTF();
+        String text = in.readUTF();
+        return new Search( account , contact , text , in.readInt() );
+    }
+
+    /** Decodes the query of a query frame body, after the request number. */
+    public static Query readQuery( DataInputStream in )
+        throws IOException {
+
+        String account = in.readUTF();
+        String contact = in.readUTF();
+        long fromTime = in.readLong();
+        long toTime = in.readLong();
+        return new Query( account , contact , fromTime , toTime , in.readInt() );
+    }
+
+    /** Encodes a hello or ack frame (a type and a number). */
+    public static byte[] encodeFrame( byte type , long value ) {
+        byte[] frame = new byte[ 13 ];
+        frame[4] = type;
+        for ( int i = 0 ; i < 8 ; ++i ) {
+            frame[ 5 + i ] = (byte) ( value >>> ( 56 - 8 * i ) );
+        }
+        setLength( frame );
+        return frame;
+    }
+
+    /**
+       Reads the next frame's type and body.
+       @return the body, with the type as first byte
+       @throws java.io.EOFException at the end of the stream
+     */
+    public static byte[] readFrame( DataInputStream in )
+        throws IOException {
+
+        int length = in.readInt();
+        if ( length < MIN_FRAME_SIZE || length > MAX_FRAME_SIZE ) {
+            throw new IOException( "Bad frame length " + length );
+        }
+        byte[] frame = new byte[ length ];
+        in.readFully( frame );
+        return frame;
+    }
+
+    /** Gets the number of a hello or ack frame body (from readFrame()). */
+    public static long getValue( byte[] frame ) {
+        long value = 0;
+        for ( int i = 1 ; i < 9 ; ++i ) {
+            value = ( value << 8 ) | ( frame[i] & 0xff );
+        }
+        return value;
+    }
+
+    /** Decodes the records of a batch or result frame body, after the number. */
+    public static List <Record> decodeBatch( DataInputStream in )
+        throws IOException {
+
+        int count = in.readInt();
+        if ( count < 0 ) {
+            throw new IOException( "Bad number of records " + count );
+        }
+        List <Record> records = new ArrayList <Record>( Math.min( count , 1024 ) );
+        for ( int i = 0 ; i < count ; ++i ) {
+            records.add( readRecord( in ) );
+        }
+        return records;
+    }
+
+    /** Writes one record (as in a batch frame). */
+    public static void writeRecord( DataOutputStream out , Record record )
+        throws IOException {
+
+        out.writeUTF( record.getAccount() );
+        out.writeUTF( record.getContact() );
+        out.writeLong( record.getTime() );
+        writeLines( out , record.getLines() );
+    }
+
+    /** Writes the lines of a record (the end of writeRecord()). */
+    public static void writeLines( DataOutputStream out , List <String> lines )
+        throws IOException {
+
+        out.writeInt( lines.size() );
+        for ( String line : lines ) {
+            byte[] utf8 = line.getBytes( UTF_8 );
+            out.writeInt( utf8.length );
+            out.write( utf8 );
+        }
+    }
+
+    /** Reads one record written by writeRecord(). */
+    public static Record readRecord( DataInputStream in )
+        throws IOException {
+
+        String account = in.readUTF();
+        String contact = in.readUTF();
+        long time = in.readLong();
+        return new Record( account , contact , time , readLines( in ) );
+    }
+
+    /** Reads the lines written by writeLines(). */
+    public static List <String> readLines( DataInputStream in )
+        throws IOException {
+
+        int numLines = in.readInt();
+        if ( numLines < 0 ) {
+            throw new IOException( "Bad number of lines " + numLines );
+        }
+        List <String> lines = new ArrayList <String>( Math.min( numLines , 1024 ) );
+        for ( int l = 0 ; l < numLines ; ++l ) {
+            int length = in.readInt();
+            if ( length < 0 || length > MAX_FRAME_SIZE ) {
+                throw new IOException( "Bad line length " + length );
+            }
+            byte[] utf8 = new byte[ length ];
+            in.readFully( utf8 );
+            lines.add( new String( utf8 , UTF_8 ) );
+        }
+        return lines;
+    }
+
+    /**
+       Compresses bytes (quickly rather than the most).
+       @return their length (4 bytes), then the compressed bytes
+     */
+    public static byte[] deflate( byte[] bytes , int offset , int length ) {
+        Deflater deflater = deflaters.poll();
+        if ( deflater == null ) {
+            deflater = new Deflater( Deflater.BEST_SPEED );
+        }
+        try {
+            deflater.setInput( bytes , offset , length );
+            deflater.finish();
+            byte[] compressed = new byte[ 4 + length / 2 + 64 ];
+            compressed[0] = (byte) ( length >>> 24 );
+            compressed[1] = (byte) ( length >>> 16 );
+            compressed[2] = (byte) ( length >>> 8 );
+            compressed[3] = (byte) length;
+            int size = 4;
+            while ( ! deflater.finished() ) {
+                if ( size == compressed.length ) {
+                    compressed = Arrays.copyOf( compressed , size * 2 );
+                }
+                size += deflater.deflate( compressed , size , compressed.length - size );
+            }
+            return Arrays.copyOf( compressed , size );
+        }
+        finally {
+            deflater.reset();
+            deflaters.offer( deflater );
+        }
+    }
+
+    /** Uncompresses bytes compressed by deflate(). */
+    public static byte[] inflate( byte[] bytes , int offset , int length )
+        throws IOException {
+
+        if ( length < 4 ) {
+            throw new IOException( "Compressed bytes cut" );
+        }
+        int size = ( ( bytes[ offset ] & 0xff ) << 24 ) | ( ( bytes[ offset + 1 ] & 0xff ) << 16 )
+            | ( ( bytes[ offset + 2 ] & 0xff ) << 8 ) | ( bytes[ offset + 3 ] & 0xff );
+        if ( size < 0 || size > MAX_FRAME_SIZE ) {
+            throw new IOException( "Bad uncompressed length " + size );
+        }
+        Inflater inflater = inflaters.poll();
+        if ( inflater == null ) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput( bytes , offset + 4 , length - 4 );
+            byte[] plain = new byte[ size ];
+            int n = 0;
+            while ( n < size ) {
+                int inflated = inflater.inflate( plain , n , size - n );
+                if ( inflated == 0 && ( inflater.finished() || inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    throw new IOException( "Compressed bytes cut" );
+                }
+                n += inflated;
+            }
+            return plain;
+        }
+        catch ( DataFormatException e ) {
+            throw new IOException( "Bad compressed bytes: " + e.getMessage() );
+        }
+        finally {
+            inflater.reset();
+            inflaters.offer( inflater );
+        }
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Encodes a frame of records (batch or result). */
+    private static byte[] encodeRecords( byte type , long number , List <Record> records ) {
+        try {
+            int size = 0;
+            for ( Record record : records ) {
+                size += record.getSize();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 32 + size );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( 0 );
+            out.writeByte( type );
+            out.writeLong( number );
+            out.writeInt( records.size() );
+            for ( Record record : records ) {
+                writeRecord( out , record );
+            }
+            out.close();
+            byte[] frame = bytes.toByteArray();
+            setLength( frame );
+            return frame;
+        }
+        catch ( IOException e ) {
+            // Not with a byte array
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /** Writes the length of the rest of the frame into its first 4 bytes. */
+    private static void setLength( byte[] frame ) {
+        int length = frame.length - 4;
+        frame[0] = (byte) ( length >>> 24 );
+        frame[1] = (byte) ( length >>> 16 );
+        frame[2] = (byte) ( length >>> 8 );
+        frame[3] = (byte) length;
+    }
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    /** Deflaters and inflaters not in use (they hold native memory, best reused). */
+    private static final Queue <Deflater> deflaters = new ConcurrentLinkedQueue <Deflater>();
+    private static final Queue <Inflater> inflaters = new ConcurrentLinkedQueue <Inflater>();
+}
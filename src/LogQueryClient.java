@@ -0,0 +1,175 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.List;
+
+/**
+   Asks the log server ({@link LogIngestServer}) for conversation
+   history, with query and search frames (see {@link LogProtocol}).
+
+   <p> One connection, opened for the first query and kept for the next
+   ones (opened again after a failure); one query at a time.
+
+   <p> To print the last lines of an account's conversations (with a
+   contact if given), or the last records with all the words:
+   <br> $ java -cp bin LogQueryClient host:port account [contact] [lines]
+   <br> $ java -cp bin LogQueryClient host:port -search account words...
+ */
+class LogQueryClient {
+
+    /** Prints the history asked for. */
+    public static void main( String[] args )
+        throws Exception {
+
+        String server = args[0];
+        int colon = server.lastIndexOf( ':' );
+        LogQueryClient client = new LogQueryClient( server.substring( 0 , colon ) ,
+                                                    Integer.parseInt( server.substring( colon + 1 ) ) );
+        long start = System.nanoTime();
+        List <LogProtocol.Record> records;
+        if ( args[1].equals( "-search" ) ) {
+            StringBuilder words = new StringBuilder();
+            for ( int i = 3 ; i < args.length ; ++i ) {
+                words.append( args[i] ).append( ' ' );
+            }
+            records = client.search( new LogProtocol.Search( args[2] , "" , words.toString() , 20 ) );
+        }
+        else {
+            String contact = ( args.length > 2 ) ? args[2] : "";
+            int lines = ( args.length > 3 ) ? Integer.parseInt( args[3] ) : 200;
+            records = client.query( new LogProtocol.Query( args[1] , contact , 0 , Long.MAX_VALUE , lines ) );
+        }
+        long elapsed = System.nanoTime() - start;
+        for ( LogProtocol.Record record : records ) {
+            String with = record.getContact().isEmpty() ? "" : " with " + record.getContact();
+            System.out.println( "--- " + record.getAccount() + with + ", " + new Date( record.getTime() ) );
+            for ( String line : record.getLines() ) {
+                System.out.println( line );
+            }
+        }
+        System.out.println( String.format( "%d records in %.1f ms" , records.size() , elapsed / 1e6 ) );
+        client.close();
+    }
+
+    /** Gets the client of the log server the logs are shipped to. */
+    public static synchronized LogQueryClient getDefault() {
+        if ( defaultClient == null ) {
+            InetSocketAddress server = LogShipper.getServerAddress();
+            defaultClient = new LogQueryClient( server.getHostString() , server.getPort() );
+        }
+        return defaultClient;
+    }
+
+    /** Constructor (doesn't connect yet). */
+    public LogQueryClient( String host , int port ) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+       Asks for history, and waits for the answer.
+       @return the records, in the order they were saved
+       @throws IOException if the server can't be reached or doesn't
+                           answer in time
+     */
+    public synchronized List <LogProtocol.Record> query( LogProtocol.Query query )
+        throws IOException {
+
+        long requestId = ++lastRequestId;
+        return request( requestId , LogProtocol.encodeQuery( requestId , query ) );
+    }
+
+    /**
+       Searches the history, and waits for the answer.
+       @return the last records with all the words, in the order they
+               were saved
+       @throws IOException if the server can't be reached or doesn't
+                           answer in time
+     */
+    public synchronized List <LogProtocol.Record> search( LogProtocol.Search search )
+        throws IOException {
+
+        long requestId = ++lastRequestId;
+        return request( requestId , LogProtocol.encodeSearch( requestId , search ) );
+    }
+
+    /** Closes the connection (opened again by the next query). */
+    public synchronized void close() {
+        if ( socket != null ) {
+            try {
+                socket.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+            socket = null;
+        }
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Sends a query or search frame, and reads the result. */
+    private List <LogProtocol.Record> request( long requestId , byte[] request )
+        throws IOException {
+
+        try {
+            if ( socket == null ) {
+                connect();
+            }
+            out.write( request );
+            out.flush();
+            while ( true ) {
+                byte[] frame = LogProtocol.readFrame( in );
+                if ( frame[0] != LogProtocol.RESULT ) {
+                    continue;
+                }
+                DataInputStream result = new DataInputStream( new ByteArrayInputStream( frame , 1 , frame.length - 1 ) );
+                if ( result.readLong() == requestId ) {
+                    return LogProtocol.decodeBatch( result );
+                }
+            }
+        }
+        catch ( IOException e ) {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect()
+        throws IOException {
+
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect( new InetSocketAddress( host , port ) , TIMEOUT );
+            newSocket.setTcpNoDelay( true );
+            newSocket.setSoTimeout( TIMEOUT );
+            out = new DataOutputStream( new BufferedOutputStream( newSocket.getOutputStream() ) );
+            out.writeInt( LogProtocol.PREAMBLE );
+            out.writeByte( LogProtocol.VERSION );
+            in = new DataInputStream( new BufferedInputStream( newSocket.getInputStream() , 64 * 1024 ) );
+        }
+        catch ( IOException e ) {
+            newSocket.close();
+            throw e;
+        }
+        socket = newSocket;
+    }
+
+    /** Longest wait to connect, or for an answer (millisec). */
+    private static final int TIMEOUT = 10000;
+
+    private static LogQueryClient defaultClient;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long lastRequestId = 0;
+}
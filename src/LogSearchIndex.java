@@ -0,0 +1,653 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+   Full-text index of the conversations in a {@link LogStore}: for each
+   word, the offsets of the records that have it.
+
+   <p> An indexer thread follows the store: it reads the records as they
+   become durable, and adds each to the posting lists of its words (and
+   of its account and contact, so that a search can be limited to
+   them). The posting lists are kept in memory, compressed (the
+   differences between offsets, in 7-bit groups), until they cover
+   <i>runSize</i> bytes of the store; they are then written to a run
+   file (<code>search-N.run</code>, N the offset after the last record)
+   and read from there through a memory mapping. The dictionary, from
+   each word to where its posting lists are in the runs, stays in
+   memory; it is loaded from the run files when the index is opened,
+   and the indexer goes on from the end of the last run.
+
+   <p> {@link #search} finds the records having all the words of a text,
+   newest first: the posting lists of the words are intersected run by
+   run, from the last one, until enough records are found, and only
+   those records are read from the store.
+
+   <p> Run file: a header (magic, version, offsets of the first record
+   and after the last one, number of words), then for each word: the
+   word (UTF), the number of records, the length of the posting list
+   and the posting list. The first number of a posting list is the
+   offset of the first record from the start of the run.
+ */
+class LogSearchIndex {
+
+    /** Default bytes of records per run file. */
+    public static final long DEFAULT_RUN_SIZE = 64L * 1024 * 1024;
+
+    /** Longest word indexed (longer ones are not words people search for). */
+    public static final int MAX_TERM_LENGTH = 32;
+
+    /**
+       Constructor: loads the dictionary of the run files in the
+       directory (doesn't start the indexer).
+       @param runSize bytes of records indexed in memory before a run file
+                      is written
+     */
+    public LogSearchIndex( LogStore store , File dir , long runSize )
+        throws IOException {
+
+        this.store = store;
+        this.dir = dir;
+        this.runSize = runSize;
+        if ( ! dir.isDirectory() && ! dir.mkdirs() ) {
+            throw new IOException( "Unable to create " + dir );
+        }
+        for ( File file : getRunFiles() ) {
+            loadRun( file );
+        }
+        indexedOffset = runs.isEmpty() ? 0 : runs.get( runs.size() - 1 ).end;
+        activeStart = indexedOffset;
+
+        indexer = JabberThreads.newThread( new Runnable() {
+            public void run() {
+                runIndexer();
+            }
+        } , "LogSearchIndexer" , true );
+    }
+
+    /** Starts the indexer thread. */
+    public void start() {
+        indexer.start();
+    }
+
+    /**
+       Finds the newest records having all the words of a text.
+       @param account only the records of this account, or null for all
+       @param contact only the conversations with this contact, or null
+                      for all
+       @return the records, in the order they were appended
+     */
+    public List <LogProtocol.Record> search( String account , String contact , String text , int maxRecords )
+        throws IOException {
+
+        Set <String> terms = new LinkedHashSet <String>( getTerms( text ) );
+        if ( terms.isEmpty() || maxRecords <= 0 ) {
+            return Collections.emptyList();
+        }
+        if ( account != null ) {
+            terms.add( ACCOUNT_TERM + account );
+        }
+        if ( contact != null ) {
+            terms.add( CONTACT_TERM + contact );
+        }
+
+        // The posting lists of the terms in each run, and in memory (the last "run")
+        List <ByteBuffer[]> postings = new ArrayList <ByteBuffer[]>();
+        List <Long> starts = new ArrayList <Long>();
+        synchronized ( this ) {
+            List <Term> found = new ArrayList <Term>();
+            for ( String term : terms ) {
+                Term entry = dictionary.get( term );
+                if ( entry == null ) {
+                    return Collections.emptyList();
+                }
+                found.add( entry );
+            }
+            for ( int r = 0 ; r <= runs.size() ; ++r ) {
+                Run run = ( r < runs.size() ) ? runs.get( r ) : null;
+                ByteBuffer[] lists = new ByteBuffer[ found.size() ];
+                for ( int t = 0 ; t < lists.length ; ++t ) {
+                    lists[t] = found.get( t ).getPostings( r , run );
+                    if ( lists[t] == null ) {
+                        // Not all the terms in this run
+                        lists = null;
+                        break;
+                    }
+                }
+                postings.add( lists );
+                starts.add( ( run == null ) ? activeStart : run.start );
+            }
+        }
+
+        // Newest first
+        List <Long> offsets = new ArrayList <Long>();
+        for ( int r = postings.size() - 1 ; r >= 0 && offsets.size() < maxRecords ; --r ) {
+            if ( postings.get( r ) == null ) {
+                continue;
+            }
+            long[] matches = intersect( postings.get( r ) , starts.get( r ) );
+            for ( int i = matches.length - 1 ; i >= 0 && offsets.size() < maxRecords ; --i ) {
+                offsets.add( matches[i] );
+            }
+        }
+        Collections.reverse( offsets );
+
+        List <LogProtocol.Record> records = new ArrayList <LogProtocol.Record>( offsets.size() );
+        for ( LogProtocol.Record record : store.read( offsets ) ) {
+            if ( record != null ) {
+                records.add( record );
+            }
+        }
+        return records;
+    }
+
+    /**
+       Cuts a text into the words indexed: letters and digits, in lower
+       case.
+     */
+    public static List <String> getTerms( String text ) {
+        List <String> terms = new ArrayList <String>();
+        addTerms( text , terms );
+        return terms;
+    }
+
+    /** Adds the words of a text to a list (see getTerms()). */
+    private static void addTerms( String text , List <String> terms ) {
+        StringBuilder term = new StringBuilder();
+        for ( int i = 0 ; i <= text.length() ; ++i ) {
+            char c = ( i < text.length() ) ? text.charAt( i ) : ' ';
+            if ( Character.isLetterOrDigit( c ) ) {
+                term.append( Character.toLowerCase( c ) );
+            }
+            else if ( term.length() > 0 ) {
+                if ( term.length() <= MAX_TERM_LENGTH ) {
+                    terms.add( term.toString() );
+                }
+                term.setLength( 0 );
+            }
+        }
+    }
+
+    /** Gets the offset up to which the records are indexed. */
+    public synchronized long getIndexedOffset() {
+        return indexedOffset;
+    }
+
+    /** Gets the number of records indexed since opened. */
+    public synchronized long getIndexedRecords() {
+        return indexedRecords;
+    }
+
+    /** Gets the number of different words (and accounts and contacts). */
+    public synchronized int getTermCount() {
+        return dictionary.size();
+    }
+
+    /** Gets the bytes of the run files. */
+    public synchronized long getRunBytes() {
+        long bytes = 0;
+        for ( Run run : runs ) {
+            bytes += run.postings.capacity();
+        }
+        return bytes;
+    }
+
+    /** Stops the indexer, and writes what it has in memory to a run file. */
+    public void close()
+        throws IOException {
+
+        synchronized ( this ) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            indexer.join();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if ( ! indexer.isAlive() && indexedOffset > activeStart ) {
+            writeRun();
+        }
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** A run file, mapped. */
+    private static class Run {
+
+        Run( long start , long end , MappedByteBuffer postings ) {
+            this.start = start;
+            this.end = end;
+            this.postings = postings;
+        }
+
+        /** Offsets of the first record and after the last one. */
+        final long start;
+        final long end;
+        final MappedByteBuffer postings;
+    }
+
+    /** A word of the dictionary: where its posting lists are, and the one in memory. */
+    private static class Term {
+
+        /** Adds a record to the posting list in memory. */
+        void add( long offset , long activeStart ) {
+            if ( active == null ) {
+                active = new byte[ 8 ];
+                lastOffset = activeStart;
+            }
+            if ( active.length < activeLength + 10 ) {
+                active = Arrays.copyOf( active , active.length * 2 );
+            }
+            activeLength = writeVarLong( active , activeLength , offset - lastOffset );
+            lastOffset = offset;
+            ++activeCount;
+        }
+
+        /** Records that the posting list in memory was written to a run file. */
+        void addRun( int run , int position ) {
+            if ( runs == null ) {
+                runs = new int[ 1 ];
+                positions = new int[ 1 ];
+                lengths = new int[ 1 ];
+            }
+            else if ( runs.length == runCount ) {
+                runs = Arrays.copyOf( runs , runCount * 2 );
+                positions = Arrays.copyOf( positions , runCount * 2 );
+                lengths = Arrays.copyOf( lengths , runCount * 2 );
+            }
+            runs[ runCount ] = run;
+            positions[ runCount ] = position;
+            lengths[ runCount ] = activeLength;
+            ++runCount;
+        }
+
+        void clearActive() {
+            active = null;
+            activeLength = 0;
+            activeCount = 0;
+        }
+
+        /**
+           Gets the posting list of a run (the one in memory for the run
+           after the last), null if the word isn't in it.
+         */
+        ByteBuffer getPostings( int run , Run file ) {
+            if ( file == null ) {
+                return ( active == null ) ? null : ByteBuffer.wrap( Arrays.copyOf( active , activeLength ) );
+            }
+            int i = ( runs == null ) ? -1 : Arrays.binarySearch( runs , 0 , runCount , run );
+            if ( i < 0 ) {
+                return null;
+            }
+            ByteBuffer postings = file.postings.duplicate();
+            postings.limit( positions[i] + lengths[i] ).position( positions[i] );
+            return postings.slice();
+        }
+
+        /** Runs with a posting list of the word, where it is in their file, and its length. */
+        int[] runs;
+        int[] positions;
+        int[] lengths;
+        int runCount = 0;
+        /** The posting list in memory, and the last offset in it (indexer thread, with the lock). */
+        byte[] active;
+        int activeLength = 0;
+        int activeCount = 0;
+        long lastOffset;
+    }
+
+    /** Body of the indexer thread: follows the store. */
+    private void runIndexer() {
+
+        LogStore.Visitor visitor = new LogStore.Visitor() {
+            public boolean visit( long offset , LogProtocol.Record record ) {
+                add( offset , record );
+                // Stops for a run file to be written
+                return ! closed && offset - activeStart < runSize;
+            }
+        };
+        while ( ! closed ) {
+            try {
+                long durable = store.getDurableOffset();
+                if ( durable > indexedOffset ) {
+                    long end = store.scan( indexedOffset , visitor );
+                    synchronized ( this ) {
+                        indexedOffset = end;
+                    }
+                    if ( indexedOffset - activeStart >= runSize ) {
+                        writeRun();
+                    }
+                    continue;
+                }
+
+                // Wait for more
+                store.whenDurable( durable + 1 , new Runnable() {
+                    public void run() {
+                        synchronized ( LogSearchIndex.this ) {
+                            moreDurable = true;
+                            LogSearchIndex.this.notifyAll();
+                        }
+                    }
+                } );
+                synchronized ( this ) {
+                    while ( ! moreDurable && ! closed ) {
+                        wait();
+                    }
+                    moreDurable = false;
+                }
+            }
+            catch ( InterruptedException e ) {
+                break;
+            }
+            catch ( IOException e ) {
+                EventLog.log( "Could not index the log store: " , e );
+                System.err.println( "Could not index the log store: " + e );
+                try {
+                    Thread.sleep( 1000 );
+                }
+                catch ( InterruptedException e2 ) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Adds a record to the posting lists in memory (indexer thread). */
+    private void add( long offset , LogProtocol.Record record ) {
+
+        List <String> terms = new ArrayList <String>( 256 );
+        for ( String line : record.getLines() ) {
+            addTerms( line , terms );
+        }
+        terms.add( ACCOUNT_TERM + record.getAccount() );
+        terms.add( CONTACT_TERM + record.getContact() );
+
+        synchronized ( this ) {
+            for ( String word : terms ) {
+                Term term = dictionary.get( word );
+                if ( term == null ) {
+                    term = new Term();
+                    dictionary.put( word , term );
+                }
+                if ( term.active == null ) {
+                    activeTerms.add( word );
+                }
+                else if ( term.lastOffset == offset ) {
+                    // Already in this record
+                    continue;
+                }
+                term.add( offset , activeStart );
+            }
+            ++indexedRecords;
+        }
+    }
+
+    /** Writes the posting lists in memory to a run file (indexer thread, or once it is stopped). */
+    private void writeRun()
+        throws IOException {
+
+        // The indexer doesn't change them meanwhile, and searches only read them
+        List <String> words;
+        long start;
+        long end;
+        synchronized ( this ) {
+            words = new ArrayList <String>( activeTerms );
+            start = activeStart;
+            end = indexedOffset;
+        }
+        File file = getRunFile( end );
+        File temp = new File( file.getPath() + ".tmp" );
+        FileOutputStream fileOut = new FileOutputStream( temp );
+        int[] positions = new int[ words.size() ];
+        try {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut , 64 * 1024 ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( start );
+            out.writeLong( end );
+            out.writeInt( words.size() );
+            for ( int i = 0 ; i < positions.length ; ++i ) {
+                Term term = dictionary.get( words.get( i ) );
+                out.writeUTF( words.get( i ) );
+                out.writeInt( term.activeCount );
+                out.writeInt( term.activeLength );
+                positions[i] = out.size();
+                out.write( term.active , 0 , term.activeLength );
+            }
+            out.flush();
+            fileOut.getChannel().force( false );
+        }
+        finally {
+            fileOut.close();
+        }
+        if ( ! temp.renameTo( file ) ) {
+            throw new IOException( "Unable to rename " + temp + " to " + file );
+        }
+
+        MappedByteBuffer postings = map( file );
+        synchronized ( this ) {
+            int run = runs.size();
+            runs.add( new Run( start , end , postings ) );
+            for ( int i = 0 ; i < positions.length ; ++i ) {
+                Term term = dictionary.get( words.get( i ) );
+                term.addRun( run , positions[i] );
+                term.clearActive();
+            }
+            activeTerms.clear();
+            activeStart = end;
+        }
+    }
+
+    /** Loads the dictionary of a run file (constructor). */
+    private void loadRun( File file )
+        throws IOException {
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) , 64 * 1024 ) );
+        try {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException( "Not a search index run: " + file );
+            }
+            long start = in.readLong();
+            long end = in.readLong();
+            int count = in.readInt();
+            int run = runs.size();
+            runs.add( new Run( start , end , map( file ) ) );
+            int position = HEADER_SIZE;
+            for ( int i = 0 ; i < count ; ++i ) {
+                String word = in.readUTF();
+                in.readInt();
+                int length = in.readInt();
+                position += 2 + utfLength( word ) + 8;
+                Term term = dictionary.get( word );
+                if ( term == null ) {
+                    term = new Term();
+                    dictionary.put( word , term );
+                }
+                term.activeLength = length;
+                term.addRun( run , position );
+                term.activeLength = 0;
+                position += length;
+                if ( in.skipBytes( length ) != length ) {
+                    throw new IOException( "Search index run cut: " + file );
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+       Intersects posting lists.
+       @return the offsets in all of them, in order
+     */
+    private static long[] intersect( ByteBuffer[] lists , long start ) {
+
+        // From the shortest, the others read without decoding them to arrays
+        ByteBuffer[] sorted = lists.clone();
+        Arrays.sort( sorted , SHORTEST_FIRST );
+        long[] result = decode( sorted[0] , start );
+        int n = result.length;
+        for ( int i = 1 ; i < sorted.length && n > 0 ; ++i ) {
+            ByteBuffer other = sorted[i];
+            long offset = start;
+            // The last offset read from the other list
+            long current = -1;
+            int kept = 0;
+            for ( int j = 0 ; j < n ; ++j ) {
+                while ( current < result[j] && other.hasRemaining() ) {
+                    offset += readVarLong( other );
+                    current = offset;
+                }
+                if ( current == result[j] ) {
+                    result[ kept++ ] = current;
+                }
+                else if ( current < result[j] ) {
+                    // The other list ended
+                    break;
+                }
+            }
+            n = kept;
+        }
+        return Arrays.copyOf( result , n );
+    }
+
+    /** Decodes a posting list into offsets. */
+    private static long[] decode( ByteBuffer postings , long start ) {
+        long[] offsets = new long[ 16 ];
+        int n = 0;
+        long offset = start;
+        while ( postings.hasRemaining() ) {
+            offset += readVarLong( postings );
+            if ( n == offsets.length ) {
+                offsets = Arrays.copyOf( offsets , n * 2 );
+            }
+            offsets[ n++ ] = offset;
+        }
+        return Arrays.copyOf( offsets , n );
+    }
+
+    /**
+       Writes a number in 7-bit groups, lowest first (the high bit set
+       when more follow).
+       @return the position after it
+     */
+    private static int writeVarLong( byte[] bytes , int position , long value ) {
+        while ( ( value & ~0x7fL ) != 0 ) {
+            bytes[ position++ ] = (byte) ( ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+        bytes[ position++ ] = (byte) value;
+        return position;
+    }
+
+    /** Reads a number written by writeVarLong(). */
+    private static long readVarLong( ByteBuffer bytes ) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes.get();
+            value |= (long) ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( b < 0 );
+        return value;
+    }
+
+    /** Gets the bytes of a string written with writeUTF() (without its length). */
+    private static int utfLength( String s ) {
+        int length = 0;
+        for ( int i = 0 ; i < s.length() ; ++i ) {
+            char c = s.charAt( i );
+            length += ( c >= 1 && c <= 0x7f ) ? 1 : ( ( c <= 0x7ff ) ? 2 : 3 );
+        }
+        return length;
+    }
+
+    private static MappedByteBuffer map( File file )
+        throws IOException {
+
+        FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ );
+        try {
+            return channel.map( FileChannel.MapMode.READ_ONLY , 0 , channel.size() );
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /** Gets the run files, in order. */
+    private File[] getRunFiles() {
+        File[] files = dir.listFiles();
+        List <File> runFiles = new ArrayList <File>();
+        if ( files != null ) {
+            for ( File file : files ) {
+                if ( file.getName().startsWith( RUN_PREFIX ) && file.getName().endsWith( RUN_SUFFIX ) ) {
+                    runFiles.add( file );
+                }
+            }
+        }
+        File[] sorted = runFiles.toArray( new File[ runFiles.size() ] );
+        // The names have the same length
+        Arrays.sort( sorted );
+        return sorted;
+    }
+
+    private File getRunFile( long end ) {
+        return new File( dir , String.format( RUN_PREFIX + "%020d" + RUN_SUFFIX , end ) );
+    }
+
+    /** Orders posting lists by length. */
+    private static final Comparator <ByteBuffer> SHORTEST_FIRST = new Comparator <ByteBuffer>() {
+        public int compare( ByteBuffer a , ByteBuffer b ) {
+            return Integer.compare( a.remaining() , b.remaining() );
+        }
+    };
+
+    /** Prefixes of the terms of accounts and contacts (not words: words have no control characters). */
+    private static final String ACCOUNT_TERM = "\u0001a";
+    private static final String CONTACT_TERM = "\u0001c";
+
+    private static final String RUN_PREFIX = "search-";
+    private static final String RUN_SUFFIX = ".run";
+    private static final int MAGIC = 0x4a4c5352;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+
+    private final LogStore store;
+    private final File dir;
+    private final long runSize;
+    private final Thread indexer;
+    private volatile boolean closed = false;
+
+    // Guarded by this
+    private final Map <String , Term> dictionary = new HashMap <String , Term>();
+    private final List <Run> runs = new ArrayList <Run>();
+    /** Terms with a posting list in memory. */
+    private final List <String> activeTerms = new ArrayList <String>();
+    /** Offset of the first record of the posting lists in memory. */
+    private long activeStart;
+    private long indexedOffset;
+    private long indexedRecords = 0;
+    private boolean moreDurable = false;
+}
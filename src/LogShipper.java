@@ -0,0 +1,469 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Ships conversation logs to the log server over one long-lived
+   connection, in the background.
+
+   <p> {@link #ship} only queues the record and returns at once (false
+   if too much is already queued), so chatting never waits for the log
+   server. A background thread takes what has queued up, from any
+   conversation or account, and sends it as one batch frame (see
+   {@link LogProtocol}); it doesn't wait for each batch to be
+   acknowledged before sending the next, up to a window of batches.
+   A batch is only forgotten once the server has acknowledged it: if the
+   connection fails, the shipper re-connects (waiting longer after each
+   failure) and sends the unacknowledged batches again, and the server
+   skips the ones it had already written.
+
+   <p> Batches are compressed ({@link LogProtocol#DEFLATED_BATCH}) unless
+   told otherwise: it takes the shipping thread some CPU, but conversation
+   lines shrink to about a fifth, and so do the bytes to send and to hold
+   for re-sending.
+
+   <p> The log server is localhost:9119 unless given with
+   <code>-Djabber.logserver=host:port</code>.
+ */
+class LogShipper {
+
+    /** Gets the shipper shared by all conversations. */
+    public static synchronized LogShipper getDefault() {
+        if ( defaultShipper == null ) {
+            InetSocketAddress server = getServerAddress();
+            defaultShipper = new LogShipper( server.getHostString() , server.getPort() , 8 * 1024 * 1024 , 256 * 1024 , 8 );
+        }
+        return defaultShipper;
+    }
+
+    /** Gets the address of the log server (not resolved). */
+    public static InetSocketAddress getServerAddress() {
+        String server = System.getProperty( "jabber.logserver" , "localhost:" + DEFAULT_PORT );
+        int colon = server.lastIndexOf( ':' );
+        String host = ( colon < 0 ) ? server : server.substring( 0 , colon );
+        int port = ( colon < 0 ) ? DEFAULT_PORT : Integer.parseInt( server.substring( colon + 1 ) );
+        return InetSocketAddress.createUnresolved( host , port );
+    }
+
+    /**
+       Constructor. Starts the shipping thread (it connects once there is
+       something to ship).
+       @param maxQueuedBytes about the most bytes of records held (queued
+                             or not acknowledged yet)
+       @param maxBatchBytes  about the most bytes of records per batch
+       @param window         the most batches not acknowledged yet
+     */
+    public LogShipper( String host , int port , long maxQueuedBytes , int maxBatchBytes , int window ) {
+        this( host , port , maxQueuedBytes , maxBatchBytes , window , true );
+    }
+
+    /**
+       Constructor. Starts the shipping thread (it connects once there is
+       something to ship).
+       @param maxQueuedBytes about the most bytes of records held (queued
+                             or not acknowledged yet)
+       @param maxBatchBytes  about the most bytes of records per batch
+       @param window         the most batches not acknowledged yet
+       @param compress       whether to compress the batches
+     */
+    public LogShipper( String host , int port , long maxQueuedBytes , int maxBatchBytes , int window , boolean compress ) {
+        this.host = host;
+        this.compress = compress;
+        this.port = port;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        this.window = window;
+        this.sessionId = new Random().nextLong() ^ System.nanoTime();
+
+        writer = JabberThreads.newThread( new Runnable() {
+            public void run() {
+                runWriter();
+            }
+        } , "LogShipper" , true );
+        writer.start();
+    }
+
+    /**
+       Queues a record to be shipped. Doesn't block.
+       @return false if too much is queued already (the record is not
+               shipped, the caller should keep it and try again later)
+     */
+    public boolean ship( LogProtocol.Record record ) {
+        if ( closed ) {
+            return false;
+        }
+        int size = record.getSize();
+        long total = queuedBytes.addAndGet( size );
+        if ( total > maxQueuedBytes && total != size ) {
+            // (A record bigger than the limit still goes if nothing else is queued)
+            queuedBytes.addAndGet( -size );
+            rejectedRecords.incrementAndGet();
+            return false;
+        }
+        pending.add( record );
+        return true;
+    }
+
+    /**
+       Waits for everything queued so far to be acknowledged.
+       @return false if the time ran out first
+     */
+    public boolean flush( long timeoutMillis )
+        throws InterruptedException {
+
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized ( this ) {
+            while ( queuedBytes.get() > 0 ) {
+                long left = end - System.currentTimeMillis();
+                if ( left <= 0 ) {
+                    return false;
+                }
+                wait( Math.min( left , 100 ) );
+            }
+        }
+        return true;
+    }
+
+    /**
+       Waits (up to the given time) for everything queued to be
+       acknowledged, then stops shipping.
+       @return the records not acknowledged (to be saved some other way)
+     */
+    public List <LogProtocol.Record> close( long timeoutMillis ) {
+        try {
+            flush( timeoutMillis );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        // Closing the socket first ends a write the writer is blocked in
+        synchronized ( this ) {
+            disconnect( socket , null );
+        }
+        writer.interrupt();
+        try {
+            // At worst it is connecting
+            writer.join( CONNECT_TIMEOUT + 1000 );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+
+        List <LogProtocol.Record> unsaved = new ArrayList <LogProtocol.Record>();
+        synchronized ( this ) {
+            for ( Batch batch : inFlight ) {
+                unsaved.addAll( batch.records );
+            }
+            inFlight.clear();
+        }
+        pending.drainTo( unsaved );
+        if ( writer.isAlive() ) {
+            // Its batch is not read while it may still change
+            EventLog.log( "Log shipper writer still running, its batch is not saved: " , writer );
+        }
+        else {
+            unsaved.addAll( writerBatch );
+        }
+        queuedBytes.set( 0 );
+        return unsaved;
+    }
+
+    /** Gets the number of batches acknowledged by the server. */
+    public long getShippedBatches() {
+        return shippedBatches;
+    }
+
+    /** Gets the number of lines acknowledged by the server. */
+    public long getShippedLines() {
+        return shippedLines;
+    }
+
+    /** Gets the bytes of records queued or not acknowledged yet. */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** Gets the number of records refused because too much was queued. */
+    public long getRejectedRecords() {
+        return rejectedRecords.get();
+    }
+
+    /** Gets the number of times the connection failed. */
+    public long getConnectionFailures() {
+        return connectionFailures;
+    }
+
+    /** Gets the number of batches sent again after a connection failure. */
+    public long getResentBatches() {
+        return resentBatches;
+    }
+
+    /** Gets the bytes of records put in batches (as encoded uncompressed). */
+    public long getBatchedBytes() {
+        return batchedBytes;
+    }
+
+    /** Gets the bytes of the batch frames made of them (compressed or not). */
+    public long getFrameBytes() {
+        return frameBytes;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** A batch sent but not acknowledged yet. */
+    private static class Batch {
+
+        Batch( long id , List <LogProtocol.Record> records , byte[] frame , int bytes ) {
+            this.id = id;
+            this.records = records;
+            this.frame = frame;
+            this.bytes = bytes;
+        }
+
+        final long id;
+        final List <LogProtocol.Record> records;
+        final byte[] frame;
+        final int bytes;
+    }
+
+    /** Body of the shipping thread. */
+    private void runWriter() {
+
+        int failures = 0;
+        while ( ! closed ) {
+            try {
+                if ( writerBatch.isEmpty() ) {
+                    LogProtocol.Record first = pending.poll( 1 , TimeUnit.SECONDS );
+                    if ( first == null ) {
+                        continue;
+                    }
+                    writerBatch.add( first );
+                }
+
+                DataOutputStream out = connect();
+                Socket current = waitForWindow();
+
+                // Take in what queued up meanwhile
+                int bytes = 0;
+                for ( LogProtocol.Record record : writerBatch ) {
+                    bytes += record.getSize();
+                }
+                LogProtocol.Record next;
+                while ( bytes < maxBatchBytes && ( next = pending.poll() ) != null ) {
+                    writerBatch.add( next );
+                    bytes += next.getSize();
+                }
+
+                List <LogProtocol.Record> records = new ArrayList <LogProtocol.Record>( writerBatch );
+                Batch batch = new Batch( ++lastBatchId , records , LogProtocol.encodeBatch( lastBatchId , records , compress ) , bytes );
+                batchedBytes += bytes;
+                frameBytes += batch.frame.length;
+                synchronized ( this ) {
+                    // Moved in one step: the records are never in both
+                    inFlight.add( batch );
+                    writerBatch.clear();
+                }
+
+                // If this fails, the batch is sent again after re-connecting
+                try {
+                    out.write( batch.frame );
+                    out.flush();
+                }
+                catch ( IOException e ) {
+                    disconnect( current , e );
+                    throw e;
+                }
+                failures = 0;
+            }
+            catch ( InterruptedException e ) {
+                // Closed
+            }
+            catch ( IOException e ) {
+                ++connectionFailures;
+                try {
+                    Thread.sleep( getRetryDelay( failures++ ) );
+                }
+                catch ( InterruptedException e2 ) {
+                    // Closed
+                }
+            }
+        }
+    }
+
+    /**
+       Connects to the server if not connected, and sends the batches not
+       acknowledged yet.
+       @return the stream to write to the server
+     */
+    private DataOutputStream connect()
+        throws IOException {
+
+        synchronized ( this ) {
+            if ( socket != null ) {
+                return output;
+            }
+        }
+
+        final Socket newSocket = new Socket();
+        try {
+            newSocket.connect( new InetSocketAddress( host , port ) , CONNECT_TIMEOUT );
+            newSocket.setTcpNoDelay( true );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( newSocket.getOutputStream() , 64 * 1024 ) );
+            out.writeInt( LogProtocol.PREAMBLE );
+            out.writeByte( LogProtocol.VERSION );
+            out.write( LogProtocol.encodeFrame( LogProtocol.HELLO , sessionId ) );
+
+            List <Batch> unacknowledged;
+            synchronized ( this ) {
+                unacknowledged = new ArrayList <Batch>( inFlight );
+                socket = newSocket;
+                output = out;
+            }
+            for ( Batch batch : unacknowledged ) {
+                out.write( batch.frame );
+                ++resentBatches;
+            }
+            out.flush();
+        }
+        catch ( IOException e ) {
+            disconnect( newSocket , e );
+            newSocket.close();
+            throw e;
+        }
+
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( newSocket.getInputStream() ) );
+        JabberThreads.newThread( new Runnable() {
+            public void run() {
+                readAcks( newSocket , in );
+            }
+        } , "LogShipperAcks" , true ).start();
+        EventLog.log( "Log shipper connected to " , host + ":" + port );
+        return output;
+    }
+
+    /**
+       Waits until fewer than the window of batches are not acknowledged.
+       @return the current connection
+       @throws IOException if the connection failed meanwhile
+     */
+    private synchronized Socket waitForWindow()
+        throws IOException , InterruptedException {
+
+        Socket current = socket;
+        while ( inFlight.size() >= window ) {
+            if ( socket != current || current == null ) {
+                throw new IOException( "Disconnected from the log server" );
+            }
+            wait( 1000 );
+        }
+        if ( socket != current || current == null ) {
+            throw new IOException( "Disconnected from the log server" );
+        }
+        return current;
+    }
+
+    /** Body of the thread reading a connection's acks. */
+    private void readAcks( Socket connection , DataInputStream in ) {
+        try {
+            while ( true ) {
+                byte[] frame = LogProtocol.readFrame( in );
+                if ( frame[0] == LogProtocol.ACK ) {
+                    acknowledged( LogProtocol.getValue( frame ) );
+                }
+            }
+        }
+        catch ( IOException e ) {
+            disconnect( connection , e );
+        }
+    }
+
+    /** Forgets the batches up to the given one. */
+    private synchronized void acknowledged( long batchId ) {
+        while ( ! inFlight.isEmpty() && inFlight.peekFirst().id <= batchId ) {
+            Batch batch = inFlight.removeFirst();
+            for ( LogProtocol.Record record : batch.records ) {
+                shippedLines += record.getLines().size();
+            }
+            ++shippedBatches;
+            queuedBytes.addAndGet( -batch.bytes );
+        }
+        notifyAll();
+    }
+
+    /** Closes the given connection, if it is the current one. */
+    private synchronized void disconnect( Socket connection , IOException cause ) {
+        if ( connection == null || connection != socket ) {
+            return;
+        }
+        if ( cause != null ) {
+            EventLog.log( "Log shipper disconnected from " , host + ":" + port , ": " , cause );
+        }
+        try {
+            socket.close();
+        }
+        catch ( IOException e ) {
+            // Closing anyway
+        }
+        socket = null;
+        output = null;
+        notifyAll();
+    }
+
+    /** Gets the time to wait before re-connecting (millisec), with some jitter. */
+    private static long getRetryDelay( int failures ) {
+        long delay = Math.min( MAX_RETRY_DELAY , 100L << Math.min( failures , 10 ) );
+        return delay / 2 + (long) ( Math.random() * delay / 2 );
+    }
+
+    private static final int DEFAULT_PORT = 9119;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final long MAX_RETRY_DELAY = 10000;
+
+    private static LogShipper defaultShipper;
+
+    private final String host;
+    private final int port;
+    private final long maxQueuedBytes;
+    private final int maxBatchBytes;
+    private final int window;
+    private final boolean compress;
+    private final long sessionId;
+    private final Thread writer;
+
+    /** Records queued, not taken by the shipping thread yet. */
+    private final LinkedBlockingQueue <LogProtocol.Record> pending = new LinkedBlockingQueue <LogProtocol.Record>();
+    /** Bytes of the records queued, in a batch or not acknowledged. */
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /** Records taken for the next batch (shipping thread only). */
+    private final List <LogProtocol.Record> writerBatch = new ArrayList <LogProtocol.Record>();
+    /** Batches sent and not acknowledged, oldest first (guarded by this). */
+    private final ArrayDeque <Batch> inFlight = new ArrayDeque <Batch>();
+    /** Number of the last batch made (shipping thread only). */
+    private long lastBatchId = 0;
+
+    /** Current connection, null if not connected (guarded by this). */
+    private Socket socket;
+    private DataOutputStream output;
+    private volatile boolean closed = false;
+
+    private volatile long shippedBatches = 0;
+    private volatile long shippedLines = 0;
+    private final AtomicLong rejectedRecords = new AtomicLong();
+    private volatile long connectionFailures = 0;
+    private volatile long resentBatches = 0;
+    /** Written by the shipping thread only. */
+    private volatile long batchedBytes = 0;
+    private volatile long frameBytes = 0;
+}
@@ -0,0 +1,946 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+   Append-only store of conversation records, in rolling segment files.
+
+   <p> Records from all uploads are appended, in the order they come,
+   to the current segment file of the directory; when it reaches the
+   segment size a new one is started. A segment is named after the
+   offset of its first record (offsets count the bytes of all the
+   segments), and holds entries of: the length of the record (4
+   bytes), its CRC-32 (4 bytes) and the record (as in
+   {@link LogProtocol#writeRecord}). When the store is opened, the last
+   segment is cut after its last whole, intact entry (what a crash
+   left half written).
+
+   <p> Records may be stored compressed, each on its own so that any
+   can still be read at its offset: the length of the entry then has
+   its {@link #COMPRESSED} bit set, and the lines (from their number
+   on) are replaced by {@link LogProtocol#deflate} of them. The account,
+   contact and time are left as they are, for the reads that skip the
+   records of other accounts. Both kinds may be in the same segment
+   (a record is stored as it is if it doesn't get smaller).
+
+   <p> {@link #append} only hands the entries to the OS. Making them
+   durable is left to a sync thread doing a group commit: it calls
+   fsync once for everything appended meanwhile, by all the writers,
+   as soon as <i>syncBatch</i> records are waiting or the oldest has
+   waited <i>maxSyncDelay</i>, and then runs the tasks waiting for those
+   records ({@link #whenDurable}) or wakes up the threads
+   ({@link #sync}). So the fewer the fsyncs, the more writers share
+   each, with at most the delay added.
+
+   <p> The records are indexed by account, contact and time (see
+   {@link LogIndex}), so that {@link #query} reads only the blocks of the
+   segments that have records asked for, through memory mappings,
+   however long the history.
+
+   <p> To print the records of a store:
+   <br> $ java -cp bin LogStore directory [account]
+ */
+class LogStore {
+
+    /** Receives the records of a scan. */
+    public interface Visitor {
+
+        /**
+           Called for each record, in the order they were appended.
+           @param offset where the record starts
+           @return false to stop the scan
+         */
+        boolean visit( long offset , LogProtocol.Record record );
+    }
+
+    /** Prints the records of a store (of one account if given). */
+    public static void main( String[] args )
+        throws Exception {
+
+        final String account = ( args.length > 1 ) ? args[1] : null;
+        LogStore store = new LogStore( new File( args[0] ) , DEFAULT_SEGMENT_SIZE , 1 , 0 );
+        store.scan( 0 , new Visitor() {
+            public boolean visit( long offset , LogProtocol.Record record ) {
+                if ( account == null || account.equals( record.getAccount() ) ) {
+                    String contact = record.getContact().isEmpty() ? "" : " with " + record.getContact();
+                    System.out.println( "--- " + record.getAccount() + contact + ", " + new Date( record.getTime() ) );
+                    for ( String line : record.getLines() ) {
+                        System.out.println( line );
+                    }
+                }
+                return true;
+            }
+        } );
+        store.close();
+    }
+
+    /**
+       Constructor: opens the store (creating the directory if needed),
+       and starts the sync thread.
+       @param segmentSize  bytes after which a new segment is started
+       @param syncBatch    records waiting that start an fsync at once
+       @param maxSyncDelay longest a record waits for its fsync (microsec)
+     */
+    public LogStore( File dir , long segmentSize , int syncBatch , long maxSyncDelay )
+        throws IOException {
+
+        this( dir , segmentSize , syncBatch , maxSyncDelay , true );
+    }
+
+    /**
+       Constructor: opens the store (creating the directory if needed),
+       and starts the sync thread.
+       @param segmentSize  bytes after which a new segment is started
+       @param syncBatch    records waiting that start an fsync at once
+       @param maxSyncDelay longest a record waits for its fsync (microsec)
+       @param compress     whether to compress the records appended
+     */
+    public LogStore( File dir , long segmentSize , int syncBatch , long maxSyncDelay , boolean compress )
+        throws IOException {
+
+        this.dir = dir;
+        this.compress = compress;
+        this.segmentSize = segmentSize;
+        this.syncBatch = Math.max( 1 , syncBatch );
+        this.maxSyncDelayNanos = maxSyncDelay * 1000;
+        if ( ! dir.isDirectory() && ! dir.mkdirs() ) {
+            throw new IOException( "Unable to create " + dir );
+        }
+
+        long[] bases = getSegmentBases();
+        for ( int i = 0 ; i + 1 < bases.length ; ++i ) {
+            final File file = getSegmentFile( bases[i] );
+            index.openSegment( bases[i] , file , new LogIndex.SegmentReader() {
+                public void read( LogIndex.Segment segment )
+                    throws IOException {
+
+                    FileChannel finished = FileChannel.open( file.toPath() , StandardOpenOption.READ );
+                    try {
+                        readEntries( finished , segment );
+                    }
+                    finally {
+                        finished.close();
+                    }
+                }
+            } );
+        }
+        if ( bases.length == 0 ) {
+            openSegment( 0 );
+        }
+        else {
+            long base = bases[ bases.length - 1 ];
+            channel = FileChannel.open( getSegmentFile( base ).toPath() , StandardOpenOption.READ , StandardOpenOption.WRITE );
+            indexSegment = index.startSegment( base );
+            long length = recover( channel , indexSegment );
+            segmentBase = base;
+            position = length;
+        }
+        writtenOffset = segmentBase + position;
+        durableOffset = writtenOffset;
+
+        syncThread = JabberThreads.newThread( new Runnable() {
+            public void run() {
+                runSync();
+            }
+        } , "LogStoreSync" , true );
+        syncThread.start();
+    }
+
+    /**
+       Appends records (not durable yet, see {@link #sync} and
+       {@link #whenDurable}).
+       @return the offset after the last one
+     */
+    public long append( List <LogProtocol.Record> records )
+        throws IOException {
+
+        // Encode outside the lock
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 * records.size() );
+        DataOutputStream out = new DataOutputStream( bytes );
+        ByteArrayOutputStream body = new ByteArrayOutputStream( 256 );
+        DataOutputStream bodyOut = new DataOutputStream( body );
+        ByteArrayOutputStream lines = new ByteArrayOutputStream( 256 );
+        DataOutputStream linesOut = new DataOutputStream( lines );
+        CRC32 crc = new CRC32();
+        int lineBytes = 0;
+        int[] sizes = new int[ records.size() ];
+        for ( int i = 0 ; i < sizes.length ; ++i ) {
+            LogProtocol.Record record = records.get( i );
+            body.reset();
+            int flag = 0;
+            if ( compress ) {
+                bodyOut.writeUTF( record.getAccount() );
+                bodyOut.writeUTF( record.getContact() );
+                bodyOut.writeLong( record.getTime() );
+                lines.reset();
+                LogProtocol.writeLines( linesOut , record.getLines() );
+                byte[] compressed = LogProtocol.deflate( lines.toByteArray() , 0 , lines.size() );
+                if ( compressed.length < lines.size() ) {
+                    bodyOut.write( compressed );
+                    flag = COMPRESSED;
+                }
+                else {
+                    lines.writeTo( bodyOut );
+                }
+            }
+            else {
+                LogProtocol.writeRecord( bodyOut , record );
+            }
+            crc.reset();
+            crc.update( body.toByteArray() , 0 , body.size() );
+            out.writeInt( body.size() | flag );
+            out.writeInt( (int) crc.getValue() );
+            body.writeTo( out );
+            sizes[i] = 8 + body.size();
+            for ( String line : record.getLines() ) {
+                lineBytes += line.length() + 1;
+            }
+        }
+        out.close();
+        ByteBuffer entries = ByteBuffer.wrap( bytes.toByteArray() );
+
+        long end;
+        boolean wakeUp;
+        synchronized ( this ) {
+            if ( closed ) {
+                throw new IOException( "Log store closed" );
+            }
+            if ( position > 0 && position + entries.remaining() > segmentSize ) {
+                roll();
+            }
+            long entryPosition = position;
+            while ( entries.hasRemaining() ) {
+                position += channel.write( entries , position );
+            }
+            for ( int i = 0 ; i < sizes.length ; ++i ) {
+                indexSegment.add( entryPosition , records.get( i ) );
+                entryPosition += sizes[i];
+            }
+            writtenOffset = segmentBase + position;
+            end = writtenOffset;
+            long unsynced = appendedRecords - syncedRecords;
+            if ( unsynced == 0 ) {
+                firstUnsyncedTime = System.nanoTime();
+            }
+            appendedRecords += records.size();
+            appendedBytes += entries.capacity();
+            appendedLineBytes += lineBytes;
+
+            // Wake up the sync thread for the first record to sync (it then waits for the delay), and for a batch
+            wakeUp = unsynced == 0 || unsynced < syncBatch && unsynced + records.size() >= syncBatch;
+        }
+
+        if ( wakeUp ) {
+            synchronized ( syncLock ) {
+                syncLock.notifyAll();
+            }
+        }
+        return end;
+    }
+
+    /**
+       Waits for the records up to the given offset to be durable.
+       @throws IOException if the store was closed before
+     */
+    public void sync( long offset )
+        throws IOException , InterruptedException {
+
+        synchronized ( syncLock ) {
+            while ( durableOffset < offset ) {
+                if ( syncThreadDone ) {
+                    throw new IOException( "Log store closed" );
+                }
+                syncLock.wait();
+            }
+        }
+    }
+
+    /**
+       Runs a task once the records up to the given offset are durable
+       (on the sync thread, so it should be quick; at once if they are
+       already). Tasks still waiting when the store is closed are not run.
+     */
+    public void whenDurable( long offset , Runnable task ) {
+        synchronized ( syncLock ) {
+            if ( durableOffset < offset ) {
+                waitingTasks.add( new WaitingTask( offset , task ) );
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /** Gets the offset after the last record appended. */
+    public synchronized long getWrittenOffset() {
+        return writtenOffset;
+    }
+
+    /** Gets the offset up to which the records are durable. */
+    public long getDurableOffset() {
+        synchronized ( syncLock ) {
+            return durableOffset;
+        }
+    }
+
+    /** Gets the number of records appended since opened. */
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    /** Gets the bytes appended to the segments since opened. */
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /** Gets the bytes of the lines appended (with an end of line each, as in a text file). */
+    public synchronized long getAppendedLineBytes() {
+        return appendedLineBytes;
+    }
+
+    /** Gets the number of fsyncs done since opened. */
+    public long getSyncCount() {
+        synchronized ( syncLock ) {
+            return syncCount;
+        }
+    }
+
+    /** Gets the number of segment files. */
+    public int getSegmentCount() {
+        return getSegmentBases().length;
+    }
+
+    /** Gets the bytes of the index files. */
+    public long getIndexBytes() {
+        return index.getIndexBytes();
+    }
+
+    /**
+       Reads the records from the given offset (0 for all), in the order
+       they were appended, up to the last durable one.
+       @return the offset after the last record read (fromOffset if none)
+     */
+    public long scan( long fromOffset , Visitor visitor )
+        throws IOException {
+
+        long end = getDurableOffset();
+        long last = fromOffset;
+        long[] bases = getSegmentBases();
+        for ( int i = 0 ; i < bases.length ; ++i ) {
+            long segmentEnd = ( i + 1 < bases.length ) ? bases[ i + 1 ] : end;
+            if ( segmentEnd <= fromOffset ) {
+                continue;
+            }
+            FileChannel segment = FileChannel.open( getSegmentFile( bases[i] ).toPath() , StandardOpenOption.READ );
+            try {
+                long offset = Math.max( fromOffset , bases[i] );
+                while ( offset < segmentEnd ) {
+                    Entry entry = readEntry( segment , offset - bases[i] );
+                    if ( entry == null ) {
+                        break;
+                    }
+                    boolean more = visitor.visit( offset , entry.record );
+                    offset += entry.size;
+                    last = offset;
+                    if ( ! more ) {
+                        return last;
+                    }
+                }
+            }
+            finally {
+                segment.close();
+            }
+        }
+        return last;
+    }
+
+    /**
+       Reads the records at the given offsets (from a scan, or an index).
+       @return the records, null for the offsets with no durable record
+     */
+    public List <LogProtocol.Record> read( List <Long> offsets )
+        throws IOException {
+
+        long end = getDurableOffset();
+        List <LogProtocol.Record> records = new ArrayList <LogProtocol.Record>( offsets.size() );
+        Map <Long , ByteBuffer> mapped = new HashMap <Long , ByteBuffer>();
+        for ( long offset : offsets ) {
+            Long base = index.getSegmentBase( offset );
+            Entry entry = null;
+            if ( base != null && offset < end ) {
+                ByteBuffer segment = mapped.get( base );
+                if ( segment == null ) {
+                    segment = mapSegment( base , end );
+                    mapped.put( base , segment );
+                }
+                entry = readEntry( segment , offset - base , null );
+            }
+            records.add( ( entry == null ) ? null : entry.record );
+        }
+        return records;
+    }
+
+    /**
+       Finds the last records of an account saved in a time range, up to
+       a number of lines (only durable ones).
+       @param contact  only the conversations with this contact, or null
+                       for all
+       @param fromTime from this time (millisec since 1970)
+       @param toTime   up to this time, included
+       @param maxLines the most lines (the last ones)
+       @return the records, in the order they were appended; the first
+               one has only its last lines if the limit is reached in it
+     */
+    public List <LogProtocol.Record> query( String account , String contact , long fromTime , long toTime , int maxLines )
+        throws IOException {
+
+        long key = ( contact == null ) ? LogIndex.accountKey( account ) : LogIndex.contactKey( account , contact );
+        long end = getDurableOffset();
+        // Newest first
+        List <LogProtocol.Record> found = new ArrayList <LogProtocol.Record>();
+        int numLines = 0;
+        Map <Long , ByteBuffer> mapped = new HashMap <Long , ByteBuffer>();
+        for ( LogIndex.Hit hit : index.find( key , fromTime , toTime , end ) ) {
+            ByteBuffer segment = mapped.get( hit.segmentBase );
+            if ( segment == null ) {
+                segment = mapSegment( hit.segmentBase , end );
+                mapped.put( hit.segmentBase , segment );
+            }
+
+            // The records starting in the block, some of them (at least) asked for
+            List <LogProtocol.Record> inBlock = new ArrayList <LogProtocol.Record>();
+            long position = hit.start;
+            while ( position < hit.end ) {
+                Entry entry = readEntry( segment , position , account );
+                if ( entry == null ) {
+                    break;
+                }
+                LogProtocol.Record record = entry.record;
+                if ( record != null && record.getAccount().equals( account ) && ( contact == null || record.getContact().equals( contact ) )
+                     && record.getTime() >= fromTime && record.getTime() <= toTime ) {
+                    inBlock.add( record );
+                }
+                position += entry.size;
+            }
+
+            for ( int i = inBlock.size() - 1 ; i >= 0 && numLines < maxLines ; --i ) {
+                LogProtocol.Record record = inBlock.get( i );
+                List <String> lines = record.getLines();
+                if ( numLines + lines.size() > maxLines ) {
+                    lines = lines.subList( lines.size() - ( maxLines - numLines ) , lines.size() );
+                    record = new LogProtocol.Record( record.getAccount() , record.getContact() , record.getTime() , lines );
+                }
+                found.add( record );
+                numLines += lines.size();
+            }
+            if ( numLines >= maxLines ) {
+                break;
+            }
+        }
+        Collections.reverse( found );
+        return found;
+    }
+
+    /** Makes everything appended durable, and closes the files. */
+    public void close()
+        throws IOException {
+
+        synchronized ( this ) {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+        }
+        synchronized ( syncLock ) {
+            syncLock.notifyAll();
+        }
+        try {
+            syncThread.join();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized ( this ) {
+            channel.close();
+        }
+        segmentMaps.clear();
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** A record read from a segment, with the size of its entry. */
+    private static class Entry {
+
+        Entry( LogProtocol.Record record , int size ) {
+            this.record = record;
+            this.size = size;
+        }
+
+        final LogProtocol.Record record;
+        final int size;
+    }
+
+    /** A finished segment, not synced yet. */
+    private static class Retired {
+
+        Retired( FileChannel channel , LogIndex.Segment index , File file , long length ) {
+            this.channel = channel;
+            this.index = index;
+            this.file = file;
+            this.length = length;
+        }
+
+        final FileChannel channel;
+        final LogIndex.Segment index;
+        final File file;
+        final long length;
+    }
+
+    /** A task run once an offset is durable. */
+    private static class WaitingTask
+        implements Comparable <WaitingTask> {
+
+        WaitingTask( long offset , Runnable task ) {
+            this.offset = offset;
+            this.task = task;
+        }
+
+        public int compareTo( WaitingTask other ) {
+            return ( offset < other.offset ) ? -1 : ( ( offset == other.offset ) ? 0 : 1 );
+        }
+
+        final long offset;
+        final Runnable task;
+    }
+
+    /** Body of the sync thread. */
+    private void runSync() {
+
+        while ( true ) {
+            synchronized ( syncLock ) {
+                try {
+                    while ( ! closed && ! isSyncDue() ) {
+                        if ( appendedRecords == syncedRecords ) {
+                            syncLock.wait();
+                        }
+                        else {
+                            // (At least 1 ns: the delay may have just run out, and wait(0) is forever)
+                            long wait = Math.max( 1 , maxSyncDelayNanos - ( System.nanoTime() - firstUnsyncedTime ) );
+                            syncLock.wait( wait / 1000000 , (int) ( wait % 1000000 ) );
+                        }
+                    }
+                }
+                catch ( InterruptedException e ) {
+                    // Sync what there is, and stop
+                    closed = true;
+                }
+            }
+
+            // What is written at this point is made durable
+            FileChannel current;
+            List <Retired> retired;
+            long offset;
+            long records;
+            boolean stop;
+            synchronized ( this ) {
+                current = channel;
+                retired = new ArrayList <Retired>( retiredSegments );
+                retiredSegments.clear();
+                offset = writtenOffset;
+                records = appendedRecords;
+                stop = closed;
+            }
+
+            if ( offset > durableOffset || ! retired.isEmpty() ) {
+                try {
+                    for ( Retired old : retired ) {
+                        old.channel.force( false );
+                        old.channel.close();
+                    }
+                    current.force( false );
+                }
+                catch ( IOException e ) {
+                    // The records aren't acknowledged, the clients send them again
+                    EventLog.log( "Could not sync the log store in " , dir , ": " , e );
+                    synchronized ( this ) {
+                        // (The ones closed were synced)
+                        for ( int i = retired.size() - 1 ; i >= 0 ; --i ) {
+                            if ( retired.get( i ).channel.isOpen() ) {
+                                retiredSegments.add( 0 , retired.get( i ) );
+                            }
+                        }
+                    }
+                    if ( stop ) {
+                        break;
+                    }
+                    sleepAfterError();
+                    continue;
+                }
+
+                List <Runnable> ready = new ArrayList <Runnable>();
+                synchronized ( syncLock ) {
+                    durableOffset = offset;
+                    ++syncCount;
+                    while ( ! waitingTasks.isEmpty() && waitingTasks.peek().offset <= offset ) {
+                        ready.add( waitingTasks.poll().task );
+                    }
+                    syncLock.notifyAll();
+                }
+                for ( Runnable task : ready ) {
+                    try {
+                        task.run();
+                    }
+                    catch ( RuntimeException e ) {
+                        System.err.println( "Error in a log store task" );
+                        e.printStackTrace();
+                    }
+                }
+
+                // The index of a finished segment is written once the segment is durable
+                for ( Retired old : retired ) {
+                    try {
+                        old.index.seal( LogIndex.getIndexFile( old.file ) , old.length );
+                    }
+                    catch ( IOException e ) {
+                        // Searched in memory then, and written again next time the store is opened
+                        EventLog.log( "Could not write the index of " , old.file , ": " , e );
+                    }
+                }
+            }
+
+            // Only now (a failed fsync leaves the sync due, so it is tried again). The records
+            // appended meanwhile keep the earlier firstUnsyncedTime, so they are synced early, not late.
+            syncedRecords = records;
+
+            if ( stop ) {
+                break;
+            }
+        }
+
+        synchronized ( syncLock ) {
+            syncThreadDone = true;
+            syncLock.notifyAll();
+        }
+    }
+
+    /** Indicates whether an fsync is due: a batch of records waiting, or one for too long. */
+    private boolean isSyncDue() {
+        long unsynced = appendedRecords - syncedRecords;
+        return unsynced >= syncBatch
+            || unsynced > 0 && System.nanoTime() - firstUnsyncedTime >= maxSyncDelayNanos;
+    }
+
+    private static void sleepAfterError() {
+        try {
+            Thread.sleep( 1000 );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Starts a new segment (with the lock held). */
+    private void roll()
+        throws IOException {
+
+        retiredSegments.add( new Retired( channel , indexSegment , getSegmentFile( segmentBase ) , position ) );
+        openSegment( segmentBase + position );
+    }
+
+    /** Creates and opens a segment file (with the lock held, or in the constructor). */
+    private void openSegment( long base )
+        throws IOException {
+
+        channel = FileChannel.open( getSegmentFile( base ).toPath() , StandardOpenOption.CREATE_NEW ,
+                                    StandardOpenOption.READ , StandardOpenOption.WRITE );
+        segmentBase = base;
+        position = 0;
+        indexSegment = index.startSegment( base );
+
+        // So that the new file itself survives a crash
+        try {
+            FileChannel dirChannel = FileChannel.open( dir.toPath() , StandardOpenOption.READ );
+            try {
+                dirChannel.force( true );
+            }
+            finally {
+                dirChannel.close();
+            }
+        }
+        catch ( IOException e ) {
+            // Not possible on some systems
+        }
+    }
+
+    /**
+       Finds the end of the last intact entry of a segment, and cuts it
+       there.
+       @param index gets the entries
+       @return the length of the segment
+     */
+    private static long recover( FileChannel segment , LogIndex.Segment index )
+        throws IOException {
+
+        long position = readEntries( segment , index );
+        if ( position < segment.size() ) {
+            EventLog.log( "Log store segment cut from " , segment.size() , " to " , position );
+            segment.truncate( position );
+            segment.force( false );
+        }
+        return position;
+    }
+
+    /**
+       Adds the entries of a segment to its index, up to the last whole,
+       intact one.
+       @return where it ends
+     */
+    private static long readEntries( FileChannel segment , LogIndex.Segment index )
+        throws IOException {
+
+        long position = 0;
+        Entry entry;
+        while ( ( entry = readEntry( segment , position ) ) != null ) {
+            index.add( position , entry.record );
+            position += entry.size;
+        }
+        return position;
+    }
+
+    /** Reads an entry, null if there is no whole, intact entry there. */
+    private static Entry readEntry( FileChannel segment , long position )
+        throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate( 8 );
+        if ( ! readFully( segment , header , position ) ) {
+            return null;
+        }
+        int length = header.getInt( 0 ) & ~COMPRESSED;
+        if ( length < 0 || length > LogProtocol.MAX_FRAME_SIZE ) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate( length );
+        if ( ! readFully( segment , body , position + 8 ) ) {
+            return null;
+        }
+        return decodeEntry( header.getInt( 0 ) , header.getInt( 4 ) , body.array() );
+    }
+
+    /**
+       Reads an entry from a mapped segment (or part of it), null if
+       there is no whole, intact entry there.
+       @param account the record is only decoded if it may be of this
+                      account (the entry has no record otherwise), or
+                      null for any
+     */
+    private static Entry readEntry( ByteBuffer segment , long position , String account )
+        throws IOException {
+
+        if ( position + 8 > segment.limit() ) {
+            return null;
+        }
+        int at = (int) position;
+        int length = segment.getInt( at ) & ~COMPRESSED;
+        if ( length < 0 || length > LogProtocol.MAX_FRAME_SIZE || at + 8L + length > segment.limit() ) {
+            return null;
+        }
+        ByteBuffer entry = segment.duplicate();
+        entry.position( at + 8 );
+        if ( account != null && ! mayStartWithUTF( entry , account ) ) {
+            return new Entry( null , 8 + length );
+        }
+        byte[] body = new byte[ length ];
+        entry.position( at + 8 );
+        entry.get( body );
+        return decodeEntry( segment.getInt( at ) , segment.getInt( at + 4 ) , body );
+    }
+
+    /**
+       Indicates whether the buffer may start with the string as written
+       by writeUTF(): false only if it doesn't (checked for ASCII strings).
+     */
+    private static boolean mayStartWithUTF( ByteBuffer buffer , String s ) {
+        for ( int i = 0 ; i < s.length() ; ++i ) {
+            if ( s.charAt( i ) == 0 || s.charAt( i ) > 0x7f ) {
+                // Not one byte each in modified UTF-8
+                return true;
+            }
+        }
+        if ( buffer.remaining() < 2 + s.length() || ( buffer.getShort( buffer.position() ) & 0xffff ) != s.length() ) {
+            return false;
+        }
+        int at = buffer.position() + 2;
+        for ( int i = 0 ; i < s.length() ; ++i ) {
+            if ( buffer.get( at + i ) != s.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+       Checks and decodes an entry's record (uncompressing it), null if
+       damaged.
+       @param length the length of the entry, with its COMPRESSED bit
+     */
+    private static Entry decodeEntry( int length , int crc , byte[] body )
+        throws IOException {
+
+        CRC32 check = new CRC32();
+        check.update( body , 0 , body.length );
+        if ( (int) check.getValue() != crc ) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( body ) );
+            if ( ( length & COMPRESSED ) == 0 ) {
+                return new Entry( LogProtocol.readRecord( in ) , 8 + body.length );
+            }
+            String account = in.readUTF();
+            String contact = in.readUTF();
+            long time = in.readLong();
+            int at = body.length - in.available();
+            byte[] lines = LogProtocol.inflate( body , at , body.length - at );
+            return new Entry( new LogProtocol.Record( account , contact , time ,
+                                                      LogProtocol.readLines( new DataInputStream( new ByteArrayInputStream( lines ) ) ) ) ,
+                              8 + body.length );
+        }
+        catch ( EOFException e ) {
+            return null;
+        }
+    }
+
+    /**
+       Maps a segment up to the durable end (kept for the next queries
+       once the whole segment is durable and finished).
+     */
+    private ByteBuffer mapSegment( long base , long end )
+        throws IOException {
+
+        MappedByteBuffer segment = segmentMaps.get( base );
+        if ( segment != null ) {
+            return segment;
+        }
+        boolean finished;
+        synchronized ( this ) {
+            finished = base < segmentBase;
+        }
+        FileChannel file = FileChannel.open( getSegmentFile( base ).toPath() , StandardOpenOption.READ );
+        try {
+            long length = Math.min( file.size() , end - base );
+            segment = file.map( FileChannel.MapMode.READ_ONLY , 0 , length );
+            if ( finished && length == file.size() ) {
+                segmentMaps.put( base , segment );
+            }
+            return segment;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /** Reads until the buffer is full, false if the file ends first. */
+    private static boolean readFully( FileChannel segment , ByteBuffer buffer , long position )
+        throws IOException {
+
+        while ( buffer.hasRemaining() ) {
+            int n = segment.read( buffer , position + buffer.position() );
+            if ( n < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Gets the base offsets of the segments, in order. */
+    private long[] getSegmentBases() {
+        File[] files = dir.listFiles();
+        List <Long> bases = new ArrayList <Long>();
+        if ( files != null ) {
+            for ( File file : files ) {
+                String name = file.getName();
+                if ( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) ) {
+                    try {
+                        bases.add( Long.parseLong( name.substring( SEGMENT_PREFIX.length() ,
+                                                                   name.length() - SEGMENT_SUFFIX.length() ) ) );
+                    }
+                    catch ( NumberFormatException e ) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        long[] sorted = new long[ bases.size() ];
+        for ( int i = 0 ; i < sorted.length ; ++i ) {
+            sorted[i] = bases.get( i );
+        }
+        Arrays.sort( sorted );
+        return sorted;
+    }
+
+    private File getSegmentFile( long base ) {
+        return new File( dir , String.format( SEGMENT_PREFIX + "%020d" + SEGMENT_SUFFIX , base ) );
+    }
+
+    /** Default size of the segments (bytes). */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /** Bit of the length of the entries of compressed records. */
+    public static final int COMPRESSED = 0x40000000;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+    private final long segmentSize;
+    private final boolean compress;
+    private final int syncBatch;
+    private final long maxSyncDelayNanos;
+    private final Thread syncThread;
+    private final LogIndex index = new LogIndex();
+    /** Finished segments mapped for the queries, by offset. */
+    private final ConcurrentHashMap <Long , MappedByteBuffer> segmentMaps = new ConcurrentHashMap <Long , MappedByteBuffer>();
+
+    // Guarded by this
+    private FileChannel channel;
+    private long segmentBase;
+    /** Write position in the current segment. */
+    private long position;
+    private long writtenOffset;
+    /** Index of the current segment. */
+    private LogIndex.Segment indexSegment;
+    /** Segments finished and not synced yet. */
+    private final List <Retired> retiredSegments = new ArrayList <Retired>();
+    private volatile boolean closed = false;
+    /** Records appended, and up to the last fsync (read by the sync thread without the lock). */
+    private volatile long appendedRecords = 0;
+    private volatile long syncedRecords = 0;
+    /** When the first record appended since the last fsync was. */
+    private volatile long firstUnsyncedTime;
+    private long appendedBytes = 0;
+    private long appendedLineBytes = 0;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableOffset;
+    private final PriorityQueue <WaitingTask> waitingTasks = new PriorityQueue <WaitingTask>();
+    private long syncCount = 0;
+    private boolean syncThreadDone = false;
+}
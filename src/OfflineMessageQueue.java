@@ -0,0 +1,414 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+   The chat messages typed while disconnected, until they are sent once
+   re-connected: a bounded queue kept in a file, so that they survive
+   the program ending before that.
+
+   <p> The file starts with a header holding where the first message not
+   sent yet is, followed by entries of: the length of the message (4
+   bytes), its CRC-32 (4 bytes), the recipient (UTF) and the body
+   (length and UTF-8 bytes). {@link #add} appends an entry and forces it
+   to the disk before returning. {@link #drain} reads the messages back
+   in order, a batch at a time, and moves the header past each batch
+   once it is sent; when everything is sent the file is cut back to its
+   header. When the queue is opened, entries not whole or damaged at the
+   end (what a crash left half written) are cut off.
+
+   <p> The file of an account goes to the directory given by
+   <code>-Djabber.offline.dir</code> (by default
+   ~/.jabberchat/offline).
+ */
+class OfflineMessageQueue {
+
+    /** A queued message. */
+    public static class Message {
+
+        public Message( String recipient , String body ) {
+            this.recipient = recipient;
+            this.body = body;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        private final String recipient;
+        private final String body;
+    }
+
+    /** Sends the messages taken out by {@link #drain}. */
+    public interface Sender {
+
+        /** Sends (or queues for sending) a message: it stays in the queue until endBatch() returns. */
+        void send( Message message ) throws IOException;
+
+        /** Called after each batch: returns once the batch is sent. */
+        void endBatch() throws IOException;
+    }
+
+    /** Default most messages queued. */
+    public static final int DEFAULT_MAX_MESSAGES = 10000;
+    /** Default most bytes of messages queued. */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** Constructor, with the default bounds and file of an account. */
+    public OfflineMessageQueue( String account )
+        throws IOException {
+
+        this( getQueueFile( account ) , DEFAULT_MAX_MESSAGES , DEFAULT_MAX_BYTES );
+    }
+
+    /**
+       Constructor: opens the file (creating it if needed), with the
+       messages left in it.
+       @param maxMessages the most messages queued
+       @param maxBytes    the most bytes of messages queued
+     */
+    public OfflineMessageQueue( File file , int maxMessages , long maxBytes )
+        throws IOException {
+
+        this.file = file;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( parent != null && ! parent.isDirectory() && ! parent.mkdirs() ) {
+            throw new IOException( "Can't create the directory " + parent );
+        }
+        channel = FileChannel.open( file.toPath() , StandardOpenOption.CREATE , StandardOpenOption.READ ,
+                                    StandardOpenOption.WRITE );
+        try {
+            recover();
+        }
+        catch ( IOException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+       Queues a message, durably.
+       @return false if the queue is full (the message is not queued)
+     */
+    public synchronized boolean add( Message message )
+        throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 + message.getBody().length() );
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( 0 );
+        out.writeInt( 0 );
+        out.writeUTF( message.getRecipient() );
+        byte[] body = message.getBody().getBytes( UTF_8 );
+        out.writeInt( body.length );
+        out.write( body );
+        out.close();
+        ByteBuffer entry = ByteBuffer.wrap( bytes.toByteArray() );
+        int length = entry.capacity() - 8;
+        if ( depth >= maxMessages || depthBytes + length > maxBytes ) {
+            ++rejectedCount;
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update( entry.array() , 8 , length );
+        entry.putInt( 0 , length );
+        entry.putInt( 4 , (int) crc.getValue() );
+        writeFully( entry , end );
+        channel.force( false );
+        end += entry.capacity();
+        ++depth;
+        depthBytes += length;
+        ++addedCount;
+        return true;
+    }
+
+    /**
+       Sends the queued messages, in the order they were added, a batch
+       at a time. A batch is only taken out of the queue once the sender
+       has sent it (endBatch() returned); if sending fails, the whole
+       batch stays queued, to be sent again (the messages before the
+       failed one may have been queued for sending, not written).
+       @return the number of messages sent
+       @throws IOException if sending failed
+     */
+    public int drain( Sender sender , int batchSize )
+        throws IOException {
+
+        long start = System.nanoTime();
+        int sent = 0;
+        try {
+            while ( true ) {
+                List <Message> batch = new ArrayList <Message>( batchSize );
+                List <Long> ends = new ArrayList <Long>( batchSize );
+                synchronized ( this ) {
+                    readBatch( batchSize , batch , ends );
+                }
+                if ( batch.isEmpty() ) {
+                    return sent;
+                }
+                for ( Message message : batch ) {
+                    sender.send( message );
+                }
+                sender.endBatch();
+                takeOut( ends.get( ends.size() - 1 ) , batch.size() );
+                sent += batch.size();
+            }
+        }
+        finally {
+            synchronized ( this ) {
+                drainedCount += sent;
+                if ( sent > 0 ) {
+                    lastDrainCount = sent;
+                    lastDrainNanos = System.nanoTime() - start;
+                }
+            }
+        }
+    }
+
+    /** Gets the number of messages queued. */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /** Gets the bytes of the messages queued. */
+    public synchronized long getDepthBytes() {
+        return depthBytes;
+    }
+
+    /** Gets the number of messages queued so far. */
+    public synchronized long getAddedCount() {
+        return addedCount;
+    }
+
+    /** Gets the number of messages refused because the queue was full. */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /** Gets the number of messages sent by drain() so far. */
+    public synchronized long getDrainedCount() {
+        return drainedCount;
+    }
+
+    /** Gets the messages sent per second by the last drain() that sent any (0 if none yet). */
+    public synchronized double getDrainRate() {
+        return ( lastDrainNanos == 0 ) ? 0 : lastDrainCount * 1e9 / lastDrainNanos;
+    }
+
+    /** Closes the file (the messages stay in it). */
+    public synchronized void close() {
+        try {
+            channel.close();
+        }
+        catch ( IOException e ) {
+            EventLog.log( "Could not close " , file , ": " , e );
+        }
+    }
+
+    /** Gets the queue file of an account. */
+    public static File getQueueFile( String account ) {
+        String dir = System.getProperty( "jabber.offline.dir" ,
+                                         System.getProperty( "user.home" ) + File.separator + ".jabberchat" +
+                                         File.separator + "offline" );
+        return new File( dir , account.replaceAll( "[^A-Za-z0-9@._-]" , "_" ) + ".queue" );
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return String.format( "offline queue: %d messages (%d bytes), %d added, %d refused, %d sent (last at %.0f/s)" ,
+                              depth , depthBytes , addedCount , rejectedCount , drainedCount , getDrainRate() );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Reads the header (writing it if new), and the messages up to the last whole, intact one. */
+    private void recover()
+        throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        if ( channel.size() < HEADER_SIZE || ! readFully( header , 0 ) || header.getInt( 0 ) != MAGIC ) {
+            if ( channel.size() > 0 ) {
+                EventLog.log( "Not an offline queue, starting over: " , file );
+            }
+            startOver();
+            return;
+        }
+        head = header.getLong( 4 );
+        if ( head < HEADER_SIZE ) {
+            throw new IOException( "Bad offline queue header in " + file );
+        }
+        if ( head >= channel.size() ) {
+            // All sent (the file was cut before the header was written)
+            startOver();
+            return;
+        }
+        long position = head;
+        ByteBuffer entry = ByteBuffer.allocate( 8 );
+        while ( readEntry( position , entry ) != null ) {
+            int length = entry.getInt( 0 );
+            position += 8 + length;
+            ++depth;
+            depthBytes += length;
+        }
+        end = position;
+        if ( end < channel.size() ) {
+            EventLog.log( "Cut " , ( channel.size() - end ) , " bytes of damaged offline messages from " , file );
+            channel.truncate( end );
+            channel.force( false );
+        }
+    }
+
+    /**
+       Reads the messages from the head (under the lock).
+       @param batch gets the messages
+       @param ends  gets where each ends
+     */
+    private void readBatch( int batchSize , List <Message> batch , List <Long> ends )
+        throws IOException {
+
+        long position = head;
+        ByteBuffer entry = ByteBuffer.allocate( 8 );
+        while ( batch.size() < batchSize && position < end ) {
+            Message message = readEntry( position , entry );
+            if ( message == null ) {
+                throw new IOException( "Damaged offline message at " + position + " in " + file );
+            }
+            position += 8 + entry.getInt( 0 );
+            batch.add( message );
+            ends.add( position );
+        }
+    }
+
+    /**
+       Reads the entry at a position, null if there is no whole, intact
+       entry there.
+       @param header gets the entry's length and CRC
+     */
+    private Message readEntry( long position , ByteBuffer header )
+        throws IOException {
+
+        header.clear();
+        if ( ! readFully( header , position ) ) {
+            return null;
+        }
+        int length = header.getInt( 0 );
+        if ( length < 2 || length > maxBytes ) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate( length );
+        if ( ! readFully( body , position + 8 ) ) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update( body.array() , 0 , length );
+        if ( (int) crc.getValue() != header.getInt( 4 ) ) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( body.array() ) );
+        String recipient = in.readUTF();
+        byte[] text = new byte[ in.readInt() ];
+        in.readFully( text );
+        return new Message( recipient , new String( text , UTF_8 ) );
+    }
+
+    /** Moves the head past messages sent. */
+    private synchronized void takeOut( long newHead , int count )
+        throws IOException {
+
+        depthBytes -= newHead - head - 8L * count;
+        depth -= count;
+        if ( newHead == end ) {
+            startOver();
+            depthBytes = 0;
+        }
+        else {
+            head = newHead;
+            writeHead();
+        }
+    }
+
+    /** Empties the file (cut first: a crash in between leaves the head past the end, read as empty). */
+    private void startOver()
+        throws IOException {
+
+        channel.truncate( HEADER_SIZE );
+        channel.force( false );
+        head = HEADER_SIZE;
+        end = HEADER_SIZE;
+        writeHead();
+    }
+
+    /** Writes the header, durably. */
+    private void writeHead()
+        throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( 0 , MAGIC );
+        header.putLong( 4 , head );
+        writeFully( header , 0 );
+        channel.force( false );
+    }
+
+    private void writeFully( ByteBuffer buffer , long position )
+        throws IOException {
+
+        while ( buffer.hasRemaining() ) {
+            position += channel.write( buffer , position );
+        }
+    }
+
+    /** Reads until the buffer is full, false if the file ends before. */
+    private boolean readFully( ByteBuffer buffer , long position )
+        throws IOException {
+
+        while ( buffer.hasRemaining() ) {
+            int n = channel.read( buffer , position );
+            if ( n < 0 ) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final int MAGIC = 0x4a4f4651;
+    /** Magic number (4 bytes), head (8 bytes). */
+    private static final int HEADER_SIZE = 12;
+
+    private final File file;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final FileChannel channel;
+
+    // Guarded by this
+    /** Where the first message not sent yet starts. */
+    private long head;
+    /** Where the next message goes. */
+    private long end;
+    private int depth = 0;
+    /** Bytes of the messages queued (without their length and CRC). */
+    private long depthBytes = 0;
+    private long addedCount = 0;
+    private long rejectedCount = 0;
+    private long drainedCount = 0;
+    private int lastDrainCount = 0;
+    private long lastDrainNanos = 0;
+}
@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+   Bounded queue of outbound stanzas, drained by a single writer thread.
+
+   <p> Any thread may queue a stanza; the call never blocks. The writer
+   thread takes whatever has piled up in the queue (up to
+   {@link #MAX_BATCH_SIZE} stanzas), serializes it with the
+   {@link StanzaSerializer} and writes it to the socket with a single
+   write and flush, so a burst of stanzas goes out in a single write
+   (and a single TLS record) instead of one per stanza.
+
+   <p> The queue is a fixed {@link StanzaRing} holding the stanza kind
+   and its few variable parts (recipient, body), so queueing a message
+   allocates nothing: the stanza is only built, directly as bytes, on
+   the writer thread.
+
+   <p> With {@link StreamManagement}, the writer thread counts the
+   stanzas it writes (and requests acks), and the stanzas still queued
+   when the queue is closed are handed to it, to be sent again on the
+   next connection.
+
+   <p> If writing fails, the writer thread stops and every following
+   call to queue a stanza throws the IOException, so callers keep
+   detecting disconnections the same way as before. The
+   {@link FailureListener} is told at once, and the chat messages that
+   were queued but not written (none with stream management, which
+   sends them again) are kept for {@link #takeUnsentMessages}. A full
+   queue throws a {@link QueueFullException} instead: only that stanza
+   is refused.
+ */
+class OutboundStanzaQueue implements Runnable {
+
+    /** Told when the writer thread fails to write. */
+    public interface FailureListener {
+
+        /**
+           Called once, on the writer thread (or in setFailureListener()
+           if it failed before), after the queue has started refusing
+           stanzas.
+         */
+        void writeFailed( IOException e );
+    }
+
+    /** Thrown when a stanza is refused because the queue is full (the writer still works). */
+    public static class QueueFullException extends IOException {
+
+        public QueueFullException( String message ) {
+            super( message );
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Constructor (doesn't start the writer thread). */
+    public OutboundStanzaQueue( OutputStream out , StanzaSerializer serializer , int capacity ,
+                                StreamManagement streamManagement ) {
+        this.out = out;
+        this.serializer = serializer;
+        this.ring = new StanzaRing( capacity );
+        this.streamManagement = streamManagement;
+    }
+
+    /**
+       Queues the stanzas that stream management has to send again
+       (before anything else is queued).
+       @return the number of stanzas queued
+     */
+    public int queueStanzasToResend() {
+        if ( streamManagement == null ) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            int n = streamManagement.takeStanzasToResend( ring );
+            queuedCount += n;
+            if ( n > 0 ) {
+                notEmpty.signal();
+            }
+            return n;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the listener told when writing fails (told at once if it already has). */
+    public void setFailureListener( FailureListener listener ) {
+        lock.lock();
+        try {
+            failureListener = listener;
+        }
+        finally {
+            lock.unlock();
+        }
+        reportFailure();
+    }
+
+    /** Starts the writer thread. */
+    public void start() {
+        writerThread = JabberThreads.newThread( this , "XmppWriter" , true );
+        writerThread.start();
+    }
+
+    /**
+       Queues a chat message for sending, without blocking.
+       @throws QueueFullException if the queue is full
+       @throws IOException if the queue is closed, or the writer thread
+               has failed to write to the socket
+     */
+    public void enqueueMessage( String to , String resource , String body )
+        throws IOException {
+
+        put( StanzaRing.MESSAGE , to , resource , body );
+    }
+
+    /** Queues an (available) presence stanza. */
+    public void enqueuePresence()
+        throws IOException {
+
+        put( StanzaRing.PRESENCE , null , null , null );
+    }
+
+    /** Queues a white-space keep-alive. */
+    public void enqueueKeepAlive()
+        throws IOException {
+
+        put( StanzaRing.KEEP_ALIVE , null , null , null );
+    }
+
+    /** Queues a roster request. */
+    public void enqueueRosterRequest()
+        throws IOException {
+
+        enqueueRosterRequest( null );
+    }
+
+    /**
+       Queues a roster request for the changes since a roster version
+       (XEP-0237).
+       @param version  version of the local roster copy, or null for the full roster
+     */
+    public void enqueueRosterRequest( String version )
+        throws IOException {
+
+        put( StanzaRing.ROSTER_REQUEST , null , null , version );
+    }
+
+    /** Queues an already serialized stanza. */
+    public void enqueue( String stanza )
+        throws IOException {
+
+        put( StanzaRing.RAW , null , null , stanza );
+    }
+
+    /** Queues an already serialized element that isn't counted as a stanza (e.g. an ack). */
+    public void enqueueNonza( String xml )
+        throws IOException {
+
+        put( StanzaRing.NONZA , null , null , xml );
+    }
+
+    /**
+       Stops the writer thread. Stanzas still in the queue are dropped
+       (or kept by stream management, for the next connection).
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if ( streamManagement != null ) {
+                for ( int i = 0 ; i < ring.size() ; ++i ) {
+                    if ( StanzaRing.isStanza( ring.getKind( i ) ) ) {
+                        streamManagement.stanzaNotSent( ring.getKind( i ) , ring.getRecipient( i ) ,
+                                                        ring.getResource( i ) , ring.getText( i ) );
+                    }
+                }
+            }
+            ring.clear();
+            notEmpty.signal();
+            written.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if ( writerThread != null ) {
+            writerThread.interrupt();
+        }
+    }
+
+    /**
+       Takes the chat messages that were queued but not written when the
+       writer thread failed, in order (the first call after the failure
+       gets them, later ones get none).
+     */
+    public List <OfflineMessageQueue.Message> takeUnsentMessages() {
+        lock.lock();
+        try {
+            List <OfflineMessageQueue.Message> unsent = unsentOnFailure;
+            unsentOnFailure = new ArrayList <OfflineMessageQueue.Message>();
+            return unsent;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gets the number of stanzas waiting to be written. */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return ring.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+       Waits until the stanzas queued so far have been written to the
+       socket and flushed.
+       @return false if they haven't within the timeout
+       @throws IOException if stanzas can no longer be sent (some of them
+               may not have been written)
+     */
+    public boolean awaitWritten( long timeoutMillis )
+        throws IOException , InterruptedException {
+
+        long nanos = timeoutMillis * 1000000L;
+        lock.lock();
+        try {
+            long target = queuedCount;
+            while ( writtenCount < target ) {
+                checkUsable();
+                if ( nanos <= 0 ) {
+                    return false;
+                }
+                nanos = written.awaitNanos( nanos );
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gets the histogram of the number of stanzas written per flush. */
+    public Histogram getStanzasPerFlush() {
+        return stanzasPerFlush;
+    }
+
+    /** Writer thread: drains the queue in batches. */
+    @Override
+    public void run() {
+
+        // Stanzas moved out of the ring, so they are serialized without holding the lock
+        StanzaRing batch = new StanzaRing( MAX_BATCH_SIZE );
+
+        try {
+            while ( true ) {
+
+                // Wait for at least one stanza, then grab whatever else is queued
+                lock.lockInterruptibly();
+                try {
+                    while ( ring.size() == 0 && ! closed ) {
+                        notEmpty.await();
+                    }
+                    if ( closed ) {
+                        return;
+                    }
+                    ring.moveFirstTo( batch , MAX_BATCH_SIZE );
+                }
+                finally {
+                    lock.unlock();
+                }
+
+                int batchSize = batch.size();
+                boolean requestAck = false;
+                for ( int i = 0 ; i < batchSize ; ++i ) {
+                    batch.serialize( i , serializer );
+                    if ( streamManagement != null && StanzaRing.isStanza( batch.getKind( i ) ) ) {
+                        // Counted (and kept until acknowledged) even if the write below fails
+                        requestAck |= streamManagement.stanzaSent( batch.getKind( i ) , batch.getRecipient( i ) ,
+                                                                   batch.getResource( i ) , batch.getText( i ) );
+                    }
+                }
+                if ( requestAck ) {
+                    serializer.appendRaw( StreamManagement.ACK_REQUEST );
+                }
+                // One write and flush for the whole batch (kept until then, in case it fails)
+                serializer.writeTo( out );
+                out.flush();
+                batch.clear();
+
+                lock.lock();
+                try {
+                    writtenCount += batchSize;
+                    written.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+
+                stanzasPerFlush.record( batchSize );
+            }
+        }
+        catch ( InterruptedException e ) {
+            // Closed, just exit
+        }
+        catch ( IOException e ) {
+            failed( e , batch );
+        }
+        catch ( RuntimeException e ) {
+            // E.g. from the serializer: as good as a failed write, or awaitWritten() would only time out
+            failed( new IOException( "Outbound writer failed: " + e , e ) , batch );
+        }
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Puts a stanza in the next free slot. */
+    private void put( byte kind , String recipient , String resource , String text )
+        throws IOException {
+
+        lock.lock();
+        try {
+            checkUsable();
+            if ( ! ring.add( kind , recipient , resource , text ) ) {
+                throw new QueueFullException( "Outbound queue full (" + ring.size() + " stanzas pending)" );
+            }
+            ++queuedCount;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the queue after the writer thread failed to write a batch. */
+    private void failed( IOException e , StanzaRing batch ) {
+        lock.lock();
+        try {
+            // Kept before stanzas are refused: whoever is refused one can take them first
+            unsentOnFailure = new ArrayList <OfflineMessageQueue.Message>();
+            if ( streamManagement == null ) {
+                addMessages( batch , unsentOnFailure );
+                addMessages( ring , unsentOnFailure );
+            }
+            failure = e;
+            written.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        reportFailure();
+    }
+
+    /** Adds the chat messages of a ring to a list. */
+    private static void addMessages( StanzaRing stanzas , List <OfflineMessageQueue.Message> messages ) {
+        for ( int i = 0 ; i < stanzas.size() ; ++i ) {
+            if ( stanzas.getKind( i ) == StanzaRing.MESSAGE ) {
+                messages.add( new OfflineMessageQueue.Message( stanzas.getRecipient( i ) , stanzas.getText( i ) ) );
+            }
+        }
+    }
+
+    /** Tells the failure listener of the failure, if there is one and it hasn't been told yet. */
+    private void reportFailure() {
+        FailureListener listener;
+        lock.lock();
+        try {
+            if ( failureListener == null || failure == null || failureReported ) {
+                return;
+            }
+            listener = failureListener;
+            failureReported = true;
+        }
+        finally {
+            lock.unlock();
+        }
+        // Not under the lock: the listener may queue stanzas elsewhere, or close this queue
+        listener.writeFailed( failure );
+    }
+
+    /** Throws if stanzas can no longer be sent. */
+    private void checkUsable()
+        throws IOException {
+
+        if ( failure != null ) {
+            throw new IOException( "Outbound writer failed" , failure );
+        }
+        if ( closed ) {
+            throw new IOException( "Outbound queue closed" );
+        }
+    }
+
+    /** Maximum number of stanzas written before a flush. */
+    public static final int MAX_BATCH_SIZE = 64;
+
+    /** Socket output stream. */
+    private final OutputStream out;
+    /** Serializer (only used on the writer thread). */
+    private final StanzaSerializer serializer;
+
+    /** Stream management (null if not used). */
+    private final StreamManagement streamManagement;
+
+    /** Queued stanzas. */
+    private final StanzaRing ring;
+    /** Guards the slots. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a stanza is queued or the queue is closed. */
+    private final Condition notEmpty = lock.newCondition();
+    /** Signalled when the writer thread has written a batch, or can't any more. */
+    private final Condition written = lock.newCondition();
+    /** Stanzas queued so far, and written and flushed (guarded by the lock). */
+    private long queuedCount = 0;
+    private long writtenCount = 0;
+
+    /** Number of stanzas written per flush. */
+    private final Histogram stanzasPerFlush = new Histogram( "stanzas per flush" );
+    /** Writer thread. */
+    private Thread writerThread;
+    /** Set when the writer thread failed to write. */
+    private volatile IOException failure;
+    /** Told when the writer thread fails, and whether it has been (guarded by the lock). */
+    private FailureListener failureListener;
+    private boolean failureReported = false;
+    /** The messages not written when the writer thread failed, until taken (guarded by the lock). */
+    private List <OfflineMessageQueue.Message> unsentOnFailure = new ArrayList <OfflineMessageQueue.Message>();
+    /** Set when the queue has been closed. */
+    private volatile boolean closed = false;
+}
@@ -0,0 +1,1106 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+   Local copy of an account's roster and of its contacts' presence,
+   persisted on disk with the roster version (XEP-0237).
+
+   <p> When the server supports roster versioning, the roster request
+   carries the version of the local copy, and the server only sends what
+   changed since then (as roster pushes), or nothing at all. So the
+   contact list is answered from memory, and a large roster is only
+   downloaded once.
+
+   <p> Rosters of 100,000 contacts and more are kept compact: instead of
+   a map entry, an item and a few strings per contact, each contact is a
+   record of UTF-8 bytes (the hash of its JID, the local part, the name,
+   the groups and the subscription and other flags packed in a byte) in
+   big shared chunks, found through an open-addressing table of
+   <code>int</code> addresses. The domains are interned in a table shared
+   by all the accounts, so a record only holds the domain's number. The
+   resources online (with their show and priority) are a second record,
+   so a presence doesn't rewrite the contact. {@link Item} and
+   {@link Presence} objects are only made when they are read.
+
+   <p> The receive thread applies the full roster ({@link #replaceAll}),
+   the roster pushes ({@link #update}) and the presences
+   ({@link #setAvailable}, {@link #setUnavailable}). Any thread may read
+   at the same time, without locking: records are never changed once
+   their address is published (a change is a new record), and the table
+   is rebuilt aside and swapped in when it fills up or holds too many
+   replaced records.
+
+   <p> The store is written to disk after a full roster, and by
+   {@link #save()} (e.g. when the connection is closed) if pushes
+   changed it. The version is only saved with the items it belongs to,
+   so a lost update is fetched again on the next connection. Presence is
+   not saved. The files go to the directory given by
+   <code>-Djabber.roster.dir</code> (by default ~/.jabberchat/roster),
+   one per account; <code>-Djabber.roster.dir=off</code> keeps the
+   rosters in memory only.
+ */
+class RosterStore {
+
+    /** Namespace of the roster versioning stream feature. */
+    public static final String VERSIONING_NAMESPACE = "urn:xmpp:features:rosterver";
+
+    /** Subscription of a roster push that removes the contact. */
+    public static final String REMOVE = "remove";
+
+    /** A roster item (immutable). */
+    public static class Item {
+
+        /** Constructor. */
+        public Item( String jid , String name , String subscription , List <String> groups ) {
+            this.jid = jid;
+            this.name = name;
+            this.subscription = ( subscription == null ) ? "none" : subscription;
+            this.groups = ( groups == null || groups.isEmpty() ) ?
+                Collections.<String>emptyList() : Collections.unmodifiableList( groups );
+        }
+
+        /** Gets the contact's bare JID. */
+        public String getJid() {
+            return jid;
+        }
+
+        /** Gets the contact's name (null if none). */
+        public String getName() {
+            return name;
+        }
+
+        /** Gets the subscription ("none", "to", "from", "both", or "remove" in pushes). */
+        public String getSubscription() {
+            return subscription;
+        }
+
+        /** Gets the groups the contact is in. */
+        public List <String> getGroups() {
+            return groups;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return ( name == null ) ? jid : jid + " (" + name + ")";
+        }
+
+        private final String jid;
+        private final String name;
+        private final String subscription;
+        private final List <String> groups;
+    }
+
+    /** A resource of a contact that is online (immutable). */
+    public static class Presence {
+
+        /** Constructor. */
+        public Presence( String resource , String show , int priority ) {
+            this.resource = resource;
+            this.show = show;
+            this.priority = priority;
+        }
+
+        /** Gets the resource (the part of the full JID after the '/'). */
+        public String getResource() {
+            return resource;
+        }
+
+        /** Gets the availability: "available", "chat", "away", "xa" or "dnd". */
+        public String getShow() {
+            return show;
+        }
+
+        /** Gets the priority (-128 to 127). */
+        public int getPriority() {
+            return priority;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return resource + " (" + show + ", " + priority + ")";
+        }
+
+        private final String resource;
+        private final String show;
+        private final int priority;
+    }
+
+    /**
+       Gets the roster store of an account, loading it from disk the
+       first time.
+     */
+    public static RosterStore forAccount( JabberID jid ) {
+        String account = jid.getJabberID();
+        RosterStore store = stores.get( account );
+        if ( store == null ) {
+            RosterStore created = new RosterStore( getFile( account ) );
+            store = stores.putIfAbsent( account , created );
+            if ( store == null ) {
+                store = created;
+                store.load();
+            }
+        }
+        return store;
+    }
+
+    /**
+       Constructor (doesn't load the file).
+       @param file  where the roster is persisted, or null to keep it in memory only
+     */
+    public RosterStore( File file ) {
+        this.file = file;
+        this.table = new Table( MIN_CAPACITY , chunksFor( 0 ) , MIN_CHUNK_SIZE );
+    }
+
+    /** Gets the version of the local copy (null if none: the full roster is needed). */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+       Indicates whether the roster is known, from the server or from
+       disk (else it is still empty because it hasn't arrived yet).
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+       Waits until the roster is known.
+       @return false if it wasn't within the given time
+     */
+    public synchronized boolean waitUntilLoaded( long timeoutMillis )
+        throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while ( ! loaded ) {
+            long remaining = deadline - System.currentTimeMillis();
+            if ( remaining <= 0 ) {
+                return false;
+            }
+            wait( remaining );
+        }
+        return true;
+    }
+
+    /**
+       Replaces the whole roster (a roster result), and saves it. The
+       presence of the contacts still in the roster is kept.
+     */
+    public void replaceAll( Collection <Item> newItems , String newVersion ) {
+        synchronized ( this ) {
+            replaceTable( newItems );
+            version = newVersion;
+            dirty = true;
+        }
+        setLoaded();
+        saveQuietly();
+    }
+
+    /** Applies a roster push: adds, changes or (subscription "remove") removes a contact. */
+    public void update( Item item , String newVersion ) {
+        synchronized ( this ) {
+            if ( REMOVE.equals( item.getSubscription() ) ) {
+                remove( item.getJid() );
+            }
+            else {
+                ensureRoom( recordSize( item ) );
+                Table t = table;
+                String jid = item.getJid();
+                int slot = find( t , jid , jid.length() , jid.hashCode() );
+                if ( slot >= 0 ) {
+                    int old = t.slots.get( slot * 2 );
+                    t.slots.set( slot * 2 , writeItem( t , item , jid.hashCode() ) );
+                    t.garbage( contactSize( t , old ) );
+                }
+                else {
+                    put( t , item , 0 );
+                    ++count;
+                }
+            }
+            if ( newVersion != null ) {
+                version = newVersion;
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+       Records that a resource of a contact is online, or changed its
+       availability. Ignored if the contact isn't in the roster.
+       @param fullJid   the presence's "from", with the resource
+       @param show      "chat", "away", "xa", "dnd", or null if just available
+       @param priority  the resource's priority
+     */
+    public void setAvailable( String fullJid , String show , int priority ) {
+        int slash = fullJid.indexOf( '/' );
+        String resource = ( slash < 0 ) ? "" : fullJid.substring( slash + 1 );
+        changePresence( fullJid , ( slash < 0 ) ? fullJid.length() : slash , resource ,
+                        showCode( show ) , Math.max( -128 , Math.min( 127 , priority ) ) );
+    }
+
+    /**
+       Records that a resource of a contact went offline (or all of
+       them, if the JID is bare).
+     */
+    public void setUnavailable( String jid ) {
+        int slash = jid.indexOf( '/' );
+        changePresence( jid , ( slash < 0 ) ? jid.length() : slash ,
+                        ( slash < 0 ) ? null : jid.substring( slash + 1 ) , -1 , 0 );
+    }
+
+    /** Gets a contact (null if not in the roster). */
+    public Item get( String jid ) {
+        Table t = table;
+        int slot = find( t , jid , jid.length() , jid.hashCode() );
+        // Read again: it may have been removed since
+        int address = ( slot < 0 ) ? REMOVED : t.slots.get( slot * 2 );
+        return ( address == REMOVED ) ? null : readItem( t , address );
+    }
+
+    /** Gets the resources of a contact that are online (none if offline, or not in the roster). */
+    public List <Presence> getPresences( String jid ) {
+        Table t = table;
+        int slot = find( t , jid , jid.length() , jid.hashCode() );
+        int address = ( slot < 0 ) ? 0 : t.slots.get( slot * 2 + 1 );
+        if ( address == 0 ) {
+            return Collections.emptyList();
+        }
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int pos = address & POSITION_MASK;
+        int resources = chunk[ pos++ ] & 0xff;
+        List <Presence> presences = new ArrayList <Presence>( resources );
+        for ( int i = 0 ; i < resources ; ++i ) {
+            String show = SHOW[ chunk[ pos ] ];
+            int priority = chunk[ pos + 1 ];
+            int length = readShort( chunk , pos + 2 );
+            presences.add( new Presence( new String( chunk , pos + 4 , length , UTF_8 ) , show , priority ) );
+            pos += 4 + length;
+        }
+        return presences;
+    }
+
+    /** Indicates whether a contact has at least one resource online. */
+    public boolean isAvailable( String jid ) {
+        Table t = table;
+        int slot = find( t , jid , jid.length() , jid.hashCode() );
+        return slot >= 0 && t.slots.get( slot * 2 + 1 ) != 0;
+    }
+
+    /** Gets the contacts, sorted by JID (a snapshot). */
+    public List <Item> getItems() {
+        Table t = table;
+        List <Item> items = new ArrayList <Item>( count );
+        for ( int slot = 0 ; slot <= t.mask ; ++slot ) {
+            int address = t.slots.get( slot * 2 );
+            if ( address != EMPTY && address != REMOVED ) {
+                items.add( readItem( t , address ) );
+            }
+        }
+        Collections.sort( items , BY_JID );
+        return Collections.unmodifiableList( items );
+    }
+
+    /** Gets the number of contacts. */
+    public int size() {
+        return count;
+    }
+
+    /** Gets the number of contacts with at least one resource online. */
+    public int getAvailableCount() {
+        return availableCount;
+    }
+
+    /** Writes the roster to disk if it changed since it was last written. */
+    public void save()
+        throws IOException {
+
+        if ( file == null ) {
+            return;
+        }
+
+        // Take a consistent snapshot of the items and their version
+        List <Item> snapshot;
+        String snapshotVersion;
+        synchronized ( this ) {
+            if ( ! dirty ) {
+                return;
+            }
+            snapshot = getItems();
+            snapshotVersion = version;
+            dirty = false;
+        }
+
+        // Write a new file, then replace the old one
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( parent != null && ! parent.isDirectory() && ! parent.mkdirs() ) {
+            throw new IOException( "Can't create the roster directory " + parent );
+        }
+        File temp = new File( file.getPath() + ".tmp" );
+        boolean written = false;
+        FileOutputStream fileOut = new FileOutputStream( temp );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeBoolean( snapshotVersion != null );
+            out.writeUTF( snapshotVersion == null ? "" : snapshotVersion );
+            out.writeInt( snapshot.size() );
+            for ( Item item : snapshot ) {
+                out.writeUTF( item.getJid() );
+                out.writeBoolean( item.getName() != null );
+                out.writeUTF( item.getName() == null ? "" : item.getName() );
+                out.writeUTF( item.getSubscription() );
+                out.writeShort( item.getGroups().size() );
+                for ( String group : item.getGroups() ) {
+                    out.writeUTF( group );
+                }
+            }
+            // On the disk before it replaces the old one, or a crash could leave neither
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            Files.move( temp.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING ,
+                        StandardCopyOption.ATOMIC_MOVE );
+            written = true;
+        }
+        finally {
+            out.close();
+            if ( ! written ) {
+                // Try again next time
+                synchronized ( this ) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /** Gets the store of all the accounts, by bare JID. */
+    public static ConcurrentMap <String , RosterStore> getStores() {
+        return stores;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /**
+       The hash table of the contacts and the chunks their records are
+       in. Readers only use the arrays; the other fields belong to the
+       writer (under the store's lock). A table is never shrunk or
+       compacted in place: a new one replaces it.
+     */
+    private static final class Table {
+
+        Table( int capacity , int maxChunks , int firstChunkSize ) {
+            this.mask = capacity - 1;
+            this.slots = new AtomicIntegerArray( capacity * 2 );
+            this.chunks = new AtomicReferenceArray <byte[]>( maxChunks );
+            chunks.set( 0 , new byte[ firstChunkSize ] );
+            limit = firstChunkSize;
+            // Address 0 means "none"
+            position = 1;
+        }
+
+        /**
+           Allocates room for a record. The chunks double in size up to
+           CHUNK_SIZE, so a small roster takes little memory.
+           @return its address, or -1 if the table is out of chunks
+         */
+        int allocate( int size ) {
+            if ( size > limit - position ) {
+                if ( chunkCount == chunks.length() ) {
+                    return -1;
+                }
+                // A record bigger than a chunk gets a chunk of its own
+                limit = Math.max( size , Math.min( CHUNK_SIZE , limit * 2 ) );
+                chunks.set( chunkCount , new byte[ limit ] );
+                position = 0;
+                ++chunkCount;
+            }
+            int address = ( ( chunkCount - 1 ) << CHUNK_BITS ) | position;
+            position += size;
+            liveBytes += padded( size );
+            return address;
+        }
+
+        /** Accounts for a record that was replaced or removed. */
+        void garbage( int size ) {
+            liveBytes -= padded( size );
+            garbageBytes += padded( size );
+        }
+
+        /** Per slot, the address of the contact record and of the presence record (0 if none). */
+        final AtomicIntegerArray slots;
+        /** The chunks the records are in. */
+        final AtomicReferenceArray <byte[]> chunks;
+        /** Number of slots - 1. */
+        final int mask;
+
+        /** Number of chunks used. */
+        int chunkCount = 1;
+        /** Where the next record goes in the last chunk. */
+        int position;
+        /** Size of the last chunk. */
+        int limit;
+        /** Slots used by a contact, or by a removed one. */
+        int usedSlots;
+        /** Bytes of the current records (see padded()). */
+        long liveBytes;
+        /** Bytes of the records that were replaced or removed. */
+        long garbageBytes;
+    }
+
+    /**
+       Finds the slot of a bare JID, given as a string's first
+       <code>end</code> chars and their hash.
+       @return the slot, or -1 if not found
+     */
+    private static int find( Table t , String jid , int end , int hash ) {
+        int at = jid.lastIndexOf( '@' , end - 1 );
+        for ( int slot = hash & t.mask ; ; slot = ( slot + 1 ) & t.mask ) {
+            int address = t.slots.get( slot * 2 );
+            if ( address == EMPTY ) {
+                return -1;
+            }
+            if ( address != REMOVED && matches( t , address , jid , at , end , hash ) ) {
+                return slot;
+            }
+        }
+    }
+
+    /** Compares a contact record with a bare JID. */
+    private static boolean matches( Table t , int address , String jid , int at , int end , int hash ) {
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int pos = address & POSITION_MASK;
+        if ( readInt( chunk , pos ) != hash ) {
+            return false;
+        }
+        int domainAndFlags = readInt( chunk , pos + 4 );
+        if ( ( ( domainAndFlags & NO_LOCAL_PART ) != 0 ) != ( at < 0 ) ) {
+            return false;
+        }
+        String domain = domainNames[ domainAndFlags & DOMAIN_MASK ];
+        if ( domain.length() != end - at - 1 || ! jid.regionMatches( at + 1 , domain , 0 , domain.length() ) ) {
+            return false;
+        }
+        return at < 0 || equalsUtf8( jid , 0 , at , chunk , pos + 10 , readShort( chunk , pos + 8 ) );
+    }
+
+    /** Inserts a contact that isn't in the table. @return its slot */
+    private int put( Table t , Item item , int presence ) {
+        String jid = item.getJid();
+        int hash = jid.hashCode();
+        int address = writeItem( t , item , hash );
+        int slot = hash & t.mask;
+        while ( t.slots.get( slot * 2 ) != EMPTY ) {
+            slot = ( slot + 1 ) & t.mask;
+        }
+        // The presence goes first: a reader that finds the contact finds it too
+        t.slots.set( slot * 2 + 1 , presence );
+        t.slots.set( slot * 2 , address );
+        ++t.usedSlots;
+        return slot;
+    }
+
+    /** Removes a contact and its presence. */
+    private void remove( String jid ) {
+        Table t = table;
+        int slot = find( t , jid , jid.length() , jid.hashCode() );
+        if ( slot < 0 ) {
+            return;
+        }
+        int presence = t.slots.get( slot * 2 + 1 );
+        if ( presence != 0 ) {
+            t.garbage( presenceSize( t , presence ) );
+            --availableCount;
+        }
+        t.garbage( contactSize( t , t.slots.get( slot * 2 ) ) );
+        // Removed slots aren't reused: a slot keeps the same contact until the table is rebuilt
+        t.slots.set( slot * 2 , REMOVED );
+        t.slots.set( slot * 2 + 1 , 0 );
+        --count;
+    }
+
+    /**
+       Adds, replaces or removes a resource in a contact's presence
+       record. A null resource with show -1 removes them all.
+     */
+    private synchronized void changePresence( String jid , int end , String resource , int show , int priority ) {
+        int hash = hash( jid , end );
+        Table t = table;
+        int slot = find( t , jid , end , hash );
+        if ( slot < 0 ) {
+            return;
+        }
+
+        // Copy the other resources, then add this one
+        int old = t.slots.get( slot * 2 + 1 );
+        int length = 1;
+        int resources = 0;
+        if ( old != 0 && resource != null ) {
+            byte[] chunk = t.chunks.get( old >>> CHUNK_BITS );
+            int pos = old & POSITION_MASK;
+            int oldResources = chunk[ pos++ ] & 0xff;
+            for ( int i = 0 ; i < oldResources ; ++i ) {
+                int entryLength = 4 + readShort( chunk , pos + 2 );
+                if ( ! equalsUtf8( resource , 0 , resource.length() , chunk , pos + 4 , entryLength - 4 ) &&
+                     resources < MAX_RESOURCES ) {
+                    scratch = ensureCapacity( scratch , length + entryLength );
+                    System.arraycopy( chunk , pos , scratch , length , entryLength );
+                    length += entryLength;
+                    ++resources;
+                }
+                pos += entryLength;
+            }
+        }
+        if ( show >= 0 && resources < MAX_RESOURCES ) {
+            scratch = ensureCapacity( scratch , length + 4 + utf8Length( resource , 0 , resource.length() ) );
+            scratch[ length ] = (byte) show;
+            scratch[ length + 1 ] = (byte) priority;
+            int start = length + 4;
+            length = encodeUtf8( resource , 0 , resource.length() , scratch , start );
+            writeShort( scratch , start - 2 , length - start );
+            ++resources;
+        }
+        scratch[0] = (byte) resources;
+
+        if ( resources == 0 ) {
+            t.slots.set( slot * 2 + 1 , 0 );
+        }
+        else {
+            if ( ensureRoom( length ) ) {
+                // Rebuilt: the contact is in another slot
+                t = table;
+                slot = find( t , jid , end , hash );
+                old = t.slots.get( slot * 2 + 1 );
+            }
+            int address = t.allocate( length );
+            // Published by setting the slot, after the bytes are written
+            System.arraycopy( scratch , 0 , t.chunks.get( address >>> CHUNK_BITS ) , address & POSITION_MASK , length );
+            t.slots.set( slot * 2 + 1 , address );
+        }
+        if ( old != 0 ) {
+            t.garbage( presenceSize( t , old ) );
+        }
+        if ( ( old == 0 ) != ( resources == 0 ) ) {
+            availableCount += ( resources == 0 ) ? -1 : 1;
+        }
+    }
+
+    /**
+       Makes sure the table has a free slot and room for a record of the
+       given size, rebuilding it if needed (or if it holds too many
+       replaced records).
+       @return true if it was rebuilt
+     */
+    private boolean ensureRoom( int recordSize ) {
+        Table t = table;
+        boolean full = ( t.usedSlots + 1 ) * 4 > ( t.mask + 1 ) * 3;
+        boolean wasteful = t.garbageBytes > t.liveBytes + CHUNK_SIZE;
+        boolean noChunk = recordSize > t.limit - t.position && t.chunkCount == t.chunks.length();
+        if ( ! full && ! wasteful && ! noChunk ) {
+            return false;
+        }
+        long bytes = t.liveBytes + padded( recordSize );
+        Table fresh = new Table( capacityFor( count + 1 ) , chunksFor( bytes ) , firstChunkSize( bytes ) );
+        for ( int slot = 0 ; slot <= t.mask ; ++slot ) {
+            int address = t.slots.get( slot * 2 );
+            if ( address == EMPTY || address == REMOVED ) {
+                continue;
+            }
+            int presence = t.slots.get( slot * 2 + 1 );
+            int copy = copyRecord( t , address , fresh , false );
+            int hash = readInt( fresh.chunks.get( copy >>> CHUNK_BITS ) , copy & POSITION_MASK );
+            int newSlot = hash & fresh.mask;
+            while ( fresh.slots.get( newSlot * 2 ) != EMPTY ) {
+                newSlot = ( newSlot + 1 ) & fresh.mask;
+            }
+            fresh.slots.set( newSlot * 2 + 1 , ( presence == 0 ) ? 0 : copyRecord( t , presence , fresh , true ) );
+            fresh.slots.set( newSlot * 2 , copy );
+            ++fresh.usedSlots;
+        }
+        table = fresh;
+        return true;
+    }
+
+    /**
+       Replaces the table with one of the given items. The contacts
+       still in the roster keep their presence.
+     */
+    private void replaceTable( Collection <Item> newItems ) {
+        Table old = table;
+        long bytes = old.liveBytes;
+        for ( Item item : newItems ) {
+            bytes += padded( recordSize( item ) );
+        }
+        Table fresh = new Table( capacityFor( newItems.size() ) , chunksFor( bytes ) , firstChunkSize( bytes ) );
+        int newCount = 0;
+        int newAvailable = 0;
+        for ( Item item : newItems ) {
+            if ( REMOVE.equals( item.getSubscription() ) ) {
+                continue;
+            }
+            String jid = item.getJid();
+            int hash = jid.hashCode();
+            int slot = find( fresh , jid , jid.length() , hash );
+            if ( slot >= 0 ) {
+                // Listed twice: the last one wins
+                fresh.garbage( contactSize( fresh , fresh.slots.get( slot * 2 ) ) );
+                fresh.slots.set( slot * 2 , writeItem( fresh , item , hash ) );
+                continue;
+            }
+            int oldSlot = find( old , jid , jid.length() , hash );
+            int presence = ( oldSlot < 0 ) ? 0 : old.slots.get( oldSlot * 2 + 1 );
+            put( fresh , item , ( presence == 0 ) ? 0 : copyRecord( old , presence , fresh , true ) );
+            ++newCount;
+            if ( presence != 0 ) {
+                ++newAvailable;
+            }
+        }
+        table = fresh;
+        count = newCount;
+        availableCount = newAvailable;
+    }
+
+    /** Copies a contact or presence record to another table. @return its address there */
+    private static int copyRecord( Table from , int address , Table to , boolean presence ) {
+        byte[] chunk = from.chunks.get( address >>> CHUNK_BITS );
+        int pos = address & POSITION_MASK;
+        int size = presence ? presenceSize( from , address ) : contactSize( from , address );
+        int copy = to.allocate( size );
+        System.arraycopy( chunk , pos , to.chunks.get( copy >>> CHUNK_BITS ) , copy & POSITION_MASK , size );
+        return copy;
+    }
+
+    /**
+       Writes a contact record: hash, flags and domain number, local
+       part, name, groups.
+       @return its address
+     */
+    private int writeItem( Table t , Item item , int hash ) {
+        String jid = item.getJid();
+        int at = jid.lastIndexOf( '@' );
+        int flags = subscriptionCode( item.getSubscription() );
+        if ( at < 0 ) {
+            flags |= NO_LOCAL_PART;
+        }
+        if ( item.getName() != null ) {
+            flags |= HAS_NAME;
+        }
+
+        int size = recordSize( item );
+        int address = t.allocate( size );
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int pos = address & POSITION_MASK;
+        writeInt( chunk , pos , hash );
+        writeInt( chunk , pos + 4 , flags | internDomain( jid.substring( at + 1 ) ) );
+        pos = writeString( jid , 0 , Math.max( at , 0 ) , chunk , pos + 8 );
+        String name = ( item.getName() == null ) ? "" : item.getName();
+        pos = writeString( name , 0 , name.length() , chunk , pos );
+        writeShort( chunk , pos , item.getGroups().size() );
+        pos += 2;
+        for ( String group : item.getGroups() ) {
+            pos = writeString( group , 0 , group.length() , chunk , pos );
+        }
+        return address;
+    }
+
+    /** Reads a contact record. */
+    private static Item readItem( Table t , int address ) {
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int pos = address & POSITION_MASK;
+        int domainAndFlags = readInt( chunk , pos + 4 );
+        String domain = domainNames[ domainAndFlags & DOMAIN_MASK ];
+        pos += 8;
+        String jid;
+        int length = readShort( chunk , pos );
+        if ( ( domainAndFlags & NO_LOCAL_PART ) != 0 ) {
+            jid = domain;
+        }
+        else {
+            jid = new String( chunk , pos + 2 , length , UTF_8 ) + "@" + domain;
+        }
+        pos += 2 + length;
+        length = readShort( chunk , pos );
+        String name = ( ( domainAndFlags & HAS_NAME ) != 0 ) ? new String( chunk , pos + 2 , length , UTF_8 ) : null;
+        pos += 2 + length;
+        int numGroups = readShort( chunk , pos );
+        pos += 2;
+        List <String> groups = null;
+        if ( numGroups > 0 ) {
+            groups = new ArrayList <String>( numGroups );
+            for ( int i = 0 ; i < numGroups ; ++i ) {
+                length = readShort( chunk , pos );
+                groups.add( new String( chunk , pos + 2 , length , UTF_8 ) );
+                pos += 2 + length;
+            }
+        }
+        return new Item( jid , name , SUBSCRIPTIONS[ ( domainAndFlags & SUBSCRIPTION_MASK ) >>> 24 ] , groups );
+    }
+
+    /** Gets the size of the record an item takes. */
+    private static int recordSize( Item item ) {
+        String jid = item.getJid();
+        int at = jid.lastIndexOf( '@' );
+        int size = 8 + 2 + utf8Length( jid , 0 , Math.max( at , 0 ) ) + 2 + 2;
+        if ( item.getName() != null ) {
+            size += utf8Length( item.getName() , 0 , item.getName().length() );
+        }
+        for ( String group : item.getGroups() ) {
+            size += 2 + utf8Length( group , 0 , group.length() );
+        }
+        return size;
+    }
+
+    /** Gets the size of a contact record. */
+    private static int contactSize( Table t , int address ) {
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int start = address & POSITION_MASK;
+        int pos = start + 8;
+        pos += 2 + readShort( chunk , pos );
+        pos += 2 + readShort( chunk , pos );
+        int numGroups = readShort( chunk , pos );
+        pos += 2;
+        for ( int i = 0 ; i < numGroups ; ++i ) {
+            pos += 2 + readShort( chunk , pos );
+        }
+        return pos - start;
+    }
+
+    /** Gets the size of a presence record. */
+    private static int presenceSize( Table t , int address ) {
+        byte[] chunk = t.chunks.get( address >>> CHUNK_BITS );
+        int start = address & POSITION_MASK;
+        int resources = chunk[ start ] & 0xff;
+        int pos = start + 1;
+        for ( int i = 0 ; i < resources ; ++i ) {
+            pos += 4 + readShort( chunk , pos + 2 );
+        }
+        return pos - start;
+    }
+
+    /** Gets the number of a domain, interning it. */
+    private static int internDomain( String domain ) {
+        Integer id = domainIds.get( domain );
+        if ( id != null ) {
+            return id;
+        }
+        synchronized ( domainIds ) {
+            id = domainIds.get( domain );
+            if ( id == null ) {
+                String[] names = domainNames;
+                if ( domainCount == names.length ) {
+                    String[] bigger = new String[ names.length * 2 ];
+                    System.arraycopy( names , 0 , bigger , 0 , names.length );
+                    names = bigger;
+                }
+                names[ domainCount ] = domain;
+                // Published before the number can be in a record
+                domainNames = names;
+                id = domainCount++;
+                domainIds.put( domain , id );
+            }
+            return id;
+        }
+    }
+
+    /** Same as <code>s.substring( 0 , end ).hashCode()</code>. */
+    private static int hash( String s , int end ) {
+        if ( end == s.length() ) {
+            return s.hashCode();
+        }
+        int h = 0;
+        for ( int i = 0 ; i < end ; ++i ) {
+            h = 31 * h + s.charAt( i );
+        }
+        return h;
+    }
+
+    private static int subscriptionCode( String subscription ) {
+        for ( int i = 0 ; i < SUBSCRIPTIONS.length ; ++i ) {
+            if ( SUBSCRIPTIONS[i].equals( subscription ) ) {
+                return i << 24;
+            }
+        }
+        return 0;
+    }
+
+    private static int showCode( String show ) {
+        for ( int i = 1 ; i < SHOW.length ; ++i ) {
+            if ( SHOW[i].equals( show ) ) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /* UTF-8 strings in the records, with a 2-byte length (longer strings are cut) */
+
+    private static int writeString( String s , int from , int to , byte[] buf , int pos ) {
+        int end = encodeUtf8( s , from , to , buf , pos + 2 );
+        writeShort( buf , pos , end - pos - 2 );
+        return end;
+    }
+
+    private static int utf8Length( String s , int from , int to ) {
+        for ( int i = from ; i < to ; ++i ) {
+            if ( s.charAt( i ) >= 0x80 ) {
+                return Math.min( MAX_STRING_BYTES , s.substring( from , to ).getBytes( UTF_8 ).length );
+            }
+        }
+        return Math.min( MAX_STRING_BYTES , to - from );
+    }
+
+    private static int encodeUtf8( String s , int from , int to , byte[] buf , int pos ) {
+        int max = Math.min( to , from + MAX_STRING_BYTES );
+        for ( int i = from ; i < max ; ++i ) {
+            char c = s.charAt( i );
+            if ( c >= 0x80 ) {
+                byte[] bytes = s.substring( from , to ).getBytes( UTF_8 );
+                int length = Math.min( MAX_STRING_BYTES , bytes.length );
+                System.arraycopy( bytes , 0 , buf , pos - ( i - from ) , length );
+                return pos - ( i - from ) + length;
+            }
+            buf[ pos++ ] = (byte) c;
+        }
+        return pos;
+    }
+
+    private static boolean equalsUtf8( String s , int from , int to , byte[] buf , int pos , int length ) {
+        if ( to - from > length ) {
+            return false;
+        }
+        for ( int i = from ; i < to ; ++i ) {
+            char c = s.charAt( i );
+            if ( c >= 0x80 ) {
+                byte[] bytes = s.substring( from , to ).getBytes( UTF_8 );
+                if ( Math.min( bytes.length , MAX_STRING_BYTES ) != length ) {
+                    return false;
+                }
+                for ( int j = 0 ; j < length ; ++j ) {
+                    if ( bytes[j] != buf[ pos + j ] ) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if ( buf[ pos + i - from ] != (byte) c ) {
+                return false;
+            }
+        }
+        return to - from == length;
+    }
+
+    private static int readInt( byte[] buf , int pos ) {
+        return ( buf[pos] << 24 ) | ( ( buf[ pos + 1 ] & 0xff ) << 16 ) |
+               ( ( buf[ pos + 2 ] & 0xff ) << 8 ) | ( buf[ pos + 3 ] & 0xff );
+    }
+
+    private static void writeInt( byte[] buf , int pos , int value ) {
+        buf[pos] = (byte) ( value >>> 24 );
+        buf[ pos + 1 ] = (byte) ( value >>> 16 );
+        buf[ pos + 2 ] = (byte) ( value >>> 8 );
+        buf[ pos + 3 ] = (byte) value;
+    }
+
+    private static int readShort( byte[] buf , int pos ) {
+        return ( ( buf[pos] & 0xff ) << 8 ) | ( buf[ pos + 1 ] & 0xff );
+    }
+
+    private static void writeShort( byte[] buf , int pos , int value ) {
+        buf[pos] = (byte) ( value >>> 8 );
+        buf[ pos + 1 ] = (byte) value;
+    }
+
+    private static byte[] ensureCapacity( byte[] buf , int size ) {
+        if ( size <= buf.length ) {
+            return buf;
+        }
+        byte[] bigger = new byte[ Math.max( size , buf.length * 2 ) ];
+        System.arraycopy( buf , 0 , bigger , 0 , buf.length );
+        return bigger;
+    }
+
+    /** Gets a table capacity (a power of 2) for a number of contacts: at most half full. */
+    private static int capacityFor( int contacts ) {
+        int capacity = MIN_CAPACITY;
+        while ( capacity < contacts * 2 ) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+       Gets the number of chunks for the given bytes of records: twice
+       as many full chunks as needed, plus the smaller first ones.
+     */
+    private static int chunksFor( long bytes ) {
+        return (int) Math.min( MAX_CHUNKS , bytes * 2 / CHUNK_SIZE + SMALL_CHUNKS );
+    }
+
+    private static int firstChunkSize( long bytes ) {
+        return (int) Math.max( MIN_CHUNK_SIZE , Math.min( CHUNK_SIZE , bytes ) );
+    }
+
+    /**
+       Gets the bytes a record is counted for when sizing the chunks: a
+       big one may leave the rest of a chunk unused.
+     */
+    private static long padded( int size ) {
+        return ( size > CHUNK_SIZE / 4 ) ? size + CHUNK_SIZE : size;
+    }
+
+    /** Saves, logging any failure: the roster is fetched again next time. */
+    private void saveQuietly() {
+        try {
+            save();
+        }
+        catch ( IOException e ) {
+            EventLog.log( "Could not save the roster to " , file , ": " , e );
+        }
+    }
+
+    /** Loads the file, if there is one (a bad file is ignored: the full roster is fetched). */
+    private void load() {
+        if ( file == null || ! file.isFile() ) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try {
+                if ( in.readInt() != MAGIC ) {
+                    throw new IOException( "Not a roster file" );
+                }
+                boolean hasVersion = in.readBoolean();
+                String fileVersion = in.readUTF();
+                int numItems = in.readInt();
+                List <Item> fileItems = new ArrayList <Item>( numItems );
+                for ( int i = 0 ; i < numItems ; ++i ) {
+                    String jid = in.readUTF();
+                    boolean hasName = in.readBoolean();
+                    String name = in.readUTF();
+                    String subscription = in.readUTF();
+                    int numGroups = in.readShort();
+                    List <String> groups = new ArrayList <String>( numGroups );
+                    for ( int g = 0 ; g < numGroups ; ++g ) {
+                        groups.add( in.readUTF() );
+                    }
+                    fileItems.add( new Item( jid , hasName ? name : null , subscription , groups ) );
+                }
+                synchronized ( this ) {
+                    replaceTable( fileItems );
+                    version = hasVersion ? fileVersion : null;
+                }
+                setLoaded();
+                EventLog.log( "Loaded " , numItems , " contacts from " , file );
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch ( IOException e ) {
+            EventLog.log( "Could not load the roster from " , file , ": " , e );
+        }
+    }
+
+    /** Marks the roster as known, and wakes up the waiting threads. */
+    private synchronized void setLoaded() {
+        loaded = true;
+        notifyAll();
+    }
+
+    /** Gets the file of an account's roster (null if not persisted). */
+    private static File getFile( String account ) {
+        String dir = System.getProperty( "jabber.roster.dir" ,
+                                         System.getProperty( "user.home" ) + File.separator + ".jabberchat" +
+                                         File.separator + "roster" );
+        if ( dir.equals( "off" ) ) {
+            return null;
+        }
+        // Keep the file name safe on any file system
+        return new File( dir , account.replaceAll( "[^A-Za-z0-9@._-]" , "_" ) + ".roster" );
+    }
+
+    /** First bytes of a roster file ("JRS" and the format version). */
+    private static final int MAGIC = 0x4a525301;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    /** Chunk size is 2^CHUNK_BITS: an address is the chunk number and the position in it. */
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int POSITION_MASK = CHUNK_SIZE - 1;
+    private static final int MIN_CHUNK_SIZE = 256;
+    /** Chunks smaller than CHUNK_SIZE (doubling from MIN_CHUNK_SIZE), and a few spare. */
+    private static final int SMALL_CHUNKS = 12;
+    /** Keeps the addresses positive (and never equal to REMOVED). */
+    private static final int MAX_CHUNKS = Short.MAX_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    /** Contact slot values that aren't an address. */
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    /** Layout of the flags and domain number int of a contact record. */
+    private static final int DOMAIN_MASK = 0xffffff;
+    private static final int SUBSCRIPTION_MASK = 0x3000000;
+    private static final int HAS_NAME = 0x4000000;
+    private static final int NO_LOCAL_PART = 0x8000000;
+
+    private static final String[] SUBSCRIPTIONS = { "none" , "to" , "from" , "both" };
+    private static final String[] SHOW = { "available" , "chat" , "away" , "xa" , "dnd" };
+
+    private static final int MAX_STRING_BYTES = 0xffff;
+    /** Resources kept per contact (the count is a byte). */
+    private static final int MAX_RESOURCES = 255;
+
+    private static final Comparator <Item> BY_JID = new Comparator <Item>() {
+        public int compare( Item a , Item b ) {
+            return a.getJid().compareTo( b.getJid() );
+        }
+    };
+
+    /** Where the roster is persisted (null if it isn't). */
+    private final File file;
+    /** The contacts (replaced when rebuilt). */
+    private volatile Table table;
+    /** Number of contacts. */
+    private volatile int count;
+    /** Number of contacts with a resource online. */
+    private volatile int availableCount;
+    /** Roster version (null if none). */
+    private volatile String version;
+    /** Indicates whether the roster is known. */
+    private volatile boolean loaded = false;
+    /** Indicates whether the roster changed since it was saved. */
+    private boolean dirty = false;
+    /** Where the writer builds presence records. */
+    private byte[] scratch = new byte[ 256 ];
+
+    /** All the accounts' stores, by bare JID. */
+    private static final ConcurrentMap <String , RosterStore> stores =
+        new ConcurrentHashMap <String , RosterStore>();
+
+    /** Interned domains, by name and by number. */
+    private static final ConcurrentMap <String , Integer> domainIds = new ConcurrentHashMap <String , Integer>();
+    private static volatile String[] domainNames = new String[ 16 ];
+    private static int domainCount = 0;
+}
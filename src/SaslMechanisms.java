@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+/**
+   Picks the SASL mechanism to authenticate with, and times the
+   authentication.
+
+   <p> Among the mechanisms the server offers, the order is:
+   <ol>
+    <li> the mechanism this JID last authenticated with successfully; </li>
+    <li> SCRAM-SHA-256, then SCRAM-SHA-1 ({@link ScramSaslClient}); </li>
+    <li> whatever <code>Sasl.createSaslClient</code> supports
+         (e.g. PLAIN, DIGEST-MD5), in the server's order. </li>
+   </ol>
+
+   <p> Both {@link XmppConnection} and {@link XmppHandshake} report
+   the outcome with {@link #succeeded} and {@link #failed}; the
+   authentication time (from sending the auth stanza to the server's
+   success) is recorded per mechanism, separately for SCRAM runs that
+   used cached keys.
+ */
+class SaslMechanisms {
+
+    /**
+       Creates a SASL client for one of the server's mechanisms.
+       @return the client, or null if none of the mechanisms is supported
+     */
+    public static SaslClient createSaslClient( List <String> serverMechanisms , JabberID jid ,
+                                               CallbackHandler handler )
+        throws SaslException {
+
+        List <String> preferred = new ArrayList <String>();
+        String last = lastSuccessful.get( jid.getJabberID() );
+        if ( last != null && serverMechanisms.contains( last ) ) {
+            preferred.add( last );
+        }
+        for ( String scram : SCRAM_PREFERENCE ) {
+            if ( serverMechanisms.contains( scram ) && ! preferred.contains( scram ) ) {
+                preferred.add( scram );
+            }
+        }
+        for ( String mechanism : serverMechanisms ) {
+            if ( ! preferred.contains( mechanism ) ) {
+                preferred.add( mechanism );
+            }
+        }
+
+        if ( preferred.isEmpty() ) {
+            return null;
+        }
+        if ( ScramSaslClient.isSupported( preferred.get( 0 ) ) ) {
+            return new ScramSaslClient( preferred.get( 0 ) , jid );
+        }
+
+        // Otherwise let the JDK pick the first one it supports
+        Map <String , String> authProperties = new HashMap <String , String>();
+        return Sasl.createSaslClient( preferred.toArray( new String[0] ) ,  // Mechanisms, best first
+                                      jid.getJabberID() ,                 // Jabber ID
+                                      "xmpp" ,                            // Application Protocol
+                                      jid.getServerName() ,               // Server name
+                                      authProperties ,                    // Auth Properties required
+                                      handler );                          // Callback handler (for password)
+    }
+
+    /**
+       Records a successful authentication.
+       @param startNanos  System.nanoTime() when the auth stanza was sent
+     */
+    public static void succeeded( JabberID jid , SaslClient sc , long startNanos ) {
+
+        long micros = ( System.nanoTime() - startNanos ) / 1000;
+        lastSuccessful.put( jid.getJabberID() , sc.getMechanismName() );
+
+        String name = sc.getMechanismName();
+        if ( sc instanceof ScramSaslClient && ( (ScramSaslClient) sc ).isKeyCacheHit() ) {
+            name += " (cached keys)";
+        }
+        getAuthTime( name ).record( micros );
+    }
+
+    /** Records a failed authentication: the mechanism isn't preferred anymore, cached keys are dropped. */
+    public static void failed( JabberID jid ) {
+        lastSuccessful.remove( jid.getJabberID() );
+        ScramSaslClient.forgetKeys( jid );
+    }
+
+    /**
+       Gets the histogram of authentication times (microsec) for a
+       mechanism name, e.g. "PLAIN", "SCRAM-SHA-1" or
+       "SCRAM-SHA-1 (cached keys)".
+     */
+    public static Histogram getAuthTime( String name ) {
+        Histogram histogram = authTimes.get( name );
+        if ( histogram == null ) {
+            Histogram created = new Histogram( name + " auth (us)" );
+            histogram = authTimes.putIfAbsent( name , created );
+            if ( histogram == null ) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /** Gets all the authentication time histograms, by mechanism name. */
+    public static Map <String , Histogram> getAuthTimes() {
+        return authTimes;
+    }
+
+    /** SCRAM mechanisms, best first. */
+    private static final String[] SCRAM_PREFERENCE = {
+        ScramSaslClient.SCRAM_SHA_256 , ScramSaslClient.SCRAM_SHA_1 };
+
+    /** Mechanism of the last successful authentication, by JID. */
+    private static final ConcurrentMap <String , String> lastSuccessful =
+        new ConcurrentHashMap <String , String>();
+    /** Authentication times, by mechanism name. */
+    private static final ConcurrentMap <String , Histogram> authTimes =
+        new ConcurrentHashMap <String , Histogram>();
+}
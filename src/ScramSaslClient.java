@@ -0,0 +1,375 @@
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+// Apache commons codec library
+import org.apache.commons.codec.binary.Base64;
+
+/**
+   SASL client for SCRAM-SHA-1 and SCRAM-SHA-256 (RFC 5802 and 7677),
+   without channel binding.
+
+   <p> The expensive part of SCRAM is deriving the salted password
+   from the password (thousands of HMAC iterations). The ClientKey and
+   ServerKey derived from it are cached per JID and mechanism, together
+   with the salt and iteration count they were derived with; as long as
+   the server sends the same salt and iteration count (it does, until
+   the password is changed), a re-connection skips the derivation.
+   Call {@link #forgetKeys(JabberID)} after an authentication failure.
+   The cache doesn't keep the password: only a keyed hash of it, to
+   notice that the JID's password has changed.
+
+   <p> Iteration counts outside {@link #MIN_ITERATIONS} to
+   {@link #MAX_ITERATIONS} fail the authentication: a low count makes
+   the keys easy to crack from the exchange, a huge one would keep the
+   client busy for minutes.
+
+   <p> The server's signature (in the server-final message) is checked,
+   so the client knows it talked to a server that knows the password.
+   The password is used as it is (no SASLprep), which is fine for ASCII
+   passwords.
+ */
+class ScramSaslClient
+    implements SaslClient {
+
+    /** Mechanism names. */
+    public static final String SCRAM_SHA_1 = "SCRAM-SHA-1";
+    public static final String SCRAM_SHA_256 = "SCRAM-SHA-256";
+
+    /** Iteration counts accepted from the server (RFC 7677 asks for at least 4096). */
+    public static final int MIN_ITERATIONS = 4096;
+    public static final int MAX_ITERATIONS = 1000000;
+
+    /** Checks whether a SASL mechanism is one of the SCRAM mechanisms supported. */
+    public static boolean isSupported( String mechanism ) {
+        return mechanism.equals( SCRAM_SHA_1 ) || mechanism.equals( SCRAM_SHA_256 );
+    }
+
+    /** Constructor. */
+    public ScramSaslClient( String mechanism , JabberID jid ) {
+
+        if ( ! isSupported( mechanism ) ) {
+            throw new IllegalArgumentException( "Not a supported SCRAM mechanism: " + mechanism );
+        }
+        this.mechanism = mechanism;
+        this.jid = jid;
+        this.hmacName = mechanism.equals( SCRAM_SHA_1 ) ? "HmacSHA1" : "HmacSHA256";
+        this.digestName = mechanism.equals( SCRAM_SHA_1 ) ? "SHA-1" : "SHA-256";
+    }
+
+    /** {@inheritDoc} */
+    public String getMechanismName() {
+        return mechanism;
+    }
+
+    /** {@inheritDoc} */
+    public boolean hasInitialResponse() {
+        return true;
+    }
+
+    /**
+       Evaluates the next server message: nothing (to get the
+       client-first message), the server-first message, then the
+       server-final message.
+     */
+    public byte[] evaluateChallenge( byte[] challenge )
+        throws SaslException {
+
+        try {
+            switch ( state ) {
+            case INITIAL:
+                state = CLIENT_FIRST_SENT;
+                return clientFirstMessage();
+            case CLIENT_FIRST_SENT:
+                state = CLIENT_FINAL_SENT;
+                return clientFinalMessage( new String( challenge , "UTF-8" ) );
+            case CLIENT_FINAL_SENT:
+                verifyServerFinalMessage( new String( challenge , "UTF-8" ) );
+                state = COMPLETE;
+                return null;
+            default:
+                throw new SaslException( "SCRAM exchange already complete" );
+            }
+        }
+        catch ( SaslException e ) {
+            state = FAILED;
+            throw e;
+        }
+        catch ( Exception e ) {
+            state = FAILED;
+            throw new SaslException( "SCRAM exchange failed: " + e.getMessage() , e );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    /** Indicates whether the keys came from the cache (no salted password derivation). */
+    public boolean isKeyCacheHit() {
+        return keyCacheHit;
+    }
+
+    /** Not supported: SCRAM has no security layer. */
+    public byte[] unwrap( byte[] incoming , int offset , int len )
+        throws SaslException {
+
+        throw new IllegalStateException( "SCRAM has no security layer" );
+    }
+
+    /** Not supported: SCRAM has no security layer. */
+    public byte[] wrap( byte[] outgoing , int offset , int len )
+        throws SaslException {
+
+        throw new IllegalStateException( "SCRAM has no security layer" );
+    }
+
+    /** {@inheritDoc} */
+    public Object getNegotiatedProperty( String propName ) {
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public void dispose() {
+        authMessage = null;
+        serverKey = null;
+    }
+
+    /** Forgets the cached keys of a JID (e.g. after an authentication failure). */
+    public static void forgetKeys( JabberID jid ) {
+        KEY_CACHE.remove( cacheKey( jid , SCRAM_SHA_1 ) );
+        KEY_CACHE.remove( cacheKey( jid , SCRAM_SHA_256 ) );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Creates the client-first message: "n,,n=user,r=nonce". */
+    private byte[] clientFirstMessage()
+        throws UnsupportedEncodingException {
+
+        byte[] random = new byte[ 18 ];
+        RANDOM.nextBytes( random );
+        clientNonce = Base64.encodeBase64String( random ).trim();
+
+        clientFirstMessageBare = "n=" + saslName( jid.getUsername() ) + ",r=" + clientNonce;
+        return ( GS2_HEADER + clientFirstMessageBare ).getBytes( "UTF-8" );
+    }
+
+    /** Handles the server-first message ("r=nonce,s=salt,i=iterations"), creates the client-final one. */
+    private byte[] clientFinalMessage( String serverFirstMessage )
+        throws GeneralSecurityException , UnsupportedEncodingException , SaslException {
+
+        String nonce = getAttribute( serverFirstMessage , 'r' );
+        String salt = getAttribute( serverFirstMessage , 's' );
+        String iterations = getAttribute( serverFirstMessage , 'i' );
+        if ( nonce == null || salt == null || iterations == null ) {
+            throw new SaslException( "Invalid SCRAM server-first message: " + serverFirstMessage );
+        }
+        if ( ! nonce.startsWith( clientNonce ) || nonce.length() == clientNonce.length() ) {
+            throw new SaslException( "SCRAM server nonce doesn't extend the client nonce" );
+        }
+
+        int iterationCount;
+        try {
+            iterationCount = Integer.parseInt( iterations );
+        }
+        catch ( NumberFormatException e ) {
+            throw new SaslException( "Invalid SCRAM iteration count: " + iterations );
+        }
+        if ( iterationCount < MIN_ITERATIONS || iterationCount > MAX_ITERATIONS ) {
+            throw new SaslException( "SCRAM iteration count out of range (" + MIN_ITERATIONS + " to " +
+                                     MAX_ITERATIONS + "): " + iterationCount );
+        }
+
+        Keys keys = getKeys( Base64.decodeBase64( salt ) , iterationCount );
+        serverKey = keys.serverKey;
+
+        String clientFinalWithoutProof = "c=" + Base64.encodeBase64String( GS2_HEADER.getBytes( "UTF-8" ) ).trim() +
+                                         ",r=" + nonce;
+        authMessage = ( clientFirstMessageBare + "," + serverFirstMessage + "," +
+                        clientFinalWithoutProof ).getBytes( "UTF-8" );
+
+        // ClientProof = ClientKey XOR HMAC(H(ClientKey), AuthMessage)
+        byte[] clientSignature = hmac( keys.storedKey , authMessage );
+        byte[] proof = keys.clientKey.clone();
+        for ( int i = 0 ; i < proof.length ; ++i ) {
+            proof[i] ^= clientSignature[i];
+        }
+
+        return ( clientFinalWithoutProof + ",p=" + Base64.encodeBase64String( proof ).trim() ).getBytes( "UTF-8" );
+    }
+
+    /** Checks the server signature in the server-final message ("v=signature"). */
+    private void verifyServerFinalMessage( String serverFinalMessage )
+        throws GeneralSecurityException , SaslException {
+
+        String error = getAttribute( serverFinalMessage , 'e' );
+        if ( error != null ) {
+            throw new SaslException( "SCRAM authentication failed: " + error );
+        }
+        String verifier = getAttribute( serverFinalMessage , 'v' );
+        if ( verifier == null ) {
+            throw new SaslException( "Invalid SCRAM server-final message: " + serverFinalMessage );
+        }
+        byte[] serverSignature = hmac( serverKey , authMessage );
+        if ( ! MessageDigest.isEqual( serverSignature , Base64.decodeBase64( verifier ) ) ) {
+            throw new SaslException( "SCRAM server signature doesn't match: wrong server?" );
+        }
+    }
+
+    /** Gets the keys from the cache, or derives them from the password. */
+    private Keys getKeys( byte[] salt , int iterations )
+        throws GeneralSecurityException , UnsupportedEncodingException {
+
+        String key = cacheKey( jid , mechanism );
+        Keys keys = KEY_CACHE.get( key );
+        byte[] password = jid.getPassword().getBytes( "UTF-8" );
+        byte[] passwordHash = passwordHash( password );
+        if ( keys != null && keys.iterations == iterations && Arrays.equals( keys.salt , salt ) &&
+             MessageDigest.isEqual( keys.passwordHash , passwordHash ) ) {
+            keyCacheHit = true;
+            return keys;
+        }
+
+        byte[] saltedPassword = hi( password , salt , iterations );
+        byte[] clientKey = hmac( saltedPassword , "Client Key".getBytes( "UTF-8" ) );
+        keys = new Keys( passwordHash , salt , iterations , clientKey ,
+                         MessageDigest.getInstance( digestName ).digest( clientKey ) ,
+                         hmac( saltedPassword , "Server Key".getBytes( "UTF-8" ) ) );
+        KEY_CACHE.put( key , keys );
+        return keys;
+    }
+
+    /** Hi() from RFC 5802: PBKDF2 with the mechanism's HMAC, one block. */
+    private byte[] hi( byte[] password , byte[] salt , int iterations )
+        throws GeneralSecurityException {
+
+        Mac mac = Mac.getInstance( hmacName );
+        mac.init( new SecretKeySpec( password , hmacName ) );
+
+        mac.update( salt );
+        mac.update( new byte[] { 0 , 0 , 0 , 1 } );
+        byte[] u = mac.doFinal();
+        byte[] result = u.clone();
+        for ( int i = 1 ; i < iterations ; ++i ) {
+            u = mac.doFinal( u );
+            for ( int j = 0 ; j < result.length ; ++j ) {
+                result[j] ^= u[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+       Hashes a password for the cache, keyed with a secret of this
+       process (so equal passwords of other processes don't match).
+     */
+    private static byte[] passwordHash( byte[] password )
+        throws GeneralSecurityException {
+
+        Mac mac = Mac.getInstance( "HmacSHA256" );
+        mac.init( new SecretKeySpec( PASSWORD_HASH_KEY , "HmacSHA256" ) );
+        return mac.doFinal( password );
+    }
+
+    /** Computes an HMAC with the mechanism's hash. */
+    private byte[] hmac( byte[] key , byte[] data )
+        throws GeneralSecurityException {
+
+        Mac mac = Mac.getInstance( hmacName );
+        mac.init( new SecretKeySpec( key , hmacName ) );
+        return mac.doFinal( data );
+    }
+
+    /** Gets an attribute ("x=value") from a SCRAM message, or null. */
+    private static String getAttribute( String message , char name ) {
+        for ( String attribute : message.split( "," ) ) {
+            if ( attribute.length() >= 2 && attribute.charAt( 0 ) == name && attribute.charAt( 1 ) == '=' ) {
+                return attribute.substring( 2 );
+            }
+        }
+        return null;
+    }
+
+    /** Escapes a user name for SCRAM ('=' and ','). */
+    private static String saslName( String name ) {
+        return name.replace( "=" , "=3D" ).replace( "," , "=2C" );
+    }
+
+    /** Gets the key cache entry name for a JID and mechanism. */
+    private static String cacheKey( JabberID jid , String mechanism ) {
+        return jid.getJabberID() + " " + mechanism;
+    }
+
+    /** Keys derived from a password, salt and iteration count. */
+    private static class Keys {
+
+        Keys( byte[] passwordHash , byte[] salt , int iterations ,
+              byte[] clientKey , byte[] storedKey , byte[] serverKey ) {
+            this.passwordHash = passwordHash;
+            this.salt = salt;
+            this.iterations = iterations;
+            this.clientKey = clientKey;
+            this.storedKey = storedKey;
+            this.serverKey = serverKey;
+        }
+
+        /** Keyed hash of the password the keys were derived from. */
+        final byte[] passwordHash;
+        final byte[] salt;
+        final int iterations;
+        final byte[] clientKey;
+        final byte[] storedKey;
+        final byte[] serverKey;
+    }
+
+    /** Exchange states. */
+    private static final int INITIAL = 0;
+    private static final int CLIENT_FIRST_SENT = 1;
+    private static final int CLIENT_FINAL_SENT = 2;
+    private static final int COMPLETE = 3;
+    private static final int FAILED = 4;
+
+    /** GS2 header: no channel binding, no authorization identity. */
+    private static final String GS2_HEADER = "n,,";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** Key of the password hashes in the cache. */
+    private static final byte[] PASSWORD_HASH_KEY = new byte[ 32 ];
+    static {
+        RANDOM.nextBytes( PASSWORD_HASH_KEY );
+    }
+    /** Cached keys, by JID and mechanism. */
+    private static final ConcurrentMap <String , Keys> KEY_CACHE = new ConcurrentHashMap <String , Keys>();
+
+    /** Mechanism name. */
+    private final String mechanism;
+    /** Jabber ID (user name and password). */
+    private final JabberID jid;
+    /** HMAC and hash algorithm names. */
+    private final String hmacName;
+    private final String digestName;
+
+    /** Exchange state. */
+    private int state = INITIAL;
+    /** Client nonce. */
+    private String clientNonce;
+    /** Client-first message without the GS2 header. */
+    private String clientFirstMessageBare;
+    /** AuthMessage (signed by both sides). */
+    private byte[] authMessage;
+    /** ServerKey (to check the server signature). */
+    private byte[] serverKey;
+    /** Indicates whether the keys came from the cache. */
+    private boolean keyCacheHit = false;
+}
@@ -0,0 +1,37 @@
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+   Handles the stanzas of one kind, registered by element name and
+   namespace in the {@link StanzaHandlerRegistry} of an
+   {@link XmppSenderReceiver}.
+
+   <p> The receive loop calls the method for the parser in use:
+   <ul>
+    <li> with the push parser (<code>-Djabber.parser=push</code>), the
+         complete stanza (or the payload of an iq stanza) is passed as
+         an {@link XmlElement}; </li>
+    <li> with the StAX pull-parser, the parser is passed positioned at
+         the element's start tag; the handler may read on, up to its
+         end tag. </li>
+   </ul>
+
+   <p> Handlers run on the receive thread, one stanza at a time: they
+   should hand slow work off to another thread.
+ */
+public interface StanzaHandler {
+
+    /**
+       Handles a stanza (or iq payload) from the push parser.
+       @throws IOException to end the receive loop (as when the
+               connection is lost)
+     */
+    void handleStanza( XmlElement element )
+        throws IOException;
+
+    /** Handles an element from the StAX parser, positioned at its start tag. */
+    void handleStanza( XMLStreamReader parser )
+        throws XMLStreamException;
+}
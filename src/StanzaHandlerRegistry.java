@@ -0,0 +1,138 @@
+/**
+   Stanza handlers of one connection, by element name and namespace.
+
+   <p> Looking up a handler allocates nothing and normally compares
+   references only: the names and namespaces are interned when the
+   handlers are registered, and both parsers hand out interned names
+   (the push parser always, the JDK's StAX parser too). A slower
+   <code>equals()</code> pass still finds the handler if some parser
+   doesn't intern its names.
+
+   <p> The handlers are kept in an array that is copied on every
+   change, so handlers can be (un)registered from any thread while the
+   receive loop is looking them up, without locking.
+ */
+public class StanzaHandlerRegistry {
+
+    /** Namespace to register a handler for an element name in any namespace. */
+    public static final String ANY_NAMESPACE = null;
+
+    /**
+       Registers a handler, replacing the one registered for the same
+       name and namespace (if any).
+       @param namespace  namespace URI, or {@link #ANY_NAMESPACE}
+     */
+    public synchronized void register( String name , String namespace , StanzaHandler handler ) {
+
+        if ( name == null || handler == null ) {
+            throw new IllegalArgumentException( "Stanza handler name and handler can't be null" );
+        }
+        Entry entry = new Entry( name.intern() , ( namespace == null ) ? null : namespace.intern() , handler );
+
+        Entry[] current = entries;
+        int index = indexOf( current , entry.name , entry.namespace );
+        Entry[] updated;
+        if ( index >= 0 ) {
+            updated = current.clone();
+            updated[ index ] = entry;
+        }
+        else {
+            updated = new Entry[ current.length + 1 ];
+            System.arraycopy( current , 0 , updated , 0 , current.length );
+            updated[ current.length ] = entry;
+        }
+        entries = updated;
+    }
+
+    /**
+       Removes the handler registered for a name and namespace.
+       @return the handler removed, or null if there was none
+     */
+    public synchronized StanzaHandler unregister( String name , String namespace ) {
+
+        Entry[] current = entries;
+        int index = indexOf( current , name , namespace );
+        if ( index < 0 ) {
+            return null;
+        }
+        Entry[] updated = new Entry[ current.length - 1 ];
+        System.arraycopy( current , 0 , updated , 0 , index );
+        System.arraycopy( current , index + 1 , updated , index , updated.length - index );
+        entries = updated;
+        return current[ index ].handler;
+    }
+
+    /**
+       Gets the handler for an element: the one registered for its name
+       and namespace, else the one registered for its name in
+       {@link #ANY_NAMESPACE}.
+       @return null if there is none
+     */
+    public StanzaHandler get( String name , String namespace ) {
+
+        Entry[] current = entries;
+
+        // Interned names: compare references
+        StanzaHandler anyNamespace = null;
+        for ( Entry entry : current ) {
+            if ( entry.name == name ) {
+                if ( entry.namespace == namespace ) {
+                    return entry.handler;
+                }
+                if ( entry.namespace == null ) {
+                    anyNamespace = entry.handler;
+                }
+            }
+        }
+        if ( anyNamespace != null ) {
+            return anyNamespace;
+        }
+
+        // In case the parser doesn't intern them
+        for ( Entry entry : current ) {
+            if ( entry.name.equals( name ) ) {
+                if ( entry.namespace == null || entry.namespace.equals( namespace ) ) {
+                    return entry.handler;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Gets the number of registered handlers. */
+    public int size() {
+        return entries.length;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Finds the entry with exactly this name and namespace (-1 if none). */
+    private static int indexOf( Entry[] entries , String name , String namespace ) {
+        for ( int i = 0 ; i < entries.length ; ++i ) {
+            if ( entries[i].name.equals( name ) &&
+                 ( entries[i].namespace == null ? namespace == null : entries[i].namespace.equals( namespace ) ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** A registered handler. */
+    private static class Entry {
+
+        Entry( String name , String namespace , StanzaHandler handler ) {
+            this.name = name;
+            this.namespace = namespace;
+            this.handler = handler;
+        }
+
+        /** Interned element name. */
+        final String name;
+        /** Interned namespace URI (null for any). */
+        final String namespace;
+        final StanzaHandler handler;
+    }
+
+    /** The handlers (replaced, never modified). */
+    private volatile Entry[] entries = new Entry[0];
+}
@@ -0,0 +1,152 @@
+/**
+   Fixed-size FIFO ring of outbound stanzas, each held as its kind and
+   its few variable parts (recipient, resource, text), so adding one
+   allocates nothing. The stanza bytes are only built when it is
+   written, by the {@link StanzaSerializer}.
+
+   <p> Not thread-safe: {@link OutboundStanzaQueue} and
+   {@link StreamManagement} guard their rings themselves.
+ */
+class StanzaRing {
+
+    /** Stanza kinds. */
+    public static final byte RAW = 0;
+    public static final byte MESSAGE = 1;
+    public static final byte PRESENCE = 2;
+    public static final byte KEEP_ALIVE = 3;
+    public static final byte ROSTER_REQUEST = 4;
+    /** Already serialized element that isn't a stanza (e.g. stream management acks). */
+    public static final byte NONZA = 5;
+
+    /** Constructor. */
+    public StanzaRing( int capacity ) {
+        this.kinds = new byte[ capacity ];
+        this.recipients = new String[ capacity ];
+        this.resources = new String[ capacity ];
+        this.texts = new String[ capacity ];
+    }
+
+    /** Indicates whether a kind of stanza is counted as a stanza by stream management. */
+    public static boolean isStanza( byte kind ) {
+        return kind != KEEP_ALIVE && kind != NONZA;
+    }
+
+    /**
+       Adds a stanza at the end.
+       @return false if the ring is full
+     */
+    public boolean add( byte kind , String recipient , String resource , String text ) {
+        if ( count == kinds.length ) {
+            return false;
+        }
+        int tail = index( count );
+        kinds[ tail ] = kind;
+        recipients[ tail ] = recipient;
+        resources[ tail ] = resource;
+        texts[ tail ] = text;
+        ++count;
+        return true;
+    }
+
+    /** Removes the first n stanzas (at most all of them). */
+    public void removeFirst( int n ) {
+        n = Math.min( n , count );
+        for ( int i = 0 ; i < n ; ++i ) {
+            recipients[ head ] = null;
+            resources[ head ] = null;
+            texts[ head ] = null;
+            head = ( head + 1 == kinds.length ) ? 0 : head + 1;
+        }
+        count -= n;
+    }
+
+    /** Moves the first n stanzas (at most all of them) to the end of another ring, as far as it has room. */
+    public int moveFirstTo( StanzaRing other , int n ) {
+        n = Math.min( n , count );
+        int moved = 0;
+        while ( moved < n && other.add( getKind( 0 ) , getRecipient( 0 ) , getResource( 0 ) , getText( 0 ) ) ) {
+            removeFirst( 1 );
+            ++moved;
+        }
+        return moved;
+    }
+
+    /** Removes all the stanzas. */
+    public void clear() {
+        removeFirst( count );
+        head = 0;
+    }
+
+    /** Gets the number of stanzas in the ring. */
+    public int size() {
+        return count;
+    }
+
+    /** Gets the maximum number of stanzas. */
+    public int capacity() {
+        return kinds.length;
+    }
+
+    /** Gets the kind of the i-th stanza (0 is the oldest). */
+    public byte getKind( int i ) {
+        return kinds[ index( i ) ];
+    }
+
+    /** Gets the recipient of the i-th stanza. */
+    public String getRecipient( int i ) {
+        return recipients[ index( i ) ];
+    }
+
+    /** Gets the recipient's resource of the i-th stanza. */
+    public String getResource( int i ) {
+        return resources[ index( i ) ];
+    }
+
+    /** Gets the text (message body, roster version, or raw XML) of the i-th stanza. */
+    public String getText( int i ) {
+        return texts[ index( i ) ];
+    }
+
+    /** Serializes the i-th stanza. */
+    public void serialize( int i , StanzaSerializer serializer ) {
+        int index = index( i );
+        switch ( kinds[ index ] ) {
+        case MESSAGE:
+            serializer.appendMessage( recipients[ index ] , resources[ index ] , texts[ index ] );
+            break;
+        case PRESENCE:
+            serializer.appendPresence();
+            break;
+        case KEEP_ALIVE:
+            serializer.appendKeepAlive();
+            break;
+        case ROSTER_REQUEST:
+            serializer.appendRosterRequest( texts[ index ] );
+            break;
+        default:
+            serializer.appendRaw( texts[ index ] );
+            break;
+        }
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Gets the array index of the i-th stanza. */
+    private int index( int i ) {
+        int index = head + i;
+        return ( index >= kinds.length ) ? index - kinds.length : index;
+    }
+
+    /** Kind of the stanza in each slot. */
+    private final byte[] kinds;
+    /** Message recipient in each slot. */
+    private final String[] recipients;
+    /** Recipient's resource in each slot. */
+    private final String[] resources;
+    /** Message body (or the whole raw stanza) in each slot. */
+    private final String[] texts;
+    /** Index of the oldest slot. */
+    private int head = 0;
+    /** Number of slots used. */
+    private int count = 0;
+}
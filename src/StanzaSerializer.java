@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+   Serializes the client's outbound stanzas straight into a reusable
+   UTF-8 byte buffer.
+
+   <p> The parts of each stanza that don't change during a connection
+   (the <code>from='jid/resource'</code> attribute, the thread ID, the
+   whole presence, roster request and keep-alive stanzas) are encoded
+   to bytes once, in the constructor. Sending a message then only
+   encodes the recipient and the body, char by char, into the buffer:
+   no StringBuilder, String or Writer encoding is needed per stanza.
+   They are escaped with the {@link XmlEscaper} on the way, so a body
+   containing <code>&lt;</code> or <code>&amp;</code> can't break the
+   stream.
+
+   <p> Stanzas are appended to the buffer until {@link #writeTo(OutputStream)}
+   writes them out in one go and empties it. Not thread-safe: the
+   {@link OutboundStanzaQueue} only uses it on its writer thread.
+ */
+class StanzaSerializer {
+
+    /** Constructor, encodes the constant stanza fragments for the given user and chat thread. */
+    public StanzaSerializer( JabberID jid , String threadID ) {
+
+        String from = XmlEscaper.escapeAttribute( jid.getJabberID() + "/" + jid.getResource() );
+
+        messageStart = bytes( "<message from='" + from + "' to='" );
+        messageBodyStart = bytes( "' type='chat' xml:lang='en'> <body>" );
+        messageEnd = bytes( "</body><thread>" + threadID + "</thread></message>" );
+        presence = bytes( "<presence/>" );
+        keepAlive = bytes( " " );
+        rosterRequest = bytes( "<iq from='" + from + "' id='" + threadID + "' type='get'>" +
+                               " <query xmlns='jabber:iq:roster'/></iq>" );
+        versionedRosterRequestStart = bytes( "<iq from='" + from + "' id='" + threadID + "' type='get'>" +
+                                             " <query xmlns='jabber:iq:roster' ver='" );
+        versionedRosterRequestEnd = bytes( "'/></iq>" );
+    }
+
+    /**
+       Appends a chat message.
+       @param to        Recipient's bare JID
+       @param resource  Recipient's resource (with the leading '/'), or ""
+       @param body      Message text
+     */
+    public void appendMessage( String to , String resource , String body ) {
+        append( messageStart );
+        appendEscaped( to , true );
+        appendEscaped( resource , true );
+        append( messageBodyStart );
+        appendEscaped( body , false );
+        append( messageEnd );
+    }
+
+    /** Appends an (available) presence stanza. */
+    public void appendPresence() {
+        append( presence );
+    }
+
+    /** Appends a white-space keep-alive. */
+    public void appendKeepAlive() {
+        append( keepAlive );
+    }
+
+    /**
+       Appends a roster request.
+       @param version  version of the local roster copy (XEP-0237), or null
+     */
+    public void appendRosterRequest( String version ) {
+        if ( version == null ) {
+            append( rosterRequest );
+        }
+        else {
+            append( versionedRosterRequestStart );
+            appendEscaped( version , true );
+            append( versionedRosterRequestEnd );
+        }
+    }
+
+    /** Appends a stanza that is already serialized. */
+    public void appendRaw( String xml ) {
+        appendUtf8( xml );
+    }
+
+    /** Gets the number of bytes waiting in the buffer. */
+    public int size() {
+        return length;
+    }
+
+    /** Writes the buffered stanzas out in a single write, and empties the buffer. */
+    public void writeTo( OutputStream out )
+        throws IOException {
+
+        out.write( buffer , 0 , length );
+        length = 0;
+
+        // Don't hang on to the buffer grown by an unusually big stanza
+        if ( buffer.length > MAX_RETAINED_BUFFER_SIZE ) {
+            buffer = new byte[ INITIAL_BUFFER_SIZE ];
+        }
+    }
+
+    /** Empties the buffer without writing it. */
+    public void clear() {
+        length = 0;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Appends pre-encoded bytes. */
+    private void append( byte[] bytes ) {
+        ensureCapacity( bytes.length );
+        System.arraycopy( bytes , 0 , buffer , length , bytes.length );
+        length += bytes.length;
+    }
+
+    /** Escapes and encodes a string (text or attribute value) into the buffer. */
+    private void appendEscaped( String s , boolean attribute ) {
+        ensureCapacity( s.length() * XmlEscaper.MAX_BYTES_PER_CHAR );
+        length = XmlEscaper.encode( s , attribute , buffer , length );
+    }
+
+    /** Encodes a string that is already XML into the buffer. */
+    private void appendUtf8( String s ) {
+        ensureCapacity( s.length() * XmlEscaper.MAX_BYTES_PER_CHAR );
+        length = XmlEscaper.encodeRaw( s , buffer , length );
+    }
+
+    /** Makes room for the given number of extra bytes. */
+    private void ensureCapacity( int extra ) {
+        if ( length + extra > buffer.length ) {
+            byte[] bigger = new byte[ Math.max( buffer.length * 2 , length + extra ) ];
+            System.arraycopy( buffer , 0 , bigger , 0 , length );
+            buffer = bigger;
+        }
+    }
+
+    /** Encodes a constant fragment. */
+    private static byte[] bytes( String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /** Initial size of the buffer (bytes). */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    /** Buffer size above which the buffer is replaced after writing (bytes). */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    /** "&lt;message from='jid/resource' to='" */
+    private final byte[] messageStart;
+    /** "' type='chat' xml:lang='en'&gt; &lt;body&gt;" */
+    private final byte[] messageBodyStart;
+    /** "&lt;/body&gt;&lt;thread&gt;...&lt;/thread&gt;&lt;/message&gt;" */
+    private final byte[] messageEnd;
+    /** Presence stanza. */
+    private final byte[] presence;
+    /** White-space keep-alive. */
+    private final byte[] keepAlive;
+    /** Roster request stanza. */
+    private final byte[] rosterRequest;
+    /** Roster request with a version, up to the version. */
+    private final byte[] versionedRosterRequestStart;
+    /** "'/&gt;&lt;/iq&gt;" */
+    private final byte[] versionedRosterRequestEnd;
+
+    /** Serialized stanzas waiting to be written. */
+    private byte[] buffer = new byte[ INITIAL_BUFFER_SIZE ];
+    /** Number of bytes used in the buffer. */
+    private int length = 0;
+}
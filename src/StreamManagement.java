@@ -0,0 +1,284 @@
+import java.io.IOException;
+
+/**
+   Stream Management (XEP-0198) state of one account, kept across
+   re-connections.
+
+   <p> Once enabled on a connection:
+   <ul>
+    <li> every stanza written is counted and kept in a bounded buffer
+         until the server acknowledges it (<code>&lt;a h='...'/&gt;</code>);
+         an ack is requested (<code>&lt;r/&gt;</code>) every
+         {@link #ACK_REQUEST_INTERVAL} stanzas, and on keep-alive if
+         anything is unacknowledged; </li>
+    <li> every stanza received is counted, and the count is sent when
+         the server asks for it. </li>
+   </ul>
+
+   <p> When the connection drops, a new connection first tries to
+   resume the session (<code>&lt;resume/&gt;</code>, instead of
+   resource binding, presence, ...). If the server resumes it, the
+   stanzas it didn't acknowledge are sent again. If not, a new session
+   is bound and enabled, and the unacknowledged stanzas are sent again
+   in it.
+
+   <p> Used by {@link XmppHandshake} (enable and resume), the
+   {@link OutboundStanzaQueue} writer thread (outbound counting) and
+   the {@link XmppSenderReceiver} receive loop (inbound counting and
+   acks); all methods are synchronized.
+ */
+class StreamManagement {
+
+    /** Stream Management namespace. */
+    public static final String NAMESPACE = "urn:xmpp:sm:3";
+    /** Ack request. */
+    public static final String ACK_REQUEST = "<r xmlns='" + NAMESPACE + "'/>";
+    /** Number of stanzas sent between ack requests. */
+    public static final int ACK_REQUEST_INTERVAL = 10;
+
+    /** Constructor. */
+    public StreamManagement( int maxUnacked ) {
+        this.unacked = new StanzaRing( maxUnacked );
+        this.unsent = new StanzaRing( maxUnacked );
+    }
+
+    /* Connection setup (XmppHandshake) */
+
+    /**
+       Called when a connection's handshake starts: nothing is counted
+       until stream management is enabled or resumed on it.
+     */
+    public synchronized void handshakeStarted() {
+        countingOutbound = false;
+        countingInbound = false;
+    }
+
+    /** Indicates whether there is a session that can be resumed. */
+    public synchronized boolean canResume() {
+        return resumptionId != null;
+    }
+
+    /** Creates the element that resumes the previous session. */
+    public synchronized String createResumeElement() {
+        return "<resume xmlns='" + NAMESPACE + "' h='" + inboundCount + "' previd='" +
+               XmlEscaper.escapeAttribute( resumptionId ) + "'/>";
+    }
+
+    /** Creates the element that enables stream management (with resumption). */
+    public String createEnableElement() {
+        return "<enable xmlns='" + NAMESPACE + "' resume='true'/>";
+    }
+
+    /** Called when the enable element is sent: starts counting outbound stanzas from 0. */
+    public synchronized void enableSent() {
+        resumptionId = null;
+        outboundCount = 0;
+        lastAcked = 0;
+        lastAckRequest = 0;
+        inboundCount = 0;
+        countingOutbound = true;
+        countingInbound = false;
+        // The unacknowledged stanzas of the old session stay, to be sent again
+        overflowSinceAck = 0;
+    }
+
+    /** Called when the server resumed the previous session. */
+    public synchronized void resumed( long h ) {
+        acknowledged( h );
+        // The rest is sent again, and counted again
+        outboundCount = lastAcked;
+        overflowSinceAck = 0;
+        countingOutbound = true;
+        countingInbound = true;
+        ++resumeCount;
+    }
+
+    /** Called when the server couldn't resume the previous session. */
+    public synchronized void resumeFailed() {
+        resumptionId = null;
+        countingOutbound = false;
+        countingInbound = false;
+        ++failedResumeCount;
+    }
+
+    /* Receive loop */
+
+    /** Called when the server's enabled element is received. */
+    public synchronized void enabled( String id , boolean resumable ) {
+        resumptionId = resumable ? id : null;
+        countingInbound = true;
+    }
+
+    /** Counts a received stanza. */
+    public synchronized void stanzaHandled() {
+        if ( countingInbound ) {
+            inboundCount = ( inboundCount + 1 ) & MAX_COUNT;
+        }
+    }
+
+    /** Creates the answer to the server's ack request. */
+    public synchronized String createAck() {
+        return "<a xmlns='" + NAMESPACE + "' h='" + inboundCount + "'/>";
+    }
+
+    /**
+       Parses the count (h attribute) of an ack or resumed element.
+       @throws IOException if it is missing or not a count: the server
+               is broken, the connection can't go on
+     */
+    public static long parseCount( String h )
+        throws IOException {
+
+        long count;
+        try {
+            count = Long.parseLong( ( h == null ) ? "" : h.trim() );
+        }
+        catch ( NumberFormatException e ) {
+            throw new IOException( "Bad stream management count h='" + h + "'" );
+        }
+        if ( count < 0 || count > MAX_COUNT ) {
+            throw new IOException( "Bad stream management count h='" + h + "'" );
+        }
+        return count;
+    }
+
+    /** Called with the number of stanzas the server has handled (its ack). */
+    public synchronized void acknowledged( long h ) {
+        int newlyAcked = (int) ( ( h - lastAcked ) & MAX_COUNT );
+        if ( newlyAcked > unacked.size() + overflowSinceAck ) {
+            // More than we sent: ignore
+            return;
+        }
+        // Stanzas dropped on overflow were acknowledged first
+        int dropped = Math.min( newlyAcked , overflowSinceAck );
+        overflowSinceAck -= dropped;
+        unacked.removeFirst( newlyAcked - dropped );
+        lastAcked = h & MAX_COUNT;
+    }
+
+    /* Writer thread */
+
+    /**
+       Counts a stanza written to the socket, and keeps it until acknowledged.
+       @return true if an ack should be requested now
+     */
+    public synchronized boolean stanzaSent( byte kind , String recipient , String resource , String text ) {
+
+        if ( ! countingOutbound ) {
+            return false;
+        }
+        outboundCount = ( outboundCount + 1 ) & MAX_COUNT;
+
+        if ( unacked.size() == unacked.capacity() ) {
+            // Too many unacknowledged: forget the oldest
+            unacked.removeFirst( 1 );
+            ++overflowSinceAck;
+            ++droppedCount;
+        }
+        unacked.add( kind , recipient , resource , text );
+
+        if ( ( ( outboundCount - lastAckRequest ) & MAX_COUNT ) >= ACK_REQUEST_INTERVAL ) {
+            lastAckRequest = outboundCount;
+            return true;
+        }
+        return false;
+    }
+
+    /** Keeps a stanza that was queued but never sent (the connection dropped first). */
+    public synchronized void stanzaNotSent( byte kind , String recipient , String resource , String text ) {
+        if ( ! unsent.add( kind , recipient , resource , text ) ) {
+            ++droppedCount;
+        }
+    }
+
+    /**
+       Moves the stanzas to send again (unacknowledged, then never
+       sent) into a ring, in order, as far as it has room. The ones it
+       has no room for are dropped (they would go out of order later):
+       see {@link #getDroppedOnResend()}.
+       @return the number moved
+     */
+    public synchronized int takeStanzasToResend( StanzaRing target ) {
+        int moved = unacked.moveFirstTo( target , unacked.size() );
+        if ( unacked.size() == 0 ) {
+            moved += unsent.moveFirstTo( target , unsent.size() );
+        }
+        replayedCount += moved;
+
+        droppedOnResend = unacked.size() + unsent.size();
+        droppedCount += droppedOnResend;
+        unacked.clear();
+        unsent.clear();
+        overflowSinceAck = 0;
+        return moved;
+    }
+
+    /** Gets the number of stanzas the last {@link #takeStanzasToResend} had no room for. */
+    public synchronized int getDroppedOnResend() {
+        return droppedOnResend;
+    }
+
+    /** Indicates whether there are sent stanzas not yet acknowledged. */
+    public synchronized boolean hasUnacked() {
+        return countingOutbound && unacked.size() > 0;
+    }
+
+    /* Metrics */
+
+    /** Gets the number of stanzas kept for sending again. */
+    public synchronized int getUnackedCount() {
+        return unacked.size() + unsent.size();
+    }
+
+    /** Gets the number of sessions resumed. */
+    public synchronized long getResumeCount() {
+        return resumeCount;
+    }
+
+    /** Gets the number of failed resumptions. */
+    public synchronized long getFailedResumeCount() {
+        return failedResumeCount;
+    }
+
+    /** Gets the number of stanzas sent again after a re-connection. */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /** Gets the number of stanzas dropped because a buffer was full (never sent again). */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Counters wrap at 2^32. */
+    private static final long MAX_COUNT = 0xFFFFFFFFL;
+
+    /** Stanzas sent but not acknowledged. */
+    private final StanzaRing unacked;
+    /** Stanzas queued but never sent (the connection dropped first). */
+    private final StanzaRing unsent;
+    /** Number of sent stanzas dropped from the buffer since the last ack. */
+    private int overflowSinceAck = 0;
+
+    /** Resumption ID given by the server (null if the session can't be resumed). */
+    private String resumptionId;
+    /** Indicates whether outbound/inbound stanzas are counted. */
+    private boolean countingOutbound = false;
+    private boolean countingInbound = false;
+    /** Number of stanzas sent. */
+    private long outboundCount = 0;
+    /** Number of stanzas the server acknowledged. */
+    private long lastAcked = 0;
+    /** Outbound count at the last ack request. */
+    private long lastAckRequest = 0;
+    /** Number of stanzas received. */
+    private long inboundCount = 0;
+
+    private long resumeCount = 0;
+    private long failedResumeCount = 0;
+    private long replayedCount = 0;
+    private long droppedCount = 0;
+    private int droppedOnResend = 0;
+}
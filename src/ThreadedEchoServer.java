@@ -15,6 +15,12 @@ import java.util.*;
     <br> $ javac ThreadedEchoServer.java
     <br> $ java ThreadedEchoServer
     <br> $ telnet localhost 8189
+
+   The log shipper of the client (LogShipper) connects once and sends
+   batches of conversation records over the framed protocol of
+   LogProtocol; each batch is written to the records' files and then
+   acknowledged. Clients sending a file name line then the lines are
+   still handled.
 */
 public class ThreadedEchoServer
 {  
@@ -63,9 +69,19 @@ class ThreadedEchoHandler implements Runnable
       {  
          try
          {
-            InputStream inStream = incoming.getInputStream();
+            InputStream inStream = new BufferedInputStream(incoming.getInputStream());
             OutputStream outStream = incoming.getOutputStream();
             
+            // The framed protocol starts with a 0 byte, a file name can't
+            inStream.mark(1);
+            int firstByte = inStream.read();
+            inStream.reset();
+            if (firstByte == 0)
+            {
+               runFramed(new DataInputStream(inStream), outStream);
+               return;
+            }
+            
             Scanner in = new Scanner(inStream);         
             String fileName = in.nextLine();
             System.out.println("File name: " + fileName + ".txt");
@@ -102,7 +118,112 @@ class ThreadedEchoHandler implements Runnable
       }
    }
 
+   /**
+      Handles a log shipper: writes the records of each batch, then
+      acknowledges the batch. Batches sent again after a re-connection
+      are only acknowledged.
+      @param in the client input
+      @param outStream the client output
+   */
+   private void runFramed(DataInputStream in, OutputStream outStream) throws IOException
+   {
+      if (in.readInt() != LogProtocol.PREAMBLE || in.readByte() != LogProtocol.VERSION)
+         throw new IOException("Unknown protocol");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outStream));
+      Long session = null;
+      
+      while (true)
+      {
+         byte[] frame;
+         try
+         {
+            frame = LogProtocol.readFrame(in);
+         }
+         catch (EOFException e)
+         {
+            return;
+         }
+         
+         if (frame[0] == LogProtocol.HELLO)
+         {
+            session = LogProtocol.getValue(frame);
+            System.out.println("Log shipper " + counter + " connected");
+         }
+         else if (frame[0] == LogProtocol.BATCH || frame[0] == LogProtocol.DEFLATED_BATCH)
+         {
+            long batchId = LogProtocol.getValue(frame);
+            Long last = (session == null) ? null : lastBatches.get(session);
+            if (last == null || batchId > last)
+            {
+               save(LogProtocol.readBatch(frame));
+               if (session != null)
+                  lastBatches.put(session, batchId);
+            }
+            out.write(LogProtocol.encodeFrame(LogProtocol.ACK, batchId));
+            // Batches sent together are acknowledged together
+            if (in.available() == 0)
+               out.flush();
+         }
+      }
+   }
+
+   /**
+      Appends the records of a batch to their files, opening each file
+      once for the batch (nothing is printed per record).
+      @param records the records, in order
+   */
+   private static void save(List<LogProtocol.Record> records) throws IOException
+   {
+      Map<String, List<LogProtocol.Record>> byFile = new LinkedHashMap<String, List<LogProtocol.Record>>();
+      for (LogProtocol.Record record : records)
+      {
+         String fileName = record.getFileName() + ".txt";
+         List<LogProtocol.Record> fileRecords = byFile.get(fileName);
+         if (fileRecords == null)
+         {
+            fileRecords = new ArrayList<LogProtocol.Record>();
+            byFile.put(fileName, fileRecords);
+         }
+         fileRecords.add(record);
+      }
+      for (Map.Entry<String, List<LogProtocol.Record>> file : byFile.entrySet())
+      {
+         BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.getKey(), true), "UTF-8"));
+         try
+         {
+            for (LogProtocol.Record record : file.getValue())
+               for (String line : record.getLines())
+               {
+                  out.write(line);
+                  out.newLine();
+               }
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+   }
+
    private Socket incoming;
    private int counter;
+
+   /** Most log shipper sessions remembered in lastBatches. */
+   private static final int MAX_SESSIONS = 1024;
+
+   /**
+      The last batch written for each of the log shipper sessions seen
+      last (the least recently used one is forgotten past MAX_SESSIONS:
+      a batch it sends again would be written twice).
+   */
+   private static Map<Long, Long> lastBatches = Collections.synchronizedMap(new LinkedHashMap<Long, Long>(16, 0.75f, true)
+      {
+         protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest)
+         {
+            return size() > MAX_SESSIONS;
+         }
+
+         private static final long serialVersionUID = 1L;
+      });
 }
 
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+   TLS over non-blocking channels, using an {@link SSLEngine}.
+
+   <p> The owner reads socket bytes into {@link #getNetIn()}, calls
+   {@link #unwrap(ByteBuffer)} to get the decrypted data, encrypts
+   outgoing data with {@link #wrap(ByteBuffer)} and writes out
+   {@link #getNetOut()}. Handshake messages are produced and consumed
+   along the way, so the owner only has to keep reading and writing.
+   Works in both client and server mode.
+ */
+class TlsCodec {
+
+    /** Constructor. */
+    public TlsCodec( SSLEngine engine ) {
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate( packetSize );
+        netOut = ByteBuffer.allocate( packetSize );
+    }
+
+    /** Gets the underlying engine. */
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /** Gets the buffer to read socket bytes into (in write mode). */
+    public ByteBuffer getNetIn() {
+        return netIn;
+    }
+
+    /** Gets the encrypted bytes waiting to be written to the socket (in write mode). */
+    public ByteBuffer getNetOut() {
+        return netOut;
+    }
+
+    /** Starts the TLS handshake (the first messages end up in {@link #getNetOut()}). */
+    public void beginHandshake()
+        throws IOException {
+
+        engine.beginHandshake();
+        handshakeStarted = true;
+        runHandshake();
+    }
+
+    /** Indicates whether the TLS handshake has completed. */
+    public boolean isHandshakeComplete() {
+        return handshakeStarted &&
+               engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /** Indicates whether the peer has closed the TLS session. */
+    public boolean isInboundDone() {
+        return engine.isInboundDone();
+    }
+
+    /**
+       Decrypts the bytes in {@link #getNetIn()} into the given buffer.
+       @param appOut buffer receiving the plain data (in write mode);
+              should have room for an application buffer
+       @return true if it stopped because appOut was full, so the
+               caller should empty appOut and call again
+     */
+    public boolean unwrap( ByteBuffer appOut )
+        throws IOException {
+
+        netIn.flip();
+        try {
+            while ( true ) {
+
+                runHandshake();
+                if ( ! netIn.hasRemaining() ) {
+                    return false;
+                }
+
+                SSLEngineResult result = engine.unwrap( netIn , appOut );
+                switch ( result.getStatus() ) {
+
+                    case BUFFER_UNDERFLOW:
+                        // Wait for the rest of the TLS record
+                        return false;
+
+                    case BUFFER_OVERFLOW:
+                        if ( appOut.position() == 0 ) {
+                            throw new SSLException( "Application buffer too small" );
+                        }
+                        return true;
+
+                    case CLOSED:
+                        return false;
+
+                    default:
+                        if ( result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+                             engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP ) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+        }
+        finally {
+            netIn.compact();
+
+            // A full buffer with a partial record means the records got bigger
+            if ( ! netIn.hasRemaining() ) {
+                netIn = grow( netIn , engine.getSession().getPacketBufferSize() );
+            }
+        }
+    }
+
+    /** Encrypts all of the given plain data into {@link #getNetOut()}. */
+    public void wrap( ByteBuffer appIn )
+        throws IOException {
+
+        do {
+            SSLEngineResult result = engine.wrap( appIn , netOut );
+            if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+                netOut = grow( netOut , engine.getSession().getPacketBufferSize() );
+            }
+            else if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+                throw new SSLException( "TLS session closed" );
+            }
+            runHandshake();
+        }
+        while ( appIn.hasRemaining() );
+    }
+
+    /** Runs the handshake steps that don't need more data from the peer. */
+    private void runHandshake()
+        throws IOException {
+
+        while ( true ) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+            if ( status == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+                Runnable task;
+                while ( ( task = engine.getDelegatedTask() ) != null ) {
+                    task.run();
+                }
+            }
+            else if ( status == SSLEngineResult.HandshakeStatus.NEED_WRAP ) {
+                SSLEngineResult result = engine.wrap( EMPTY , netOut );
+                if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+                    netOut = grow( netOut , engine.getSession().getPacketBufferSize() );
+                }
+                else if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+                    return;
+                }
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /** Returns a copy of the buffer (in write mode) with room for at least 'extra' more bytes. */
+    static ByteBuffer grow( ByteBuffer buffer , int extra ) {
+        ByteBuffer bigger = ByteBuffer.allocate( Math.max( buffer.capacity() * 2 ,
+                                                           buffer.position() + extra ) );
+        buffer.flip();
+        bigger.put( buffer );
+        return bigger;
+    }
+
+    /** Empty buffer, for handshake wraps. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+    /** TLS engine. */
+    private final SSLEngine engine;
+    /** Encrypted bytes from the peer, not yet decrypted (write mode). */
+    private ByteBuffer netIn;
+    /** Encrypted bytes for the peer, not yet written (write mode). */
+    private ByteBuffer netOut;
+    /** Indicates whether {@link #beginHandshake()} was called. */
+    private boolean handshakeStarted = false;
+}
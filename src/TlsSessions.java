@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+   TLS context and session cache for one XMPP server, shared by every
+   connection (and re-connection) to it.
+
+   <p> All TLS connections to a server are created from the same
+   SSLContext, whose client session cache keeps the sessions (or TLS
+   1.3 session tickets) the server hands out. A re-connection then
+   resumes the previous session with an abbreviated handshake instead
+   of a full one: no certificate chain to send and verify, and no new
+   key exchange.
+
+   <p> The sessions are looked up by the server's host name and port,
+   so both the blocking {@link XmppConnection} and the event loop's
+   {@link XmppNioSession} use the name from the {@link JabberID}.
+
+   <p> Every handshake is timed, and counted as full or resumed; see
+   {@link #getResumedCount()} and {@link #getFullHandshakeTime()}.
+ */
+class TlsSessions {
+
+    /** Gets the shared TLS sessions for a server. */
+    public static TlsSessions forServer( String server , int port )
+        throws IOException {
+
+        String key = server + ":" + port;
+        TlsSessions sessions = ALL_SERVERS.get( key );
+        if ( sessions == null ) {
+            TlsSessions created = new TlsSessions( server , port );
+            sessions = ALL_SERVERS.putIfAbsent( key , created );
+            if ( sessions == null ) {
+                sessions = created;
+            }
+        }
+        return sessions;
+    }
+
+    /** Constructor. */
+    private TlsSessions( String server , int port )
+        throws IOException {
+
+        this.server = server;
+        this.port = port;
+        try {
+            // Default key and trust managers (e.g. -Djavax.net.ssl.trustStore)
+            context = SSLContext.getInstance( "TLS" );
+            context.init( null , null , null );
+        }
+        catch ( Exception e ) {
+            throw new IOException( "Unable to create the TLS context" , e );
+        }
+
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize( SESSION_CACHE_SIZE );
+        sessionContext.setSessionTimeout( SESSION_TIMEOUT );
+    }
+
+    /**
+       Upgrades a connected socket to TLS, and does the handshake.
+       @return the TLS socket (closing it closes the given socket)
+     */
+    public SSLSocket startTls( Socket socket )
+        throws IOException {
+
+        SSLSocket sslSocket = (SSLSocket)
+            context.getSocketFactory().createSocket( socket , server , port , true );
+
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        sslSocket.startHandshake();
+        handshakeCompleted( sslSocket.getSession() , start , startMillis );
+
+        return sslSocket;
+    }
+
+    /** Creates a client-mode SSLEngine (handshake not started). */
+    public SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine( server , port );
+        engine.setUseClientMode( true );
+        return engine;
+    }
+
+    /**
+       Records a handshake done outside {@link #startTls(Socket)} (e.g.
+       with an engine from {@link #createEngine()}).
+       @param start        System.nanoTime() when the handshake began
+       @param startMillis  System.currentTimeMillis() when the handshake began
+       @return whether the session was resumed
+     */
+    public boolean handshakeCompleted( SSLSession session , long start , long startMillis ) {
+
+        long micros = ( System.nanoTime() - start ) / 1000;
+
+        boolean resumed = isResumed( session , startMillis );
+        if ( resumed ) {
+            resumedCount.incrementAndGet();
+            resumedHandshakeTime.record( micros );
+        }
+        else {
+            fullHandshakeTime.record( micros );
+        }
+        lastHandshakeResumed = resumed;
+        return resumed;
+    }
+
+    /**
+       Indicates whether a handshake resumed an earlier session.
+       @param startMillis  System.currentTimeMillis() when the handshake began
+     */
+    public static boolean isResumed( SSLSession session , long startMillis ) {
+        // A resumed session was created during an earlier handshake
+        return session.getCreationTime() < startMillis;
+    }
+
+    /** Gets the server's name. */
+    public String getServer() {
+        return server;
+    }
+
+    /** Gets the number of handshakes done so far. */
+    public long getHandshakeCount() {
+        return fullHandshakeTime.getCount() + resumedHandshakeTime.getCount();
+    }
+
+    /** Gets the number of handshakes that resumed an earlier session. */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /** Gets the fraction of handshakes that resumed an earlier session (0 if none done). */
+    public double getResumptionRate() {
+        long handshakes = getHandshakeCount();
+        return ( handshakes == 0 ) ? 0 : (double) getResumedCount() / handshakes;
+    }
+
+    /** Indicates whether the latest handshake resumed an earlier session. */
+    public boolean isLastHandshakeResumed() {
+        return lastHandshakeResumed;
+    }
+
+    /** Gets the histogram of full handshake times (microsec). */
+    public Histogram getFullHandshakeTime() {
+        return fullHandshakeTime;
+    }
+
+    /** Gets the histogram of resumed handshake times (microsec). */
+    public Histogram getResumedHandshakeTime() {
+        return resumedHandshakeTime;
+    }
+
+    /** Returns a summary of the handshakes. */
+    @Override
+    public String toString() {
+        return String.format( "%s: %d TLS handshakes, %d resumed (%.0f%%), full mean %.0f us, resumed mean %.0f us" ,
+                              server , getHandshakeCount() , getResumedCount() , getResumptionRate() * 100 ,
+                              fullHandshakeTime.getMean() , resumedHandshakeTime.getMean() );
+    }
+
+    /** Maximum number of sessions kept per server. */
+    private static final int SESSION_CACHE_SIZE = 1000;
+    /** How long a session may be resumed for (sec). */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /** Shared TLS sessions, by "server:port". */
+    private static final ConcurrentMap <String , TlsSessions> ALL_SERVERS =
+        new ConcurrentHashMap <String , TlsSessions>();
+
+    /** Server's host name. */
+    private final String server;
+    /** Server's port. */
+    private final int port;
+    /** TLS context (holds the session cache). */
+    private final SSLContext context;
+
+    /** Number of resumed handshakes. */
+    private final AtomicLong resumedCount = new AtomicLong();
+    /** Full handshake times (microsec). */
+    private final Histogram fullHandshakeTime = new Histogram( "full TLS handshake (us)" );
+    /** Resumed handshake times (microsec). */
+    private final Histogram resumedHandshakeTime = new Histogram( "resumed TLS handshake (us)" );
+    /** Indicates whether the latest handshake was resumed. */
+    private volatile boolean lastHandshakeResumed = false;
+}
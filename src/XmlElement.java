@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+   A small, mutable XML element tree node.
+
+   <p> Used to hand complete stanzas (the children of the
+   &lt;stream:stream&gt; root) to the code that handles them, once
+   they have been fully received by the {@link XmlPushParser}.
+
+   <p> Element and attribute names coming from the parser are
+   interned, so they can be compared with <code>==</code> against
+   string literals.
+ */
+class XmlElement {
+
+    /** Constructor. */
+    public XmlElement( String name , String namespace ) {
+        this.name = name;
+        this.namespace = namespace;
+    }
+
+    /** Gets the local name of the element. */
+    public String getName() {
+        return name;
+    }
+
+    /** Gets the namespace URI of the element ("" if none). */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /** Adds an attribute. */
+    public void addAttribute( String localName , String value ) {
+        if ( attributes == null ) {
+            attributes = new ArrayList <String>( 8 );
+        }
+        attributes.add( localName );
+        attributes.add( value );
+    }
+
+    /** Gets the number of attributes. */
+    public int getAttributeCount() {
+        return ( attributes == null ) ? 0 : attributes.size() / 2;
+    }
+
+    /** Gets the local name of the attribute at the given index. */
+    public String getAttributeName( int index ) {
+        return attributes.get( 2 * index );
+    }
+
+    /** Gets the value of the attribute at the given index. */
+    public String getAttributeValue( int index ) {
+        return attributes.get( 2 * index + 1 );
+    }
+
+    /** Gets the value of an attribute by local name (null if absent). */
+    public String getAttribute( String localName ) {
+        int count = getAttributeCount();
+        for ( int i = 0 ; i < count ; ++i ) {
+            if ( attributes.get( 2 * i ).equals( localName ) ) {
+                return attributes.get( 2 * i + 1 );
+            }
+        }
+        return null;
+    }
+
+    /** Appends character data directly inside this element. */
+    public void appendText( String moreText ) {
+        text = ( text == null ) ? moreText : text + moreText;
+    }
+
+    /** Gets the character data directly inside this element ("" if none). */
+    public String getText() {
+        return ( text == null ) ? "" : text;
+    }
+
+    /** Adds a child element. */
+    public void addChild( XmlElement child ) {
+        if ( children == null ) {
+            children = new ArrayList <XmlElement>( 4 );
+        }
+        children.add( child );
+    }
+
+    /** Gets the child elements. */
+    public List <XmlElement> getChildren() {
+        if ( children == null ) {
+            return Collections.emptyList();
+        }
+        return children;
+    }
+
+    /** Gets the first child element with the given local name (null if none). */
+    public XmlElement getChild( String localName ) {
+        if ( children != null ) {
+            for ( XmlElement child : children ) {
+                if ( child.name.equals( localName ) ) {
+                    return child;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<" + name + " xmlns='" + namespace + "' ...>";
+    }
+
+    /** Local name. */
+    private final String name;
+    /** Namespace URI. */
+    private final String namespace;
+    /** Attribute names and values, interleaved (null if none). */
+    private List <String> attributes;
+    /** Character data (null if none). */
+    private String text;
+    /** Child elements (null if none). */
+    private List <XmlElement> children;
+}
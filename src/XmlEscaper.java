@@ -0,0 +1,239 @@
+/**
+   Escapes text and attribute values for the outbound XML stream.
+
+   <p> Text gets <code>&amp;</code>, <code>&lt;</code> and <code>&gt;</code>
+   replaced by entity references. Attribute values (which the client
+   always quotes with <code>'</code>) additionally get <code>'</code>,
+   <code>"</code> and tab/newline/carriage return replaced, so they
+   survive attribute-value normalization. Control characters that XML
+   1.0 doesn't allow at all, and unpaired surrogates, are replaced by
+   <code>?</code> instead of breaking the stream.
+
+   <p> Two forms are provided:
+   <ul>
+    <li> {@link #escapeText(String)} and {@link #escapeAttribute(String)}
+         return the very same String when nothing needs escaping, so the
+         common case doesn't allocate. </li>
+    <li> {@link #encode(String,boolean,byte[],int)} escapes and encodes
+         to UTF-8 in one pass, straight into a byte buffer (used by the
+         {@link StanzaSerializer}). </li>
+   </ul>
+ */
+class XmlEscaper {
+
+    /** Maximum number of bytes a single char can be encoded to ("&amp;quot;"). */
+    public static final int MAX_BYTES_PER_CHAR = 6;
+
+    /** Escapes element text. Returns the same String if nothing needs escaping. */
+    public static String escapeText( String s ) {
+        return escape( s , false );
+    }
+
+    /** Escapes an attribute value. Returns the same String if nothing needs escaping. */
+    public static String escapeAttribute( String s ) {
+        return escape( s , true );
+    }
+
+    /**
+       Gets the index of the first char that needs escaping, or -1 if
+       the string can be written as it is.
+     */
+    public static int indexOfSpecial( CharSequence s , boolean attribute ) {
+        return indexOfSpecial( s , 0 , attribute );
+    }
+
+    /** Same as {@link #indexOfSpecial(CharSequence,boolean)}, starting at the given index. */
+    public static int indexOfSpecial( CharSequence s , int from , boolean attribute ) {
+        byte[] table = attribute ? ATTRIBUTE_TABLE : TEXT_TABLE;
+        for ( int i = from , n = s.length() ; i < n ; ++i ) {
+            char c = s.charAt( i );
+            if ( c < 0x80 ) {
+                if ( table[c] != 0 ) {
+                    return i;
+                }
+            }
+            else if ( Character.isSurrogate( c ) || c >= 0xFFFE ) {
+                if ( ! ( Character.isHighSurrogate( c ) && i + 1 < n &&
+                         Character.isLowSurrogate( s.charAt( i + 1 ) ) ) ) {
+                    return i;
+                }
+                ++i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+       Escapes a string and appends it to a StringBuilder.
+       @param attribute  Whether the string is an attribute value (or text)
+     */
+    public static void escape( CharSequence s , boolean attribute , StringBuilder out ) {
+
+        int n = s.length();
+        int start = 0;
+        int i = indexOfSpecial( s , attribute );
+        while ( i >= 0 ) {
+            out.append( s , start , i );
+            char c = s.charAt( i );
+            if ( Character.isHighSurrogate( c ) && i + 1 < n && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+                // Valid pair, copy it as it is
+                out.append( c ).append( s.charAt( i + 1 ) );
+                i += 2;
+            }
+            else {
+                out.append( REPLACEMENTS[ replacementIndex( c , attribute ) ] );
+                ++i;
+            }
+            start = i;
+            i = indexOfSpecial( s , i , attribute );
+        }
+        out.append( s , start , n );
+    }
+
+    /**
+       Escapes a string and encodes it as UTF-8 into a byte buffer.
+       The buffer must have room for
+       <code>s.length() * {@link #MAX_BYTES_PER_CHAR}</code> bytes
+       from <code>pos</code>.
+       @param attribute  Whether the string is an attribute value (or text)
+       @return the position after the last byte written
+     */
+    public static int encode( String s , boolean attribute , byte[] buf , int pos ) {
+        return encode( s , attribute ? ATTRIBUTE_TABLE : TEXT_TABLE , buf , pos );
+    }
+
+    /**
+       Encodes a string that is already XML (e.g. a whole stanza) as
+       UTF-8, without escaping anything. Same buffer requirement as
+       {@link #encode(String,boolean,byte[],int)}.
+       @return the position after the last byte written
+     */
+    public static int encodeRaw( String s , byte[] buf , int pos ) {
+        return encode( s , RAW_TABLE , buf , pos );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Encodes a string, replacing the ASCII chars the table says. */
+    private static int encode( String s , byte[] table , byte[] buf , int pos ) {
+
+        int n = s.length();
+        int i = 0;
+
+        // Fast path for plain ASCII that needs no escaping
+        while ( i < n ) {
+            char c = s.charAt( i );
+            if ( c >= 0x80 || table[c] != 0 ) {
+                break;
+            }
+            buf[ pos++ ] = (byte) c;
+            ++i;
+        }
+
+        for ( ; i < n ; ++i ) {
+            char c = s.charAt( i );
+            if ( c < 0x80 ) {
+                if ( table[c] == 0 ) {
+                    buf[ pos++ ] = (byte) c;
+                }
+                else {
+                    byte[] replacement = REPLACEMENT_BYTES[ table[c] ];
+                    System.arraycopy( replacement , 0 , buf , pos , replacement.length );
+                    pos += replacement.length;
+                }
+            }
+            else if ( c < 0x800 ) {
+                buf[ pos++ ] = (byte) ( 0xC0 | ( c >> 6 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < n &&
+                      Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+                int cp = Character.toCodePoint( c , s.charAt( ++i ) );
+                buf[ pos++ ] = (byte) ( 0xF0 | ( cp >> 18 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( cp & 0x3F ) );
+            }
+            else if ( Character.isSurrogate( c ) || c >= 0xFFFE ) {
+                // Not allowed in XML
+                buf[ pos++ ] = (byte) '?';
+            }
+            else {
+                buf[ pos++ ] = (byte) ( 0xE0 | ( c >> 12 ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                buf[ pos++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+        }
+        return pos;
+    }
+
+    /** Escapes a string, or returns it as it is. */
+    private static String escape( String s , boolean attribute ) {
+        if ( indexOfSpecial( s , attribute ) < 0 ) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder( s.length() + 16 );
+        escape( s , attribute , sb );
+        return sb.toString();
+    }
+
+    /** Gets the index in REPLACEMENTS for a char found by indexOfSpecial(). */
+    private static int replacementIndex( char c , boolean attribute ) {
+        if ( c < 0x80 ) {
+            return ( attribute ? ATTRIBUTE_TABLE : TEXT_TABLE )[c];
+        }
+        return INVALID;
+    }
+
+    /** Builds the ASCII lookup table: 0 if the char is written as it is, else its replacement. */
+    private static byte[] createTable( boolean attribute ) {
+        byte[] table = new byte[ 0x80 ];
+        for ( int c = 0 ; c < 0x20 ; ++c ) {
+            table[c] = INVALID;
+        }
+        table['\t'] = attribute ? TAB : 0;
+        table['\n'] = attribute ? LF : 0;
+        table['\r'] = attribute ? CR : 0;
+        table['&'] = AMP;
+        table['<'] = LT;
+        table['>'] = GT;
+        if ( attribute ) {
+            table['\''] = APOS;
+            table['"'] = QUOT;
+        }
+        return table;
+    }
+
+    /** Replacement indexes. */
+    private static final byte AMP = 1;
+    private static final byte LT = 2;
+    private static final byte GT = 3;
+    private static final byte APOS = 4;
+    private static final byte QUOT = 5;
+    private static final byte TAB = 6;
+    private static final byte LF = 7;
+    private static final byte CR = 8;
+    private static final byte INVALID = 9;
+
+    /** Replacement strings, by index. */
+    private static final String[] REPLACEMENTS = {
+        null , "&amp;" , "&lt;" , "&gt;" , "&apos;" , "&quot;" , "&#9;" , "&#10;" , "&#13;" , "?" };
+    /** Replacement strings as bytes (all ASCII). */
+    private static final byte[][] REPLACEMENT_BYTES = new byte[ REPLACEMENTS.length ][];
+
+    /** ASCII lookup tables for text and attribute values. */
+    private static final byte[] TEXT_TABLE = createTable( false );
+    private static final byte[] ATTRIBUTE_TABLE = createTable( true );
+    /** Lookup table that replaces nothing. */
+    private static final byte[] RAW_TABLE = new byte[ 0x80 ];
+
+    static {
+        for ( int i = 1 ; i < REPLACEMENTS.length ; ++i ) {
+            String r = REPLACEMENTS[i];
+            REPLACEMENT_BYTES[i] = new byte[ r.length() ];
+            for ( int j = 0 ; j < r.length() ; ++j ) {
+                REPLACEMENT_BYTES[i][j] = (byte) r.charAt( j );
+            }
+        }
+    }
+}
@@ -0,0 +1,703 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+   Incremental (push-style) XML tokenizer working on UTF-8 bytes.
+
+   <p> Unlike the StAX pull-parser used by {@link XmppConnection},
+   this parser never reads from the socket by itself. Bytes are
+   pushed into it with {@link #feed(ByteBuffer)} in chunks of any
+   size, as they arrive, and it calls its {@link Handler} for every
+   complete start tag, run of character data and end tag. A tag split
+   across two chunks is simply kept until the rest of it arrives.
+
+   <p> Markup is found by scanning the raw bytes (all XML delimiters
+   are ASCII, so they never appear inside a multi-byte UTF-8
+   sequence). Bytes are only decoded to Strings when a handler asks
+   for an attribute value or text. Element, attribute and namespace
+   names are interned through a symbol table, so handlers can compare
+   them with <code>==</code> without allocating anything.
+
+   <p> This is only as much XML as XMPP needs: no DTDs, and comments,
+   processing instructions and the XML declaration are skipped.
+ */
+class XmlPushParser {
+
+    /** Receives the parse events. Only valid during the callback. */
+    public interface Handler {
+
+        /** Called for every start tag (also for empty-element tags). */
+        void startElement( XmlPushParser parser )
+            throws IOException;
+
+        /** Called for character data inside the stream's children. */
+        void text( XmlPushParser parser )
+            throws IOException;
+
+        /** Called for every end tag (also for empty-element tags). */
+        void endElement( XmlPushParser parser )
+            throws IOException;
+    }
+
+    /** Constructor. */
+    public XmlPushParser( Handler handler ) {
+        this.handler = handler;
+    }
+
+    /** Parses all the remaining bytes of the buffer. */
+    public void feed( ByteBuffer bytes )
+        throws IOException {
+
+        if ( bytes.hasArray() ) {
+            int offset = bytes.arrayOffset() + bytes.position();
+            int length = bytes.remaining();
+            bytes.position( bytes.limit() );
+            feed( bytes.array() , offset , length );
+        }
+        else {
+            // Direct buffer: copy out in chunks
+            if ( scratch == null ) {
+                scratch = new byte[ 8192 ];
+            }
+            while ( bytes.hasRemaining() ) {
+                int length = Math.min( bytes.remaining() , scratch.length );
+                bytes.get( scratch , 0 , length );
+                feed( scratch , 0 , length );
+            }
+        }
+    }
+
+    /** Parses the given bytes. */
+    public void feed( byte[] data , int offset , int length )
+        throws IOException {
+
+        int end = offset + length;
+        int i = offset;
+        bytesParsed += length;
+
+        while ( i < end ) {
+
+            if ( resetRequested ) {
+                clearState();
+            }
+
+            if ( inTag ) {
+
+                // Look for the closing '>' (outside of quoted attribute values)
+                int start = i;
+                boolean closed = false;
+                while ( i < end ) {
+                    byte b = data[i++];
+                    if ( quote != 0 ) {
+                        if ( b == quote ) {
+                            quote = 0;
+                        }
+                    }
+                    else if ( b == '>' ) {
+                        append( data , start , i - 1 - start );
+                        if ( isTagComplete() ) {
+                            closed = true;
+                            break;
+                        }
+                        // '>' inside a comment or CDATA section: keep it
+                        append( data , i - 1 , 1 );
+                        start = i;
+                    }
+                    else if ( ( b == '"' || b == '\'' ) && isQuotingTag( data[ start ] ) ) {
+                        quote = b;
+                    }
+                }
+
+                if ( ! closed ) {
+                    append( data , start , i - start );
+                    continue;
+                }
+
+                inTag = false;
+                handleTag();
+                bufferLength = 0;
+            }
+            else {
+
+                // Character data: look for the next '<'
+                int start = i;
+                while ( i < end && data[i] != '<' ) {
+                    ++i;
+                }
+
+                // Whitespace between stanzas (keep-alives) is not kept
+                if ( depth >= 2 ) {
+                    append( data , start , i - start );
+                }
+
+                if ( i < end ) {
+                    // Skip the '<'
+                    ++i;
+                    if ( bufferLength > 0 ) {
+                        textStart = 0;
+                        textEnd = bufferLength;
+                        textIsRaw = false;
+                        text = null;
+                        handler.text( this );
+                    }
+                    bufferLength = 0;
+                    inTag = true;
+                    quote = 0;
+                }
+            }
+        }
+    }
+
+    /**
+       Resets the parser so that the next bytes are parsed as a new
+       document. May be called from inside a handler callback, e.g.
+       when the stream is restarted after STARTTLS or SASL success.
+     */
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /** Gets the depth of the current element (1 is the stream root). */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Gets the (interned) local name of the current element. */
+    public String getLocalName() {
+        return elementNames[ depth ];
+    }
+
+    /** Gets the (interned) namespace URI of the current element ("" if none). */
+    public String getNamespace() {
+        return elementNamespaces[ depth ];
+    }
+
+    /** Gets the number of attributes of the current start tag. */
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /** Gets the (interned) local name of an attribute of the current start tag. */
+    public String getAttributeLocalName( int index ) {
+        return attributeNames[ index ];
+    }
+
+    /**
+       Gets the value of an attribute of the current start tag.
+       @throws IOException if it has a malformed character reference
+     */
+    public String getAttributeValue( int index )
+        throws IOException {
+        if ( attributeValues[ index ] == null ) {
+            attributeValues[ index ] = decode( buffer , attributeValueStart[ index ] ,
+                                               attributeValueEnd[ index ] , true );
+        }
+        return attributeValues[ index ];
+    }
+
+    /** Gets the value of an attribute of the current start tag (null if absent). */
+    public String getAttributeValue( String localName )
+        throws IOException {
+        for ( int i = 0 ; i < attributeCount ; ++i ) {
+            if ( attributeNames[i].equals( localName ) ) {
+                return getAttributeValue( i );
+            }
+        }
+        return null;
+    }
+
+    /**
+       Gets the current character data.
+       @throws IOException if it has a malformed character reference
+     */
+    public String getText()
+        throws IOException {
+        if ( text == null ) {
+            text = decode( buffer , textStart , textEnd , ! textIsRaw );
+        }
+        return text;
+    }
+
+    /** Gets the number of bytes fed into this parser so far. */
+    public long getBytesParsed() {
+        return bytesParsed;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Clears all parse state (see {@link #reset()}). */
+    private void clearState() {
+        resetRequested = false;
+        inTag = false;
+        quote = 0;
+        bufferLength = 0;
+        depth = 0;
+        namespaceCount = 0;
+        attributeCount = 0;
+    }
+
+    /** Quotes only delimit attribute values in start tags, not in comments etc. */
+    private boolean isQuotingTag( byte firstInChunk ) {
+        byte first = ( bufferLength > 0 ) ? buffer[0] : firstInChunk;
+        return first != '!' && first != '?';
+    }
+
+    /** Checks that a '>' really ends the tag being collected. */
+    private boolean isTagComplete() {
+        if ( startsWith( "!--" ) ) {
+            return bufferLength >= 5 && buffer[ bufferLength - 1 ] == '-' && buffer[ bufferLength - 2 ] == '-';
+        }
+        if ( startsWith( "![CDATA[" ) ) {
+            return bufferLength >= 10 && buffer[ bufferLength - 1 ] == ']' && buffer[ bufferLength - 2 ] == ']';
+        }
+        return true;
+    }
+
+    /** Handles one complete tag (the bytes between '<' and '>'). */
+    private void handleTag()
+        throws IOException {
+
+        if ( bufferLength == 0 ) {
+            throw new IOException( "Malformed XML: empty tag" );
+        }
+
+        byte first = buffer[0];
+
+        // XML declaration or processing instruction
+        if ( first == '?' ) {
+            return;
+        }
+
+        if ( first == '!' ) {
+            // CDATA section is character data, taken as is
+            if ( startsWith( "![CDATA[" ) && depth >= 2 ) {
+                textStart = 8;
+                textEnd = bufferLength - 2;
+                textIsRaw = true;
+                text = null;
+                handler.text( this );
+            }
+            // Comments and DOCTYPEs are ignored
+            return;
+        }
+
+        if ( first == '/' ) {
+            handleEndTag();
+        }
+        else {
+            handleStartTag();
+        }
+    }
+
+    /** Handles a start tag (or empty-element tag). */
+    private void handleStartTag()
+        throws IOException {
+
+        boolean isEmpty = ( buffer[ bufferLength - 1 ] == '/' );
+        int end = isEmpty ? bufferLength - 1 : bufferLength;
+
+        // Element name
+        int nameEnd = 0;
+        while ( nameEnd < end && ! isWhitespace( buffer[ nameEnd ] ) ) {
+            ++nameEnd;
+        }
+
+        ++depth;
+        ensureDepthCapacity();
+
+        // Attributes (namespace declarations are applied, not reported)
+        attributeCount = 0;
+        int i = nameEnd;
+        while ( true ) {
+
+            while ( i < end && isWhitespace( buffer[i] ) ) {
+                ++i;
+            }
+            if ( i >= end ) {
+                break;
+            }
+
+            int attrNameStart = i;
+            while ( i < end && buffer[i] != '=' && ! isWhitespace( buffer[i] ) ) {
+                ++i;
+            }
+            int attrNameEnd = i;
+            while ( i < end && buffer[i] != '=' ) {
+                ++i;
+            }
+            ++i;
+            while ( i < end && isWhitespace( buffer[i] ) ) {
+                ++i;
+            }
+            if ( i >= end || ( buffer[i] != '"' && buffer[i] != '\'' ) ) {
+                throw new IOException( "Malformed XML: attribute without quoted value" );
+            }
+            byte quoteChar = buffer[ i++ ];
+            int valueStart = i;
+            while ( i < end && buffer[i] != quoteChar ) {
+                ++i;
+            }
+            if ( i >= end ) {
+                throw new IOException( "Malformed XML: unterminated attribute value" );
+            }
+            int valueEnd = i++;
+
+            if ( regionEquals( attrNameStart , attrNameEnd , XMLNS ) ) {
+                declareNamespace( "" , valueStart , valueEnd );
+            }
+            else if ( attrNameEnd - attrNameStart > 6 &&
+                      regionEquals( attrNameStart , attrNameStart + 6 , XMLNS_COLON ) ) {
+                declareNamespace( symbols.intern( buffer , attrNameStart + 6 , attrNameEnd - attrNameStart - 6 ) ,
+                                  valueStart , valueEnd );
+            }
+            else {
+                addAttribute( attrNameStart , attrNameEnd , valueStart , valueEnd );
+            }
+        }
+
+        // Resolve the element's prefix and local name
+        int colon = indexOf( ':' , 0 , nameEnd );
+        if ( colon < 0 ) {
+            elementNames[ depth ] = symbols.intern( buffer , 0 , nameEnd );
+            elementNamespaces[ depth ] = lookupNamespace( "" );
+        }
+        else {
+            elementNames[ depth ] = symbols.intern( buffer , colon + 1 , nameEnd - colon - 1 );
+            elementNamespaces[ depth ] = lookupNamespace( symbols.intern( buffer , 0 , colon ) );
+        }
+
+        handler.startElement( this );
+
+        if ( isEmpty && ! resetRequested ) {
+            attributeCount = 0;
+            handler.endElement( this );
+            popElement();
+        }
+    }
+
+    /** Handles an end tag. */
+    private void handleEndTag()
+        throws IOException {
+
+        if ( depth == 0 ) {
+            throw new IOException( "Malformed XML: unexpected end tag" );
+        }
+        attributeCount = 0;
+        handler.endElement( this );
+        popElement();
+    }
+
+    /** Leaves the current element. */
+    private void popElement() {
+        while ( namespaceCount > 0 && namespaceDepths[ namespaceCount - 1 ] >= depth ) {
+            --namespaceCount;
+        }
+        --depth;
+    }
+
+    /** Records an attribute of the current start tag. */
+    private void addAttribute( int nameStart , int nameEnd , int valueStart , int valueEnd ) {
+
+        if ( attributeCount == attributeNames.length ) {
+            int size = attributeCount * 2;
+            attributeNames = Arrays.copyOf( attributeNames , size );
+            attributeValues = Arrays.copyOf( attributeValues , size );
+            attributeValueStart = Arrays.copyOf( attributeValueStart , size );
+            attributeValueEnd = Arrays.copyOf( attributeValueEnd , size );
+        }
+
+        // Report the local name only, e.g. 'lang' for 'xml:lang'
+        int colon = indexOf( ':' , nameStart , nameEnd );
+        if ( colon >= 0 ) {
+            nameStart = colon + 1;
+        }
+
+        attributeNames[ attributeCount ] = symbols.intern( buffer , nameStart , nameEnd - nameStart );
+        attributeValues[ attributeCount ] = null;
+        attributeValueStart[ attributeCount ] = valueStart;
+        attributeValueEnd[ attributeCount ] = valueEnd;
+        ++attributeCount;
+    }
+
+    /** Declares a namespace prefix for the current element. */
+    private void declareNamespace( String prefix , int uriStart , int uriEnd ) {
+
+        if ( namespaceCount == namespacePrefixes.length ) {
+            int size = namespaceCount * 2;
+            namespacePrefixes = Arrays.copyOf( namespacePrefixes , size );
+            namespaceUris = Arrays.copyOf( namespaceUris , size );
+            namespaceDepths = Arrays.copyOf( namespaceDepths , size );
+        }
+        namespacePrefixes[ namespaceCount ] = prefix;
+        namespaceUris[ namespaceCount ] = symbols.intern( buffer , uriStart , uriEnd - uriStart );
+        namespaceDepths[ namespaceCount ] = depth;
+        ++namespaceCount;
+    }
+
+    /** Finds the namespace URI bound to a prefix ("" if unbound). */
+    private String lookupNamespace( String prefix ) {
+        for ( int i = namespaceCount - 1 ; i >= 0 ; --i ) {
+            if ( namespacePrefixes[i] == prefix ) {
+                return namespaceUris[i];
+            }
+        }
+        if ( prefix == "xml" ) {
+            return "http://www.w3.org/XML/1998/namespace";
+        }
+        return "";
+    }
+
+    /** Makes room for one more level of element nesting. */
+    private void ensureDepthCapacity() {
+        if ( depth == elementNames.length ) {
+            elementNames = Arrays.copyOf( elementNames , depth * 2 );
+            elementNamespaces = Arrays.copyOf( elementNamespaces , depth * 2 );
+        }
+    }
+
+    /** Appends bytes to the token buffer. */
+    private void append( byte[] data , int offset , int length )
+        throws IOException {
+
+        if ( length <= 0 ) {
+            return;
+        }
+        if ( bufferLength + length > buffer.length ) {
+            if ( bufferLength + length > MAX_TOKEN_SIZE ) {
+                throw new IOException( "XML token larger than " + MAX_TOKEN_SIZE + " bytes" );
+            }
+            buffer = Arrays.copyOf( buffer , Math.max( buffer.length * 2 , bufferLength + length ) );
+        }
+        System.arraycopy( data , offset , buffer , bufferLength , length );
+        bufferLength += length;
+    }
+
+    /** Checks whether the token buffer starts with the given ASCII string. */
+    private boolean startsWith( String prefix ) {
+        if ( bufferLength < prefix.length() ) {
+            return false;
+        }
+        for ( int i = 0 ; i < prefix.length() ; ++i ) {
+            if ( buffer[i] != prefix.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Checks whether a region of the token buffer equals the given ASCII bytes. */
+    private boolean regionEquals( int start , int end , byte[] ascii ) {
+        if ( end - start != ascii.length ) {
+            return false;
+        }
+        for ( int i = 0 ; i < ascii.length ; ++i ) {
+            if ( buffer[ start + i ] != ascii[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Finds a byte in a region of the token buffer (-1 if absent). */
+    private int indexOf( char c , int start , int end ) {
+        for ( int i = start ; i < end ; ++i ) {
+            if ( buffer[i] == c ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Checks for XML whitespace. */
+    private static boolean isWhitespace( byte b ) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+       Decodes UTF-8 bytes, optionally expanding entity and character references.
+       @throws IOException on a malformed character reference
+     */
+    static String decode( byte[] bytes , int start , int end , boolean expandReferences )
+        throws IOException {
+
+        String raw = new String( bytes , start , end - start , UTF8 );
+        if ( ! expandReferences || raw.indexOf( '&' ) < 0 ) {
+            return raw;
+        }
+
+        StringBuilder sb = new StringBuilder( raw.length() );
+        int i = 0;
+        while ( i < raw.length() ) {
+            char c = raw.charAt( i );
+            int semicolon;
+            if ( c != '&' || ( semicolon = raw.indexOf( ';' , i ) ) < 0 ) {
+                sb.append( c );
+                ++i;
+                continue;
+            }
+
+            String entity = raw.substring( i + 1 , semicolon );
+            if ( entity.equals( "lt" ) ) {
+                sb.append( '<' );
+            }
+            else if ( entity.equals( "gt" ) ) {
+                sb.append( '>' );
+            }
+            else if ( entity.equals( "amp" ) ) {
+                sb.append( '&' );
+            }
+            else if ( entity.equals( "quot" ) ) {
+                sb.append( '"' );
+            }
+            else if ( entity.equals( "apos" ) ) {
+                sb.append( '\'' );
+            }
+            else if ( entity.startsWith( "#" ) ) {
+                try {
+                    if ( entity.startsWith( "#x" ) || entity.startsWith( "#X" ) ) {
+                        sb.appendCodePoint( Integer.parseInt( entity.substring( 2 ) , 16 ) );
+                    }
+                    else {
+                        sb.appendCodePoint( Integer.parseInt( entity.substring( 1 ) ) );
+                    }
+                }
+                catch ( IllegalArgumentException e ) {
+                    // Not a number, or not a code point (NumberFormatException is one too)
+                    throw new IOException( "Malformed XML: invalid character reference &" + entity + ";" );
+                }
+            }
+            else {
+                // Unknown entity, keep it as is
+                sb.append( '&' ).append( entity ).append( ';' );
+            }
+            i = semicolon + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+       Table of interned names, looked up straight from the bytes
+       so that known names don't allocate anything.
+     */
+    private static final class SymbolTable {
+
+        /** Gets the interned String for the given UTF-8 bytes. */
+        String intern( byte[] bytes , int offset , int length ) {
+
+            int hash = 0;
+            for ( int i = 0 ; i < length ; ++i ) {
+                hash = 31 * hash + bytes[ offset + i ];
+            }
+
+            int mask = keys.length - 1;
+            int slot = ( hash ^ ( hash >>> 16 ) ) & mask;
+            while ( keys[ slot ] != null ) {
+                byte[] key = keys[ slot ];
+                if ( key.length == length && equals( key , bytes , offset ) ) {
+                    return values[ slot ];
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+
+            String symbol = new String( bytes , offset , length , UTF8 ).intern();
+
+            // Don't let a misbehaving peer grow the table forever
+            if ( size < MAX_SYMBOLS ) {
+                keys[ slot ] = Arrays.copyOfRange( bytes , offset , offset + length );
+                values[ slot ] = symbol;
+                if ( ++size * 2 > keys.length ) {
+                    rehash();
+                }
+            }
+            return symbol;
+        }
+
+        /** Compares a key with bytes of the same length. */
+        private static boolean equals( byte[] key , byte[] bytes , int offset ) {
+            for ( int i = 0 ; i < key.length ; ++i ) {
+                if ( key[i] != bytes[ offset + i ] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Doubles the size of the table. */
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[ oldKeys.length * 2 ][];
+            values = new String[ oldKeys.length * 2 ];
+            size = 0;
+            for ( int i = 0 ; i < oldKeys.length ; ++i ) {
+                if ( oldKeys[i] != null ) {
+                    intern( oldKeys[i] , 0 , oldKeys[i].length );
+                }
+            }
+        }
+
+        /** Upper bound on the number of symbols kept. */
+        private static final int MAX_SYMBOLS = 4096;
+
+        private byte[][] keys = new byte[ 256 ][];
+        private String[] values = new String[ 256 ];
+        private int size = 0;
+    }
+
+    /** Largest tag or text run accepted (protects against unbounded input). */
+    private static final int MAX_TOKEN_SIZE = 10 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final byte[] XMLNS = { 'x' , 'm' , 'l' , 'n' , 's' };
+    private static final byte[] XMLNS_COLON = { 'x' , 'm' , 'l' , 'n' , 's' , ':' };
+
+    /** Receiver of the parse events. */
+    private final Handler handler;
+    /** Interned names, shared by all elements parsed by this parser. */
+    private final SymbolTable symbols = new SymbolTable();
+
+    /** Bytes of the tag or character data being collected. */
+    private byte[] buffer = new byte[ 1024 ];
+    /** Number of bytes used in {@link #buffer}. */
+    private int bufferLength = 0;
+    /** Scratch array for feeding direct buffers. */
+    private byte[] scratch;
+    /** Indicates whether we are between '<' and '>'. */
+    private boolean inTag = false;
+    /** Quote character of the attribute value being collected (0 if none). */
+    private byte quote = 0;
+    /** Set by {@link #reset()}, applied before the next byte. */
+    private boolean resetRequested = false;
+    /** Total number of bytes fed. */
+    private long bytesParsed = 0;
+
+    /** Current element depth (0 outside the root). */
+    private int depth = 0;
+    /** Local names of the open elements, indexed by depth. */
+    private String[] elementNames = new String[ 16 ];
+    /** Namespaces of the open elements, indexed by depth. */
+    private String[] elementNamespaces = new String[ 16 ];
+
+    /** Namespace declarations in scope. */
+    private String[] namespacePrefixes = new String[ 8 ];
+    private String[] namespaceUris = new String[ 8 ];
+    private int[] namespaceDepths = new int[ 8 ];
+    private int namespaceCount = 0;
+
+    /** Attributes of the current start tag. */
+    private String[] attributeNames = new String[ 8 ];
+    private String[] attributeValues = new String[ 8 ];
+    private int[] attributeValueStart = new int[ 8 ];
+    private int[] attributeValueEnd = new int[ 8 ];
+    private int attributeCount = 0;
+
+    /** Current character data (region of {@link #buffer}). */
+    private int textStart;
+    private int textEnd;
+    /** Indicates CDATA, where references are not expanded. */
+    private boolean textIsRaw;
+    /** Decoded character data (null until asked for). */
+    private String text;
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+   Turns the events of an {@link XmlPushParser} into complete stanzas.
+
+   <p> The stream root (&lt;stream:stream&gt;) is reported as soon as
+   its start tag is parsed. Every child of the root (a stanza, or a
+   stream-level element such as &lt;features&gt;) is built into an
+   {@link XmlElement} tree and reported once its end tag is parsed.
+ */
+class XmlStanzaBuilder
+    implements XmlPushParser.Handler {
+
+    /** Receives complete stanzas. */
+    public interface Listener {
+
+        /** Called when the stream's root start tag is received. */
+        void streamOpened( XmlElement header )
+            throws IOException;
+
+        /** Called for every complete child element of the stream root. */
+        void stanzaReceived( XmlElement stanza )
+            throws IOException;
+
+        /** Called when the stream's root end tag is received. */
+        void streamClosed()
+            throws IOException;
+    }
+
+    /** Constructor. */
+    public XmlStanzaBuilder( Listener listener ) {
+        this.listener = listener;
+    }
+
+    /** {@inheritDoc} */
+    public void startElement( XmlPushParser parser )
+        throws IOException {
+
+        XmlElement element = new XmlElement( parser.getLocalName() , parser.getNamespace() );
+        int count = parser.getAttributeCount();
+        for ( int i = 0 ; i < count ; ++i ) {
+            element.addAttribute( parser.getAttributeLocalName( i ) ,
+                                  parser.getAttributeValue( i ) );
+        }
+
+        if ( parser.getDepth() == 1 ) {
+            // A new stream: forget any half-built stanza from the old one
+            open.clear();
+            listener.streamOpened( element );
+            return;
+        }
+
+        if ( ! open.isEmpty() ) {
+            open.get( open.size() - 1 ).addChild( element );
+        }
+        open.add( element );
+    }
+
+    /** {@inheritDoc} */
+    public void text( XmlPushParser parser )
+        throws IOException {
+        if ( ! open.isEmpty() ) {
+            open.get( open.size() - 1 ).appendText( parser.getText() );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void endElement( XmlPushParser parser )
+        throws IOException {
+
+        if ( parser.getDepth() == 1 ) {
+            listener.streamClosed();
+            return;
+        }
+
+        XmlElement element = open.remove( open.size() - 1 );
+        if ( parser.getDepth() == 2 ) {
+            listener.stanzaReceived( element );
+        }
+    }
+
+    /** Receiver of the stanzas. */
+    private final Listener listener;
+    /** Elements of the stanza being built, outermost first. */
+    private final List <XmlElement> open = new ArrayList <XmlElement>();
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+   Reads complete stanzas from a blocking socket stream, using the
+   {@link XmlPushParser}.
+
+   <p> The raw bytes read from the socket go straight into the push
+   parser (no Reader decoding them to chars first), and
+   {@link #next()} returns the next complete stanza. The stream's
+   root start tag is returned too; use {@link #isStreamHeader(XmlElement)}
+   to recognise it.
+
+   <p> After STARTTLS and SASL success the server starts a new XML
+   document; call {@link #reset(InputStream)} at that point.
+ */
+class XmlStanzaReader
+    implements XmlStanzaBuilder.Listener {
+
+    /** Constructor. */
+    public XmlStanzaReader( InputStream in ) {
+        this.in = in;
+        this.parser = new XmlPushParser( new XmlStanzaBuilder( this ) );
+    }
+
+    /**
+       Gets the next stanza (or stream root start tag), blocking until
+       it has been fully received.
+       @throws IOException if the connection or the stream is closed
+     */
+    public XmlElement next()
+        throws IOException {
+
+        while ( ready.isEmpty() ) {
+            if ( streamClosed ) {
+                throw new IOException( "Server closed the stream" );
+            }
+            int n = in.read( buffer );
+            if ( n < 0 ) {
+                throw new IOException( "Connection closed by server" );
+            }
+            parser.feed( buffer , 0 , n );
+        }
+        return ready.poll();
+    }
+
+    /**
+       Starts parsing a new document, read from the given stream
+       (the same one, or the TLS stream after STARTTLS).
+     */
+    public void reset( InputStream newIn ) {
+        in = newIn;
+        parser.reset();
+        ready.clear();
+        streamClosed = false;
+    }
+
+    /** Gets the number of bytes received so far. */
+    public long getBytesRead() {
+        return parser.getBytesParsed();
+    }
+
+    /** Checks whether an element returned by {@link #next()} is the stream's root start tag. */
+    public static boolean isStreamHeader( XmlElement element ) {
+        return element.getName().equals( "stream" ) &&
+               element.getNamespace().equals( STREAM_NAMESPACE );
+    }
+
+    /** {@inheritDoc} */
+    public void streamOpened( XmlElement header ) {
+        ready.add( header );
+    }
+
+    /** {@inheritDoc} */
+    public void stanzaReceived( XmlElement stanza ) {
+        ready.add( stanza );
+    }
+
+    /** {@inheritDoc} */
+    public void streamClosed() {
+        streamClosed = true;
+    }
+
+    private static final String STREAM_NAMESPACE = "http://etherx.jabber.org/streams";
+
+    /** Socket input stream. */
+    private InputStream in;
+    /** Push parser (feeds the stanzas back to this object). */
+    private final XmlPushParser parser;
+    /** Buffer for the socket reads. */
+    private final byte[] buffer = new byte[ 8192 ];
+    /** Stanzas parsed but not yet returned. */
+    private final Queue <XmlElement> ready = new ArrayDeque <XmlElement>();
+    /** Indicates that the server's root end tag has been received. */
+    private boolean streamClosed = false;
+}
@@ -36,6 +36,18 @@ import org.apache.commons.codec.binary.Base64;
          Get the parser using {@link #getParser()}.
          If you are not sure how to go about parsing XML,
          then peek into the code in this class for examples. </li>
+    <li> When started with <code>-Djabber.parser=push</code>, the
+         connection is set up with the {@link XmlPushParser} instead,
+         and there is no pull-parser: read the stanzas with the
+         {@link XmlStanzaReader} from {@link #getStanzaReader()}. </li>
+    <li> With the push parser, a {@link StreamManagement} given to
+         {@link #XmppConnection(JabberID, StreamManagement)} is used
+         to resume the previous session (check {@link #isResumed()})
+         or enable stream management on the new one. </li>
+    <li> The bytes sent and received, the stanzas received and
+         the handler times are counted in the account's
+         {@link AccountMetrics} (also an MBean), from
+         {@link #getMetrics()}. </li>
     <li> You may require the stream ID (provided by the server
          during connection setup). You can get this using the
          {@link #getStreamID()} method. </li>
@@ -47,7 +59,17 @@ class XmppConnection {
 
     /** Constructor (just initialises, doesn't connect). */
     public XmppConnection( JabberID jid ) {
+        this( jid , null );
+    }
+
+    /** 
+        Constructor, with the account's stream management (XEP-0198) 
+        state, kept across re-connections (only used with the push parser).
+     */
+    public XmppConnection( JabberID jid , StreamManagement streamManagement ) {
         this.jid = jid;
+        this.streamManagement = streamManagement;
+        this.metrics = AccountMetrics.forAccount( jid );
     }
 
     /** Opens an XMPP connection to the server. */
@@ -56,21 +78,43 @@ class XmppConnection {
 
         // Create a socket
         socket = new Socket();
+        // Stanzas are small and already batched by the writer: send them right away
+        //  (no Nagle delay, which also slowed down every round trip of the setup)
+        socket.setTcpNoDelay( true );
+
+        // Time each phase of the connection setup
+        phases = new ConnectionPhases( jid.getServerName() );
+        phases.start();
 
         // Attempt to connect to the server
-        System.out.println( "Connecting to " + jid.getServerName() + 
-                            " at port " + jid.getServerPort() );
+        EventLog.log( "Connecting to " , jid.getServerName() , 
+                      " at port " , jid.getServerPort() );
         socket.connect( new InetSocketAddress( jid.getServerName() , 
                                                jid.getServerPort() ) , 
                         connectionTimeout );
-        System.out.println( "Connected to " + jid.getServerName() + 
-                            " at port " + jid.getServerPort() );
+        phases.phaseDone( ConnectionPhases.TCP_CONNECT );
+        EventLog.log( "Connected to " , jid.getServerName() , 
+                      " at port " , jid.getServerPort() );
 
         // Initialise the reader and writer
         initSocketStreams();
 
         // Create an XML stream from/to the server
         createXmlStream();
+
+        // Publish the phase times
+        phases.finish();
+        metrics.connected();
+    }
+
+    /** Gets the phase times of the last connection setup. */
+    public ConnectionPhases getPhases() {
+        return phases;
+    }
+
+    /** Gets the account's metrics (bytes and stanzas received, handler times). */
+    public AccountMetrics getMetrics() {
+        return metrics;
     }
 
     /** Gets the underlying Socket. */
@@ -88,11 +132,21 @@ class XmppConnection {
         return writer;
     }
 
+    /** Gets the socket's raw output stream (for writing pre-encoded bytes). */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
     /** Gets the XML pull-parser. */
     public XMLStreamReader getParser() {
         return parser;
     }
 
+    /** Gets the push-parser stanza reader (null unless -Djabber.parser=push). */
+    public XmlStanzaReader getStanzaReader() {
+        return stanzaReader;
+    }
+
     /** Gets the Stream ID. */
     public String getStreamID() {
         return streamID;
@@ -103,6 +157,21 @@ class XmppConnection {
     	return jid;
     }
 
+    /** Gets the stream management state (null if not used). */
+    public StreamManagement getStreamManagement() {
+        return usePushParser ? streamManagement : null;
+    }
+
+    /** Indicates whether the previous session was resumed (no new resource bound). */
+    public boolean isResumed() {
+        return isResumed;
+    }
+
+    /** Indicates whether the server supports roster versioning (XEP-0237). */
+    public boolean isRosterVersioningSupported() {
+        return isRosterVersioningSupported;
+    }
+
     /** Closes the socket connection. */
     public void close() 
         throws IOException {
@@ -119,13 +188,18 @@ class XmppConnection {
             socket = null;
             reader = null;
             writer = null;
+            inputStream = null;
+            outputStream = null;
             parser = null;
+            stanzaReader = null;
             streamID = null;
             sc = null;
             mechanismList.clear();
             isSecureConnection = false;
             isUserAuthenticated = false;
             isResourceBound = false;
+            isResumed = false;
+            isRosterVersioningSupported = false;
         }
     }
 
@@ -135,10 +209,16 @@ class XmppConnection {
     private void initSocketStreams() 
         throws IOException {
 
+        // Count the bytes going through the socket (after TLS decryption)
+        inputStream = new CountingInputStream( socket.getInputStream() , 
+                                               metrics.getBytesReceivedCounter() );
+        outputStream = new CountingOutputStream( socket.getOutputStream() , 
+                                                 metrics.getBytesSentCounter() );
+
         // Initialise the reader and writer
-        reader = new BufferedReader( new InputStreamReader( socket.getInputStream() , 
+        reader = new BufferedReader( new InputStreamReader( inputStream , 
                                                             "UTF-8" ) );
-        writer = new BufferedWriter( new OutputStreamWriter( socket.getOutputStream() , 
+        writer = new BufferedWriter( new OutputStreamWriter( outputStream , 
                                                              "UTF-8" ) );
     }
 
@@ -146,6 +226,11 @@ class XmppConnection {
     private void createXmlStream() 
         throws IOException {
 
+        if ( usePushParser ) {
+            createXmlStreamWithPushParser();
+            return;
+        }
+
         try {
 
             // Flag to indicate that we need to re-send the 
@@ -161,14 +246,12 @@ class XmppConnection {
                 // Flush to make sure the data is sent
                 writer.flush();
 
-                // DEBUG
-                System.out.println( "Sent client's stream tag" );
+                EventLog.log( "Sent client's stream tag" );
 
                 // Create a XML pull parser to read from the incoming XML stream
                 createXmlParser();
 
-                // DEBUG
-                System.out.println( "Created XML Pull parser" );
+                EventLog.log( "Created XML Pull parser" );
 
                 // Wait for the XML stream tag response from server
                 sendStreamTag = handleServerStream();
@@ -181,6 +264,78 @@ class XmppConnection {
         }
     }
 
+    /** 
+        Creates an XML stream from/to the server, reading the server's
+        stanzas with the push parser and letting {@link XmppHandshake}
+        decide what to send back.
+     */
+    private void createXmlStreamWithPushParser() 
+        throws IOException {
+
+        XmppHandshake handshake = new XmppHandshake( jid , streamManagement );
+        XmppHandshake.Output output = new XmppHandshake.Output() {
+            public void send( String xml ) 
+                throws IOException {
+                writer.write( xml );
+                writer.flush();
+            }
+        };
+
+        stanzaReader = new XmlStanzaReader( inputStream );
+        output.send( createStreamStanza() );
+
+        while ( true ) {
+
+            XmlElement stanza = stanzaReader.next();
+            if ( XmlStanzaReader.isStreamHeader( stanza ) ) {
+                handshake.streamOpened( stanza );
+                streamID = handshake.getStreamID();
+                continue;
+            }
+
+            if ( stanza.getName().equals( "features" ) ) {
+                phases.phaseDone( ConnectionPhases.STREAM_OPEN );
+            }
+
+            switch ( handshake.handleStanza( stanza , output ) ) {
+
+                case XmppHandshake.START_TLS:
+                    phases.phaseDone( ConnectionPhases.STARTTLS );
+                    upgradeToTls();
+                    handshake.tlsEstablished();
+                    // The server starts a new document over TLS
+                    stanzaReader.reset( inputStream );
+                    output.send( createStreamStanza() );
+                    break;
+
+                case XmppHandshake.RESTART_STREAM:
+                    phases.phaseDone( ConnectionPhases.SASL );
+                    isUserAuthenticated = true;
+                    // The server starts a new document after SASL success
+                    stanzaReader.reset( inputStream );
+                    output.send( createStreamStanza() );
+                    break;
+
+                case XmppHandshake.BOUND:
+                    phases.phaseDone( ConnectionPhases.BIND );
+                    isResourceBound = true;
+                    isRosterVersioningSupported = handshake.isRosterVersioningOffered();
+                    return;
+
+                case XmppHandshake.RESUMED:
+                    // Same resource as before
+                    phases.phaseDone( ConnectionPhases.BIND );
+                    isResourceBound = true;
+                    isResumed = true;
+                    isRosterVersioningSupported = handshake.isRosterVersioningOffered();
+                    return;
+
+                default:
+                    break;
+            }
+        }
+    }
+
     /** Creates the opening stream tag. */
     private String createStreamStanza() {
 
@@ -231,6 +386,7 @@ class XmppConnection {
 
                 // Case 3: Starttls Proceed tag
                 else if ( parser.getLocalName().equals( "proceed" ) ) {
+                    phases.phaseDone( ConnectionPhases.STARTTLS );
                     upgradeToTls();
                     // We need to re-send the stream tag after TLS
                     return true;
@@ -244,6 +400,7 @@ class XmppConnection {
                 // Case 5: Authentication Success tag
                 else if ( parser.getLocalName().equals( "success" ) ) {
                     handleSuccessTag();
+                    phases.phaseDone( ConnectionPhases.SASL );
                     // We need to re-send the stream tag after SASL
                     return true;
                 }
@@ -256,6 +413,7 @@ class XmppConnection {
                 // Case 7: IQ tag (for resource ID request's response)
                 else if ( parser.getLocalName().equals( "iq" ) ) {
                     handleIQTag();
+                    phases.phaseDone( ConnectionPhases.BIND );
 
                     // Return, we have successfully opened the connection
                     return false;
@@ -274,8 +432,7 @@ class XmppConnection {
     private void handleStreamTag() 
         throws IOException {
 
-        // DEBUG
-        System.out.println( "Handling server's stream tag" );
+        EventLog.log( "Handling server's stream tag" );
 
         // Get the Stream ID from the 'id' attribute
         // The ID may not be present if the stream tag is being re-sent
@@ -285,8 +442,7 @@ class XmppConnection {
             if ( parser.getAttributeLocalName( i ).equals( "id" ) ) {
                 streamID = parser.getAttributeValue( i );
 
-                // DEBUG
-                System.out.println( "Obtained stream ID: " + streamID );
+                EventLog.log( "Obtained stream ID: " , streamID );
             }
         }
     }
@@ -295,8 +451,8 @@ class XmppConnection {
     private void handleFeaturesTag() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's features tag" );
+        phases.phaseDone( ConnectionPhases.STREAM_OPEN );
+        EventLog.log( "Handling server's features tag" );
 
         // Flag to indicate that the server supports TLS
         boolean hasStarttls = false;
@@ -319,8 +475,7 @@ class XmppConnection {
                 // Case 1: Starttls tag
                 if ( parser.getLocalName().equals( "starttls" ) ) {
 
-                    // DEBUG
-                    System.out.println( "Handling server's starttls tag" );
+                    EventLog.log( "Handling server's starttls tag" );
 
                     hasStarttls = true;
                 }
@@ -333,11 +488,16 @@ class XmppConnection {
                 // Case 3: Resource binding
                 else if ( parser.getLocalName().equals( "bind" ) ) {
 
-                    // DEBUG
-                    System.out.println( "Handling server's bind tag" );
+                    EventLog.log( "Handling server's bind tag" );
 
                     hasBind = true;
                 }
+
+                // Case 4: Roster versioning
+                else if ( parser.getLocalName().equals( "ver" ) && 
+                          RosterStore.VERSIONING_NAMESPACE.equals( parser.getNamespaceURI() ) ) {
+                    isRosterVersioningSupported = true;
+                }
             }
             else if ( eventType == XMLStreamConstants.END_ELEMENT ) {
                 if ( parser.getLocalName().equals( "features" ) ) {
@@ -367,8 +527,7 @@ class XmppConnection {
     private void handleMechanismsTag() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's mechanisms tag" );
+        EventLog.log( "Handling server's mechanisms tag" );
 
         // Clear the list of supported SASL mechanisms
         mechanismList.clear();
@@ -403,8 +562,7 @@ class XmppConnection {
     private void starttls() 
         throws IOException {
 
-        // DEBUG
-        System.out.println( "Sending client's starttls tag" );
+        EventLog.log( "Sending client's starttls tag" );
 
         // Respond to the server with a starttls tag
         //  saying that we want to upgrade to TLS
@@ -425,20 +583,19 @@ class XmppConnection {
     private void upgradeToTls() 
         throws IOException {
 
-        // DEBUG
-        System.out.println( "Upgrading to TLS..." );
-
-        // Create an SSL Socket Factory (used to create SSL sockets)
-        // Use the default factory
-        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        EventLog.log( "Upgrading to TLS..." );
 
-        // Wrap the existing socket in a SSL socket
-        SSLSocket sslSocket = (SSLSocket)
-            factory.createSocket( socket ,                                    // Old Socket
-                                  socket.getInetAddress().getHostAddress() ,  // Server IP
-                                  socket.getPort() ,                          // Server port
-                                  true );                                     // Auto-close flag
+        // Wrap the existing socket in a SSL socket, and do TLS handshaking
+        // The SSL context is shared by all connections to this server,
+        //  so a re-connection can resume the previous TLS session
+        TlsSessions tlsSessions = TlsSessions.forServer( jid.getServerName() , 
+                                                         jid.getServerPort() );
+        long startMillis = System.currentTimeMillis();
+        SSLSocket sslSocket = tlsSessions.startTls( socket );
         socket = sslSocket;
+        boolean resumed = TlsSessions.isResumed( sslSocket.getSession() , startMillis );
+        phases.phaseDone( ConnectionPhases.TLS_HANDSHAKE );
+        phases.setTlsResumed( resumed );
 
         // Tell the OS to keep this connection alive
         // Students will in addition do application-level keep-alive
@@ -450,9 +607,6 @@ class XmppConnection {
         //  and exception.
         initSocketStreams();
 
-        // Do TLS handshaking
-        sslSocket.startHandshake();
-
         // We are now a secure connection
         isSecureConnection = true;
 
@@ -461,40 +615,30 @@ class XmppConnection {
         //  2. Re-init the XML parser
         // This is done after this method returns
 
-        // DEBUG
-        System.out.println( "Upgraded to TLS" );
+        EventLog.log( "Upgraded to TLS (" , resumed ? "resumed" : "new" , " session)" );
     }
 
     /** Authenticate the user. */
     private void authenticate() 
         throws IOException {
 
-        // DEBUG
-        System.out.print( "Authentication Mechanisms supported: " );
-        for ( String mechanism : mechanismList ) {
-            System.out.print( mechanism + ", " );
-        }
-        System.out.println();
+        EventLog.log( "Authentication Mechanisms supported: " , mechanismList );
 
         // Ref: http://docs.oracle.com/javase/1.5.0/docs/guide/security/sasl/sasl-refguide.html
 
-        // Create an array of mechanisms supported by the server
+        // Pick one of the mechanisms supported by the server
         //  At this point of time, Google supports PLAIN and Facebook supports DIGEST-MD5
+        //  SCRAM is preferred when offered, and the one that worked last time comes first
         // Note: PLAIN Password is still secure, since both Google and Facebook support TLS
-        String[] mechanismArray = mechanismList.toArray( new String[0] );
-        // Map of authentication properties we require (empty for this program)
-        Map <String , String> authProperties = new HashMap <String , String>();
         // Create a SASL mechanism callback handler
         CallbackHandler handler = new JabberCallbackHandler();
 
         // Create an SASL client
-        sc = 
-            Sasl.createSaslClient( mechanismArray ,        // Mechanisms supported by server
-                                   jid.getJabberID() ,     // Jabber ID
-                                   "xmpp" ,                // Application Protocol
-                                   jid.getServerName() ,   // Server name
-                                   authProperties ,        // Auth Properties required
-                                   handler );              // Callback handler (for password)
+        sc = SaslMechanisms.createSaslClient( mechanismList , jid , handler );
+        if ( sc == null ) {
+            throw new IOException( "No supported SASL mechanism in " + mechanismList );
+        }
+        authStart = System.nanoTime();
 
         // Send first response (null if not required)
         byte[] response = null;
@@ -510,13 +654,12 @@ class XmppConnection {
         // Flush to make sure the data is sent
         writer.flush();
 
-        // DEBUG
-        System.out.println( "Sent client's authentication tag" );
+        EventLog.log( "Sent client's authentication tag" );
     }
 
-    /** Creates the Authentication stanza. */
-    private String createAuthenticationStanza( String authName , 
-                                               byte[] response ) {
+    /** Creates the Authentication stanza (package-private for the benchmarks). */
+    static String createAuthenticationStanza( String authName , 
+                                              byte[] response ) {
 
         // Use a StringBuilder since it is much more 
         //  efficient than string concatenation
@@ -539,8 +682,7 @@ class XmppConnection {
     private void respondToChallenge() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's challenge tag" );
+        EventLog.log( "Handling server's challenge tag" );
 
         // Get the challenge string and de-code using Base64
         String challengeString = parser.getElementText();
@@ -555,12 +697,11 @@ class XmppConnection {
         // Flush to make sure the data is sent
         writer.flush();
 
-        // DEBUG
-        System.out.println( "Sent client's response tag" );
+        EventLog.log( "Sent client's response tag" );
     }
 
-    /** Creates the Response stanza. */
-    private String createResponseStanza( byte[] response ) {
+    /** Creates the Response stanza (package-private for the benchmarks). */
+    static String createResponseStanza( byte[] response ) {
 
         // Use a StringBuilder since it is much more 
         //  efficient than string concatenation
@@ -579,10 +720,23 @@ class XmppConnection {
     }
 
     /** Handles Authentication success tag. */
-    private void handleSuccessTag() {
+    private void handleSuccessTag() 
+        throws IOException , XMLStreamException {
+
+        EventLog.log( "Handling server's success tag" );
+
+        // The success tag may carry the mechanism's last data
+        //  (for SCRAM: the server's signature, which we must check)
+        String successString = parser.getElementText().trim();
+        if ( ! sc.isComplete() ) {
+            sc.evaluateChallenge( Base64.decodeBase64( successString ) );
+        }
+        SaslMechanisms.succeeded( jid , sc , authStart );
 
-        // DEBUG
-        System.out.println( "Handling server's success tag" );
+        if ( EventLog.isEnabled() ) {
+            EventLog.log( "Authenticated with " + sc.getMechanismName() + " in " + 
+                          ( System.nanoTime() - authStart ) / 1000000L + " ms" );
+        }
 
         // User is now authenticated
         isUserAuthenticated = true;
@@ -600,8 +754,7 @@ class XmppConnection {
     private void handleFailureTag() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's failure tag" );
+        EventLog.log( "Handling server's failure tag" );
 
         // Check the namespace to see whether it is TLS or SASL failure
         // Note: These are not really IOExceptions, we should actually
@@ -611,6 +764,8 @@ class XmppConnection {
             throw new IOException( "Server sent Failure stanza: Unknown reason" );
         }
         else if ( namespace.equals( "urn:ietf:params:xml:ns:xmpp-sasl" ) ) {
+            // Don't insist on this mechanism or its cached keys next time
+            SaslMechanisms.failed( jid );
             throw new IOException( "Server sent Failure stanza: Authentication failure" );
         }
         else if ( namespace.equals( "urn:ietf:params:xml:ns:xmpp-tls" ) ) {
@@ -662,8 +817,7 @@ class XmppConnection {
         // Flush to make sure the data is sent
         writer.flush();
 
-        // DEBUG
-        System.out.println( "Sent client's resource ID request" );
+        EventLog.log( "Sent client's resource ID request" );
     }
 
     /** Creates the Resource query stanza. */
@@ -682,8 +836,7 @@ class XmppConnection {
     private void handleIQTag() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's IQ tag" );
+        EventLog.log( "Handling server's IQ tag" );
 
         // Flag to indicate that we have finished parsing the 
         //  IQ tag
@@ -721,8 +874,7 @@ class XmppConnection {
     private void handleIQBindTag() 
         throws IOException , XMLStreamException {
 
-        // DEBUG
-        System.out.println( "Handling server's IQ Bind tag" );
+        EventLog.log( "Handling server's IQ Bind tag" );
 
         // Flag to indicate that we have finished parsing the 
         //  IQ Bind tag
@@ -747,8 +899,7 @@ class XmppConnection {
                     }
                     jid.setResource( split[1] );
 
-                    // DEBUG
-                    System.out.println( "Obtained Resource ID: " + jid.getJabberID() + "/" + jid.getResource() );
+                    EventLog.log( "Obtained Resource ID: " , jid.getJabberID() , "/" , jid.getResource() );
                 }
             }
             else if ( eventType == XMLStreamConstants.END_ELEMENT ) {
@@ -768,8 +919,16 @@ class XmppConnection {
     private BufferedReader reader;
     /** Socket writer. */
     private BufferedWriter writer;
+    /** Socket input stream, counting the bytes (under the reader). */
+    private InputStream inputStream;
+    /** Socket output stream, counting the bytes (under the writer). */
+    private OutputStream outputStream;
     /** XML Pull-parser. */
     private XMLStreamReader parser;
+    /** Stanza reader using the push parser (when asked for). */
+    private XmlStanzaReader stanzaReader;
+    /** Indicates whether to use the push parser instead of the pull-parser. */
+    private final boolean usePushParser = "push".equals( System.getProperty( "jabber.parser" ) );
 
     /** Stream ID. */
     private String streamID;
@@ -780,12 +939,25 @@ class XmppConnection {
     private boolean isUserAuthenticated = false;
     /** Indicates whether the resource is bound. */
     private boolean isResourceBound = false;
+    /** Indicates whether the previous session was resumed. */
+    private boolean isResumed = false;
+    /** Indicates whether the server supports roster versioning. */
+    private boolean isRosterVersioningSupported = false;
+    /** Stream management state (kept across connections, may be null). */
+    private final StreamManagement streamManagement;
 
     /** List of supported SASL authentication mechanisms. */
     private List <String> mechanismList = 
         new ArrayList <String>();
     /** SASL Client. */
     private SaslClient sc;
+    /** When the authentication stanza was sent (System.nanoTime()). */
+    private long authStart;
+
+    /** Phase times of the connection setup. */
+    private ConnectionPhases phases;
+    /** Bytes and stanzas received, handler times (kept across connections). */
+    private final AccountMetrics metrics;
 
     /** Connection-establishment timeout (millisec). */
     private final int connectionTimeout = 5000;
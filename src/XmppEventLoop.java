@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   Event loop that multiplexes many XMPP connections over a few threads.
+
+   <p> Each loop thread owns a {@link Selector} and all the
+   {@link XmppNioSession}s assigned to it: the connect, TLS, SASL and
+   bind steps and all reads and writes of a session happen on that one
+   thread, so sessions need no locking. New sessions are spread over
+   the threads round-robin.
+
+   <p> Steps to use this class:
+   <ol>
+    <li> Create it with the number of threads, and {@link #start()} it. </li>
+    <li> {@link #connect(JabberID, XmppNioSession.Listener)} each account. </li>
+    <li> {@link #close()} it when done. </li>
+   </ol>
+ */
+class XmppEventLoop {
+
+    /** Constructor (doesn't start the threads). */
+    public XmppEventLoop( int numThreads )
+        throws IOException {
+
+        workers = new Worker[ numThreads ];
+        for ( int i = 0 ; i < numThreads ; ++i ) {
+            workers[i] = new Worker( this , "XmppEventLoop-" + i );
+        }
+    }
+
+    /** Starts the loop threads. */
+    public void start() {
+        for ( Worker worker : workers ) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+       Starts connecting an account. The listener is told when the
+       session is ready (or has failed).
+     */
+    public XmppNioSession connect( JabberID jid , XmppNioSession.Listener listener ) {
+
+        Worker worker = workers[ Math.abs( nextWorker.getAndIncrement() % workers.length ) ];
+        XmppNioSession session = new XmppNioSession( jid , worker , listener );
+        session.open();
+        return session;
+    }
+
+    /** Stops the loop threads and closes all sessions. */
+    public void close()
+        throws InterruptedException {
+
+        for ( Worker worker : workers ) {
+            worker.running = false;
+            worker.selector.wakeup();
+        }
+        for ( Worker worker : workers ) {
+            worker.thread.join();
+        }
+    }
+
+    /** Gets the number of loop threads. */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /** Gets the number of sessions whose resource is bound. */
+    public int getReadySessionCount() {
+        return readySessions.get();
+    }
+
+    /** Called by the sessions when they become ready or stop being ready. */
+    void sessionReady( boolean ready ) {
+        if ( ready ) {
+            readySessions.incrementAndGet();
+        }
+        else {
+            readySessions.decrementAndGet();
+        }
+    }
+
+    /**
+       One loop thread, with its selector, its pending tasks and timers.
+       Sessions use it to run code on the loop thread.
+     */
+    static class Worker
+        implements Runnable {
+
+        /** Constructor. */
+        Worker( XmppEventLoop loop , String name )
+            throws IOException {
+
+            this.loop = loop;
+            this.selector = Selector.open();
+            this.thread = new Thread( this , name );
+            this.thread.setDaemon( true );
+        }
+
+        /** Gets the event loop this thread belongs to. */
+        XmppEventLoop getLoop() {
+            return loop;
+        }
+
+        /** Gets the selector. */
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+           Gets a buffer the loop thread can use for decrypted data.
+           Its contents are only valid until the session returns.
+         */
+        ByteBuffer getScratchBuffer() {
+            return scratch;
+        }
+
+        /** Runs a task on the loop thread (can be called from any thread). */
+        void execute( Runnable task ) {
+            tasks.add( task );
+            if ( Thread.currentThread() != thread ) {
+                selector.wakeup();
+            }
+        }
+
+        /** Runs a task on the loop thread after a delay (loop thread only). */
+        void schedule( Runnable task , long delayMillis ) {
+            timers.add( new Timer( System.nanoTime() + delayMillis * 1000000L , task ) );
+        }
+
+        /** The loop. */
+        @Override
+        public void run() {
+
+            while ( running ) {
+                try {
+                    long timeout = runTimers();
+                    if ( tasks.isEmpty() ) {
+                        selector.select( timeout );
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+
+                    Runnable task;
+                    while ( ( task = tasks.poll() ) != null ) {
+                        task.run();
+                    }
+
+                    Iterator <SelectionKey> keys = selector.selectedKeys().iterator();
+                    while ( keys.hasNext() ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ( (XmppNioSession) key.attachment() ).handleKey( key );
+                    }
+                }
+                catch ( Exception e ) {
+                    // Sessions handle their own errors; this is a bug, keep looping
+                    System.err.println( "Unexpected error in event loop" );
+                    e.printStackTrace();
+                }
+            }
+
+            // Close every session still registered (here: their close() would
+            // only queue a task for this loop, which has stopped)
+            for ( SelectionKey key : selector.keys().toArray( new SelectionKey[0] ) ) {
+                ( (XmppNioSession) key.attachment() ).closeNow();
+            }
+            try {
+                selector.close();
+            }
+            catch ( IOException e ) {
+                // Ignore
+            }
+        }
+
+        /** Runs due timers, returns the millisec until the next one (0 if none). */
+        private long runTimers() {
+
+            while ( ! timers.isEmpty() ) {
+                long wait = timers.peek().due - System.nanoTime();
+                if ( wait > 0 ) {
+                    return Math.max( 1 , wait / 1000000L );
+                }
+                timers.poll().task.run();
+            }
+            return 0;
+        }
+
+        /** A task to run at a given (System.nanoTime) time. */
+        private static class Timer
+            implements Comparable <Timer> {
+
+            Timer( long due , Runnable task ) {
+                this.due = due;
+                this.task = task;
+            }
+
+            public int compareTo( Timer other ) {
+                return ( due < other.due ) ? -1 : ( ( due == other.due ) ? 0 : 1 );
+            }
+
+            final long due;
+            final Runnable task;
+        }
+
+        /** The event loop. */
+        private final XmppEventLoop loop;
+        /** Selector for this thread's sessions. */
+        private final Selector selector;
+        /** The loop thread. */
+        private final Thread thread;
+        /** Tasks submitted from any thread. */
+        private final Queue <Runnable> tasks = new ConcurrentLinkedQueue <Runnable>();
+        /** Timers (loop thread only). */
+        private final PriorityQueue <Timer> timers = new PriorityQueue <Timer>();
+        /** Shared buffer for decrypted data (loop thread only). */
+        private final ByteBuffer scratch = ByteBuffer.allocate( 32 * 1024 );
+        /** Cleared to stop the loop. */
+        private volatile boolean running = true;
+    }
+
+    /** Loop threads. */
+    private final Worker[] workers;
+    /** Round-robin counter for assigning sessions to threads. */
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    /** Number of sessions whose resource is bound. */
+    private final AtomicInteger readySessions = new AtomicInteger();
+}
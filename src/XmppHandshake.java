@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.SaslClient;
+
+// Apache commons codec library
+import org.apache.commons.codec.binary.Base64;
+
+/**
+   The XMPP connection setup state machine, driven by complete stanzas.
+
+   <p> This is the same sequence as
+   <code>XmppConnection.handleServerStream()</code> (stream tag,
+   features, STARTTLS, SASL, resource binding), but it doesn't read
+   from the socket itself. Whoever owns the connection feeds it the
+   stanzas received with {@link #handleStanza(XmlElement, Output)},
+   and acts on the returned value: upgrade to TLS, restart the stream,
+   or start using the (now bound) connection. This lets the setup run
+   on an event loop without blocking a thread per connection.
+
+   <p> Given a {@link StreamManagement}, and if the server supports
+   it, the handshake resumes the previous session instead of binding
+   a resource (result {@link #RESUMED}), or enables stream management
+   right after binding.
+ */
+class XmppHandshake {
+
+    /** Where the handshake sends its stanzas. */
+    public interface Output {
+
+        /** Sends raw XML to the server. */
+        void send( String xml )
+            throws IOException;
+    }
+
+    /** Result: nothing to do, wait for the next stanza. */
+    public static final int CONTINUE = 0;
+    /** Result: upgrade to TLS, then call {@link #tlsEstablished()} and restart the stream. */
+    public static final int START_TLS = 1;
+    /** Result: reset the parser and re-send the stream tag. */
+    public static final int RESTART_STREAM = 2;
+    /** Result: the resource is bound, the connection is ready. */
+    public static final int BOUND = 3;
+    /** Result: the previous session was resumed (no resource binding), the connection is ready. */
+    public static final int RESUMED = 4;
+
+    /** Constructor. */
+    public XmppHandshake( JabberID jid ) {
+        this( jid , null );
+    }
+
+    /** Constructor, with stream management (XEP-0198) state kept across connections. */
+    public XmppHandshake( JabberID jid , StreamManagement streamManagement ) {
+        this.jid = jid;
+        this.streamManagement = streamManagement;
+        if ( streamManagement != null ) {
+            // Counted again only if enabled or resumed on this connection
+            streamManagement.handshakeStarted();
+        }
+    }
+
+    /** Creates the opening stream tag (sent at start and on every restart). */
+    public String createStreamStanza() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( "<stream:stream" );
+        sb.append( " from=\"" ).append( jid.getJabberID() ).append( "\"" );
+        sb.append( " to=\"" ).append( jid.getDomain() ).append( "\"" );
+        sb.append( " version=\"1.0\"" );
+        sb.append( " xml:lang=\"en\"" );
+        sb.append( " xmlns=\"jabber:client\"" );
+        sb.append( " xmlns:stream=\"http://etherx.jabber.org/streams\">" );
+        return sb.toString();
+    }
+
+    /** Handles the server's stream tag. */
+    public void streamOpened( XmlElement header ) {
+
+        // The ID may not be present if the stream tag is being re-sent
+        String id = header.getAttribute( "id" );
+        if ( id != null ) {
+            streamID = id;
+        }
+    }
+
+    /** Called once the TLS handshake has completed. */
+    public void tlsEstablished() {
+        isSecureConnection = true;
+    }
+
+    /**
+       Handles one stanza received during connection setup.
+       @return one of {@link #CONTINUE}, {@link #START_TLS},
+               {@link #RESTART_STREAM}, {@link #BOUND} or {@link #RESUMED}
+     */
+    public int handleStanza( XmlElement stanza , Output out )
+        throws IOException {
+
+        String name = stanza.getName();
+
+        if ( name.equals( "features" ) ) {
+            handleFeatures( stanza , out );
+        }
+        else if ( name.equals( "proceed" ) ) {
+            return START_TLS;
+        }
+        else if ( name.equals( "challenge" ) ) {
+            byte[] response = sc.evaluateChallenge( Base64.decodeBase64( stanza.getText() ) );
+            out.send( createSaslStanza( "response" , null , response ) );
+        }
+        else if ( name.equals( "success" ) ) {
+            // May carry the mechanism's last data (SCRAM: the server signature to check)
+            if ( ! sc.isComplete() ) {
+                sc.evaluateChallenge( Base64.decodeBase64( stanza.getText().trim() ) );
+            }
+            SaslMechanisms.succeeded( jid , sc , authStart );
+            isUserAuthenticated = true;
+            sc = null;
+            return RESTART_STREAM;
+        }
+        else if ( name.equals( "failure" ) ) {
+            String namespace = stanza.getNamespace();
+            if ( namespace.equals( SASL_NAMESPACE ) ) {
+                SaslMechanisms.failed( jid );
+                throw new IOException( "Server sent Failure stanza: Authentication failure" );
+            }
+            else if ( namespace.equals( TLS_NAMESPACE ) ) {
+                throw new IOException( "Server sent Failure stanza: Unable to upgrade to TLS" );
+            }
+            throw new IOException( "Server sent Failure stanza: Namespace: " + namespace );
+        }
+        else if ( name.equals( "resumed" ) && isStreamManagement( stanza ) ) {
+            streamManagement.resumed( StreamManagement.parseCount( stanza.getAttribute( "h" ) ) );
+            return RESUMED;
+        }
+        else if ( name.equals( "failed" ) && isStreamManagement( stanza ) ) {
+            // The session is gone, start a new one
+            streamManagement.resumeFailed();
+            sendBind( out );
+        }
+        else if ( name.equals( "iq" ) ) {
+            return handleBindResult( stanza , out );
+        }
+        return CONTINUE;
+    }
+
+    /** Gets the Stream ID. */
+    public String getStreamID() {
+        return streamID;
+    }
+
+    /** Indicates whether the server offered roster versioning (XEP-0237). */
+    public boolean isRosterVersioningOffered() {
+        return isRosterVersioningOffered;
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Handles the features stanza: STARTTLS, then SASL, then bind. */
+    private void handleFeatures( XmlElement features , Output out )
+        throws IOException {
+
+        boolean hasStarttls = features.getChild( "starttls" ) != null;
+        boolean hasBind = features.getChild( "bind" ) != null;
+        XmlElement sm = features.getChild( "sm" );
+        if ( sm != null && StreamManagement.NAMESPACE.equals( sm.getNamespace() ) ) {
+            isStreamManagementOffered = true;
+        }
+        XmlElement ver = features.getChild( "ver" );
+        if ( ver != null && RosterStore.VERSIONING_NAMESPACE.equals( ver.getNamespace() ) ) {
+            isRosterVersioningOffered = true;
+        }
+
+        XmlElement mechanisms = features.getChild( "mechanisms" );
+        if ( mechanisms != null ) {
+            mechanismList.clear();
+            for ( XmlElement mechanism : mechanisms.getChildren() ) {
+                mechanismList.add( mechanism.getText() );
+            }
+        }
+
+        if ( hasStarttls && ! isSecureConnection ) {
+            out.send( "<starttls xmlns=\"" + TLS_NAMESPACE + "\"/>" );
+        }
+        else if ( ! isUserAuthenticated ) {
+            authenticate( out );
+        }
+        else if ( hasBind && canUseStreamManagement() && streamManagement.canResume() ) {
+            out.send( streamManagement.createResumeElement() );
+        }
+        else if ( hasBind ) {
+            sendBind( out );
+        }
+    }
+
+    /** Sends the resource bind request. */
+    private void sendBind( Output out )
+        throws IOException {
+
+        out.send( "<iq id=\"" + streamID + "\" type=\"set\">" +
+                  " <bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>" +
+                  "</iq>" );
+    }
+
+    /** Indicates whether an element is a stream management one (and it is used). */
+    private boolean isStreamManagement( XmlElement element ) {
+        return streamManagement != null && StreamManagement.NAMESPACE.equals( element.getNamespace() );
+    }
+
+    /** Indicates whether stream management is wanted and supported by the server. */
+    private boolean canUseStreamManagement() {
+        return streamManagement != null && isStreamManagementOffered;
+    }
+
+    /** Starts SASL authentication with a mechanism the server supports. */
+    private void authenticate( Output out )
+        throws IOException {
+
+        sc = SaslMechanisms.createSaslClient( mechanismList , jid , new JabberCallbackHandler() );
+        if ( sc == null ) {
+            throw new IOException( "No supported SASL mechanism in " + mechanismList );
+        }
+
+        byte[] response = null;
+        if ( sc.hasInitialResponse() ) {
+            response = sc.evaluateChallenge( new byte[0] );
+        }
+        authStart = System.nanoTime();
+        out.send( createSaslStanza( "auth" , sc.getMechanismName() , response ) );
+    }
+
+    /** Creates an auth or response stanza, with the Base64 encoded data. */
+    private String createSaslStanza( String tag , String mechanism , byte[] data ) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( '<' ).append( tag ).append( " xmlns=\"" ).append( SASL_NAMESPACE ).append( '"' );
+        if ( mechanism != null ) {
+            sb.append( " mechanism=\"" ).append( mechanism ).append( '"' );
+        }
+        sb.append( '>' );
+        if ( data != null ) {
+            sb.append( Base64.encodeBase64String( data ) );
+        }
+        sb.append( "</" ).append( tag ).append( '>' );
+        return sb.toString();
+    }
+
+    /** Handles the resource bind result. */
+    private int handleBindResult( XmlElement iq , Output out )
+        throws IOException {
+
+        if ( iq.getChild( "error" ) != null ) {
+            throw new IOException( "Resource bind error" );
+        }
+
+        XmlElement bind = iq.getChild( "bind" );
+        XmlElement fullJid = ( bind == null ) ? null : bind.getChild( "jid" );
+        if ( fullJid == null ) {
+            return CONTINUE;
+        }
+
+        String[] split = fullJid.getText().split( "/" );
+        if ( split.length != 2 ) {
+            throw new IOException( "Ill-formatted JID sent by server: " + fullJid.getText() );
+        }
+        jid.setResource( split[1] );
+
+        if ( canUseStreamManagement() ) {
+            out.send( streamManagement.createEnableElement() );
+            streamManagement.enableSent();
+        }
+        return BOUND;
+    }
+
+    /** Handles callbacks (such as password) from SASL mechanisms. */
+    private class JabberCallbackHandler
+        implements CallbackHandler {
+
+        /** Handle all SASL Mechanism callbacks. */
+        public void handle( Callback[] callbacks )
+            throws IOException , UnsupportedCallbackException {
+
+            for ( Callback callback : callbacks ) {
+                if ( callback instanceof NameCallback ) {
+                    ( (NameCallback) callback ).setName( jid.getJabberID() );
+                }
+                else if ( callback instanceof PasswordCallback ) {
+                    ( (PasswordCallback) callback ).setPassword( jid.getPassword().toCharArray() );
+                }
+                else {
+                    throw new UnsupportedCallbackException( callback );
+                }
+            }
+        }
+    }
+
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String TLS_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-tls";
+
+    /** Jabber ID. */
+    private final JabberID jid;
+    /** Stream ID. */
+    private String streamID;
+    /** Indicates whether the connection is secure. */
+    private boolean isSecureConnection = false;
+    /** Indicates whether the user is authenticated. */
+    private boolean isUserAuthenticated = false;
+    /** List of supported SASL authentication mechanisms. */
+    private final List <String> mechanismList = new ArrayList <String>();
+    /** SASL Client. */
+    private SaslClient sc;
+    /** Stream management state (null if not used). */
+    private final StreamManagement streamManagement;
+    /** Indicates whether the server offered stream management. */
+    private boolean isStreamManagementOffered = false;
+    /** Indicates whether the server offered roster versioning. */
+    private boolean isRosterVersioningOffered = false;
+    /** When the auth stanza was sent (System.nanoTime()). */
+    private long authStart;
+}
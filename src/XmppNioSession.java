@@ -0,0 +1,479 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+   One account's XMPP connection, driven by an {@link XmppEventLoop}.
+
+   <p> This is the non-blocking counterpart of {@link XmppConnection}
+   plus {@link XmppSenderReceiver}: it connects, runs the
+   {@link XmppHandshake} (TLS is done with an {@link SSLEngine}),
+   and then hands every received stanza to its {@link Listener}.
+   Everything except {@link #send(String)} and {@link #close()} runs
+   on the session's loop thread.
+ */
+class XmppNioSession
+    implements XmlStanzaBuilder.Listener {
+
+    /** Receives the session's events (called on the loop thread). */
+    public interface Listener {
+
+        /** Called when the resource is bound and stanzas can be sent. */
+        void connected( XmppNioSession session );
+
+        /** Called for every stanza received after the resource is bound. */
+        void stanzaReceived( XmppNioSession session , XmlElement stanza );
+
+        /** Called when the connection is lost or couldn't be set up. */
+        void disconnected( XmppNioSession session , IOException cause );
+    }
+
+    /** Constructor (use {@link XmppEventLoop#connect}). */
+    XmppNioSession( JabberID jid , XmppEventLoop.Worker worker , Listener listener ) {
+        this.jid = jid;
+        this.worker = worker;
+        this.listener = listener;
+    }
+
+    /** Gets the jabber ID. */
+    public JabberID getJabberID() {
+        return jid;
+    }
+
+    /** Indicates whether the resource is bound and stanzas are being exchanged. */
+    public boolean isReady() {
+        return state == STATE_READY;
+    }
+
+    /** Gets the number of failed connection attempts since the session was last ready. */
+    public int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+       Queues a stanza for sending (can be called from any thread).
+       Stanzas queued before the session is ready are sent once it is.
+     */
+    public void send( String stanza ) {
+        pending.add( stanza );
+        if ( flushScheduled.compareAndSet( false , true ) ) {
+            worker.execute( flushTask );
+        }
+    }
+
+    /** Closes the connection (can be called from any thread). */
+    public void close() {
+        worker.execute( new Runnable() {
+            public void run() {
+                shutdown( null , false );
+            }
+        } );
+    }
+
+    /** Opens the connection again after the given delay (loop thread only). */
+    public void reconnect( long delayMillis ) {
+        worker.schedule( new Runnable() {
+            public void run() {
+                if ( state == STATE_CLOSED ) {
+                    open();
+                }
+            }
+        } , delayMillis );
+    }
+
+    /* ***  PACKAGE-PRIVATE: CALLED BY THE EVENT LOOP  *** */
+
+    /** Starts connecting (from any thread). */
+    void open() {
+        worker.execute( new Runnable() {
+            public void run() {
+                startConnect();
+            }
+        } );
+    }
+
+    /** Closes the connection now, without telling the listener (loop thread only). */
+    void closeNow() {
+        shutdown( null , false );
+    }
+
+    /** Handles a selected key. */
+    void handleKey( SelectionKey key ) {
+        try {
+            if ( key.isConnectable() ) {
+                finishConnect();
+            }
+            if ( key.isValid() && key.isReadable() ) {
+                readAvailable();
+            }
+            if ( key.isValid() && key.isWritable() ) {
+                flushOutput();
+            }
+        }
+        catch ( IOException e ) {
+            shutdown( e , true );
+        }
+        catch ( RuntimeException e ) {
+            // E.g. certificate problems surface from the TLS engine's tasks
+            shutdown( new IOException( "Unexpected error: " + e.getMessage() , e ) , true );
+        }
+    }
+
+    /* ***  XmlStanzaBuilder.Listener  *** */
+
+    /** {@inheritDoc} */
+    public void streamOpened( XmlElement header ) {
+        handshake.streamOpened( header );
+    }
+
+    /** {@inheritDoc} */
+    public void stanzaReceived( XmlElement stanza )
+        throws IOException {
+
+        if ( state == STATE_READY ) {
+            listener.stanzaReceived( this , stanza );
+            return;
+        }
+
+        switch ( handshake.handleStanza( stanza , handshakeOutput ) ) {
+            case XmppHandshake.START_TLS:
+                startTls();
+                break;
+            case XmppHandshake.RESTART_STREAM:
+                restartStream();
+                break;
+            case XmppHandshake.BOUND:
+                state = STATE_READY;
+                failedAttempts = 0;
+                worker.getLoop().sessionReady( true );
+                listener.connected( this );
+                flushPending();
+                scheduleKeepAlive();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void streamClosed()
+        throws IOException {
+        throw new IOException( "Server closed the stream" );
+    }
+
+    /* ***  PRIVATE IMPLEMENTATION DETAILS  *** */
+
+    /** Opens the socket channel and starts connecting. */
+    private void startConnect() {
+        try {
+            state = STATE_CONNECTING;
+            handshake = new XmppHandshake( jid );
+            parser = new XmlPushParser( new XmlStanzaBuilder( this ) );
+            plainIn = ByteBuffer.allocate( PLAIN_BUFFER_SIZE );
+            plainOut = ByteBuffer.allocate( PLAIN_BUFFER_SIZE );
+            tls = null;
+            tlsEstablished = false;
+
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.setOption( StandardSocketOptions.TCP_NODELAY , true );
+            channel.setOption( StandardSocketOptions.SO_KEEPALIVE , true );
+            key = channel.register( worker.getSelector() , SelectionKey.OP_CONNECT , this );
+            if ( channel.connect( new InetSocketAddress( jid.getServerName() , jid.getServerPort() ) ) ) {
+                finishConnect();
+            }
+
+            // Give up if the connection doesn't complete in time
+            final SocketChannel connecting = channel;
+            worker.schedule( new Runnable() {
+                public void run() {
+                    if ( channel == connecting && state == STATE_CONNECTING ) {
+                        shutdown( new IOException( "Connection timed out" ) , true );
+                    }
+                }
+            } , CONNECTION_TIMEOUT );
+        }
+        catch ( IOException e ) {
+            shutdown( e , true );
+        }
+    }
+
+    /** Completes the TCP connection and opens the XML stream. */
+    private void finishConnect()
+        throws IOException {
+
+        if ( ! channel.finishConnect() ) {
+            return;
+        }
+        state = STATE_HANDSHAKE;
+        key.interestOps( SelectionKey.OP_READ );
+        write( handshake.createStreamStanza() );
+        flushOutput();
+
+        // Give up if the TLS, SASL and bind steps don't complete in time
+        final SocketChannel current = channel;
+        worker.schedule( new Runnable() {
+            public void run() {
+                if ( channel == current && state == STATE_HANDSHAKE ) {
+                    shutdown( new IOException( "Handshake timed out" ) , true );
+                }
+            }
+        } , HANDSHAKE_TIMEOUT );
+    }
+
+    /** Reads what the socket has and feeds it to the parser. */
+    private void readAvailable()
+        throws IOException {
+
+        if ( tls == null ) {
+            int n = channel.read( plainIn );
+            if ( n < 0 ) {
+                throw new IOException( "Connection closed by server" );
+            }
+            plainIn.flip();
+            parser.feed( plainIn );
+            // (gone if the stanzas just parsed made us start TLS)
+            if ( plainIn != null ) {
+                plainIn.clear();
+            }
+        }
+        else {
+            if ( channel.read( tls.getNetIn() ) < 0 ) {
+                throw new IOException( "Connection closed by server" );
+            }
+            ByteBuffer appIn = worker.getScratchBuffer();
+            boolean more;
+            do {
+                appIn.clear();
+                more = tls.unwrap( appIn );
+                appIn.flip();
+                if ( appIn.hasRemaining() ) {
+                    parser.feed( appIn );
+                }
+            }
+            while ( more );
+
+            if ( tls.isInboundDone() ) {
+                throw new IOException( "TLS session closed by server" );
+            }
+            if ( ! tlsEstablished && tls.isHandshakeComplete() ) {
+                tlsEstablished = true;
+                tlsSessions.handshakeCompleted( tls.getEngine().getSession() , tlsStart , tlsStartMillis );
+                handshake.tlsEstablished();
+                restartStream();
+            }
+        }
+
+        // Handshake replies, TLS handshake messages, ...
+        flushOutput();
+    }
+
+    /** Upgrades the connection to TLS (after the server's proceed tag). */
+    private void startTls()
+        throws IOException {
+
+        // Shared with the other connections to this server, so sessions get resumed
+        tlsSessions = TlsSessions.forServer( jid.getServerName() , jid.getServerPort() );
+        SSLEngine engine = tlsSessions.createEngine();
+
+        // The plain buffers aren't needed anymore
+        plainIn = null;
+        plainOut = null;
+
+        tls = new TlsCodec( engine );
+        tlsStart = System.nanoTime();
+        tlsStartMillis = System.currentTimeMillis();
+        tls.beginHandshake();
+    }
+
+    /** Restarts the XML stream (after TLS or SASL). */
+    private void restartStream()
+        throws IOException {
+
+        parser.reset();
+        write( handshake.createStreamStanza() );
+    }
+
+    /** Encodes (and encrypts) XML into the outgoing buffer. */
+    private void write( String xml )
+        throws IOException {
+
+        byte[] bytes = xml.getBytes( UTF8 );
+        if ( tls != null ) {
+            tls.wrap( ByteBuffer.wrap( bytes ) );
+        }
+        else {
+            if ( plainOut.remaining() < bytes.length ) {
+                plainOut = TlsCodec.grow( plainOut , bytes.length );
+            }
+            plainOut.put( bytes );
+        }
+    }
+
+    /** Writes as much of the outgoing buffer as the socket takes. */
+    private void flushOutput()
+        throws IOException {
+
+        ByteBuffer out = ( tls != null ) ? tls.getNetOut() : plainOut;
+        out.flip();
+        try {
+            channel.write( out );
+        }
+        finally {
+            out.compact();
+        }
+
+        // Ask to be told when the socket can take the rest
+        int ops = ( out.position() > 0 ) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                         : SelectionKey.OP_READ;
+        if ( key.interestOps() != ops ) {
+            key.interestOps( ops );
+        }
+    }
+
+    /** Sends the stanzas queued by {@link #send(String)}. */
+    private void flushPending() {
+
+        flushScheduled.set( false );
+        if ( state != STATE_READY ) {
+            return;
+        }
+        try {
+            String stanza;
+            while ( ( stanza = pending.poll() ) != null ) {
+                write( stanza );
+            }
+            flushOutput();
+        }
+        catch ( IOException e ) {
+            shutdown( e , true );
+        }
+    }
+
+    /** Sends a white-space keep-alive every now and then. */
+    private void scheduleKeepAlive() {
+        final SocketChannel current = channel;
+        worker.schedule( new Runnable() {
+            public void run() {
+                if ( channel == current && state == STATE_READY ) {
+                    send( " " );
+                    scheduleKeepAlive();
+                }
+            }
+        } , KEEP_ALIVE_INTERVAL );
+    }
+
+    /** Closes the channel and tells the listener (if asked to). */
+    private void shutdown( IOException cause , boolean notify ) {
+
+        if ( state == STATE_CLOSED ) {
+            return;
+        }
+        if ( state == STATE_READY ) {
+            worker.getLoop().sessionReady( false );
+        }
+        else {
+            ++failedAttempts;
+        }
+        state = STATE_CLOSED;
+
+        try {
+            if ( key != null ) {
+                key.cancel();
+            }
+            if ( channel != null ) {
+                channel.close();
+            }
+        }
+        catch ( IOException e ) {
+            // Ignore
+        }
+        finally {
+            key = null;
+            channel = null;
+            parser = null;
+            handshake = null;
+            tls = null;
+            plainIn = null;
+            plainOut = null;
+        }
+
+        if ( notify ) {
+            listener.disconnected( this , cause );
+        }
+    }
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_HANDSHAKE = 2;
+    private static final int STATE_READY = 3;
+
+    /** Size of the buffers used before TLS. */
+    private static final int PLAIN_BUFFER_SIZE = 4096;
+    /** Connection-establishment timeout (millisec). */
+    private static final long CONNECTION_TIMEOUT = 5000;
+    /** Timeout of the TLS, SASL and bind steps, once connected (millisec). */
+    private static final long HANDSHAKE_TIMEOUT = 30000;
+    /** White-space keep-alive interval (millisec). */
+    private static final long KEEP_ALIVE_INTERVAL = 30000;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /** Jabber ID. */
+    private final JabberID jid;
+    /** Loop thread owning this session. */
+    private final XmppEventLoop.Worker worker;
+    /** Receiver of the session's events. */
+    private final Listener listener;
+
+    /** Stanzas queued by any thread, waiting for the loop thread. */
+    private final Queue <String> pending = new ConcurrentLinkedQueue <String>();
+    /** Indicates whether a flush of {@link #pending} is already scheduled. */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** Task that sends the pending stanzas. */
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushPending();
+        }
+    };
+
+    /** Handshake stanzas are written straight away, not queued. */
+    private final XmppHandshake.Output handshakeOutput = new XmppHandshake.Output() {
+        public void send( String xml )
+            throws IOException {
+            write( xml );
+        }
+    };
+
+    /** Connection state (written on the loop thread only). */
+    private volatile int state = STATE_CLOSED;
+    /** Failed connection attempts since the session was last ready. */
+    private volatile int failedAttempts = 0;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private XmppHandshake handshake;
+    private XmlPushParser parser;
+    /** TLS codec (null before STARTTLS). */
+    private TlsCodec tls;
+    /** Indicates whether the TLS handshake has completed. */
+    private boolean tlsEstablished;
+    /** TLS context and session cache for the server. */
+    private TlsSessions tlsSessions;
+    /** When the TLS handshake began (System.nanoTime() and currentTimeMillis()). */
+    private long tlsStart;
+    private long tlsStartMillis;
+    /** Plain bytes read from the socket (before STARTTLS). */
+    private ByteBuffer plainIn;
+    /** Plain bytes to write to the socket (before STARTTLS). */
+    private ByteBuffer plainOut;
+}
@@ -7,13 +7,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Date;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import javax.xml.stream.XMLStreamConstants;
@@ -31,11 +29,71 @@ public class XmppSenderReceiver implements Runnable{
 	private BufferedReader reader;
 	private BufferedWriter writer;
 	private XMLStreamReader parser;
+	private XmlStanzaReader stanzaReader;
 	private JabberID jid;
 	private String threadID;
-	private boolean isSomeoneWriting = false;
+	private OutboundStanzaQueue outboundQueue;
+	private StreamManagement streamManagement;
+	private AccountMetrics metrics;
+	private RosterStore rosterStore;
+	private boolean rosterVersioning;
+	// Attributes of the iq stanza being handled (its payload handler only gets the payload)
+	private String iqType;
+	private String iqId;
+	private String iqFrom;
 	
 	private String currentRecepientResource = "";
+	private MessageListener messageListener;
+	// Handlers of the received stanzas, by element name and namespace
+	private final StanzaHandlerRegistry handlers = new StanzaHandlerRegistry();
+	
+	public static final String CLIENT_NAMESPACE = "jabber:client";
+	public static final String ROSTER_NAMESPACE = "jabber:iq:roster";
+	private static final String STREAM_NAMESPACE = "http://etherx.jabber.org/streams";
+	
+	/** Receives the chat messages from the default "message" handler (none by default) */
+	public interface MessageListener {
+		void receivedMessage(String message, String sender);
+	}
+	
+	// Default handler of chat messages: hands the body and sender to the message listener
+	private final StanzaHandler messageHandler = new StanzaHandler() {
+		@Override
+		public void handleStanza(XmlElement message) {
+			handleNewMessage(message);
+		}
+		@Override
+		public void handleStanza(XMLStreamReader parser) {
+			handleNewMessage();
+		}
+	};
+	
+	// Default handler of roster results and pushes: updates the roster store
+	private final StanzaHandler rosterHandler = new StanzaHandler() {
+		@Override
+		public void handleStanza(XmlElement query) {
+			handleQuery(query);
+		}
+		@Override
+		public void handleStanza(XMLStreamReader parser) {
+			handleQuery();
+		}
+	};
+	
+	// Default handler of presences: records the contacts' resources that are online
+	private final StanzaHandler presenceHandler = new StanzaHandler() {
+		@Override
+		public void handleStanza(XmlElement presence) {
+			handlePresence(presence);
+		}
+		@Override
+		public void handleStanza(XMLStreamReader parser) throws XMLStreamException {
+			handlePresence();
+		}
+	};
+	
+	// Stanzas that can be waiting for the writer thread before senders get an error
+	private static final int OUTBOUND_QUEUE_CAPACITY = 1024;
 		
 	public XmppSenderReceiver(XmppConnection connection){
 		this.connection = connection;
@@ -43,50 +101,374 @@ public class XmppSenderReceiver implements Runnable{
 	    this.reader = connection.getReader();
 	    this.writer = connection.getWriter();
 	    this.parser = connection.getParser();
+	    this.stanzaReader = connection.getStanzaReader();
 	    this.jid = connection.getJabberID();
 	    this.threadID = generateThreadID();
+	    this.streamManagement = connection.getStreamManagement();
+	    this.metrics = connection.getMetrics();
+	    this.rosterStore = RosterStore.forAccount(jid);
+	    this.rosterVersioning = connection.isRosterVersioningSupported();
+	    registerDefaultHandlers();
+	    // The writer thread serializes the stanzas straight to the socket's bytes
+	    this.outboundQueue = new OutboundStanzaQueue(connection.getOutputStream(),
+	    		new StanzaSerializer(jid, threadID), OUTBOUND_QUEUE_CAPACITY, streamManagement);
+	    // Stanzas the server didn't get before the last disconnection go first
+	    int resent = this.outboundQueue.queueStanzasToResend();
+	    if (resent > 0){
+	    	System.out.println("Re-sending " + resent + " unacknowledged stanza(s)");
+	    }
+	    if (streamManagement != null && streamManagement.getDroppedOnResend() > 0){
+	    	System.out.println(streamManagement.getDroppedOnResend() + " unacknowledged stanza(s) could not be re-sent (too many)");
+	    }
+	    this.outboundQueue.start();
+	}
+	
+	/** For the benchmarks: handles the stanzas from the given parser (StAX or push), writes to out */
+	XmppSenderReceiver(JabberID jid, XMLStreamReader parser, XmlStanzaReader stanzaReader, OutputStream out){
+		this.jid = jid;
+		this.parser = parser;
+		this.stanzaReader = stanzaReader;
+		this.threadID = generateThreadID();
+		this.metrics = AccountMetrics.forAccount(jid);
+		this.rosterStore = new RosterStore(null);
+		registerDefaultHandlers();
+		this.outboundQueue = new OutboundStanzaQueue(out, new StanzaSerializer(jid, threadID),
+				OUTBOUND_QUEUE_CAPACITY, null);
+		this.outboundQueue.start();
+	}
+	
+	/** Stops the writer thread. Called on disconnection and on exit. */
+	public void close(){
+		outboundQueue.close();
+		try {
+			// Keep the roster pushes received on this connection
+			rosterStore.save();
+		} catch (IOException e) {
+			EventLog.log("Could not save the roster: ", e);
+		}
+	}
+	
+	/** Gets the local copy of the roster, kept up to date by the roster results and pushes */
+	public RosterStore getRosterStore(){
+		return rosterStore;
+	}
+	
+	/** Sets who receives the chat messages. Call before starting the receive thread */
+	public void setMessageListener(MessageListener listener){
+		this.messageListener = listener;
+	}
+	
+	/**
+	 * Gets the stanza handlers of this connection, to add handlers or replace the default ones
+	 * ("message" and "presence" in jabber:client, "query" in jabber:iq:roster). Handlers of iq stanzas are
+	 * looked up by their payload (first child), e.g. the roster query.
+	 */
+	public StanzaHandlerRegistry getStanzaHandlers(){
+		return handlers;
+	}
+	
+	private void registerDefaultHandlers(){
+		handlers.register("message", CLIENT_NAMESPACE, messageHandler);
+		handlers.register("query", ROSTER_NAMESPACE, rosterHandler);
+		handlers.register("presence", CLIENT_NAMESPACE, presenceHandler);
+	}
+	
+	/** Gets the connection the stanzas are sent and received over */
+	public XmppConnection getConnection(){
+		return connection;
+	}
+	
+	/** Gets the outbound queue, e.g. to check its depth and flush batching */
+	public OutboundStanzaQueue getOutboundQueue(){
+		return outboundQueue;
 	}
 	
 	@Override
 	public void run(){
 		
-		while(true){
+		if (stanzaReader != null){
+			runWithPushParser();
+			return;
+		}
+		
+		// Get the next XML event
+		int eventType = parser.getEventType();
+		// Elements open inside the stream: the stanzas are at depth 0
+		int depth = 0;
+		// Whether the next element at depth 1 is the payload of an iq (its first child)
+		boolean iqPayloadNext = false;
+		
+		while (eventType != XMLStreamConstants.END_DOCUMENT) {
 			
-			// Get the next XML event
-	        int eventType = parser.getEventType();
-	        
-	        while ( eventType != XMLStreamConstants.END_DOCUMENT ) {
-	        	
-	            // Only process XML start tag
-	        	if ( eventType == XMLStreamConstants.START_ELEMENT ){
-	        		// getLocalName only applies to START_ELEMENT or END_ELEMENT, or ENTITY_REFERENCE
-	        		// Hence must be inside the if block
-		        	String localName = parser.getLocalName();
-
-		        	switch (localName){
-		        		case "message":
-		        			handleNewMessage();
-		        			break;
-		        		case "query":
-		        			handleQuery();
-		        			break;
-		        		default:
-		        			//System.out.println("XmppReceiver received a non-supported tag: " + localName);
-		        			break;
-		        	}
-	        	}
-	            
-	            // Get the next XML event from the parser
-	            try {
-					eventType = parser.next();
-				} catch (XMLStreamException e) {
+			if (eventType == XMLStreamConstants.START_ELEMENT){
+				// getLocalName only applies to START_ELEMENT or END_ELEMENT, or ENTITY_REFERENCE
+				// Hence must be inside the if block
+				String localName = parser.getLocalName();
+				String namespace = parser.getNamespaceURI();
+				if (depth == 0 && localName.equals("stream") && STREAM_NAMESPACE.equals(namespace)){
+					// The stream's start tag (when the parser is at the start of the document)
+				} else {
+					// As in runWithPushParser(), the handlers are for the stanzas and the payload of
+					// an iq: not for what a contact nests in a stanza (e.g. a roster query in a message)
+					boolean handled = depth == 0 || (depth == 1 && iqPayloadNext);
+					if (depth == 0){
+						countStanza(localName);
+						iqPayloadNext = localName.equals("iq");
+						setIqOf(localName, parser.getAttributeValue(null, "type"), parser.getAttributeValue(null, "id"),
+								parser.getAttributeValue(null, "from"));
+					} else if (depth == 1){
+						iqPayloadNext = false;
+					}
+					++depth;
 					
+					// Interned names: the lookup only compares references
+					StanzaHandler handler = handled ? handlers.get(localName, namespace) : null;
+					if (handler != null){
+						try {
+							handler.handleStanza(parser);
+						} catch (XMLStreamException e) {
+							// The parser can't go on after an error
+							System.err.println("Error detected when handling <" + localName + ">. In XmppReceiver");
+							e.printStackTrace();
+							return;
+						}
+						// The handler may have read on up to the element's end tag
+						if (parser.getEventType() == XMLStreamConstants.END_ELEMENT && parser.getLocalName().equals(localName)){
+							--depth;
+						}
+					}
+				}
+			} else if (eventType == XMLStreamConstants.END_ELEMENT && depth > 0){
+				// At depth 0, the stream's end tag (or the end of the resource
+				// binding iq the connection stopped on)
+				--depth;
+			}
+			
+			eventType = nextEvent();
+			if (eventType < 0){
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the next XML event from the parser, or -1 if the connection is gone (or the stream
+	 * is broken): like the end of the stream, this ends the receive loop.
+	 */
+	private int nextEvent(){
+		try {
+			return parser.next();
+		} catch (XMLStreamException e) {
+			return -1;
+		}
+	}
+	
+	/** Receive loop when the connection uses the push parser (-Djabber.parser=push) */
+	private void runWithPushParser(){
+		try{
+			while(true){
+				XmlElement stanza = stanzaReader.next();
+				
+				if (streamManagement != null && StreamManagement.NAMESPACE.equals(stanza.getNamespace())){
+					metrics.streamManagementReceived();
+					handleStreamManagement(stanza);
+					continue;
+				}
+				
+				countStanza(stanza.getName());
+				setIqOf(stanza.getName(), stanza.getAttribute("type"), stanza.getAttribute("id"), stanza.getAttribute("from"));
+				
+				StanzaHandler handler = handlers.get(stanza.getName(), stanza.getNamespace());
+				if (handler == null && stanza.getName().equals("iq") && !stanza.getChildren().isEmpty()){
+					// Handlers of iq stanzas are registered for their payload, e.g. the roster query
+					stanza = stanza.getChildren().get(0);
+					handler = handlers.get(stanza.getName(), stanza.getNamespace());
+				}
+				if (handler != null){
+					handler.handleStanza(stanza);
+				}
+				if (streamManagement != null){
+					streamManagement.stanzaHandled();
+				}
+			}
+		} catch (IOException e){
+			// The connection is gone. Sending the next message or keep-alive
+			// packet fails too, which starts the re-connection.
+		}
+	}
+	
+	/** Counts a received stanza by type */
+	private void countStanza(String name){
+		switch (name){
+			case "message":
+				metrics.messageReceived();
+				break;
+			case "iq":
+				metrics.iqReceived();
+				break;
+			case "presence":
+				metrics.presenceReceived();
+				break;
+			default:
+				metrics.otherStanzaReceived();
+				break;
+		}
+	}
+	
+	/** Handles stream management acks and ack requests (XEP-0198) */
+	private void handleStreamManagement(XmlElement element) throws IOException{
+		switch (element.getName()){
+			case "r":
+				outboundQueue.enqueueNonza(streamManagement.createAck());
+				break;
+			case "a":
+				long h;
+				try {
+					h = StreamManagement.parseCount(element.getAttribute("h"));
+				} catch (IOException e) {
+					// Ends the receive loop, as a broken stream does: the re-connection starts
+					System.err.println(e.getMessage() + " in an ack, closing the connection");
+					throw e;
+				}
+				streamManagement.acknowledged(h);
+				break;
+			case "enabled":
+				String resume = element.getAttribute("resume");
+				streamManagement.enabled(element.getAttribute("id"), "true".equals(resume) || "1".equals(resume));
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/** Same as handleNewMessage(), for a stanza from the push parser */
+	void handleNewMessage(XmlElement message){
+		if ("error".equals(message.getAttribute("type"))){
+			return;
+		}
+		XmlElement body = message.getChild("body");
+		if (body != null){
+			String sender = message.getAttribute("from");
+			String text = body.getText();
+			String senderEmail = getSenderEmail(sender == null ? "" : sender);
+			if (messageListener != null){
+				long start = System.nanoTime();
+				messageListener.receivedMessage(text, senderEmail);
+				metrics.messageHandled(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/** Same as handleQuery(), for a stanza from the push parser */
+	void handleQuery(XmlElement query){
+		long start = System.nanoTime();
+		List<RosterStore.Item> items = new ArrayList<RosterStore.Item>(query.getChildren().size());
+		for (XmlElement item : query.getChildren()){
+			if (item.getName().equals("item")){
+				List<String> groups = null;
+				for (XmlElement group : item.getChildren()){
+					if (group.getName().equals("group")){
+						if (groups == null){
+							groups = new ArrayList<String>(2);
+						}
+						groups.add(group.getText());
+					}
+				}
+				items.add(new RosterStore.Item(item.getAttribute("jid"), item.getAttribute("name"),
+						item.getAttribute("subscription"), groups));
+			}
+		}
+		applyRoster(items, query.getAttribute("ver"));
+		metrics.rosterHandled(System.nanoTime() - start);
+	}
+	
+	/** Same as handlePresence(), for a stanza from the push parser */
+	void handlePresence(XmlElement presence){
+		XmlElement show = presence.getChild("show");
+		XmlElement priority = presence.getChild("priority");
+		applyPresence(presence.getAttribute("from"), presence.getAttribute("type"),
+				show == null ? null : show.getText(), priority == null ? null : priority.getText());
+	}
+	
+	/** Handles a presence: the parser is on its start tag, and is left on its end tag */
+	void handlePresence() throws XMLStreamException{
+		String from = parser.getAttributeValue(null, "from");
+		String type = parser.getAttributeValue(null, "type");
+		String show = null, priority = null;
+		int depth = 1;
+		while (depth > 0){
+			int eventType = parser.next();
+			if (eventType == XMLStreamConstants.START_ELEMENT){
+				if (depth == 1 && parser.getLocalName().equals("show")){
+					show = parser.getElementText();
+				} else if (depth == 1 && parser.getLocalName().equals("priority")){
+					priority = parser.getElementText();
+				} else {
+					++depth;
+				}
+			} else if (eventType == XMLStreamConstants.END_ELEMENT){
+				--depth;
+			}
+		}
+		applyPresence(from, type, show, priority);
+	}
+	
+	/** Records a contact's resource going online or offline (other presence types are ignored) */
+	private void applyPresence(String from, String type, String show, String priority){
+		if (from == null){
+			return;
+		}
+		if (type == null){
+			int value = 0;
+			if (priority != null){
+				try {
+					value = Integer.parseInt(priority.trim());
+				} catch (NumberFormatException e) {
+					// Keep 0
 				}
-	        }
+			}
+			rosterStore.setAvailable(from, show == null ? null : show.trim(), value);
+		} else if (type.equals("unavailable")){
+			rosterStore.setUnavailable(from);
+		}
+	}
+	
+	/** Keeps the attributes of a top-level iq for its payload's handler (cleared by any other stanza) */
+	private void setIqOf(String stanzaName, String type, String id, String from){
+		boolean iq = stanzaName.equals("iq");
+		this.iqType = iq ? type : null;
+		this.iqId = iq ? id : null;
+		this.iqFrom = iq ? from : null;
+	}
+	
+	/**
+	 * Applies a roster result (the whole roster) or a roster push (changed items) to the roster store.
+	 * Pushes are acknowledged, and ignored unless they come from our own account. Anything else
+	 * (e.g. an error, which may echo our request's empty query) leaves the roster as it is.
+	 */
+	private void applyRoster(List<RosterStore.Item> items, String version){
+		if ("result".equals(iqType)){
+			rosterStore.replaceAll(items, version);
+			return;
+		}
+		if (!"set".equals(iqType)){
+			return;
+		}
+		if (iqFrom != null && !iqFrom.equals(jid.getJabberID())){
+			return;
+		}
+		for (RosterStore.Item item : items){
+			rosterStore.update(item, version);
+		}
+		try {
+			outboundQueue.enqueue("<iq type='result' id='" + XmlEscaper.escapeAttribute(iqId == null ? "" : iqId) + "'/>");
+		} catch (IOException e) {
+			// The connection is gone: the next send fails too and starts the re-connection
 		}
 	}
 	
-	private void handleNewMessage(){
+	// The handlers are package-private for the benchmarks
+	void handleNewMessage(){
 		try {
 			
 			// Firstly, traverse through all attributes on this START_ELEMENT, and see who is the sender
@@ -108,15 +490,25 @@ public class XmppSenderReceiver implements Runnable{
 			
 			// Get the next XML event from the parser. Searching for <body> inside the <message ...></message>
 			int eventType = parser.next();
+			int depth = 1;
 			
-			// While it's not the closing tag: </message>:
-		
-			while (eventType != XMLStreamConstants.END_DOCUMENT || !parser.getLocalName().equals("message")) {
+			// While it's not the closing tag: </message> (the receive loop reads on from there)
+			while (eventType != XMLStreamConstants.END_DOCUMENT) {
 					// Check if the parse event is a XML start tag, and it's a "body"
-					if (eventType == XMLStreamConstants.START_ELEMENT && parser.getLocalName().equals("body")) {
+					if (eventType == XMLStreamConstants.START_ELEMENT && depth == 1 && parser.getLocalName().equals("body")) {
 						
-						JabberMain.receivedMessage(parser.getElementText(), getSenderEmail(sender));
+						String text = parser.getElementText();
+						String senderEmail = getSenderEmail(sender);
+						if (messageListener != null){
+							long start = System.nanoTime();
+							messageListener.receivedMessage(text, senderEmail);
+							metrics.messageHandled(System.nanoTime() - start);
+						}
 						
+						break;
+					} else if (eventType == XMLStreamConstants.START_ELEMENT) {
+						++depth;
+					} else if (eventType == XMLStreamConstants.END_ELEMENT && --depth == 0) {
 						break;
 					}
 					eventType = parser.next();
@@ -129,9 +521,14 @@ public class XmppSenderReceiver implements Runnable{
 		}
 	}
 	
-	private void handleQuery(){
+	void handleQuery(){
+		long start = System.nanoTime();
 		boolean done = false;
-		System.out.println("Contact list:");
+		// The parser is on the <query> start tag
+		String version = parser.getAttributeValue(null, "ver");
+		List<RosterStore.Item> items = new ArrayList<RosterStore.Item>();
+		String itemJid = null, itemName = null, itemSubscription = null;
+		List<String> itemGroups = null;
 		while (!done) {
 
 			int eventType;
@@ -140,25 +537,37 @@ public class XmppSenderReceiver implements Runnable{
 				if (eventType == XMLStreamConstants.START_ELEMENT) {
 
 					if (parser.getLocalName().equals("item")) {
-						// Add the authentication mechanism to the list
-						System.out.println(parser.getAttributeValue(0));
-
+						itemJid = parser.getAttributeValue(null, "jid");
+						itemName = parser.getAttributeValue(null, "name");
+						itemSubscription = parser.getAttributeValue(null, "subscription");
+						itemGroups = null;
+					} else if (parser.getLocalName().equals("group") && itemJid != null) {
+						if (itemGroups == null){
+							itemGroups = new ArrayList<String>(2);
+						}
+						itemGroups.add(parser.getElementText());
 					}
 				} else if (eventType == XMLStreamConstants.END_ELEMENT) {
-					if (parser.getLocalName().equals("query")) {
+					if (parser.getLocalName().equals("item")) {
+						items.add(new RosterStore.Item(itemJid, itemName, itemSubscription, itemGroups));
+						itemJid = null;
+					} else if (parser.getLocalName().equals("query")) {
 						done = true;
 					}
 				}
 			} catch (XMLStreamException e) {
 				System.err.println("Error detected when parsing the query. In XmppReceiver");
 				e.printStackTrace();
+				return;
 			}
 		}
+		applyRoster(items, version);
+		metrics.rosterHandled(System.nanoTime() - start);
 	}
 	
 	
 	/** senderID is in the format of: sender@email.com/resource 	 */
-	private String getSenderEmail(String senderID){
+	String getSenderEmail(String senderID){
 		if (senderID.indexOf("/") == -1){
 			return senderID;
 		} else{
@@ -182,19 +591,7 @@ public class XmppSenderReceiver implements Runnable{
 	/** send the presence signal */
 	public void sendPresence() throws IOException {
 		System.out.println("Presence signal sent");
-		try{
-			while (isSomeoneWriting){
-				// Keep waiting
-			}
-			isSomeoneWriting = true;
-			writer.write("<presence/>");
-			isSomeoneWriting = false;
-			
-			writer.flush();
-		} catch (Exception e){
-			isSomeoneWriting = false;
-			throw e;
-		}
+		outboundQueue.enqueuePresence();
 	}
 	
 	/** One-to-one chat session
@@ -212,51 +609,16 @@ public class XmppSenderReceiver implements Runnable{
 	 * @throws IOException
 	 */
 	public void sendMessageToClient(String message, String receiver) throws IOException {
-				
-		StringBuilder temp = new StringBuilder();
-		temp.append("<message")
-		.append(" from='").append(jid.getJabberID()).append("/").append(jid.getResource()).append("'")
-		//.append(" id='" + chatID).append("'")
-		.append(" to='" + receiver).append(currentRecepientResource).append("'")
-		.append(" type='").append("chat").append("'")
-		.append(" xml:lang='en'>")
-		.append(" <body>" + message + "</body>")
-		.append("<thread>" + threadID + "</thread>")
-		.append("</message>");
-		
-		String messageToSend = temp.toString();
-		
-		//System.out.println("Sending this message: " + messageToSend);
-		try{
-			while (isSomeoneWriting){
-				// Keep waiting
-			}
-			isSomeoneWriting = true;
-			writer.write(messageToSend);
-			isSomeoneWriting = false;
-	
-	        writer.flush();
-		} catch (Exception e){
-			isSomeoneWriting = false;
-			throw e;
-		}
-        
+		// Built as bytes by the StanzaSerializer, on the writer thread
+		outboundQueue.enqueueMessage(receiver, currentRecepientResource, message);
 	}
 	
 	public void sendKeepAlivePacket() throws IOException {
-		while (isSomeoneWriting){
-			// Keep waiting
-		}
-		
-		try {
-			isSomeoneWriting = true;
-			writer.write(" ");
-			isSomeoneWriting = false;
-	        writer.flush();
-
-		} catch (Exception e){
-			isSomeoneWriting = false;
-			throw e;
+		if (streamManagement != null && streamManagement.hasUnacked()){
+			// An ack request keeps the connection alive too
+			outboundQueue.enqueueNonza(StreamManagement.ACK_REQUEST);
+		} else {
+			outboundQueue.enqueueKeepAlive();
 		}
     }
 	
@@ -269,30 +631,12 @@ public class XmppSenderReceiver implements Runnable{
      	</iq>
 	 */
 	public void sendRoasterRequest() throws Exception{
-		StringBuilder temp = new StringBuilder();
-		temp.append("<iq")
-		.append(" from='").append(jid.getJabberID()).append("/").append(jid.getResource()).append("'")
-		.append(" id='" + threadID).append("'")
-		.append(" type='").append("get").append("'>")
-		.append(" <query xmlns='jabber:iq:roster'/>")
-		.append("</iq>");
-		
-		String messageToSend = temp.toString();
-		//System.out.println("Sending this query: " + messageToSend);
-		
-		try{
-			while (isSomeoneWriting){
-				// Keep waiting
-			}
-			isSomeoneWriting = true;
-			writer.write(messageToSend);
-			isSomeoneWriting = false;
-			
-	        writer.flush();
-	        
-		} catch (Exception e){
-			isSomeoneWriting = false;
-			throw e;
+		if (rosterVersioning){
+			// Only the changes since our copy (an empty version asks for the whole roster)
+			String version = rosterStore.getVersion();
+			outboundQueue.enqueueRosterRequest(version == null ? "" : version);
+		} else {
+			outboundQueue.enqueueRosterRequest();
 		}
 	}
 	
@@ -302,40 +646,14 @@ public class XmppSenderReceiver implements Runnable{
 	    return Integer.toString(rn.nextInt());
 	}
 	
-	public void sendLogToServer(ArrayList<String> log) throws Exception {
-		
-		//Socket socket = new Socket();
-		String serverName = "localhost";
-		int portNumber = 9119;
-		
-		// Connect to the server
-		
-		//System.out.println("Connecting to " + serverName + " on port " + portNumber);
-		Socket client = new Socket(serverName, portNumber);
-		//System.out.println("Just connected to " + client.getRemoteSocketAddress());
-		
-		PrintWriter outWritter =
-		        new PrintWriter(client.getOutputStream(), true);
-
-		// Write the file name:
-		outWritter.println(jid.getUsername() + "_" + generateTimeStamp());
-
-		// Write the file content:
-		for (String newEntry : log) {	
-			//System.out.println("Sending: " + newEntry);
-			outWritter.println(newEntry);
-		}
-		
-		outWritter.close();
-		client.close();
-		System.out.println("Conversation History Saved.");
-	}
-	
-	private String generateTimeStamp(){
-		Date date = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy_MM_dd_hh_mm_ss");
-		String formattedDate = sdf.format(date);
-		
-		return formattedDate;
+	/**
+	 * Hands a conversation's log to the log shipper, which saves it on the
+	 * log server in the background (so a slow log server doesn't hold up chatting).
+	 * @return false if the log shipper has too much queued already; the lines
+	 *  should be kept and saved later
+	 */
+	public boolean sendLogToServer(String contact, List<String> log) {
+		return LogShipper.getDefault().ship(
+				new LogProtocol.Record(jid.getJabberID(), contact, System.currentTimeMillis(), log));
 	}
 }